@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Second order IIR filter in transposed direct form II, with the coefficients normalized so that
+ * {@code a0 = 1}:
+ * {@code y[n] = b0 * x[n] + b1 * x[n-1] + b2 * x[n-2] - a1 * y[n-1] - a2 * y[n-2]}.
+ * <p>
+ * {@link #lowPass} and {@link #highPass} compute the coefficients with the formulas of the
+ * Audio EQ Cookbook by Robert Bristow-Johnson. The state is kept in double precision, so that low cutoff
+ * frequencies, with poles close to the unit circle, stay stable.
+ */
+public class Biquad implements FilterStage {
+    /**
+     * Quality factor of a Butterworth filter, with a maximally flat pass band.
+     */
+    public static final double BUTTERWORTH_Q = 1 / Math.sqrt(2);
+
+    private final int mChannels;
+    private final double mB0;
+    private final double mB1;
+    private final double mB2;
+    private final double mA1;
+    private final double mA2;
+    private final double[] mZ1;
+    private final double[] mZ2;
+
+    /**
+     * @param channels the number of values of each frame.
+     */
+    public Biquad(int channels, double b0, double b1, double b2, double a1, double a2) {
+        if (channels <= 0) {
+            throw new IllegalArgumentException("channels must be positive");
+        }
+        mChannels = channels;
+        mB0 = b0;
+        mB1 = b1;
+        mB2 = b2;
+        mA1 = a1;
+        mA2 = a2;
+        mZ1 = new double[channels];
+        mZ2 = new double[channels];
+    }
+
+    /**
+     * Create a second order low-pass filter.
+     *
+     * @param channels   the number of values of each frame.
+     * @param sampleRate the input frame rate, in Hz.
+     * @param cutoff     the cutoff frequency, in Hz, lower than half the sample rate.
+     * @param q          the quality factor, see {@link #BUTTERWORTH_Q}.
+     */
+    public static Biquad lowPass(int channels, double sampleRate, double cutoff, double q) {
+        double w0 = getAngularFrequency(sampleRate, cutoff);
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+        return new Biquad(channels, (1 - cos) / 2 / a0, (1 - cos) / a0, (1 - cos) / 2 / a0,
+                -2 * cos / a0, (1 - alpha) / a0);
+    }
+
+    /**
+     * Create a second order high-pass filter.
+     *
+     * @param channels   the number of values of each frame.
+     * @param sampleRate the input frame rate, in Hz.
+     * @param cutoff     the cutoff frequency, in Hz, lower than half the sample rate.
+     * @param q          the quality factor, see {@link #BUTTERWORTH_Q}.
+     */
+    public static Biquad highPass(int channels, double sampleRate, double cutoff, double q) {
+        double w0 = getAngularFrequency(sampleRate, cutoff);
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+        return new Biquad(channels, (1 + cos) / 2 / a0, -(1 + cos) / a0, (1 + cos) / 2 / a0,
+                -2 * cos / a0, (1 - alpha) / a0);
+    }
+
+    private static double getAngularFrequency(double sampleRate, double cutoff) {
+        if (cutoff <= 0 || cutoff >= sampleRate / 2) {
+            throw new IllegalArgumentException("cutoff must be between 0 and half the sample rate: " + cutoff);
+        }
+        return 2 * Math.PI * cutoff / sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    @Override
+    public int getDecimationFactor() {
+        return 1;
+    }
+
+    @Override
+    public int process(float[] frames, int count) {
+        for (int c = 0; c < mChannels; c++) {
+            double z1 = mZ1[c];
+            double z2 = mZ2[c];
+            for (int i = c; i < count * mChannels; i += mChannels) {
+                double x = frames[i];
+                double y = mB0 * x + z1;
+                z1 = mB1 * x - mA1 * y + z2;
+                z2 = mB2 * x - mA2 * y;
+                frames[i] = (float) y;
+            }
+            mZ1[c] = z1;
+            mZ2[c] = z2;
+        }
+        return count;
+    }
+
+    @Override
+    public void reset() {
+        for (int c = 0; c < mChannels; c++) {
+            mZ1[c] = 0;
+            mZ2[c] = 0;
+        }
+    }
+}
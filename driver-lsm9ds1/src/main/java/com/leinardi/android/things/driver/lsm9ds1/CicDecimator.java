@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Cascaded integrator-comb decimator: a cascade of {@code order} moving sums of {@code ratio} samples,
+ * followed by decimation, computed with integer additions only.
+ * <p>
+ * The input values are rounded to integers, so the decimator is meant to be the first stage of a pipeline,
+ * fed with the raw sensor counts. The integrators use wrapping 64-bit arithmetic, which keeps the output
+ * exact however long the stream is, as long as {@code ratio ^ order} does not exceed {@code 2 ^ 32}.
+ * The output is normalized to a DC gain of 1.
+ */
+public class CicDecimator implements FilterStage {
+    // Bits available for the growth of 32-bit input values into the 64-bit integrators
+    private static final int MAX_BIT_GROWTH = 32;
+
+    private final int mChannels;
+    private final int mRatio;
+    private final int mOrder;
+    private final float mGain;
+    // Integrator and comb delay of stage k of channel c at index c * order + k
+    private final long[] mIntegrators;
+    private final long[] mCombDelays;
+    private int mPhase;
+
+    /**
+     * @param channels the number of values of each frame.
+     * @param ratio    the decimation ratio, i.e. the length of the moving sums.
+     * @param order    the number of cascaded moving sums: higher orders attenuate more the aliases.
+     */
+    public CicDecimator(int channels, int ratio, int order) {
+        if (channels <= 0 || ratio <= 0 || order <= 0) {
+            throw new IllegalArgumentException("channels, ratio and order must be positive");
+        }
+        if (order * Math.log(ratio) / Math.log(2) > MAX_BIT_GROWTH) {
+            throw new IllegalArgumentException("ratio^order must not exceed 2^" + MAX_BIT_GROWTH);
+        }
+        mChannels = channels;
+        mRatio = ratio;
+        mOrder = order;
+        mGain = (float) (1 / Math.pow(ratio, order));
+        mIntegrators = new long[channels * order];
+        mCombDelays = new long[channels * order];
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    @Override
+    public int getDecimationFactor() {
+        return mRatio;
+    }
+
+    @Override
+    public int process(float[] frames, int count) {
+        int output = 0;
+        for (int frame = 0; frame < count; frame++) {
+            for (int c = 0; c < mChannels; c++) {
+                int base = c * mOrder;
+                long value = Math.round(frames[frame * mChannels + c]);
+                for (int k = 0; k < mOrder; k++) {
+                    value += mIntegrators[base + k];
+                    mIntegrators[base + k] = value;
+                }
+            }
+            if (++mPhase == mRatio) {
+                mPhase = 0;
+                for (int c = 0; c < mChannels; c++) {
+                    int base = c * mOrder;
+                    long value = mIntegrators[base + mOrder - 1];
+                    for (int k = 0; k < mOrder; k++) {
+                        long delayed = mCombDelays[base + k];
+                        mCombDelays[base + k] = value;
+                        value -= delayed;
+                    }
+                    // The output frame index never exceeds the input one, so writing in place is safe
+                    frames[output * mChannels + c] = value * mGain;
+                }
+                output++;
+            }
+        }
+        return output;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mIntegrators.length; i++) {
+            mIntegrators[i] = 0;
+            mCombDelays[i] = 0;
+        }
+        mPhase = 0;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chain of {@link FilterStage}s processing frames of interleaved values in place, without allocating
+ * memory. Use the {@link Builder} to create one, e.g. to get the accelerometer sampled at 952 Hz as a
+ * 50 Hz low-pass filtered stream:
+ * <pre>{@code
+ * FilterPipeline pipeline = new FilterPipeline.Builder(3, 952)
+ *         .addCicDecimator(19, 3)
+ *         .addLowPass(10)
+ *         .build();
+ * }</pre>
+ * The builder keeps track of the frame rate after each decimating stage, so that the cutoff frequencies
+ * of the following stages are expressed in Hz.
+ */
+public class FilterPipeline {
+    private final int mChannels;
+    private final float mInputRate;
+    private final float mOutputRate;
+    private final FilterStage[] mStages;
+
+    private FilterPipeline(Builder builder) {
+        mChannels = builder.mChannels;
+        mInputRate = builder.mInputRate;
+        mOutputRate = builder.mRate;
+        mStages = builder.mStages.toArray(new FilterStage[builder.mStages.size()]);
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /**
+     * @return the input frame rate, in Hz.
+     */
+    public float getInputRate() {
+        return mInputRate;
+    }
+
+    /**
+     * @return the output frame rate, in Hz.
+     */
+    public float getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * Filter the given frames in place through all the stages.
+     *
+     * @param frames array containing {@code count} frames of {@link #getChannelCount()} interleaved values,
+     *               receiving the output frames.
+     * @param count  the number of input frames.
+     * @return the number of output frames written at the beginning of {@code frames}.
+     */
+    public int process(float[] frames, int count) {
+        for (int i = 0; i < mStages.length && count > 0; i++) {
+            count = mStages[i].process(frames, count);
+        }
+        return count;
+    }
+
+    /**
+     * Clear the state of all the stages.
+     */
+    public void reset() {
+        for (FilterStage stage : mStages) {
+            stage.reset();
+        }
+    }
+
+    public static final class Builder {
+        private final int mChannels;
+        private final float mInputRate;
+        private float mRate;
+        private final List<FilterStage> mStages = new ArrayList<>();
+
+        /**
+         * @param channels  the number of values of each frame.
+         * @param inputRate the input frame rate, in Hz.
+         */
+        public Builder(int channels, float inputRate) {
+            if (channels <= 0 || inputRate <= 0) {
+                throw new IllegalArgumentException("channels and inputRate must be positive");
+            }
+            mChannels = channels;
+            mInputRate = inputRate;
+            mRate = inputRate;
+        }
+
+        /**
+         * Add a {@link CicDecimator}.
+         *
+         * @param ratio the decimation ratio.
+         * @param order the number of cascaded moving sums.
+         */
+        public Builder addCicDecimator(int ratio, int order) {
+            return addStage(new CicDecimator(mChannels, ratio, order));
+        }
+
+        /**
+         * Add a Butterworth low-pass {@link Biquad}.
+         *
+         * @param cutoff the cutoff frequency, in Hz.
+         */
+        public Builder addLowPass(float cutoff) {
+            return addLowPass(cutoff, Biquad.BUTTERWORTH_Q);
+        }
+
+        /**
+         * Add a low-pass {@link Biquad}.
+         *
+         * @param cutoff the cutoff frequency, in Hz.
+         * @param q      the quality factor.
+         */
+        public Builder addLowPass(float cutoff, double q) {
+            return addStage(Biquad.lowPass(mChannels, mRate, cutoff, q));
+        }
+
+        /**
+         * Add a Butterworth high-pass {@link Biquad}.
+         *
+         * @param cutoff the cutoff frequency, in Hz.
+         */
+        public Builder addHighPass(float cutoff) {
+            return addHighPass(cutoff, Biquad.BUTTERWORTH_Q);
+        }
+
+        /**
+         * Add a high-pass {@link Biquad}.
+         *
+         * @param cutoff the cutoff frequency, in Hz.
+         * @param q      the quality factor.
+         */
+        public Builder addHighPass(float cutoff, double q) {
+            return addStage(Biquad.highPass(mChannels, mRate, cutoff, q));
+        }
+
+        /**
+         * Add a {@link MovingAverage}.
+         *
+         * @param length the number of averaged frames.
+         */
+        public Builder addMovingAverage(int length) {
+            return addStage(new MovingAverage(mChannels, length));
+        }
+
+        /**
+         * Add a custom stage.
+         *
+         * @param stage the stage, with the same number of channels of the pipeline.
+         */
+        public Builder addStage(FilterStage stage) {
+            if (stage.getChannelCount() != mChannels) {
+                throw new IllegalArgumentException("stage has " + stage.getChannelCount()
+                        + " channels instead of " + mChannels);
+            }
+            mStages.add(stage);
+            mRate /= stage.getDecimationFactor();
+            return this;
+        }
+
+        public FilterPipeline build() {
+            return new FilterPipeline(this);
+        }
+    }
+}
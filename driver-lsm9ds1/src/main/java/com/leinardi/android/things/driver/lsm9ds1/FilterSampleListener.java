@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * A {@link Lsm9ds1Sampler.SampleListener} running consecutive values of each raw sample, e.g. the three
+ * accelerometer axes, through a {@link FilterPipeline} on the sampling thread, and delivering the filtered
+ * output at the output rate of the pipeline:
+ * <pre>{@code
+ * sampler.addSampleListener(new FilterSampleListener(pipeline, Lsm9ds1Sampler.ACCEL_OFFSET, listener));
+ * }</pre>
+ * The filtered values are in raw counts: multiply them by the sensitivity of the sensor to convert them.
+ * The raw counts of different full scales cannot be mixed: do not use it with the
+ * {@link Lsm9ds1#setAutoRange(boolean) auto-range} enabled.
+ */
+public class FilterSampleListener implements Lsm9ds1Sampler.SampleListener {
+    private final FilterPipeline mPipeline;
+    private final int mOffset;
+    private final FilteredSampleListener mListener;
+    private final float[] mFrame;
+
+    /**
+     * Callback invoked on the sampling thread for every output frame of the pipeline.
+     */
+    public interface FilteredSampleListener {
+        /**
+         * @param timestamp the timestamp of the last input sample of the frame.
+         * @param values    the filtered values, only valid for the duration of the call.
+         */
+        void onFilteredSample(long timestamp, float[] values);
+    }
+
+    /**
+     * @param pipeline the pipeline, with the input rate of the sampler.
+     * @param offset   the offset of the first filtered value in the raw samples, e.g.
+     *                 {@link Lsm9ds1Sampler#ACCEL_OFFSET}.
+     * @param listener the listener receiving the filtered frames.
+     */
+    public FilterSampleListener(FilterPipeline pipeline, int offset, FilteredSampleListener listener) {
+        if (offset < 0 || offset + pipeline.getChannelCount() > Lsm9ds1Sampler.SAMPLE_SIZE) {
+            throw new IllegalArgumentException("invalid offset: " + offset);
+        }
+        mPipeline = pipeline;
+        mOffset = offset;
+        mListener = listener;
+        mFrame = new float[pipeline.getChannelCount()];
+    }
+
+    @Override
+    public void onSample(long timestamp, short[] sample) {
+        for (int i = 0; i < mFrame.length; i++) {
+            mFrame[i] = sample[mOffset + i];
+        }
+        if (mPipeline.process(mFrame, 1) > 0) {
+            mListener.onFilteredSample(timestamp, mFrame);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * A stage of a {@link FilterPipeline}.
+ * <p>
+ * A stage processes frames of {@link #getChannelCount()} interleaved values (e.g. the X, Y and Z axes of a
+ * sensor) in place and keeps an independent state for each channel. Implementations must not allocate
+ * memory in {@link #process}.
+ */
+public interface FilterStage {
+    /**
+     * @return the number of values of each frame.
+     */
+    int getChannelCount();
+
+    /**
+     * @return the ratio between the input and the output frame rate, 1 if the stage does not decimate.
+     */
+    int getDecimationFactor();
+
+    /**
+     * Filter the given frames in place.
+     *
+     * @param frames array containing {@code count} interleaved frames, receiving the output frames.
+     * @param count  the number of input frames.
+     * @return the number of output frames written at the beginning of {@code frames}.
+     */
+    int process(float[] frames, int count);
+
+    /**
+     * Clear the state of the stage, as if no frames had been processed.
+     */
+    void reset();
+}
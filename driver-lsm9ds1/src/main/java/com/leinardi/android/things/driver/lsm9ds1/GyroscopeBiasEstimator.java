@@ -0,0 +1,306 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Online estimation of the gyroscope zero-rate level (bias) and of its dependency on the temperature.
+ * <p>
+ * The samples passed to {@link #update} are grouped in windows of {@link #WINDOW_NANOS}: when both the
+ * angular velocity and the acceleration are steady during a window, the device is considered stationary
+ * and the mean angular velocity of the window is an observation of the bias at the mean temperature of
+ * the window. The observations are fitted with an exponentially weighted linear regression against the
+ * temperature, so that the estimate follows the drift of the bias while the enclosure warms up.
+ * <p>
+ * A constant rotation around the gravity vector does not change the acceleration, and looks stationary too:
+ * a window is an observation only if its mean agrees with the estimate. The first estimate needs a few
+ * consecutive windows that agree with each other, and a longer run of them replaces an estimate that the
+ * stationary windows keep disagreeing with, e.g. one taken while the device was rotating at startup.
+ * <p>
+ * {@link #update} and {@link #getBias} do not allocate memory. All the methods are thread safe.
+ */
+public class GyroscopeBiasEstimator {
+    /**
+     * Duration of the windows used to detect a stationary device.
+     */
+    public static final long WINDOW_NANOS = 500000000L;
+    /**
+     * Default maximum standard deviation of the angular velocity of a stationary device, in dps.
+     */
+    public static final float DEFAULT_GYRO_STDDEV_THRESHOLD = 1f;
+    /**
+     * Default maximum standard deviation of the acceleration of a stationary device, in m/s^2.
+     */
+    public static final float DEFAULT_ACCEL_STDDEV_THRESHOLD = 0.1f;
+    // Zero-rate level of the LSM9DS1 at 2000 dps full scale: larger means are motion, not bias
+    private static final float MAX_BIAS_DPS = 30f;
+    // Windows whose mean differs more than this from the estimate, or from each other, are considered motion
+    private static final float MAX_BIAS_CHANGE_DPS = 2f;
+    // Consecutive agreeing windows needed for the first estimate, and to replace it
+    private static final int SEED_WINDOWS = 4;
+    private static final int RESEED_WINDOWS = 20;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    // Weight of the past observations, about 500 stationary windows of memory
+    private static final double FORGETTING_FACTOR = 0.998;
+    // Minimum spread of the observed temperatures needed to estimate the temperature coefficient (C^2)
+    private static final double MIN_TEMPERATURE_VARIANCE = 0.25;
+
+    private float mGyroVarianceThreshold = DEFAULT_GYRO_STDDEV_THRESHOLD * DEFAULT_GYRO_STDDEV_THRESHOLD;
+    private float mAccelVarianceThreshold = DEFAULT_ACCEL_STDDEV_THRESHOLD * DEFAULT_ACCEL_STDDEV_THRESHOLD;
+
+    // Current window
+    private long mWindowStart;
+    private int mWindowCount;
+    private final double[] mWindowGyroSum = new double[3];
+    private final double[] mWindowGyroSquareSum = new double[3];
+    private final double[] mWindowAccelSum = new double[3];
+    private final double[] mWindowAccelSquareSum = new double[3];
+    private double mWindowTemperatureSum;
+    private final double[] mWindowGyroMean = new double[3];
+    private boolean mStationary;
+
+    // Run of consecutive steady windows that do not agree with the estimate
+    private int mCandidateCount;
+    private final double[] mCandidateBiasSum = new double[3];
+    private double mCandidateTemperatureSum;
+
+    // Weighted regression of the bias against the temperature
+    private int mObservationCount;
+    private double mWeightSum;
+    private double mTemperatureSum;
+    private double mTemperatureSquareSum;
+    private final double[] mBiasSum = new double[3];
+    private final double[] mTemperatureBiasSum = new double[3];
+    private float mMinTemperature;
+    private float mMaxTemperature;
+    private final float[] mEstimate = new float[3];
+
+    /**
+     * Set the maximum standard deviations of the angular velocity and of the acceleration during a window
+     * for the device to be considered stationary.
+     *
+     * @param gyroStddev  the angular velocity threshold, in dps.
+     * @param accelStddev the acceleration threshold, in m/s^2.
+     */
+    public synchronized void setStationaryThresholds(float gyroStddev, float accelStddev) {
+        mGyroVarianceThreshold = gyroStddev * gyroStddev;
+        mAccelVarianceThreshold = accelStddev * accelStddev;
+    }
+
+    /**
+     * Discard the current estimate.
+     */
+    public synchronized void reset() {
+        clearWindow();
+        mStationary = false;
+        mCandidateCount = 0;
+        clearObservations();
+    }
+
+    /**
+     * Add a sample to the estimate. Does not allocate memory.
+     *
+     * @param timestamp   the timestamp of the sample, in nanoseconds.
+     * @param gyro        the uncalibrated angular velocity, in dps.
+     * @param gyroOffset  offset of the x angular velocity in {@code gyro}.
+     * @param accel       the acceleration, in m/s^2.
+     * @param accelOffset offset of the x acceleration in {@code accel}.
+     * @param temperature the temperature of the sensor, in Celsius.
+     */
+    public synchronized void update(long timestamp, float[] gyro, int gyroOffset, float[] accel, int accelOffset,
+                                    float temperature) {
+        if (mWindowCount == 0) {
+            mWindowStart = timestamp;
+        }
+        for (int i = 0; i < 3; i++) {
+            double g = gyro[gyroOffset + i];
+            double a = accel[accelOffset + i];
+            mWindowGyroSum[i] += g;
+            mWindowGyroSquareSum[i] += g * g;
+            mWindowAccelSum[i] += a;
+            mWindowAccelSquareSum[i] += a * a;
+        }
+        mWindowTemperatureSum += temperature;
+        mWindowCount++;
+        if (timestamp - mWindowStart >= WINDOW_NANOS && mWindowCount >= MIN_WINDOW_SAMPLES) {
+            endWindow();
+            clearWindow();
+        }
+    }
+
+    /**
+     * @return {@code true} if the last complete window was used as an observation of the bias.
+     */
+    public synchronized boolean isStationary() {
+        return mStationary;
+    }
+
+    /**
+     * @return the number of stationary windows used by the estimate.
+     */
+    public synchronized int getObservationCount() {
+        return mObservationCount;
+    }
+
+    /**
+     * Estimate the bias at the given temperature. Does not allocate memory.
+     * The temperature is clamped to the range observed while stationary, to avoid extrapolating the
+     * temperature coefficient. Until the first observation the bias is zero.
+     *
+     * @param temperature the temperature of the sensor, in Celsius.
+     * @param result      array receiving the x, y and z bias, in dps.
+     * @param offset      offset of the x bias in {@code result}.
+     */
+    public synchronized void getBias(float temperature, float[] result, int offset) {
+        if (mObservationCount == 0) {
+            for (int i = 0; i < 3; i++) {
+                result[offset + i] = 0;
+            }
+            return;
+        }
+        double meanTemperature = mTemperatureSum / mWeightSum;
+        double temperatureVariance = mTemperatureSquareSum / mWeightSum - meanTemperature * meanTemperature;
+        double deltaTemperature = Math.min(Math.max(temperature, mMinTemperature), mMaxTemperature) - meanTemperature;
+        for (int i = 0; i < 3; i++) {
+            double meanBias = mBiasSum[i] / mWeightSum;
+            double bias = meanBias;
+            if (temperatureVariance > MIN_TEMPERATURE_VARIANCE) {
+                double covariance = mTemperatureBiasSum[i] / mWeightSum - meanTemperature * meanBias;
+                bias += covariance / temperatureVariance * deltaTemperature;
+            }
+            result[offset + i] = (float) bias;
+        }
+    }
+
+    private void endWindow() {
+        mStationary = false;
+        double temperature = mWindowTemperatureSum / mWindowCount;
+        for (int i = 0; i < 3; i++) {
+            mWindowGyroMean[i] = mWindowGyroSum[i] / mWindowCount;
+        }
+        if (!isWindowSteady()) {
+            mCandidateCount = 0;
+            return;
+        }
+        if (mObservationCount > 0 && agreesWithEstimate(temperature)) {
+            mCandidateCount = 0;
+            addObservation(temperature, mWindowGyroMean);
+            mStationary = true;
+            return;
+        }
+        if (mCandidateCount > 0 && !agreesWithCandidates()) {
+            mCandidateCount = 0;
+        }
+        addCandidate(temperature);
+        if (mCandidateCount == (mObservationCount == 0 ? SEED_WINDOWS : RESEED_WINDOWS)) {
+            // The run becomes the only observation, the previous ones were taken while rotating
+            clearObservations();
+            for (int i = 0; i < 3; i++) {
+                mWindowGyroMean[i] = mCandidateBiasSum[i] / mCandidateCount;
+            }
+            addObservation(mCandidateTemperatureSum / mCandidateCount, mWindowGyroMean);
+            mCandidateCount = 0;
+            mStationary = true;
+        }
+    }
+
+    private boolean isWindowSteady() {
+        for (int i = 0; i < 3; i++) {
+            double gyroVariance = mWindowGyroSquareSum[i] / mWindowCount - mWindowGyroMean[i] * mWindowGyroMean[i];
+            double accelMean = mWindowAccelSum[i] / mWindowCount;
+            double accelVariance = mWindowAccelSquareSum[i] / mWindowCount - accelMean * accelMean;
+            if (Math.abs(mWindowGyroMean[i]) > MAX_BIAS_DPS
+                    || gyroVariance > mGyroVarianceThreshold
+                    || accelVariance > mAccelVarianceThreshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean agreesWithEstimate(double temperature) {
+        getBias((float) temperature, mEstimate, 0);
+        for (int i = 0; i < 3; i++) {
+            if (Math.abs(mWindowGyroMean[i] - mEstimate[i]) > MAX_BIAS_CHANGE_DPS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean agreesWithCandidates() {
+        for (int i = 0; i < 3; i++) {
+            if (Math.abs(mWindowGyroMean[i] - mCandidateBiasSum[i] / mCandidateCount) > MAX_BIAS_CHANGE_DPS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addCandidate(double temperature) {
+        if (mCandidateCount == 0) {
+            mCandidateTemperatureSum = 0;
+            for (int i = 0; i < 3; i++) {
+                mCandidateBiasSum[i] = 0;
+            }
+        }
+        mCandidateTemperatureSum += temperature;
+        for (int i = 0; i < 3; i++) {
+            mCandidateBiasSum[i] += mWindowGyroMean[i];
+        }
+        mCandidateCount++;
+    }
+
+    private void addObservation(double temperature, double[] gyroMean) {
+        mWeightSum = mWeightSum * FORGETTING_FACTOR + 1;
+        mTemperatureSum = mTemperatureSum * FORGETTING_FACTOR + temperature;
+        mTemperatureSquareSum = mTemperatureSquareSum * FORGETTING_FACTOR + temperature * temperature;
+        for (int i = 0; i < 3; i++) {
+            double bias = gyroMean[i];
+            mBiasSum[i] = mBiasSum[i] * FORGETTING_FACTOR + bias;
+            mTemperatureBiasSum[i] = mTemperatureBiasSum[i] * FORGETTING_FACTOR + temperature * bias;
+        }
+        if (mObservationCount == 0 || temperature < mMinTemperature) {
+            mMinTemperature = (float) temperature;
+        }
+        if (mObservationCount == 0 || temperature > mMaxTemperature) {
+            mMaxTemperature = (float) temperature;
+        }
+        mObservationCount++;
+    }
+
+    private void clearWindow() {
+        mWindowCount = 0;
+        mWindowTemperatureSum = 0;
+        for (int i = 0; i < 3; i++) {
+            mWindowGyroSum[i] = 0;
+            mWindowGyroSquareSum[i] = 0;
+            mWindowAccelSum[i] = 0;
+            mWindowAccelSquareSum[i] = 0;
+        }
+    }
+
+    private void clearObservations() {
+        mObservationCount = 0;
+        mWeightSum = 0;
+        mTemperatureSum = 0;
+        mTemperatureSquareSum = 0;
+        for (int i = 0; i < 3; i++) {
+            mBiasSum[i] = 0;
+            mTemperatureBiasSum[i] = 0;
+        }
+    }
+}
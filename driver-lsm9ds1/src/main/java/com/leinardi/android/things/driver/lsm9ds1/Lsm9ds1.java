@@ -17,9 +17,13 @@
 package com.leinardi.android.things.driver.lsm9ds1;
 
 import android.hardware.SensorManager;
+import android.os.Handler;
 import android.os.SystemClock;
 
 import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
 import com.google.android.things.pio.I2cDevice;
 import com.google.android.things.pio.PeripheralManager;
 
@@ -86,6 +90,24 @@ public class Lsm9ds1 implements Closeable {
     public static final int GYRO_INVERT_AXIS_Y = 0b00010000;
     public static final int GYRO_INVERT_AXIS_Z = 0b00001000;
     public static final int FIFO_MAX_THRESHOLD = 31;
+    public static final int FIFO_SIZE = 32;
+    // INT1_A/G pin sources
+    public static final int INT1_IG_G = 0b10000000;
+    public static final int INT1_IG_XL = 0b01000000;
+    public static final int INT1_FSS5 = 0b00100000;
+    public static final int INT1_OVR = 0b00010000;
+    public static final int INT1_FTH = 0b00001000;
+    public static final int INT1_BOOT = 0b00000100;
+    public static final int INT1_DRDY_G = 0b00000010;
+    public static final int INT1_DRDY_XL = 0b00000001;
+    // INT2_A/G pin sources
+    public static final int INT2_INACT = 0b10000000;
+    public static final int INT2_FSS5 = 0b00100000;
+    public static final int INT2_OVR = 0b00010000;
+    public static final int INT2_FTH = 0b00001000;
+    public static final int INT2_DRDY_TEMP = 0b00000100;
+    public static final int INT2_DRDY_G = 0b00000010;
+    public static final int INT2_DRDY_XL = 0b00000001;
     static final float MAX_FREQ_HZ_XG = 952f;
     static final float MIN_FREQ_HZ_XG = 14.9f;
     static final float MAX_FREQ_HZ_M = 80f;
@@ -97,8 +119,15 @@ public class Lsm9ds1 implements Closeable {
     static final float MAX_GYRO_RATE_DPS_DEFAULT = 245f;
     static final float MAX_MAG_GAIN_GS_DEFAULT = 4f;
     static final float MAX_TEMP_C = 85f;
+    static final float TEMP_BIAS = 27.5f; // This is an empirical estimation
+    // Accelerometer ODR forced by the chip while the inactivity is detected
+    static final float INACTIVITY_ODR_HZ = 10f;
     private static final String TAG = Lsm9ds1.class.getSimpleName();
     // Accelerometer/Gyroscope registers
+    private static final int REGISTER_ACT_THS = 0x04;
+    private static final int REGISTER_ACT_DUR = 0x05;
+    private static final int REGISTER_INT1_CTRL = 0x0C;
+    private static final int REGISTER_INT2_CTRL = 0x0D;
     private static final int REGISTER_WHO_AM_I_XG = 0x0F;
     private static final int REGISTER_CTRL_REG1_G = 0x10;
     private static final int REGISTER_CTRL_REG2_G = 0x11;
@@ -144,6 +173,22 @@ public class Lsm9ds1 implements Closeable {
     private static final int REGISTER_OUT_Z_H_M = 0x2D;
     private static final int REGISTER_INT_CFG_M = 0x30;
     private static final int REGISTER_INT_SRC_M = 0x31;
+    // Control registers mirrored by the shadow copy, as [first, last] ranges
+    private static final int[][] SHADOW_RANGES_XG = {
+            {REGISTER_ACT_THS, REGISTER_ACT_DUR},
+            {REGISTER_INT1_CTRL, REGISTER_INT2_CTRL},
+            {REGISTER_CTRL_REG1_G, REGISTER_ORIENT_CFG_G},
+            {REGISTER_CTRL_REG4, REGISTER_CTRL_REG10},
+            {REGISTER_FIFO_CTRL, REGISTER_FIFO_CTRL}
+    };
+    private static final int[][] SHADOW_RANGES_MAG = {
+            {REGISTER_CTRL_REG1_M, REGISTER_CTRL_REG5_M},
+            {REGISTER_INT_CFG_M, REGISTER_INT_CFG_M}
+    };
+    private static final int SHADOW_SIZE = 0x40;
+    // ACT_THS
+    private static final int ACT_THS_SLEEP_ON_INACT_EN = 0b10000000;
+    private static final int ACT_THS_MASK = 0b01111111;
     // STATUS_REG
     private static final int STATUS_REG_IG_XL = 0b01000000;
     private static final int STATUS_REG_IG_G = 0b00100000;
@@ -176,8 +221,10 @@ public class Lsm9ds1 implements Closeable {
     private static final int CTRL_REG1_M_TEMP_COMP = 0b10000000;
     private static final int CTRL_REG2_M_REBOOT = 0b00001000;
     private static final int CTRL_REG2_M_SOFT_RST = 0b00000100;
+    private static final int CTRL_REG3_M_LP = 0b00100000;
+    // Each FIFO slot holds the gyroscope and the accelerometer X, Y, Z values (2 bytes each)
+    private static final int FIFO_SLOT_SIZE = 12;
     private static final float TEMP_LSB_DEGREE_CELSIUS = 16f;
-    private static final float TEMP_BIAS = 27.5f; // This is an empirical estimation
     private static final byte XG_ID = 0b01101000;
     private static final byte MAG_ID = 0b00111101;
     // Linear Acceleration: mg per LSB
@@ -194,12 +241,49 @@ public class Lsm9ds1 implements Closeable {
     private static final float GYRO_DPS_DIGIT_245DPS = 0.00875f;
     private static final float GYRO_DPS_DIGIT_500DPS = 0.01750f;
     private static final float GYRO_DPS_DIGIT_2000DPS = 0.07000f;
-    private float mAccelMgLsb;
-    private float mMagMgaussLsb;
-    private float mGyroDpsDigit;
+    // Auto-range: full scales in increasing order, with their sensitivities
+    private static final int[] AUTO_RANGE_ACCEL = {ACCEL_RANGE_2G, ACCEL_RANGE_4G, ACCEL_RANGE_8G, ACCEL_RANGE_16G};
+    private static final float[] AUTO_RANGE_ACCEL_LSB = {
+            ACCEL_MG_LSB_2G, ACCEL_MG_LSB_4G, ACCEL_MG_LSB_8G, ACCEL_MG_LSB_16G};
+    private static final int[] AUTO_RANGE_GYRO = {GYRO_SCALE_245DPS, GYRO_SCALE_500DPS, GYRO_SCALE_2000DPS};
+    private static final float[] AUTO_RANGE_GYRO_LSB = {
+            GYRO_DPS_DIGIT_245DPS, GYRO_DPS_DIGIT_500DPS, GYRO_DPS_DIGIT_2000DPS};
+    // Switch to the next range above this raw value (~92% of the full scale), to keep the peaks
+    private static final int AUTO_RANGE_HIGH_THRESHOLD = 30000;
+    // Switch to the previous range when it would be filled less than 40% for AUTO_RANGE_LOW_SAMPLES samples
+    private static final float AUTO_RANGE_LOW_FILL = 0.4f;
+    private static final int AUTO_RANGE_LOW_SAMPLES = 512;
+    // Written under the device lock together with the range registers, read by the sensitivity getters
+    private volatile float mAccelMgLsb;
+    private volatile float mMagMgaussLsb;
+    private volatile float mGyroDpsDigit;
+    private volatile boolean mAutoRange;
+    private int mAccelLowSamples;
+    private int mGyroLowSamples;
     private float mGravity = SensorManager.GRAVITY_EARTH;
     private I2cDevice mAccelGyroDevice;
     private I2cDevice mMagDevice;
+    private Gpio mInterruptGpio;
+    private InterruptCallback mInterruptCallback;
+    private final GpioCallback mGpioCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            InterruptCallback callback = mInterruptCallback;
+            if (callback != null) {
+                callback.onInterrupt(Lsm9ds1.this);
+            }
+            return true;
+        }
+    };
+    private final byte[] mFifoBuffer = new byte[FIFO_SIZE * FIFO_SLOT_SIZE];
+    private final byte[] mAccelGyroShadow = new byte[SHADOW_SIZE];
+    private final byte[] mMagShadow = new byte[SHADOW_SIZE];
+    private final byte[] mShadowBuffer = new byte[SHADOW_SIZE];
+    private final byte[] mBuffer = new byte[6];
+    private final byte[] mMotionBuffer = new byte[REGISTER_OUT_Z_H_G - REGISTER_TEMP_OUT_L + 1];
+    private final byte[] mMotionAccelerationBuffer = new byte[REGISTER_OUT_Z_H_XL - REGISTER_OUT_X_L_XL + 1];
+    // STATUS_REG read by the last burst read starting from the temperature
+    private int mMotion6Status;
 
     /**
      * Use the {@link Builder} to create a new LSM9DS1 sensor driver instance.
@@ -212,6 +296,9 @@ public class Lsm9ds1 implements Closeable {
         I2cDevice magDevice = pioService.openI2cDevice(builder.mI2cBus, builder.mI2cAddressMag);
         try {
             connect(builder, accelGyroDevice, magDevice);
+            if (builder.mInterruptGpio != null) {
+                setInterruptGpio(pioService.openGpio(builder.mInterruptGpio));
+            }
         } catch (IOException | RuntimeException e) {
             try {
                 close();
@@ -221,6 +308,41 @@ public class Lsm9ds1 implements Closeable {
         }
     }
 
+    /**
+     * Create a new LSM9DS1 sensor driver connected to the given devices.
+     *
+     * @param accelGyroDevice I2C device of the Accelerometer/Gyroscope sensor.
+     * @param magDevice       I2C device of the Magnetometer sensor.
+     * @param builder         the configuration to apply.
+     * @throws IOException
+     */
+    /*package*/ Lsm9ds1(I2cDevice accelGyroDevice, I2cDevice magDevice, Builder builder) throws IOException {
+        connect(builder, accelGyroDevice, magDevice);
+    }
+
+    /**
+     * Create a new LSM9DS1 sensor driver connected to the given devices, with the INT1_A/G pin connected to
+     * the given GPIO.
+     *
+     * @param accelGyroDevice I2C device of the Accelerometer/Gyroscope sensor.
+     * @param magDevice       I2C device of the Magnetometer sensor.
+     * @param interruptGpio   GPIO connected to the INT1_A/G pin.
+     * @param builder         the configuration to apply.
+     * @throws IOException
+     */
+    /*package*/ Lsm9ds1(I2cDevice accelGyroDevice, I2cDevice magDevice, Gpio interruptGpio, Builder builder)
+            throws IOException {
+        connect(builder, accelGyroDevice, magDevice);
+        setInterruptGpio(interruptGpio);
+    }
+
+    private void setInterruptGpio(Gpio interruptGpio) throws IOException {
+        mInterruptGpio = interruptGpio;
+        mInterruptGpio.setDirection(Gpio.DIRECTION_IN);
+        mInterruptGpio.setActiveType(Gpio.ACTIVE_HIGH);
+        mInterruptGpio.setEdgeTriggerType(Gpio.EDGE_RISING);
+    }
+
     private void connect(Builder builder, I2cDevice accelGyroDevice, I2cDevice magDevice) throws IOException {
         mAccelGyroDevice = accelGyroDevice;
         mMagDevice = magDevice;
@@ -234,6 +356,8 @@ public class Lsm9ds1 implements Closeable {
             throw new IllegalStateException("Could not find LSM9DS1, check wiring!");
         }
 
+        resyncRegisters();
+
         // FIFO configuration
         setFifoModeAndTreshold(builder.mFifoMode, builder.mFifoThreshold);
         setFifoMemoryEnabled(builder.mFifoMemoryEnabled);
@@ -248,6 +372,7 @@ public class Lsm9ds1 implements Closeable {
         // Gyroscope configuration
         setGyroscopeOdr(builder.mGyroscopeOdr);
         setGyroscopeScale(builder.mGyroscopeScale);
+        setAutoRange(builder.mAutoRange);
 
         // Magnetometer configuration
         setMagnetometerTemperatureCompensation(builder.mMagnetometerTemperatureCompensation);
@@ -255,6 +380,10 @@ public class Lsm9ds1 implements Closeable {
         setMagnetometerZOperatingMode(builder.mMagnetometerZOperatingMode);
         setMagnetometerSystemOperatingMode(builder.mMagnetometerSystemOperatingMode);
         setMagnetometerGain(builder.mMagnetometerGain);
+
+        // Interrupts configuration
+        setInterrupt1Sources(builder.mInterrupt1Sources);
+        setInterrupt2Sources(builder.mInterrupt2Sources);
     }
 
     private void resetAndReboot(@SensorType int type, boolean waitForReboot) throws IOException {
@@ -262,9 +391,12 @@ public class Lsm9ds1 implements Closeable {
             case SENSOR_XG:
                 writeRegByte(type, REGISTER_CTRL_REG8,
                         (byte) (CTRL_REG8_BOOT | CTRL_REG8_IF_ADD_INC | CTRL_REG8_SW_RESET));
+                // The device clears these bits by itself: a later read-modify-write must not reset it again
+                mAccelGyroShadow[REGISTER_CTRL_REG8] &= ~(CTRL_REG8_BOOT | CTRL_REG8_SW_RESET);
                 break;
             case SENSOR_MAG:
                 writeRegByte(type, REGISTER_CTRL_REG2_M, (byte) (CTRL_REG2_M_REBOOT | CTRL_REG2_M_SOFT_RST));
+                mMagShadow[REGISTER_CTRL_REG2_M] &= ~(CTRL_REG2_M_REBOOT | CTRL_REG2_M_SOFT_RST);
                 break;
         }
         if (waitForReboot) {
@@ -272,11 +404,122 @@ public class Lsm9ds1 implements Closeable {
         }
     }
 
+    /**
+     * Reload the shadow copy of the control registers from the device.
+     * <p>
+     * Setters and getters work on a write-through copy of the control registers, so that they do not
+     * need to read them from the bus. Call this method if the registers could have been changed
+     * without using this driver, e.g. after a power loss of the sensor.
+     *
+     * @throws IOException
+     * @see #verifyRegisters()
+     */
+    public synchronized void resyncRegisters() throws IOException {
+        readShadowRanges(SENSOR_XG, SHADOW_RANGES_XG, mAccelGyroShadow);
+        readShadowRanges(SENSOR_MAG, SHADOW_RANGES_MAG, mMagShadow);
+        updateSensitivities();
+    }
+
+    /**
+     * Check that the shadow copy of the control registers matches the device.
+     *
+     * @return true if all the mirrored control registers match the device; false otherwise.
+     * @throws IOException
+     * @see #resyncRegisters()
+     */
+    public synchronized boolean verifyRegisters() throws IOException {
+        return verifyShadowRanges(SENSOR_XG, SHADOW_RANGES_XG, mAccelGyroShadow)
+                && verifyShadowRanges(SENSOR_MAG, SHADOW_RANGES_MAG, mMagShadow);
+    }
+
+    private void readShadowRanges(@SensorType int type, int[][] ranges, byte[] shadow) throws IOException {
+        for (int[] range : ranges) {
+            int length = range[1] - range[0] + 1;
+            readRegBuffer(type, range[0], mShadowBuffer, length);
+            System.arraycopy(mShadowBuffer, 0, shadow, range[0], length);
+        }
+    }
+
+    private boolean verifyShadowRanges(@SensorType int type, int[][] ranges, byte[] shadow) throws IOException {
+        for (int[] range : ranges) {
+            int length = range[1] - range[0] + 1;
+            readRegBuffer(type, range[0], mShadowBuffer, length);
+            for (int i = 0; i < length; i++) {
+                if (mShadowBuffer[i] != shadow[range[0] + i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isShadowed(int[][] ranges, int reg) {
+        for (int[] range : ranges) {
+            if (reg >= range[0] && reg <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateSensitivities() {
+        switch (getRegBits(SENSOR_XG, REGISTER_CTRL_REG6_XL, 0b00011000)) {
+            case ACCEL_RANGE_2G:
+                mAccelMgLsb = ACCEL_MG_LSB_2G;
+                break;
+            case ACCEL_RANGE_4G:
+                mAccelMgLsb = ACCEL_MG_LSB_4G;
+                break;
+            case ACCEL_RANGE_8G:
+                mAccelMgLsb = ACCEL_MG_LSB_8G;
+                break;
+            case ACCEL_RANGE_16G:
+                mAccelMgLsb = ACCEL_MG_LSB_16G;
+                break;
+        }
+        switch (getRegBits(SENSOR_XG, REGISTER_CTRL_REG1_G, 0b00011000)) {
+            case GYRO_SCALE_245DPS:
+                mGyroDpsDigit = GYRO_DPS_DIGIT_245DPS;
+                break;
+            case GYRO_SCALE_500DPS:
+                mGyroDpsDigit = GYRO_DPS_DIGIT_500DPS;
+                break;
+            case GYRO_SCALE_2000DPS:
+                mGyroDpsDigit = GYRO_DPS_DIGIT_2000DPS;
+                break;
+        }
+        switch (getRegBits(SENSOR_MAG, REGISTER_CTRL_REG2_M, 0b01100000)) {
+            case MAG_GAIN_4GAUSS:
+                mMagMgaussLsb = MAG_MGAUSS_4GAUSS;
+                break;
+            case MAG_GAIN_8GAUSS:
+                mMagMgaussLsb = MAG_MGAUSS_8GAUSS;
+                break;
+            case MAG_GAIN_12GAUSS:
+                mMagMgaussLsb = MAG_MGAUSS_12GAUSS;
+                break;
+            case MAG_GAIN_16GAUSS:
+                mMagMgaussLsb = MAG_MGAUSS_16GAUSS;
+                break;
+        }
+    }
+
     private byte getStatusRegister(@SensorType int type) throws IOException {
         int reg = type == SENSOR_XG ? REGISTER_STATUS_REG : REGISTER_STATUS_REG_M;
         return readRegByte(type, reg);
     }
 
+    /**
+     * Polls the status register to check if the inactivity has been detected, see
+     * {@link #setInactivityThreshold(int)}.
+     *
+     * @return true if the device is inactive; false otherwise
+     * @throws IOException
+     */
+    public boolean isInactive() throws IOException {
+        return ((getStatusRegister(SENSOR_XG) & 0xFF) & STATUS_REG_INACT) == STATUS_REG_INACT;
+    }
+
     /**
      * Polls the temperature status register to check if new data is available.
      *
@@ -353,8 +596,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getAccelerometerRange() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL);
-        return (reg & 0b00011000) & 0xFF;
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG6_XL, 0b00011000);
     }
 
     /**
@@ -363,15 +605,8 @@ public class Lsm9ds1 implements Closeable {
      *
      * @throws IOException
      */
-    public void setAccelerometerRange(@AccelerometerRange int range) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG6_XL. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL);
-        // Then mask out the accel range bits:
-        reg &= ~(0b00011000);
-        // Then mask in our new range bits:
-        reg |= range;
-        // And write the new register value back into CTRL_REG6_XL:
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL, reg);
+    public synchronized void setAccelerometerRange(@AccelerometerRange int range) throws IOException {
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG6_XL, 0b00011000, range);
 
         switch (range) {
             case ACCEL_RANGE_2G:
@@ -395,8 +630,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getAccelerometerDecimation() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL);
-        return (reg & 0b11000000) & 0xFF;
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG5_XL, 0b11000000);
     }
 
     /**
@@ -406,14 +640,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setAccelerometerDecimation(@AccelerometerDecimation int decimation) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG6_XL. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL);
-        // Then mask out the accel decimation bits:
-        reg &= ~(0b11000000);
-        // Then mask in our new decimation bits:
-        reg |= decimation;
-        // And write the new register value back into CTRL_REG6_XL:
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL, reg);
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG5_XL, 0b11000000, decimation);
     }
 
     /**
@@ -423,8 +650,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getAccelerometerOdr() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL);
-        return (reg & 0b11100000) & 0xFF;
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG6_XL, 0b11100000);
     }
 
     /**
@@ -434,14 +660,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setAccelerometerOdr(@AccelGyroOutputDataRate int odr) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG6_XL. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL);
-        // Then mask out the accel scale bits:
-        reg &= ~(0b11100000);
-        // Then mask in our new scale bits:
-        reg |= odr;
-        // And write the new register value back into CTRL_REG6_XL:
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL, reg);
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG6_XL, 0b11100000, odr);
     }
 
     /**
@@ -450,8 +669,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public boolean isAccelerometerHighResolution() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG6_XL);
-        return (byte) ((reg & 0b10000000) & 0xFF) == CTRL_REG7_XL_HR;
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG7_XL, CTRL_REG7_XL_HR) == CTRL_REG7_XL_HR;
     }
 
     /**
@@ -460,16 +678,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setAccelerometerHighResolution(boolean enable) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG7_XL. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG7_XL);
-        // Then mask out the accel high resolution bits:
-        reg &= ~(CTRL_REG7_XL_HR);
-        if (enable) {
-            // Then mask in our new high resolution bits:
-            reg |= CTRL_REG7_XL_HR;
-        }
-        // And write the new register value back into CTRL_REG7_XL:
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG7_XL, reg);
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG7_XL, CTRL_REG7_XL_HR, enable ? CTRL_REG7_XL_HR : 0);
     }
 
     /**
@@ -480,8 +689,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getAccelerometerEnabledAxes() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG5_XL);
-        return (reg & 0b00111000) & 0xFF;
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG5_XL, 0b00111000);
     }
 
     /**
@@ -492,14 +700,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setAccelerometerEnabledAxes(int axesFlag) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG5_XL. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG5_XL);
-        // Then mask out the gyro axes bits:
-        reg &= ~(0b00111000);
-        // Then mask in our new axes bits:
-        reg |= axesFlag;
-        // And write the new register value back into CTRL_REG5_XL:
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG5_XL, reg);
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG5_XL, 0b00111000, axesFlag);
     }
 
     /**
@@ -509,8 +710,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getGyroscopeScale() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG1_G);
-        return (reg & 0b00011000) & 0xFF;
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG1_G, 0b00011000);
     }
 
     /**
@@ -519,15 +719,8 @@ public class Lsm9ds1 implements Closeable {
      *
      * @throws IOException
      */
-    public void setGyroscopeScale(@GyroscopeScale int scale) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG1_G. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG1_G);
-        // Then mask out the gyro scale bits:
-        reg &= ~(0b00011000);
-        // Then mask in our new scale bits:
-        reg |= scale;
-        // And write the new register value back into CTRL_REG1_G:
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG1_G, reg);
+    public synchronized void setGyroscopeScale(@GyroscopeScale int scale) throws IOException {
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG1_G, 0b00011000, scale);
 
         switch (scale) {
             case GYRO_SCALE_245DPS:
@@ -542,14 +735,93 @@ public class Lsm9ds1 implements Closeable {
         }
     }
 
+    /**
+     * Returns true if the auto-range is enabled, false if is disabled.
+     */
+    public boolean isAutoRangeEnabled() {
+        return mAutoRange;
+    }
+
+    /**
+     * Enables or disables the auto-range of the accelerometer and gyroscope full scales.
+     * <p>
+     * When enabled, the {@link Lsm9ds1Sampler} switches to the next full scale as soon as a raw value gets
+     * close to saturation, and back to the previous one when the values would have fit in it for
+     * 512 consecutive samples, so that the resolution is maximized without
+     * clipping the peaks. Each sample of the sampler is tagged with the active range, see
+     * {@link Lsm9ds1Sampler#getAccelerometerRange(short[])} and {@link Lsm9ds1Sampler#getGyroscopeScale(short[])}.
+     *
+     * @param autoRange Set to true to enable, false to disable
+     */
+    public void setAutoRange(boolean autoRange) {
+        mAutoRange = autoRange;
+    }
+
+    /*
+     * Adjust the accelerometer and gyroscope full scales to the given raw samples, read with the current
+     * full scales. Called by the sampler after every read.
+     */
+    synchronized void updateAutoRange(int[] rawGyroscopeData, int[] rawAccelerometerData, int count)
+            throws IOException {
+        if (!mAutoRange) {
+            return;
+        }
+        int accelIndex = indexOf(AUTO_RANGE_ACCEL, getAccelerometerRange());
+        int accelNewIndex = getAutoRangeIndex(AUTO_RANGE_ACCEL_LSB, accelIndex, rawAccelerometerData, count, true);
+        if (accelNewIndex != accelIndex) {
+            setAccelerometerRange(AUTO_RANGE_ACCEL[accelNewIndex]);
+        }
+        int gyroIndex = indexOf(AUTO_RANGE_GYRO, getGyroscopeScale());
+        int gyroNewIndex = getAutoRangeIndex(AUTO_RANGE_GYRO_LSB, gyroIndex, rawGyroscopeData, count, false);
+        if (gyroNewIndex != gyroIndex) {
+            setGyroscopeScale(AUTO_RANGE_GYRO[gyroNewIndex]);
+        }
+    }
+
+    private int getAutoRangeIndex(float[] lsb, int index, int[] rawData, int count, boolean accel) {
+        int max = 0;
+        for (int i = 0; i < count * 3; i++) {
+            max = Math.max(max, Math.abs(rawData[i]));
+        }
+        int lowSamples = accel ? mAccelLowSamples : mGyroLowSamples;
+        int newIndex = index;
+        if (max > AUTO_RANGE_HIGH_THRESHOLD) {
+            newIndex = Math.min(index + 1, lsb.length - 1);
+            lowSamples = 0;
+        } else if (index > 0 && max * lsb[index] < AUTO_RANGE_LOW_FILL * Short.MAX_VALUE * lsb[index - 1]) {
+            lowSamples += count;
+            if (lowSamples >= AUTO_RANGE_LOW_SAMPLES) {
+                newIndex = index - 1;
+                lowSamples = 0;
+            }
+        } else {
+            lowSamples = 0;
+        }
+        if (accel) {
+            mAccelLowSamples = lowSamples;
+        } else {
+            mGyroLowSamples = lowSamples;
+        }
+        return newIndex;
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        // Not one of the supported values, restart from the largest full scale
+        return values.length - 1;
+    }
+
     /**
      * Get the gyroscope output data rate.
      *
      * @throws IOException
      */
     public int getGyroscopeOdr() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG1_G);
-        return (reg & 0b11100000) & 0xFF;
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG1_G, 0b11100000);
     }
 
     /**
@@ -559,14 +831,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setGyroscopeOdr(@AccelGyroOutputDataRate int odr) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG1_G. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_CTRL_REG1_G);
-        // Then mask out the gyro odr bits:
-        reg &= ~(0b11100000);
-        // Then mask in our new odr bits:
-        reg |= odr;
-        // And write the new register value back into CTRL_REG1_G:
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG1_G, reg);
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG1_G, 0b11100000, odr);
     }
 
     /**
@@ -577,8 +842,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getGyroscopeAxesAngularRateNegativeSign() throws IOException {
-        byte reg = readRegByte(SENSOR_XG, REGISTER_ORIENT_CFG_G);
-        return (reg & 0b00111000) & 0xFF;
+        return getRegBits(SENSOR_XG, REGISTER_ORIENT_CFG_G, 0b00111000);
     }
 
     /**
@@ -589,14 +853,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setGyroscopeAxesAngularRateNegativeSign(int axesFlag) throws IOException {
-        // We need to preserve the other bytes in ORIENT_CFG_G. So, first read it:
-        byte reg = readRegByte(SENSOR_XG, REGISTER_ORIENT_CFG_G);
-        // Then mask out the gyro axes bits:
-        reg &= ~(0b00111000);
-        // Then mask in our new axes bits:
-        reg |= axesFlag;
-        // And write the new register value back into ORIENT_CFG_G:
-        writeRegByte(SENSOR_XG, REGISTER_ORIENT_CFG_G, reg);
+        updateRegBits(SENSOR_XG, REGISTER_ORIENT_CFG_G, 0b00111000, axesFlag);
     }
 
     /**
@@ -605,8 +862,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getMagnetometerGain() throws IOException {
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG2_M);
-        return (reg & 0b01100000) & 0xFF;
+        return getRegBits(SENSOR_MAG, REGISTER_CTRL_REG2_M, 0b01100000);
     }
 
     /**
@@ -616,14 +872,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setMagnetometerGain(@MagnetometerGain int gain) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG2_M. So, first read it:
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG2_M);
-        // Then mask out the mag gain bits:
-        reg &= ~(0b01100000);
-        // Then mask in our new gain bits:
-        reg |= gain;
-        // And write the new register value back into CTRL_REG2_M:
-        writeRegByte(SENSOR_MAG, REGISTER_CTRL_REG2_M, reg);
+        updateRegBits(SENSOR_MAG, REGISTER_CTRL_REG2_M, 0b01100000, gain);
 
         switch (gain) {
             case MAG_GAIN_4GAUSS:
@@ -647,8 +896,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getMagnetometerSystemOperatingMode() throws IOException {
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG3_M);
-        return (reg & 0b00000011) & 0xFF;
+        return getRegBits(SENSOR_MAG, REGISTER_CTRL_REG3_M, 0b00000011);
     }
 
     /**
@@ -658,14 +906,27 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setMagnetometerSystemOperatingMode(@MagnetometerSystemOperatingMode int mode) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG3_M. So, first read it:
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG3_M);
-        // Then mask out the mag operatingMode bits:
-        reg &= ~(0b00000011);
-        // Then mask in our new operatingMode bits:
-        reg |= mode;
-        // And write the new register value back into CTRL_REG3_M:
-        writeRegByte(SENSOR_MAG, REGISTER_CTRL_REG3_M, reg);
+        updateRegBits(SENSOR_MAG, REGISTER_CTRL_REG3_M, 0b00000011, mode);
+    }
+
+    /**
+     * Get the magnetometer low-power mode.
+     *
+     * @throws IOException
+     */
+    public boolean isMagnetometerLowPowerEnabled() throws IOException {
+        return getRegBits(SENSOR_MAG, REGISTER_CTRL_REG3_M, CTRL_REG3_M_LP) != 0;
+    }
+
+    /**
+     * Enable/disable the magnetometer low-power mode: the output data rate is forced to 0.625 Hz and
+     * the minimum number of averages is performed for each channel.
+     *
+     * @param enable True to enable the low-power mode; false to disable it.
+     * @throws IOException
+     */
+    public void setMagnetometerLowPowerEnabled(boolean enable) throws IOException {
+        updateRegBits(SENSOR_MAG, REGISTER_CTRL_REG3_M, CTRL_REG3_M_LP, enable ? CTRL_REG3_M_LP : 0);
     }
 
     /**
@@ -674,8 +935,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getMagnetometerXYOperatingMode() throws IOException {
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M);
-        return (reg & 0b01100000) & 0xFF;
+        return getRegBits(SENSOR_MAG, REGISTER_CTRL_REG1_M, 0b01100000);
     }
 
     /**
@@ -685,14 +945,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setMagnetometerXYOperatingMode(@MagnetometerXYOperatingMode int mode) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG1_M. So, first read it:
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M);
-        // Then mask out the mag operatingMode bits:
-        reg &= ~(0b01100000);
-        // Then mask in our new operatingMode bits:
-        reg |= mode;
-        // And write the new register value back into CTRL_REG1_M:
-        writeRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M, reg);
+        updateRegBits(SENSOR_MAG, REGISTER_CTRL_REG1_M, 0b01100000, mode);
     }
 
     /**
@@ -701,8 +954,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getMagnetometerZOperatingMode() throws IOException {
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG4_M);
-        return (reg & 0b00001100) & 0xFF;
+        return getRegBits(SENSOR_MAG, REGISTER_CTRL_REG4_M, 0b00001100);
     }
 
     /**
@@ -712,14 +964,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setMagnetometerZOperatingMode(@MagnetometerZOperatingMode int mode) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG4_M. So, first read it:
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG4_M);
-        // Then mask out the mag operatingMode bits:
-        reg &= ~(0b00001100);
-        // Then mask in our new operatingMode bits:
-        reg |= mode;
-        // And write the new register value back into CTRL_REG4_M:
-        writeRegByte(SENSOR_MAG, REGISTER_CTRL_REG4_M, reg);
+        updateRegBits(SENSOR_MAG, REGISTER_CTRL_REG4_M, 0b00001100, mode);
     }
 
     /**
@@ -728,8 +973,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public boolean isMagnetometerTemperatureCompensation() throws IOException {
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M);
-        return (byte) ((reg & CTRL_REG1_M_TEMP_COMP) & 0xFF) == CTRL_REG1_M_TEMP_COMP;
+        return getRegBits(SENSOR_MAG, REGISTER_CTRL_REG1_M, CTRL_REG1_M_TEMP_COMP) == CTRL_REG1_M_TEMP_COMP;
     }
 
     /**
@@ -738,16 +982,8 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setMagnetometerTemperatureCompensation(boolean enable) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG1_M. So, first read it:
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M);
-        // Then mask out the mag temperature compensation bits:
-        reg &= ~(CTRL_REG1_M_TEMP_COMP);
-        if (enable) {
-            // Then mask in our new temperature compensation bits:
-            reg |= CTRL_REG1_M_TEMP_COMP;
-        }
-        // And write the new register value back into CTRL_REG1_M:
-        writeRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M, reg);
+        updateRegBits(SENSOR_MAG, REGISTER_CTRL_REG1_M, CTRL_REG1_M_TEMP_COMP,
+                enable ? CTRL_REG1_M_TEMP_COMP : 0);
     }
 
     /**
@@ -757,8 +993,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int getMagnetometerOdr() throws IOException {
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M);
-        return (reg & 0b00011100) & 0xFF;
+        return getRegBits(SENSOR_MAG, REGISTER_CTRL_REG1_M, 0b00011100);
     }
 
     /**
@@ -768,14 +1003,138 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setMagnetometerOdr(@MagOutputDataRate int odr) throws IOException {
-        // We need to preserve the other bytes in CTRL_REG1_M. So, first read it:
-        byte reg = readRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M);
-        // Then mask out the accel scale bits:
-        reg &= ~(0b00011100);
-        // Then mask in our new scale bits:
-        reg |= odr;
-        // And write the new register value back into CTRL_REG1_M:
-        writeRegByte(SENSOR_MAG, REGISTER_CTRL_REG1_M, reg);
+        updateRegBits(SENSOR_MAG, REGISTER_CTRL_REG1_M, 0b00011100, odr);
+    }
+
+    /**
+     * Get the frequency in Hz of an accelerometer/gyroscope output data rate.
+     *
+     * @param odr one of the {@link AccelGyroOutputDataRate} values.
+     * @return the frequency in Hz, or 0 for {@link AccelGyroOutputDataRate#ODR_POWER_DOWN}.
+     */
+    static float getAccelGyroOdrFrequency(@AccelGyroOutputDataRate int odr) {
+        switch (odr) {
+            case ODR_14_9HZ:
+                return 14.9f;
+            case ODR_59_5HZ:
+                return 59.5f;
+            case ODR_119HZ:
+                return 119f;
+            case ODR_238HZ:
+                return 238f;
+            case ODR_476HZ:
+                return 476f;
+            case ODR_952HZ:
+                return 952f;
+            default:
+                return 0f;
+        }
+    }
+
+    /**
+     * Get the frequency in Hz of an accelerometer output data rate while the gyroscope is powered down.
+     * In this mode the accelerometer does not follow the gyroscope clock, and the same codes select
+     * different frequencies (see table 68 in the datasheet).
+     *
+     * @param odr one of the {@link AccelGyroOutputDataRate} values.
+     * @return the frequency in Hz, or 0 for {@link AccelGyroOutputDataRate#ODR_POWER_DOWN}.
+     */
+    static float getAccelerometerOnlyOdrFrequency(@AccelGyroOutputDataRate int odr) {
+        switch (odr) {
+            case ODR_14_9HZ:
+                return 10f;
+            case ODR_59_5HZ:
+                return 50f;
+            case ODR_119HZ:
+                return 119f;
+            case ODR_238HZ:
+                return 238f;
+            case ODR_476HZ:
+                return 476f;
+            case ODR_952HZ:
+                return 952f;
+            default:
+                return 0f;
+        }
+    }
+
+    /**
+     * Get the lowest accelerometer/gyroscope output data rate that is at least the given frequency.
+     *
+     * @param frequency the requested frequency in Hz.
+     * @return one of the {@link AccelGyroOutputDataRate} values, {@link AccelGyroOutputDataRate#ODR_952HZ}
+     * if the frequency is higher than the maximum output data rate.
+     */
+    @AccelGyroOutputDataRate
+    static int getAccelGyroOdrForFrequency(float frequency) {
+        for (int odr = ODR_14_9HZ; odr < ODR_952HZ; odr += ODR_14_9HZ) {
+            if (getAccelGyroOdrFrequency(odr) >= frequency) {
+                return odr;
+            }
+        }
+        return ODR_952HZ;
+    }
+
+    /**
+     * Get the lowest accelerometer output data rate that is at least the given frequency while the
+     * gyroscope is powered down.
+     *
+     * @param frequency the requested frequency in Hz.
+     * @return one of the {@link AccelGyroOutputDataRate} values, {@link AccelGyroOutputDataRate#ODR_952HZ}
+     * if the frequency is higher than the maximum output data rate.
+     */
+    @AccelGyroOutputDataRate
+    static int getAccelerometerOnlyOdrForFrequency(float frequency) {
+        for (int odr = ODR_14_9HZ; odr < ODR_952HZ; odr += ODR_14_9HZ) {
+            if (getAccelerometerOnlyOdrFrequency(odr) >= frequency) {
+                return odr;
+            }
+        }
+        return ODR_952HZ;
+    }
+
+    /**
+     * Get the frequency in Hz of a magnetometer output data rate.
+     *
+     * @param odr one of the {@link MagOutputDataRate} values.
+     * @return the frequency in Hz.
+     */
+    static float getMagnetometerOdrFrequency(@MagOutputDataRate int odr) {
+        switch (odr) {
+            case ODR_M_0_625HZ:
+                return 0.625f;
+            case ODR_M_1_25HZ:
+                return 1.25f;
+            case ODR_M_2_5HZ:
+                return 2.5f;
+            case ODR_M_6HZ:
+                return 6f;
+            case ODR_M_10HZ:
+                return 10f;
+            case ODR_M_20HZ:
+                return 20f;
+            case ODR_M_40HZ:
+                return 40f;
+            default:
+                return 80f;
+        }
+    }
+
+    /**
+     * Get the lowest magnetometer output data rate that is at least the given frequency.
+     *
+     * @param frequency the requested frequency in Hz.
+     * @return one of the {@link MagOutputDataRate} values, {@link MagOutputDataRate#ODR_M_80HZ}
+     * if the frequency is higher than the maximum output data rate.
+     */
+    @MagOutputDataRate
+    static int getMagnetometerOdrForFrequency(float frequency) {
+        for (int odr = ODR_M_0_625HZ; odr < ODR_M_80HZ; odr += ODR_M_1_25HZ) {
+            if (getMagnetometerOdrFrequency(odr) >= frequency) {
+                return odr;
+            }
+        }
+        return ODR_M_80HZ;
     }
 
     /**
@@ -787,15 +1146,24 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int[] readRawAccelerometerData() throws IOException {
-        byte[] buffer = new byte[6];
         int[] result = new int[3];
-        readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_XL, buffer, buffer.length);
-        result[0] = (((int) buffer[1]) << 8) | (buffer[0] & 0xFF); // Store x-axis values
-        result[1] = (((int) buffer[3]) << 8) | (buffer[2] & 0xFF); // Store y-axis values
-        result[2] = (((int) buffer[5]) << 8) | (buffer[4] & 0xFF); // Store z-axis values
+        readRawAccelerometerData(result);
         return result;
     }
 
+    /**
+     * Read the raw accelerometer sensor values into the given array, without allocating memory.
+     *
+     * @param result an array of at least 3 elements that will contain X, Y, Z axis raw values.
+     * @throws IOException
+     */
+    public synchronized void readRawAccelerometerData(int[] result) throws IOException {
+        readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_XL, mBuffer, mBuffer.length);
+        result[0] = readInt16(mBuffer, 0); // Store x-axis values
+        result[1] = readInt16(mBuffer, 2); // Store y-axis values
+        result[2] = readInt16(mBuffer, 4); // Store z-axis values
+    }
+
     /**
      * Get the acceleration on the X, Y, Z axis in SI units (m/s^2).
      *
@@ -803,14 +1171,24 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public float[] readAcceleration() throws IOException {
-        int[] rawAccelerometerData = readRawAccelerometerData();
         float[] result = new float[3];
-        for (int i = 0; i < rawAccelerometerData.length; i++) {
-            result[i] = convertRawAccelerationToSi(rawAccelerometerData[i]);
-        }
+        readAcceleration(result);
         return result;
     }
 
+    /**
+     * Get the acceleration on the X, Y, Z axis in SI units (m/s^2), without allocating memory.
+     *
+     * @param result an array of at least 3 elements that will contain X, Y, Z axis values in SI units (m/s^2).
+     * @throws IOException
+     */
+    public synchronized void readAcceleration(float[] result) throws IOException {
+        readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_XL, mBuffer, mBuffer.length);
+        for (int i = 0; i < 3; i++) {
+            result[i] = convertRawAccelerationToSi(readInt16(mBuffer, i * 2));
+        }
+    }
+
     private float convertRawAccelerationToSi(int rawAccelerometerData) {
         return rawAccelerometerData * mAccelMgLsb / 1000f * mGravity;
     }
@@ -819,6 +1197,17 @@ public class Lsm9ds1 implements Closeable {
         return convertRawAccelerationToSi(1);
     }
 
+    /**
+     * Get the acceleration sensitivity of the given range, e.g. to convert the samples of the
+     * {@link Lsm9ds1Sampler} tagged with a different range than the current one.
+     *
+     * @param range one of the {@link AccelerometerRange} values.
+     * @return the acceleration in m/s^2 of one raw unit.
+     */
+    public float getAccelerationSensitivity(@AccelerometerRange int range) {
+        return AUTO_RANGE_ACCEL_LSB[indexOf(AUTO_RANGE_ACCEL, range)] / 1000f * mGravity;
+    }
+
     /**
      * Read the raw magnetometer sensor values.
      * <p>
@@ -828,15 +1217,24 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int[] readRawMagnetometerData() throws IOException {
-        byte[] buffer = new byte[6];
         int[] result = new int[3];
-        readRegBuffer(SENSOR_MAG, REGISTER_OUT_X_L_M, buffer, buffer.length);
-        result[0] = (((int) buffer[1]) << 8) | (buffer[0] & 0xFF); // Store x-axis values
-        result[1] = (((int) buffer[3]) << 8) | (buffer[2] & 0xFF); // Store y-axis values
-        result[2] = (((int) buffer[5]) << 8) | (buffer[4] & 0xFF); // Store z-axis values
+        readRawMagnetometerData(result);
         return result;
     }
 
+    /**
+     * Read the raw magnetometer sensor values into the given array, without allocating memory.
+     *
+     * @param result an array of at least 3 elements that will contain X, Y, Z axis raw values.
+     * @throws IOException
+     */
+    public synchronized void readRawMagnetometerData(int[] result) throws IOException {
+        readRegBuffer(SENSOR_MAG, REGISTER_OUT_X_L_M, mBuffer, mBuffer.length);
+        result[0] = readInt16(mBuffer, 0); // Store x-axis values
+        result[1] = readInt16(mBuffer, 2); // Store y-axis values
+        result[2] = readInt16(mBuffer, 4); // Store z-axis values
+    }
+
     /**
      * Get the magnetic induction on the X, Y, Z axis in SI units (Gs).
      *
@@ -844,14 +1242,24 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public float[] readMagneticInduction() throws IOException {
-        int[] rawMagnetometerData = readRawMagnetometerData();
         float[] result = new float[3];
-        for (int i = 0; i < rawMagnetometerData.length; i++) {
-            result[i] = convertRawMagneticInductionToSi(rawMagnetometerData[i]);
-        }
+        readMagneticInduction(result);
         return result;
     }
 
+    /**
+     * Get the magnetic induction on the X, Y, Z axis in SI units (Gs), without allocating memory.
+     *
+     * @param result an array of at least 3 elements that will contain X, Y, Z axis values in SI units (Gs).
+     * @throws IOException
+     */
+    public synchronized void readMagneticInduction(float[] result) throws IOException {
+        readRegBuffer(SENSOR_MAG, REGISTER_OUT_X_L_M, mBuffer, mBuffer.length);
+        for (int i = 0; i < 3; i++) {
+            result[i] = convertRawMagneticInductionToSi(readInt16(mBuffer, i * 2));
+        }
+    }
+
     private float convertRawMagneticInductionToSi(int rawMagnetometerData) {
         return rawMagnetometerData * mMagMgaussLsb / 1000f;
     }
@@ -869,15 +1277,24 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public int[] getRawGyroscopeData() throws IOException {
-        byte[] buffer = new byte[6];
         int[] result = new int[3];
-        readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_G, buffer, buffer.length);
-        result[0] = (((int) buffer[1]) << 8) | (buffer[0] & 0xFF); // Store x-axis values
-        result[1] = (((int) buffer[3]) << 8) | (buffer[2] & 0xFF); // Store y-axis values
-        result[2] = (((int) buffer[5]) << 8) | (buffer[4] & 0xFF); // Store z-axis values
+        getRawGyroscopeData(result);
         return result;
     }
 
+    /**
+     * Read the raw gyroscope sensor values into the given array, without allocating memory.
+     *
+     * @param result an array of at least 3 elements that will contain X, Y, Z axis raw values.
+     * @throws IOException
+     */
+    public synchronized void getRawGyroscopeData(int[] result) throws IOException {
+        readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_G, mBuffer, mBuffer.length);
+        result[0] = readInt16(mBuffer, 0); // Store x-axis values
+        result[1] = readInt16(mBuffer, 2); // Store y-axis values
+        result[2] = readInt16(mBuffer, 4); // Store z-axis values
+    }
+
     /**
      * Get the angular velocity on the X, Y, Z axis in SI units (deg/s).
      *
@@ -885,14 +1302,24 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public float[] readAngularVelocity() throws IOException {
-        int[] rawGyroscopeData = getRawGyroscopeData();
         float[] result = new float[3];
-        for (int i = 0; i < rawGyroscopeData.length; i++) {
-            result[i] = convertRawAngularVelocityToSi(rawGyroscopeData[i]);
-        }
+        readAngularVelocity(result);
         return result;
     }
 
+    /**
+     * Get the angular velocity on the X, Y, Z axis in SI units (deg/s), without allocating memory.
+     *
+     * @param result an array of at least 3 elements that will contain X, Y, Z axis values in SI units (deg/s).
+     * @throws IOException
+     */
+    public synchronized void readAngularVelocity(float[] result) throws IOException {
+        readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_G, mBuffer, mBuffer.length);
+        for (int i = 0; i < 3; i++) {
+            result[i] = convertRawAngularVelocityToSi(readInt16(mBuffer, i * 2));
+        }
+    }
+
     private float convertRawAngularVelocityToSi(int rawGyroscopeData) {
         return rawGyroscopeData * mGyroDpsDigit;
     }
@@ -901,6 +1328,17 @@ public class Lsm9ds1 implements Closeable {
         return convertRawAngularVelocityToSi(1);
     }
 
+    /**
+     * Get the angular velocity sensitivity of the given scale, e.g. to convert the samples of the
+     * {@link Lsm9ds1Sampler} tagged with a different scale than the current one.
+     *
+     * @param scale one of the {@link GyroscopeScale} values.
+     * @return the angular velocity in dps of one raw unit.
+     */
+    public float getAngularVelocitySensitivity(@GyroscopeScale int scale) {
+        return AUTO_RANGE_GYRO_LSB[indexOf(AUTO_RANGE_GYRO, scale)];
+    }
+
     /**
      * Read the Temperature data output register.
      * {@link #REGISTER_TEMP_OUT_L} and {@link #REGISTER_TEMP_OUT_H} registers together
@@ -909,10 +1347,9 @@ public class Lsm9ds1 implements Closeable {
      * @return raw data temperature.
      * @throws IOException
      */
-    public int readRawTemperature() throws IOException {
-        byte[] buffer = new byte[2];
-        readRegBuffer(SENSOR_XG, REGISTER_TEMP_OUT_L, buffer, buffer.length);
-        return ((int) buffer[1] << 8) | (buffer[0] & 0xFF);
+    public synchronized int readRawTemperature() throws IOException {
+        readRegBuffer(SENSOR_XG, REGISTER_TEMP_OUT_L, mBuffer, 2);
+        return readInt16(mBuffer, 0);
     }
 
     /**
@@ -926,13 +1363,112 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public float readTemperature() throws IOException {
-        return readRawTemperature() / TEMP_LSB_DEGREE_CELSIUS + TEMP_BIAS;
+        return convertRawTemperatureToSi(readRawTemperature());
+    }
+
+    private float convertRawTemperatureToSi(int rawTemperature) {
+        return rawTemperature / TEMP_LSB_DEGREE_CELSIUS + TEMP_BIAS;
     }
 
     public float getTemperatureSensitivity() {
         return 1 / TEMP_LSB_DEGREE_CELSIUS;
     }
 
+    /**
+     * Read the raw gyroscope, accelerometer and, optionally, temperature values with two back-to-back
+     * burst reads, so that all of them belong to the same output data sample unless a new one is ready
+     * between the two reads.
+     * <p>
+     * The bursts skip the control registers and INT_GEN_SRC_XL between the gyroscope and the accelerometer
+     * outputs: reading INT_GEN_SRC_XL would acknowledge the latched accelerometer interrupt events.
+     * <p>
+     * This must be used with the FIFO in bypass mode: when the FIFO is enabled use {@link #readRawFifo}.
+     *
+     * @param rawGyroscopeData     an array of at least 3 elements that will contain X, Y, Z axis raw gyroscope
+     *                             values.
+     * @param rawAccelerometerData an array of at least 3 elements that will contain X, Y, Z axis raw
+     *                             accelerometer values.
+     * @param rawTemperature       an array of at least 1 element that will contain the raw temperature, or null
+     *                             to skip the temperature.
+     * @throws IOException
+     */
+    public synchronized void readRawMotion6(int[] rawGyroscopeData, int[] rawAccelerometerData,
+                                            @Nullable int[] rawTemperature) throws IOException {
+        int firstRegister = readMotion6Buffer(rawTemperature != null);
+        for (int i = 0; i < 3; i++) {
+            rawGyroscopeData[i] = readInt16(mMotionBuffer, REGISTER_OUT_X_L_G - firstRegister + i * 2);
+            rawAccelerometerData[i] = readInt16(mMotionAccelerationBuffer, i * 2);
+        }
+        if (rawTemperature != null) {
+            rawTemperature[0] = readInt16(mMotionBuffer, 0);
+            mMotion6Status = mMotionBuffer[REGISTER_STATUS_REG - firstRegister] & 0xFF;
+        }
+    }
+
+    /*
+     * Inactivity status of the last readRawMotion6() including the temperature, which reads the
+     * STATUS_REG in the same burst.
+     */
+    synchronized boolean wasInactiveOnLastMotion6() {
+        return (mMotion6Status & STATUS_REG_INACT) == STATUS_REG_INACT;
+    }
+
+    /**
+     * Get the angular velocity and the acceleration with two back-to-back burst reads, so that both of them
+     * belong to the same output data sample unless a new one is ready between the two reads.
+     *
+     * @param angularVelocity an array of at least 3 elements that will contain X, Y, Z axis values in SI
+     *                        units (deg/s).
+     * @param acceleration    an array of at least 3 elements that will contain X, Y, Z axis values in SI
+     *                        units (m/s^2).
+     * @throws IOException
+     * @see #readRawMotion6(int[], int[], int[])
+     */
+    public void readMotion6(float[] angularVelocity, float[] acceleration) throws IOException {
+        readMotion6(angularVelocity, acceleration, null);
+    }
+
+    /**
+     * Get the angular velocity, the acceleration and, optionally, the temperature with two back-to-back
+     * burst reads, so that all of them belong to the same output data sample unless a new one is ready
+     * between the two reads.
+     *
+     * @param angularVelocity an array of at least 3 elements that will contain X, Y, Z axis values in SI
+     *                        units (deg/s).
+     * @param acceleration    an array of at least 3 elements that will contain X, Y, Z axis values in SI
+     *                        units (m/s^2).
+     * @param temperature     an array of at least 1 element that will contain the temperature in degrees
+     *                        Celsius, or null to skip the temperature.
+     * @throws IOException
+     * @see #readRawMotion6(int[], int[], int[])
+     */
+    public synchronized void readMotion6(float[] angularVelocity, float[] acceleration,
+                                         @Nullable float[] temperature) throws IOException {
+        int firstRegister = readMotion6Buffer(temperature != null);
+        for (int i = 0; i < 3; i++) {
+            angularVelocity[i] = convertRawAngularVelocityToSi(
+                    readInt16(mMotionBuffer, REGISTER_OUT_X_L_G - firstRegister + i * 2));
+            acceleration[i] = convertRawAccelerationToSi(
+                    readInt16(mMotionAccelerationBuffer, i * 2));
+        }
+        if (temperature != null) {
+            temperature[0] = convertRawTemperatureToSi(readInt16(mMotionBuffer, 0));
+        }
+    }
+
+    /*
+     * The gyroscope outputs (18h-1Dh), preceded by TEMP_OUT_L (15h) and STATUS_REG (17h) when the
+     * temperature is needed too, then the accelerometer outputs (28h-2Dh). A single burst covering both
+     * would also read INT_GEN_SRC_XL (26h), that is cleared on read and would acknowledge the accelerometer
+     * interrupt events before the interrupt and wake-on-motion paths see them.
+     */
+    private int readMotion6Buffer(boolean readTemperature) throws IOException {
+        int firstRegister = readTemperature ? REGISTER_TEMP_OUT_L : REGISTER_OUT_X_L_G;
+        readRegBuffer(SENSOR_XG, firstRegister, mMotionBuffer, REGISTER_OUT_Z_H_G - firstRegister + 1);
+        readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_XL, mMotionAccelerationBuffer, mMotionAccelerationBuffer.length);
+        return firstRegister;
+    }
+
     /**
      * Get the current value used for gravity in SI units (m/s^2).
      */
@@ -947,6 +1483,80 @@ public class Lsm9ds1 implements Closeable {
         mGravity = gravity;
     }
 
+    /**
+     * Get the inactivity threshold.
+     *
+     * @throws IOException
+     */
+    public int getInactivityThreshold() throws IOException {
+        return getRegBits(SENSOR_XG, REGISTER_ACT_THS, ACT_THS_MASK);
+    }
+
+    /**
+     * Set the inactivity threshold, from 0 to 127. A threshold different from 0 enables the activity/inactivity
+     * function: when the acceleration stays below the threshold for the {@link #setInactivityDuration(int)
+     * inactivity duration}, the device sets the accelerometer ODR to 10 Hz and puts the gyroscope in sleep or
+     * power down mode (see {@link #setGyroscopeSleepOnInactivityEnabled(boolean)}), until the threshold is
+     * exceeded again and the configured ODRs are restored.
+     *
+     * @throws IOException
+     */
+    public void setInactivityThreshold(int threshold) throws IOException {
+        if (threshold < 0 || threshold > ACT_THS_MASK) {
+            throw new IllegalArgumentException("Inactivity threshold must be between 0 and " + ACT_THS_MASK);
+        }
+        updateRegBits(SENSOR_XG, REGISTER_ACT_THS, ACT_THS_MASK, threshold);
+    }
+
+    /**
+     * Get the inactivity duration.
+     *
+     * @throws IOException
+     */
+    public int getInactivityDuration() throws IOException {
+        return getRegBits(SENSOR_XG, REGISTER_ACT_DUR, 0xFF);
+    }
+
+    /**
+     * Set the inactivity duration, from 0 to 255, in accelerometer ODR periods.
+     *
+     * @throws IOException
+     */
+    public void setInactivityDuration(int duration) throws IOException {
+        if (duration < 0 || duration > 0xFF) {
+            throw new IllegalArgumentException("Inactivity duration must be between 0 and 255");
+        }
+        updateRegBits(SENSOR_XG, REGISTER_ACT_DUR, 0xFF, duration);
+    }
+
+    /**
+     * @return true if the gyroscope goes in sleep mode on inactivity; false if it is powered down
+     * @throws IOException
+     */
+    public boolean isGyroscopeSleepOnInactivityEnabled() throws IOException {
+        return getRegBits(SENSOR_XG, REGISTER_ACT_THS, ACT_THS_SLEEP_ON_INACT_EN) != 0;
+    }
+
+    /**
+     * Select the gyroscope mode on inactivity: sleep mode, which wakes up faster, or power down.
+     *
+     * @param enable True for sleep mode; false for power down.
+     * @throws IOException
+     */
+    public void setGyroscopeSleepOnInactivityEnabled(boolean enable) throws IOException {
+        updateRegBits(SENSOR_XG, REGISTER_ACT_THS, ACT_THS_SLEEP_ON_INACT_EN,
+                enable ? ACT_THS_SLEEP_ON_INACT_EN : 0);
+    }
+
+    /**
+     * Get the Gyroscope sleep mode.
+     *
+     * @throws IOException
+     */
+    public boolean isSleepGyroscopeEnabled() throws IOException {
+        return getRegBits(SENSOR_XG, REGISTER_CTRL_REG9, CTRL_REG9_SLEEP_G) != 0;
+    }
+
     /**
      * Enable/disable Gyroscope sleep mode.
      *
@@ -954,13 +1564,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setSleepGyroscopeEnabled(boolean enable) throws IOException {
-        byte temp = readRegByte(SENSOR_XG, REGISTER_CTRL_REG9);
-        if (enable) {
-            temp |= CTRL_REG9_SLEEP_G;
-        } else {
-            temp &= ~CTRL_REG9_SLEEP_G;
-        }
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG9, temp);
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG9, CTRL_REG9_SLEEP_G, enable ? CTRL_REG9_SLEEP_G : 0);
     }
 
     /**
@@ -970,13 +1574,7 @@ public class Lsm9ds1 implements Closeable {
      * @throws IOException
      */
     public void setFifoMemoryEnabled(boolean enable) throws IOException {
-        byte temp = readRegByte(SENSOR_XG, REGISTER_CTRL_REG9);
-        if (enable) {
-            temp |= CTRL_REG9_FIFO_EN;
-        } else {
-            temp &= ~CTRL_REG9_FIFO_EN;
-        }
-        writeRegByte(SENSOR_XG, REGISTER_CTRL_REG9, temp);
+        updateRegBits(SENSOR_XG, REGISTER_CTRL_REG9, CTRL_REG9_FIFO_EN, enable ? CTRL_REG9_FIFO_EN : 0);
     }
 
     /**
@@ -990,7 +1588,89 @@ public class Lsm9ds1 implements Closeable {
         if (threshold > FIFO_MAX_THRESHOLD) {
             threshold = FIFO_MAX_THRESHOLD;
         }
-        writeRegByte(SENSOR_XG, REGISTER_FIFO_CTRL, (byte) (mode | (threshold & 0b0011111)));
+        updateRegBits(SENSOR_XG, REGISTER_FIFO_CTRL, 0xFF, mode | (threshold & 0b0011111));
+    }
+
+    /**
+     * Get the sources routed to the INT1_A/G pin, as a combination of the {@code INT1_*} flags.
+     *
+     * @throws IOException
+     */
+    public int getInterrupt1Sources() throws IOException {
+        return getRegBits(SENSOR_XG, REGISTER_INT1_CTRL, 0xFF);
+    }
+
+    /**
+     * Set the sources routed to the INT1_A/G pin.
+     * <p>
+     * For example {@link #INT1_DRDY_XL} signals new accelerometer data and {@link #INT1_FTH} signals
+     * that the FIFO threshold has been reached. Data ready signals are cleared reading the data.
+     *
+     * @param sources a combination of the {@code INT1_*} flags, or 0 to disable the pin.
+     * @throws IOException
+     */
+    public void setInterrupt1Sources(int sources) throws IOException {
+        updateRegBits(SENSOR_XG, REGISTER_INT1_CTRL, 0xFF, sources);
+    }
+
+    /**
+     * Get the sources routed to the INT2_A/G pin, as a combination of the {@code INT2_*} flags.
+     *
+     * @throws IOException
+     */
+    public int getInterrupt2Sources() throws IOException {
+        return getRegBits(SENSOR_XG, REGISTER_INT2_CTRL, 0xFF);
+    }
+
+    /**
+     * Set the sources routed to the INT2_A/G pin.
+     *
+     * @param sources a combination of the {@code INT2_*} flags, or 0 to disable the pin.
+     * @throws IOException
+     */
+    public void setInterrupt2Sources(int sources) throws IOException {
+        updateRegBits(SENSOR_XG, REGISTER_INT2_CTRL, 0xFF, sources);
+    }
+
+    /**
+     * @return true if a GPIO connected to the INT1_A/G pin has been configured with
+     * {@link Builder#setInterruptGpio(String)}; false otherwise.
+     */
+    public boolean hasInterruptGpio() {
+        return mInterruptGpio != null;
+    }
+
+    /**
+     * Register a callback invoked on the rising edge of the INT1_A/G pin.
+     * Requires a GPIO configured with {@link Builder#setInterruptGpio(String)}.
+     * Only one callback can be registered at a time: registering a new one replaces the previous.
+     *
+     * @param callback the callback to invoke.
+     * @param handler  the handler whose thread will run the callback, or null for the main thread.
+     * @throws IOException
+     */
+    public void registerInterruptCallback(InterruptCallback callback, @Nullable Handler handler)
+            throws IOException {
+        if (mInterruptGpio == null) {
+            throw new IllegalStateException("Interrupt GPIO not configured");
+        }
+        mInterruptGpio.unregisterGpioCallback(mGpioCallback);
+        mInterruptCallback = callback;
+        if (handler == null) {
+            mInterruptGpio.registerGpioCallback(mGpioCallback);
+        } else {
+            mInterruptGpio.registerGpioCallback(handler, mGpioCallback);
+        }
+    }
+
+    /**
+     * Unregister the callback registered with {@link #registerInterruptCallback}.
+     */
+    public void unregisterInterruptCallback() {
+        if (mInterruptGpio != null) {
+            mInterruptGpio.unregisterGpioCallback(mGpioCallback);
+        }
+        mInterruptCallback = null;
     }
 
     /**
@@ -1003,11 +1683,87 @@ public class Lsm9ds1 implements Closeable {
         return readRegByte(SENSOR_XG, REGISTER_FIFO_SRC) & 0b00111111;
     }
 
+    /**
+     * Read all the unread gyroscope and accelerometer samples stored into FIFO with a single burst read.
+     * <p>
+     * The samples are stored oldest first as consecutive X, Y, Z triplets. If the arrays are too small
+     * to hold all the unread samples, the remaining ones are left into FIFO for the next call.
+     * <p>
+     * If you want the data in SI units use the {@link #readFifo(float[], float[])}.
+     *
+     * @param rawGyroscopeData     array that will contain the X, Y, Z axis raw gyroscope values.
+     * @param rawAccelerometerData array that will contain the X, Y, Z axis raw accelerometer values.
+     * @return The number of samples read.
+     * @throws IOException
+     */
+    public synchronized int readRawFifo(int[] rawGyroscopeData, int[] rawAccelerometerData) throws IOException {
+        int samples = readFifoBuffer(Math.min(rawGyroscopeData.length, rawAccelerometerData.length) / 3);
+        for (int i = 0; i < samples; i++) {
+            int offset = i * FIFO_SLOT_SIZE;
+            for (int axis = 0; axis < 3; axis++) {
+                rawGyroscopeData[i * 3 + axis] = readInt16(mFifoBuffer, offset + axis * 2);
+                rawAccelerometerData[i * 3 + axis] = readInt16(mFifoBuffer, offset + 6 + axis * 2);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Read all the unread angular velocity and acceleration samples stored into FIFO with a single burst read.
+     * <p>
+     * The samples are stored oldest first as consecutive X, Y, Z triplets. If the arrays are too small
+     * to hold all the unread samples, the remaining ones are left into FIFO for the next call.
+     *
+     * @param angularVelocity array that will contain the X, Y, Z axis values in SI units (deg/s).
+     * @param acceleration    array that will contain the X, Y, Z axis values in SI units (m/s^2).
+     * @return The number of samples read.
+     * @throws IOException
+     */
+    public synchronized int readFifo(float[] angularVelocity, float[] acceleration) throws IOException {
+        int samples = readFifoBuffer(Math.min(angularVelocity.length, acceleration.length) / 3);
+        for (int i = 0; i < samples; i++) {
+            int offset = i * FIFO_SLOT_SIZE;
+            for (int axis = 0; axis < 3; axis++) {
+                angularVelocity[i * 3 + axis] =
+                        convertRawAngularVelocityToSi(readInt16(mFifoBuffer, offset + axis * 2));
+                acceleration[i * 3 + axis] =
+                        convertRawAccelerationToSi(readInt16(mFifoBuffer, offset + 6 + axis * 2));
+            }
+        }
+        return samples;
+    }
+
+    /*
+     * When the FIFO is enabled the register address automatically rolls from OUT_Z_H_G to OUT_X_L_XL
+     * and from OUT_Z_H_XL back to OUT_X_L_G, so a burst read starting at OUT_X_L_G pops one FIFO slot
+     * (gyroscope + accelerometer) every 12 bytes.
+     */
+    private int readFifoBuffer(int maxSamples) throws IOException {
+        int samples = Math.min(getFifoSamplesCount(), Math.min(maxSamples, FIFO_SIZE));
+        if (samples > 0) {
+            readRegBuffer(SENSOR_XG, REGISTER_OUT_X_L_G, mFifoBuffer, samples * FIFO_SLOT_SIZE);
+        }
+        return samples;
+    }
+
+    private static int readInt16(byte[] buffer, int offset) {
+        return (((int) buffer[offset + 1]) << 8) | (buffer[offset] & 0xFF);
+    }
+
     /**
      * Close the driver and the underlying device.
      */
     @Override
     public void close() throws IOException {
+        if (mInterruptGpio != null) {
+            try {
+                mInterruptGpio.unregisterGpioCallback(mGpioCallback);
+                mInterruptGpio.close();
+            } finally {
+                mInterruptGpio = null;
+                mInterruptCallback = null;
+            }
+        }
         if (mAccelGyroDevice != null) {
             try {
                 mAccelGyroDevice.close();
@@ -1082,13 +1838,50 @@ public class Lsm9ds1 implements Closeable {
                 throw new IllegalStateException("I2C device not open");
             }
             mMagDevice.writeRegByte(reg, data);
+            if (isShadowed(SHADOW_RANGES_MAG, reg)) {
+                mMagShadow[reg] = data;
+            }
         } else {
             if (mAccelGyroDevice == null) {
                 throw new IllegalStateException("I2C device not open");
             }
             mAccelGyroDevice.writeRegByte(reg, data);
+            if (isShadowed(SHADOW_RANGES_XG, reg)) {
+                mAccelGyroShadow[reg] = data;
+            }
         }
+    }
 
+    /**
+     * Get some bits of a control register from its shadow copy, without accessing the bus.
+     *
+     * @param sensorType The sensor owning the register (see {@link SensorType}).
+     * @param reg        The register to read from.
+     * @param mask       The bits to read.
+     * @return The masked register value.
+     */
+    private synchronized int getRegBits(@SensorType int sensorType, int reg, int mask) {
+        byte[] shadow = sensorType == SENSOR_MAG ? mMagShadow : mAccelGyroShadow;
+        return shadow[reg] & mask & 0xFF;
+    }
+
+    /**
+     * Update some bits of a control register, preserving the other ones thanks to its shadow copy.
+     * The register is written only if its value changes.
+     *
+     * @param sensorType The sensor owning the register (see {@link SensorType}).
+     * @param reg        The register to write to.
+     * @param mask       The bits to update.
+     * @param bits       The new value of the bits.
+     * @throws IOException
+     */
+    private synchronized void updateRegBits(@SensorType int sensorType, int reg, int mask, int bits)
+            throws IOException {
+        byte[] shadow = sensorType == SENSOR_MAG ? mMagShadow : mAccelGyroShadow;
+        byte value = (byte) ((shadow[reg] & ~mask) | (bits & mask));
+        if (value != shadow[reg]) {
+            writeRegByte(sensorType, reg, value);
+        }
     }
 
     /**
@@ -1145,8 +1938,8 @@ public class Lsm9ds1 implements Closeable {
     })
     public @interface GyroscopeScale {
         int GYRO_SCALE_245DPS = 0;
-        int GYRO_SCALE_500DPS = 1 << 4;
-        int GYRO_SCALE_2000DPS = 3 << 4;
+        int GYRO_SCALE_500DPS = 1 << 3;
+        int GYRO_SCALE_2000DPS = 3 << 3;
     }
 
     /**
@@ -1294,10 +2087,23 @@ public class Lsm9ds1 implements Closeable {
         int SENSOR_XG = 1;
     }
 
+    /**
+     * Callback invoked when the INT1_A/G pin signals an event.
+     */
+    public interface InterruptCallback {
+        /**
+         * @param device the device that raised the interrupt.
+         */
+        void onInterrupt(Lsm9ds1 device);
+    }
+
     public static class Builder {
         private String mI2cBus;
         private int mI2cAddressAccelGyro = I2C_ADDRESS_ACCEL_GYRO;
         private int mI2cAddressMag = I2C_ADDRESS_MAG;
+        private String mInterruptGpio;
+        private int mInterrupt1Sources;
+        private int mInterrupt2Sources;
 
         @FifoMode
         private int mFifoMode = FifoMode.FIFO_OFF;
@@ -1319,6 +2125,7 @@ public class Lsm9ds1 implements Closeable {
         private int mGyroscopeOdr = ODR_952HZ;
         @GyroscopeScale
         private int mGyroscopeScale = GYRO_SCALE_245DPS;
+        private boolean mAutoRange = false;
 
         // Magnetometer configuration
         private boolean mMagnetometerTemperatureCompensation = false;
@@ -1360,6 +2167,37 @@ public class Lsm9ds1 implements Closeable {
             return this;
         }
 
+        /**
+         * Sets the name of the GPIO connected to the INT1_A/G pin. When set, the sensor can notify
+         * data ready and FIFO threshold events, see {@link Lsm9ds1#registerInterruptCallback}.
+         *
+         * @return this Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setInterruptGpio(String interruptGpio) {
+            mInterruptGpio = interruptGpio;
+            return this;
+        }
+
+        /**
+         * Sets the sources routed to the INT1_A/G pin, as a combination of the {@code INT1_*} flags.
+         *
+         * @return this Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setInterrupt1Sources(int sources) {
+            mInterrupt1Sources = sources;
+            return this;
+        }
+
+        /**
+         * Sets the sources routed to the INT2_A/G pin, as a combination of the {@code INT2_*} flags.
+         *
+         * @return this Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setInterrupt2Sources(int sources) {
+            mInterrupt2Sources = sources;
+            return this;
+        }
+
         /**
          * Configure FIFO mode and Threshold.
          *
@@ -1460,6 +2298,17 @@ public class Lsm9ds1 implements Closeable {
             return this;
         }
 
+        /**
+         * Enable or disable the auto-range of the accelerometer and gyroscope full scales.
+         * See {@link Lsm9ds1#setAutoRange(boolean)}.
+         *
+         * @return this Builder object to allow for chaining of calls to set methods
+         */
+        public Builder setAutoRange(boolean autoRange) {
+            mAutoRange = autoRange;
+            return this;
+        }
+
         /**
          * Set the magnetometer temperatureCompensation.
          *
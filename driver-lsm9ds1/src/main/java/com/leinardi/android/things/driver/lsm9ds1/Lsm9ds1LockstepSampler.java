@@ -0,0 +1,408 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagnetometerSystemOperatingMode.MAG_POWER_DOWN;
+
+/**
+ * Reads several {@link Lsm9ds1} sharing the same I2C bus (see {@link Lsm9ds1.Builder#setI2cAddressAccelGyro}
+ * and {@link Lsm9ds1.Builder#setI2cAddressMag}) from a single background thread: on every tick of the
+ * output data rate the devices are read back-to-back, in the order given to the constructor, instead of
+ * contending for the bus from independent threads.
+ * <p>
+ * Each row of samples contains {@link Lsm9ds1Sampler#SAMPLE_SIZE} raw values per device, with the same
+ * layout as the samples of {@link Lsm9ds1Sampler}: the values of the device {@code i} start at
+ * {@code i * Lsm9ds1Sampler.SAMPLE_SIZE}. All the samples of a row share one
+ * {@link SystemClock#elapsedRealtimeNanos()} timestamp, the midpoint between the end of the first and the
+ * end of the last read. The time between these two reads is the skew of the row, see
+ * {@link #getLastSkewNanos()}.
+ * <p>
+ * The devices should be configured with the same output data rates: the sampler ticks at the fastest one.
+ * The devices are polled, without using their interrupts or FIFOs.
+ * <p>
+ * Rows can be consumed by a single thread with {@link #drain}, by any thread with {@link #readLatest}
+ * or on the sampling thread by a {@link LockstepSampleListener}. None of them touches the I2C bus.
+ */
+public class Lsm9ds1LockstepSampler implements Closeable {
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final String TAG = Lsm9ds1LockstepSampler.class.getSimpleName();
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final int MAX_LISTENERS = 4;
+    // Weight of the last row in the average skew
+    private static final long SKEW_AVERAGE_WEIGHT = 64;
+
+    private final Lsm9ds1[] mDevices;
+    private final int mRowSize;
+    private final SampleRingBuffer mRingBuffer;
+    private final LockstepSampleListener[] mListeners = new LockstepSampleListener[MAX_LISTENERS];
+    private volatile int mListenerCount;
+    private final int[][] mRawGyroscopeData;
+    private final int[][] mRawAccelerometerData;
+    private final boolean[] mAccelGyroEnabled;
+    private final int[] mRawMagnetometerData = new int[3];
+    private final int[] mRawTemperature = new int[1];
+    private final short[] mRow;
+    private final short[] mLatestRow;
+    // Not this, as stop() waits for the sampling thread while holding the monitor
+    private final Object mLatestRowLock = new Object();
+    private long mLatestTimestamp;
+    private volatile long mLastSkewNanos;
+    private volatile long mMaxSkewNanos;
+    private volatile long mAverageSkewNanos;
+    private SamplerHandlerThread mHandlerThread;
+
+    /**
+     * Callback invoked on the sampling thread for every new row of samples.
+     */
+    public interface LockstepSampleListener {
+        /**
+         * @param timestamp the {@link SystemClock#elapsedRealtimeNanos()} timestamp shared by the samples.
+         * @param samples   the raw samples of all the devices, only valid for the duration of the call.
+         * @param skewNanos the time between the reads of the first and of the last device.
+         */
+        void onSamples(long timestamp, short[] samples, long skewNanos);
+    }
+
+    /**
+     * Create a new sampler with a buffer of {@link #DEFAULT_CAPACITY} rows.
+     *
+     * @param devices the devices to sample, at least one.
+     */
+    public Lsm9ds1LockstepSampler(Lsm9ds1... devices) {
+        this(DEFAULT_CAPACITY, devices);
+    }
+
+    /**
+     * Create a new sampler.
+     *
+     * @param capacity the number of rows of the buffer, must be a power of two.
+     * @param devices  the devices to sample, at least one.
+     */
+    public Lsm9ds1LockstepSampler(int capacity, Lsm9ds1... devices) {
+        if (devices.length == 0) {
+            throw new IllegalArgumentException("At least one device is required");
+        }
+        mDevices = devices.clone();
+        mRowSize = devices.length * Lsm9ds1Sampler.SAMPLE_SIZE;
+        mRingBuffer = new SampleRingBuffer(capacity, mRowSize);
+        mRawGyroscopeData = new int[devices.length][3];
+        mRawAccelerometerData = new int[devices.length][3];
+        mAccelGyroEnabled = new boolean[devices.length];
+        mRow = new short[mRowSize];
+        mLatestRow = new short[mRowSize];
+    }
+
+    /**
+     * @return the number of sampled devices.
+     */
+    public int getDeviceCount() {
+        return mDevices.length;
+    }
+
+    /**
+     * @return the number of raw values of each row, {@link Lsm9ds1Sampler#SAMPLE_SIZE} per device.
+     */
+    public int getRowSize() {
+        return mRowSize;
+    }
+
+    /**
+     * Start sampling on a background thread. Does nothing if the sampler is already running.
+     */
+    public synchronized void start() {
+        if (mHandlerThread == null) {
+            mHandlerThread = new SamplerHandlerThread();
+        }
+    }
+
+    /**
+     * Stop sampling, waiting for an in-flight read to complete. Buffered rows are kept.
+     */
+    public synchronized void stop() {
+        if (mHandlerThread != null) {
+            mHandlerThread.shutdown();
+            mHandlerThread = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mHandlerThread != null;
+    }
+
+    /**
+     * Stop sampling. The underlying {@link Lsm9ds1}s are not closed.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Add a listener invoked on the sampling thread for every new row.
+     * The listener must be fast and must not allocate memory, as it delays the next read.
+     *
+     * @param listener the listener to add.
+     */
+    public synchronized void addSampleListener(LockstepSampleListener listener) {
+        for (int i = 0; i < mListenerCount; i++) {
+            if (mListeners[i] == listener) {
+                return;
+            }
+        }
+        if (mListenerCount == MAX_LISTENERS) {
+            throw new IllegalStateException("Too many listeners");
+        }
+        mListeners[mListenerCount] = listener;
+        mListenerCount++;
+    }
+
+    /**
+     * Remove a listener previously added with {@link #addSampleListener}.
+     * If the sampler is running the listener can still receive the row being published.
+     *
+     * @param listener the listener to remove.
+     */
+    public synchronized void removeSampleListener(LockstepSampleListener listener) {
+        for (int i = 0; i < mListenerCount; i++) {
+            if (mListeners[i] == listener) {
+                System.arraycopy(mListeners, i + 1, mListeners, i, mListenerCount - i - 1);
+                mListenerCount--;
+                mListeners[mListenerCount] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move the buffered rows, oldest first, into the given arrays, without allocating memory.
+     * Must always be called from the same thread.
+     *
+     * @param timestamps array receiving the {@link SystemClock#elapsedRealtimeNanos()} timestamp of each row.
+     * @param samples    array receiving {@link #getRowSize()} raw values for each row.
+     * @param maxRows    maximum number of rows to drain.
+     * @return the number of drained rows.
+     */
+    public int drain(long[] timestamps, short[] samples, int maxRows) {
+        return mRingBuffer.drain(timestamps, samples, maxRows);
+    }
+
+    /**
+     * @return the number of rows lost because the buffer was not drained fast enough.
+     */
+    public long getDroppedRowsCount() {
+        return mRingBuffer.getDroppedCount();
+    }
+
+    /**
+     * Copy the most recent row, without consuming the buffer and without allocating memory.
+     * Can be called from any thread.
+     *
+     * @param samples array of at least {@link #getRowSize()} elements receiving the raw values.
+     * @return the timestamp of the row, or 0 if no row has been read yet.
+     */
+    public long readLatest(short[] samples) {
+        synchronized (mLatestRowLock) {
+            System.arraycopy(mLatestRow, 0, samples, 0, mRowSize);
+            return mLatestTimestamp;
+        }
+    }
+
+    /**
+     * @return the skew of the last row: the time between the end of the read of the first device and the
+     * end of the read of the last device, in nanoseconds.
+     */
+    public long getLastSkewNanos() {
+        return mLastSkewNanos;
+    }
+
+    /**
+     * @return the maximum skew measured since the sampler was created or {@link #resetSkewStatistics()}.
+     */
+    public long getMaxSkewNanos() {
+        return mMaxSkewNanos;
+    }
+
+    /**
+     * @return the exponential moving average of the skew over about the last 64 rows, in nanoseconds.
+     */
+    public long getAverageSkewNanos() {
+        return mAverageSkewNanos;
+    }
+
+    /**
+     * Reset the maximum and average skew.
+     */
+    public void resetSkewStatistics() {
+        mMaxSkewNanos = 0;
+        mAverageSkewNanos = 0;
+    }
+
+    /*
+     * Sampling period for the current configuration: the shortest period of the devices, or one second
+     * when all of them are powered down.
+     */
+    private long getSamplingPeriodNanos() throws IOException {
+        long period = NANOS_PER_SECOND;
+        for (Lsm9ds1 device : mDevices) {
+            period = Math.min(period, Lsm9ds1Sampler.getSamplingPeriodNanos(device));
+        }
+        return period;
+    }
+
+    /*
+     * Read all the devices back-to-back into the current row and return its timestamp.
+     * Everything that is not the read itself is done before or after the loop, to keep the skew small.
+     */
+    long sampleAll() throws IOException {
+        for (int d = 0; d < mDevices.length; d++) {
+            Lsm9ds1 device = mDevices[d];
+            mAccelGyroEnabled[d] = device.getGyroscopeOdr() != ODR_POWER_DOWN
+                    || device.getAccelerometerOdr() != ODR_POWER_DOWN;
+            mRow[d * Lsm9ds1Sampler.SAMPLE_SIZE + Lsm9ds1Sampler.RANGE_OFFSET] =
+                    (short) (device.getAccelerometerRange() | device.getGyroscopeScale() << 8);
+        }
+        long firstReadTime = 0;
+        long lastReadTime = 0;
+        for (int d = 0; d < mDevices.length; d++) {
+            readDevice(d);
+            lastReadTime = SystemClock.elapsedRealtimeNanos();
+            if (d == 0) {
+                firstReadTime = lastReadTime;
+            }
+        }
+        long skew = lastReadTime - firstReadTime;
+        mLastSkewNanos = skew;
+        if (skew > mMaxSkewNanos) {
+            mMaxSkewNanos = skew;
+        }
+        long averageSkew = mAverageSkewNanos;
+        mAverageSkewNanos = averageSkew == 0 ? skew : averageSkew + (skew - averageSkew) / SKEW_AVERAGE_WEIGHT;
+        return firstReadTime + skew / 2;
+    }
+
+    private void readDevice(int index) throws IOException {
+        Lsm9ds1 device = mDevices[index];
+        int[] rawGyroscopeData = mRawGyroscopeData[index];
+        int[] rawAccelerometerData = mRawAccelerometerData[index];
+        if (mAccelGyroEnabled[index]) {
+            device.readRawMotion6(rawGyroscopeData, rawAccelerometerData, mRawTemperature);
+        } else {
+            clear(rawGyroscopeData);
+            clear(rawAccelerometerData);
+            mRawTemperature[0] = 0;
+        }
+        if (device.getMagnetometerSystemOperatingMode() != MAG_POWER_DOWN) {
+            device.readRawMagnetometerData(mRawMagnetometerData);
+        } else {
+            clear(mRawMagnetometerData);
+        }
+        int offset = index * Lsm9ds1Sampler.SAMPLE_SIZE;
+        for (int i = 0; i < 3; i++) {
+            mRow[offset + Lsm9ds1Sampler.GYRO_OFFSET + i] = (short) rawGyroscopeData[i];
+            mRow[offset + Lsm9ds1Sampler.ACCEL_OFFSET + i] = (short) rawAccelerometerData[i];
+            mRow[offset + Lsm9ds1Sampler.MAG_OFFSET + i] = (short) mRawMagnetometerData[i];
+        }
+        mRow[offset + Lsm9ds1Sampler.TEMP_OFFSET] = (short) mRawTemperature[0];
+    }
+
+    private void updateAutoRange() throws IOException {
+        for (int d = 0; d < mDevices.length; d++) {
+            if (mAccelGyroEnabled[d]) {
+                mDevices[d].updateAutoRange(mRawGyroscopeData[d], mRawAccelerometerData[d], 1);
+            }
+        }
+    }
+
+    void publish(long timestamp) {
+        mRingBuffer.offer(timestamp, mRow, 0);
+        synchronized (mLatestRowLock) {
+            System.arraycopy(mRow, 0, mLatestRow, 0, mRowSize);
+            mLatestTimestamp = timestamp;
+        }
+        long skew = mLastSkewNanos;
+        int listenerCount = mListenerCount;
+        for (int i = 0; i < listenerCount; i++) {
+            LockstepSampleListener listener = mListeners[i];
+            if (listener != null) {
+                listener.onSamples(timestamp, mRow, skew);
+            }
+        }
+    }
+
+    private static void clear(int[] array) {
+        for (int i = 0; i < array.length; i++) {
+            array[i] = 0;
+        }
+    }
+
+    private class SamplerHandlerThread extends HandlerThread {
+        // Not the thread itself: overriding HandlerThread.run() would replace the looper
+        private final Runnable mSampleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                sampleAndReschedule();
+            }
+        };
+        private final Handler mHandler;
+        private long mNextSampleTime;
+
+        SamplerHandlerThread() {
+            super("lsm9ds1-lockstep-sampler-thread", Thread.NORM_PRIORITY + 1);
+            start();
+            mHandler = new Handler(getLooper());
+            mHandler.post(mSampleRunnable);
+        }
+
+        void shutdown() {
+            mHandler.removeCallbacks(mSampleRunnable);
+            quit();
+            // Wait for an in-flight read, the devices could be closed right after
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "join was interrupted");
+            }
+        }
+
+        private void sampleAndReschedule() {
+            mHandler.removeCallbacks(mSampleRunnable);
+            long delay;
+            try {
+                delay = getSamplingPeriodNanos();
+                publish(sampleAll());
+                updateAutoRange();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read samples", e);
+                delay = NANOS_PER_SECOND / (long) Lsm9ds1.MAX_FREQ_HZ_XG;
+            }
+            // Schedule on a fixed grid, so that the rounding to milliseconds does not accumulate
+            long now = SystemClock.uptimeMillis() * NANOS_PER_MILLI;
+            mNextSampleTime = Math.max(mNextSampleTime + delay, now);
+            mHandler.postAtTime(mSampleRunnable, (mNextSampleTime + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+        }
+    }
+}
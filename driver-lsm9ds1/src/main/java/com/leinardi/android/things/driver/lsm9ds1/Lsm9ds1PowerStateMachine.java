@@ -0,0 +1,214 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import androidx.annotation.IntDef;
+
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagOutputDataRate.ODR_M_0_625HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagnetometerSystemOperatingMode.MAG_CONTINUOUS_CONVERSION;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_GYRO;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_ONLY;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_GYRO_SLEEP;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_CONTINUOUS;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_LOW_POWER;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_OFF;
+
+/**
+ * Power states of an {@link Lsm9ds1} and the register transitions between them.
+ * <p>
+ * The accelerometer/gyroscope is in one of the {@link AccelGyroPowerState}s, ordered by increasing current
+ * draw: the gyroscope draws most of the current of the device, and it takes a while to start from power
+ * down. The sleep mode keeps part of it running, to trade some current for a faster wake up.
+ * The magnetometer is in one of the {@link MagnetometerPowerState}s.
+ * <p>
+ * A transition writes only the registers that differ between the current and the target state, in an
+ * order that never powers down, even briefly, a sensor that stays on. A transition to the current state
+ * does not touch the bus. All the methods are thread safe.
+ */
+public class Lsm9ds1PowerStateMachine {
+    private final Lsm9ds1 mDevice;
+    private boolean mAccelGyroApplied;
+    private boolean mMagnetometerApplied;
+    private int mAccelGyroState = XG_POWER_DOWN;
+    private int mAccelGyroOdr = ODR_POWER_DOWN;
+    private int mMagnetometerState = MAG_OFF;
+    private int mMagnetometerOdr = ODR_M_0_625HZ;
+
+    /**
+     * Create a state machine for the given device. The first transition of each sensor writes all its
+     * power registers, as the previous configuration of the device is unknown.
+     *
+     * @param device the device to drive.
+     */
+    public Lsm9ds1PowerStateMachine(Lsm9ds1 device) {
+        mDevice = device;
+    }
+
+    @AccelGyroPowerState
+    public synchronized int getAccelGyroState() {
+        return mAccelGyroState;
+    }
+
+    @MagnetometerPowerState
+    public synchronized int getMagnetometerState() {
+        return mMagnetometerState;
+    }
+
+    /**
+     * Move the accelerometer/gyroscope to the given state.
+     *
+     * @param state the target state.
+     * @param odr   the output data rate of the running sensors, ignored in {@link
+     *              AccelGyroPowerState#XG_POWER_DOWN}.
+     * @return true if the state changed.
+     * @throws IOException
+     */
+    public synchronized boolean setAccelGyroState(@AccelGyroPowerState int state,
+                                                  @Lsm9ds1.AccelGyroOutputDataRate int odr) throws IOException {
+        if (state == XG_POWER_DOWN) {
+            odr = ODR_POWER_DOWN;
+        } else if (odr == ODR_POWER_DOWN) {
+            throw new IllegalArgumentException("A running state needs an output data rate");
+        }
+        if (mAccelGyroApplied && state == mAccelGyroState && odr == mAccelGyroOdr) {
+            return false;
+        }
+        switch (state) {
+            case XG_POWER_DOWN:
+                mDevice.setGyroscopeOdr(ODR_POWER_DOWN);
+                mDevice.setAccelerometerOdr(ODR_POWER_DOWN);
+                mDevice.setSleepGyroscopeEnabled(false);
+                break;
+            case XG_ACCEL_ONLY:
+                // The accelerometer switches to its own output data rate when the gyroscope powers down
+                mDevice.setAccelerometerOdr(odr);
+                mDevice.setGyroscopeOdr(ODR_POWER_DOWN);
+                mDevice.setSleepGyroscopeEnabled(false);
+                break;
+            case XG_GYRO_SLEEP:
+                // The sleep mode only applies to a gyroscope that is not powered down: enabled first, a
+                // gyroscope starting from power down goes straight to sleep instead of running in between
+                mDevice.setSleepGyroscopeEnabled(true);
+                mDevice.setGyroscopeOdr(odr);
+                mDevice.setAccelerometerOdr(odr);
+                break;
+            case XG_ACCEL_GYRO:
+                mDevice.setSleepGyroscopeEnabled(false);
+                mDevice.setGyroscopeOdr(odr);
+                mDevice.setAccelerometerOdr(odr);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown state: " + state);
+        }
+        mAccelGyroState = state;
+        mAccelGyroOdr = odr;
+        mAccelGyroApplied = true;
+        return true;
+    }
+
+    /**
+     * Move the magnetometer to the given state.
+     *
+     * @param state the target state.
+     * @param odr   the output data rate in {@link MagnetometerPowerState#MAG_CONTINUOUS}, ignored in the
+     *              other states.
+     * @return true if the state changed.
+     * @throws IOException
+     */
+    public synchronized boolean setMagnetometerState(@MagnetometerPowerState int state,
+                                                     @Lsm9ds1.MagOutputDataRate int odr) throws IOException {
+        if (state != MAG_CONTINUOUS) {
+            odr = ODR_M_0_625HZ;
+        }
+        if (mMagnetometerApplied && state == mMagnetometerState && odr == mMagnetometerOdr) {
+            return false;
+        }
+        switch (state) {
+            case MAG_OFF:
+                mDevice.setMagnetometerSystemOperatingMode(Lsm9ds1.MagnetometerSystemOperatingMode.MAG_POWER_DOWN);
+                break;
+            case MAG_LOW_POWER:
+                // The low-power mode forces 0.625 Hz: keep the output data rate bits consistent for the sampler
+                mDevice.setMagnetometerLowPowerEnabled(true);
+                mDevice.setMagnetometerOdr(ODR_M_0_625HZ);
+                mDevice.setMagnetometerSystemOperatingMode(MAG_CONTINUOUS_CONVERSION);
+                break;
+            case MAG_CONTINUOUS:
+                mDevice.setMagnetometerLowPowerEnabled(false);
+                mDevice.setMagnetometerOdr(odr);
+                mDevice.setMagnetometerSystemOperatingMode(MAG_CONTINUOUS_CONVERSION);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown state: " + state);
+        }
+        mMagnetometerState = state;
+        mMagnetometerOdr = odr;
+        mMagnetometerApplied = true;
+        return true;
+    }
+
+    /**
+     * Power states of the accelerometer/gyroscope.
+     * <ul>
+     * <li>{@link #XG_POWER_DOWN}: both sensors powered down. The lowest current draw and the longest wake up.
+     * <li>{@link #XG_ACCEL_ONLY}: the accelerometer runs at its own output data rate, the gyroscope is
+     * powered down. The lowest current draw with accelerometer and temperature data.
+     * <li>{@link #XG_GYRO_SLEEP}: the accelerometer runs, the gyroscope is in sleep mode. It draws more
+     * than {@link #XG_ACCEL_ONLY}, but the gyroscope resumes faster than from power down.
+     * <li>{@link #XG_ACCEL_GYRO}: both sensors run at the gyroscope output data rate. The highest current
+     * draw.
+     * </ul>
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({XG_POWER_DOWN,
+            XG_ACCEL_ONLY,
+            XG_GYRO_SLEEP,
+            XG_ACCEL_GYRO
+    })
+    public @interface AccelGyroPowerState {
+        int XG_POWER_DOWN = 0;
+        int XG_ACCEL_ONLY = 1;
+        int XG_GYRO_SLEEP = 2;
+        int XG_ACCEL_GYRO = 3;
+    }
+
+    /**
+     * Power states of the magnetometer.
+     * <ul>
+     * <li>{@link #MAG_OFF}: powered down.
+     * <li>{@link #MAG_LOW_POWER}: continuous conversion in low-power mode, at 0.625 Hz with the minimum
+     * number of averages.
+     * <li>{@link #MAG_CONTINUOUS}: continuous conversion at the requested output data rate.
+     * </ul>
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({MAG_OFF,
+            MAG_LOW_POWER,
+            MAG_CONTINUOUS
+    })
+    public @interface MagnetometerPowerState {
+        int MAG_OFF = 0;
+        int MAG_LOW_POWER = 1;
+        int MAG_CONTINUOUS = 2;
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagnetometerSystemOperatingMode.MAG_POWER_DOWN;
+
+/**
+ * Reads an {@link Lsm9ds1} on a background thread at the configured output data rate and stores the raw
+ * samples, with their {@link SystemClock#elapsedRealtimeNanos()} timestamp, in a preallocated ring buffer.
+ * <p>
+ * Each sample contains {@link #SAMPLE_SIZE} raw values: gyroscope X, Y, Z starting at {@link #GYRO_OFFSET},
+ * accelerometer X, Y, Z starting at {@link #ACCEL_OFFSET}, magnetometer X, Y, Z starting at
+ * {@link #MAG_OFFSET}, temperature at {@link #TEMP_OFFSET} and the accelerometer and gyroscope full scales
+ * active when the sample was read at {@link #RANGE_OFFSET}, see {@link #getAccelerometerRange(short[])} and
+ * {@link #getGyroscopeScale(short[])}. Values of powered down sensors are 0.
+ * <p>
+ * When the {@link Lsm9ds1#setAutoRange(boolean) auto-range} of the device is enabled, the full scales are
+ * adjusted after every read: convert each sample with the sensitivity of its own range.
+ * <p>
+ * Samples can be consumed by a single thread with {@link #drain}, by any thread with {@link #readLatest}
+ * or on the sampling thread by a {@link SampleListener}. None of them touches the I2C bus.
+ * <p>
+ * If the device has an interrupt GPIO (see {@link Lsm9ds1.Builder#setInterruptGpio(String)}) the
+ * accelerometer data ready signal is routed to the INT1_A/G pin while sampling and the device is read
+ * only when it signals new data. Otherwise it is polled at the output data rate.
+ * <p>
+ * With a non-zero {@link #setMaxReportLatency maximum report latency} the sampler uses the FIFO of the
+ * sensor in continuous mode: the device collects up to {@link #MAX_BATCH_SIZE} samples on its own and the
+ * sampler wakes up only to read the whole batch with a single burst read. The timestamps of the batched
+ * samples are reconstructed from the measured output data rate. The magnetometer and temperature are not
+ * stored into the FIFO: they are read once per batch.
+ * <p>
+ * When the activity/inactivity function of the device is enabled (see {@link Lsm9ds1#setInactivityThreshold})
+ * and the device reports the inactivity, the sampler follows the reduced accelerometer output data rate,
+ * waking up only 10 times per second until the motion resumes; see {@link #setActivityListener}.
+ */
+public class Lsm9ds1Sampler implements Closeable {
+    public static final int SAMPLE_SIZE = 11;
+    public static final int GYRO_OFFSET = 0;
+    public static final int ACCEL_OFFSET = 3;
+    public static final int MAG_OFFSET = 6;
+    public static final int TEMP_OFFSET = 9;
+    public static final int RANGE_OFFSET = 10;
+    public static final int DEFAULT_CAPACITY = 256;
+    /**
+     * Maximum number of samples per batch, leaving some FIFO slots to absorb the wake up latency.
+     */
+    public static final int MAX_BATCH_SIZE = Lsm9ds1.FIFO_SIZE * 3 / 4;
+    private static final String TAG = Lsm9ds1Sampler.class.getSimpleName();
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final int MAX_LISTENERS = 4;
+    // Without interrupts for this many periods, read anyway to recover from a missed edge
+    private static final int WATCHDOG_PERIODS = 4;
+    // After a failed read, retry with a delay doubling from the first to the last one while the errors persist
+    private static final long MIN_RETRY_DELAY_NANOS = NANOS_PER_SECOND / (long) Lsm9ds1.MAX_FREQ_HZ_XG;
+    private static final long MAX_RETRY_DELAY_NANOS = NANOS_PER_SECOND;
+    private static final int MAX_RETRY_DELAY_SHIFT = 10;
+
+    private final Lsm9ds1 mDevice;
+    private final SampleRingBuffer mRingBuffer;
+    private final SampleListener[] mListeners = new SampleListener[MAX_LISTENERS];
+    private volatile int mListenerCount;
+    private final int[] mRawGyroscopeData = new int[3];
+    private final int[] mRawAccelerometerData = new int[3];
+    private final int[] mRawMagnetometerData = new int[3];
+    private long mNextMagnetometerReadTime;
+    private final int[] mRawTemperature = new int[1];
+    private final int[] mFifoGyroscopeData = new int[Lsm9ds1.FIFO_SIZE * 3];
+    private final int[] mFifoAccelerometerData = new int[Lsm9ds1.FIFO_SIZE * 3];
+    private final short[] mSample = new short[SAMPLE_SIZE];
+    private short mRangeTag;
+    private volatile boolean mInactive;
+    private volatile ActivityListener mActivityListener;
+    private boolean mAccelGyroEnabled;
+    private volatile long mMaxReportLatencyNanos;
+    private final short[] mLatestSample = new short[SAMPLE_SIZE];
+    // Not this, as stop() waits for the sampling thread while holding the monitor
+    private final Object mLatestSampleLock = new Object();
+    private long mLatestTimestamp;
+    private SamplerHandlerThread mHandlerThread;
+
+    /**
+     * Callback invoked on the sampling thread for every new sample.
+     */
+    public interface SampleListener {
+        /**
+         * @param timestamp the {@link SystemClock#elapsedRealtimeNanos()} timestamp of the sample.
+         * @param sample    the raw sample, only valid for the duration of the call.
+         */
+        void onSample(long timestamp, short[] sample);
+    }
+
+    /**
+     * Callback invoked on the sampling thread when the device reports the start or the end of the inactivity.
+     */
+    public interface ActivityListener {
+        /**
+         * @param active false when the device has detected the inactivity and reduced its output data rate,
+         *               true when the motion resumes and the configured output data rate is restored.
+         */
+        void onActivityChanged(boolean active);
+    }
+
+    /**
+     * Create a new sampler with a buffer of {@link #DEFAULT_CAPACITY} samples.
+     *
+     * @param device the device to sample.
+     */
+    public Lsm9ds1Sampler(Lsm9ds1 device) {
+        this(device, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new sampler.
+     *
+     * @param device   the device to sample.
+     * @param capacity the number of samples of the buffer, must be a power of two.
+     */
+    public Lsm9ds1Sampler(Lsm9ds1 device, int capacity) {
+        mDevice = device;
+        mRingBuffer = new SampleRingBuffer(capacity, SAMPLE_SIZE);
+    }
+
+    /**
+     * Start sampling on a background thread. Does nothing if the sampler is already running.
+     */
+    public synchronized void start() {
+        if (mHandlerThread == null) {
+            mHandlerThread = new SamplerHandlerThread();
+        }
+    }
+
+    /**
+     * Stop sampling, waiting for an in-flight read to complete. Buffered samples are kept.
+     */
+    public synchronized void stop() {
+        if (mHandlerThread != null) {
+            mHandlerThread.shutdown();
+            mHandlerThread = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mHandlerThread != null;
+    }
+
+    /**
+     * Set the maximum delay between the acquisition of a sample and its delivery, allowing the sensor to
+     * batch up to {@link #MAX_BATCH_SIZE} samples into its FIFO while the host sleeps. The batch size is
+     * derived from the latency and the output data rate: a latency shorter than two sample periods
+     * disables batching. Applied at the next read.
+     *
+     * @param maxReportLatencyUs the maximum report latency in microseconds, 0 to disable batching.
+     */
+    public void setMaxReportLatency(long maxReportLatencyUs) {
+        if (maxReportLatencyUs < 0) {
+            throw new IllegalArgumentException("maxReportLatencyUs must not be negative: " + maxReportLatencyUs);
+        }
+        mMaxReportLatencyNanos = maxReportLatencyUs * 1000;
+    }
+
+    /**
+     * @return the maximum report latency in microseconds.
+     */
+    public long getMaxReportLatency() {
+        return mMaxReportLatencyNanos / 1000;
+    }
+
+    /**
+     * Stop sampling. The underlying {@link Lsm9ds1} is not closed.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Add a listener invoked on the sampling thread for every new sample.
+     * The listener must be fast and must not allocate memory, as it delays the next read.
+     *
+     * @param listener the listener to add.
+     */
+    public synchronized void addSampleListener(SampleListener listener) {
+        for (int i = 0; i < mListenerCount; i++) {
+            if (mListeners[i] == listener) {
+                return;
+            }
+        }
+        if (mListenerCount == MAX_LISTENERS) {
+            throw new IllegalStateException("Too many listeners");
+        }
+        mListeners[mListenerCount] = listener;
+        mListenerCount++;
+    }
+
+    /**
+     * Remove a listener previously added with {@link #addSampleListener}.
+     * If the sampler is running the listener can still receive the sample being published.
+     *
+     * @param listener the listener to remove.
+     */
+    public synchronized void removeSampleListener(SampleListener listener) {
+        for (int i = 0; i < mListenerCount; i++) {
+            if (mListeners[i] == listener) {
+                System.arraycopy(mListeners, i + 1, mListeners, i, mListenerCount - i - 1);
+                mListenerCount--;
+                mListeners[mListenerCount] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move the buffered samples, oldest first, into the given arrays, without allocating memory.
+     * Must always be called from the same thread.
+     *
+     * @param timestamps array receiving the {@link SystemClock#elapsedRealtimeNanos()} timestamp of each sample.
+     * @param samples    array receiving {@link #SAMPLE_SIZE} raw values for each sample.
+     * @param maxSamples maximum number of samples to drain.
+     * @return the number of drained samples.
+     */
+    public int drain(long[] timestamps, short[] samples, int maxSamples) {
+        return mRingBuffer.drain(timestamps, samples, maxSamples);
+    }
+
+    /**
+     * @return the number of samples waiting to be drained.
+     */
+    public int getBufferedSamplesCount() {
+        return mRingBuffer.size();
+    }
+
+    /**
+     * @return the number of samples lost because the buffer was not drained fast enough.
+     */
+    public long getDroppedSamplesCount() {
+        return mRingBuffer.getDroppedCount();
+    }
+
+    /**
+     * Copy the most recent sample, without consuming the buffer and without allocating memory.
+     * Can be called from any thread.
+     *
+     * @param sample array of at least {@link #SAMPLE_SIZE} elements receiving the raw values.
+     * @return the timestamp of the sample, or 0 if no sample has been read yet.
+     */
+    public long readLatest(short[] sample) {
+        synchronized (mLatestSampleLock) {
+            System.arraycopy(mLatestSample, 0, sample, 0, SAMPLE_SIZE);
+            return mLatestTimestamp;
+        }
+    }
+
+    private long getSamplingPeriodNanos() throws IOException {
+        if (mInactive) {
+            return (long) (NANOS_PER_SECOND / Lsm9ds1.INACTIVITY_ODR_HZ);
+        }
+        return getSamplingPeriodNanos(mDevice);
+    }
+
+    /*
+     * Sampling period for the current configuration of the device: the gyroscope rate when it is on,
+     * otherwise the accelerometer-only rate, otherwise the magnetometer rate. Uses the register shadow, so
+     * it is not touching the bus.
+     */
+    static long getSamplingPeriodNanos(Lsm9ds1 device) throws IOException {
+        float frequency = Lsm9ds1.getAccelGyroOdrFrequency(device.getGyroscopeOdr());
+        if (frequency == 0) {
+            frequency = Lsm9ds1.getAccelerometerOnlyOdrFrequency(device.getAccelerometerOdr());
+        }
+        if (frequency == 0) {
+            frequency = Lsm9ds1.getMagnetometerOdrFrequency(device.getMagnetometerOdr());
+        }
+        return (long) (NANOS_PER_SECOND / frequency);
+    }
+
+    /**
+     * Set the listener notified when the device reports the start or the end of the inactivity.
+     *
+     * @param listener the listener, or null to remove it.
+     */
+    public void setActivityListener(@Nullable ActivityListener listener) {
+        mActivityListener = listener;
+    }
+
+    /**
+     * @return true if the device reported the inactivity and the sampler is running at a reduced rate.
+     */
+    public boolean isInactive() {
+        return mInactive;
+    }
+
+    private void updateActivity(boolean inactive) {
+        if (inactive != mInactive) {
+            mInactive = inactive;
+            ActivityListener listener = mActivityListener;
+            if (listener != null) {
+                listener.onActivityChanged(!inactive);
+            }
+        }
+    }
+
+    private boolean isAccelGyroEnabled() throws IOException {
+        return mDevice.getGyroscopeOdr() != ODR_POWER_DOWN || mDevice.getAccelerometerOdr() != ODR_POWER_DOWN;
+    }
+
+    /**
+     * @param sample a sample of the sampler.
+     * @return the {@link Lsm9ds1.AccelerometerRange} of the accelerometer values of the sample.
+     */
+    @Lsm9ds1.AccelerometerRange
+    public static int getAccelerometerRange(short[] sample) {
+        return sample[RANGE_OFFSET] & 0xFF;
+    }
+
+    /**
+     * @param sample a sample of the sampler.
+     * @return the {@link Lsm9ds1.GyroscopeScale} of the gyroscope values of the sample.
+     */
+    @Lsm9ds1.GyroscopeScale
+    public static int getGyroscopeScale(short[] sample) {
+        return (sample[RANGE_OFFSET] >> 8) & 0xFF;
+    }
+
+    /*
+     * The magnetometer runs at 80 Hz at most: it is read once per magnetometer period and the samples in
+     * between repeat its last values, instead of reading it again at every accelerometer/gyroscope sample.
+     */
+    private void readMagnetometer() throws IOException {
+        if (mDevice.getMagnetometerSystemOperatingMode() == MAG_POWER_DOWN) {
+            clear(mRawMagnetometerData);
+            mNextMagnetometerReadTime = 0;
+            return;
+        }
+        long now = elapsedRealtimeNanos();
+        long period = getMagnetometerPeriodNanos();
+        // The tolerance absorbs the scheduling jitter when the sampler runs at the magnetometer rate
+        if (now >= mNextMagnetometerReadTime - period / 4) {
+            mDevice.readRawMagnetometerData(mRawMagnetometerData);
+            // Stay on the grid of the magnetometer output data rate, unless too late to catch up
+            mNextMagnetometerReadTime += period;
+            if (mNextMagnetometerReadTime <= now) {
+                mNextMagnetometerReadTime = now + period;
+            }
+        }
+    }
+
+    private long getMagnetometerPeriodNanos() throws IOException {
+        int odr = mDevice.isMagnetometerLowPowerEnabled()
+                ? Lsm9ds1.MagOutputDataRate.ODR_M_0_625HZ
+                : mDevice.getMagnetometerOdr();
+        return (long) (NANOS_PER_SECOND / Lsm9ds1.getMagnetometerOdrFrequency(odr));
+    }
+
+    private long sample() throws IOException {
+        updateRangeTag();
+        if (mAccelGyroEnabled) {
+            mDevice.readRawMotion6(mRawGyroscopeData, mRawAccelerometerData, mRawTemperature);
+            // The burst read includes the status register: the inactivity is detected for free
+            updateActivity(mDevice.wasInactiveOnLastMotion6());
+        } else {
+            clear(mRawGyroscopeData);
+            clear(mRawAccelerometerData);
+            mRawTemperature[0] = 0;
+            updateActivity(false);
+        }
+        readMagnetometer();
+        long timestamp = elapsedRealtimeNanos();
+        fillSample(mRawGyroscopeData, mRawAccelerometerData, 0);
+        return timestamp;
+    }
+
+    private void fillSample(int[] rawGyroscopeData, int[] rawAccelerometerData, int index) {
+        for (int i = 0; i < 3; i++) {
+            mSample[GYRO_OFFSET + i] = (short) rawGyroscopeData[index * 3 + i];
+            mSample[ACCEL_OFFSET + i] = (short) rawAccelerometerData[index * 3 + i];
+            mSample[MAG_OFFSET + i] = (short) mRawMagnetometerData[i];
+        }
+        mSample[TEMP_OFFSET] = (short) mRawTemperature[0];
+        mSample[RANGE_OFFSET] = mRangeTag;
+    }
+
+    private void updateRangeTag() throws IOException {
+        mRangeTag = (short) (mDevice.getAccelerometerRange() | mDevice.getGyroscopeScale() << 8);
+    }
+
+    private void publish(long timestamp) {
+        mRingBuffer.offer(timestamp, mSample, 0);
+        synchronized (mLatestSampleLock) {
+            System.arraycopy(mSample, 0, mLatestSample, 0, SAMPLE_SIZE);
+            mLatestTimestamp = timestamp;
+        }
+        int listenerCount = mListenerCount;
+        for (int i = 0; i < listenerCount; i++) {
+            SampleListener listener = mListeners[i];
+            if (listener != null) {
+                listener.onSample(timestamp, mSample);
+            }
+        }
+    }
+
+    /*
+     * Clock of the sample timestamps, replaced by the tests.
+     */
+    /*package*/ long elapsedRealtimeNanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /*
+     * Perform a read of the sampling thread on the calling thread, for the tests.
+     */
+    /*package*/ synchronized long readSamples() {
+        return mHandlerThread.readSamples();
+    }
+
+    private static void clear(int[] array) {
+        for (int i = 0; i < array.length; i++) {
+            array[i] = 0;
+        }
+    }
+
+    private class SamplerHandlerThread extends HandlerThread implements Lsm9ds1.InterruptCallback {
+        // Not the thread itself: overriding HandlerThread.run() would replace the looper
+        private final Runnable mSampleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                sampleAndReschedule();
+            }
+        };
+        private final Handler mHandler;
+        private final boolean mInterruptDriven;
+        private int mSavedInterrupt1Sources;
+        private long mNextSampleTime;
+        private int mBatchSize;
+        private long mBatchSamplePeriod;
+        private long mLastBatchTimestamp;
+        private int mFailedReads;
+
+        SamplerHandlerThread() {
+            super("lsm9ds1-sampler-thread", Thread.NORM_PRIORITY + 1);
+            start();
+            mHandler = new Handler(getLooper());
+            mInterruptDriven = mDevice.hasInterruptGpio() && enableInterrupt();
+            mHandler.post(mSampleRunnable);
+        }
+
+        private boolean enableInterrupt() {
+            try {
+                mSavedInterrupt1Sources = mDevice.getInterrupt1Sources();
+                mDevice.registerInterruptCallback(this, mHandler);
+                mDevice.setInterrupt1Sources(mSavedInterrupt1Sources | Lsm9ds1.INT1_DRDY_XL);
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to enable the data ready interrupt, falling back to polling", e);
+                mDevice.unregisterInterruptCallback();
+                return false;
+            }
+        }
+
+        void shutdown() {
+            if (mInterruptDriven) {
+                mDevice.unregisterInterruptCallback();
+            }
+            mHandler.removeCallbacks(mSampleRunnable);
+            quit();
+            // Wait for an in-flight read, the device could be closed right after
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "join was interrupted");
+            }
+            try {
+                if (mBatchSize > 0) {
+                    setBatchSize(0);
+                }
+                if (mInterruptDriven) {
+                    mDevice.setInterrupt1Sources(mSavedInterrupt1Sources);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to restore the FIFO and interrupt configuration", e);
+            }
+        }
+
+        /*
+         * Program the FIFO in continuous mode with the batch size as threshold, and signal the threshold
+         * instead of every new sample on INT1. A batch size of 0 goes back to bypass mode.
+         */
+        private void setBatchSize(int batchSize) throws IOException {
+            if (batchSize > 0) {
+                mDevice.setFifoModeAndTreshold(Lsm9ds1.FifoMode.FIFO_CONT, batchSize);
+                mDevice.setFifoMemoryEnabled(true);
+            } else {
+                mDevice.setFifoMemoryEnabled(false);
+                mDevice.setFifoModeAndTreshold(Lsm9ds1.FifoMode.FIFO_OFF, 0);
+            }
+            if (mInterruptDriven) {
+                mDevice.setInterrupt1Sources(mSavedInterrupt1Sources
+                        | (batchSize > 0 ? Lsm9ds1.INT1_FTH : Lsm9ds1.INT1_DRDY_XL));
+            }
+            mBatchSize = batchSize;
+            mLastBatchTimestamp = 0;
+        }
+
+        private void updateBatchSize(long period) throws IOException {
+            int batchSize = 0;
+            // While inactive the samples are read one by one, to notice the wake up from the status register
+            if (mAccelGyroEnabled && !mInactive) {
+                batchSize = (int) Math.min(mMaxReportLatencyNanos / period, MAX_BATCH_SIZE);
+                if (batchSize < 2) {
+                    batchSize = 0;
+                }
+            }
+            if (batchSize != mBatchSize) {
+                setBatchSize(batchSize);
+                mBatchSamplePeriod = period;
+            }
+        }
+
+        private void readBatch(long period) throws IOException {
+            updateRangeTag();
+            int count = mDevice.readRawFifo(mFifoGyroscopeData, mFifoAccelerometerData);
+            long timestamp = elapsedRealtimeNanos();
+            if (count == 0) {
+                return;
+            }
+            readMagnetometer();
+            mRawTemperature[0] = mDevice.readRawTemperature();
+            updateActivity(mDevice.isInactive());
+
+            // The FIFO is drained every time, so the samples read since the previous batch span the
+            // whole interval: use it to track the actual output data rate, that can differ from the
+            // nominal one by a few percent
+            if (mLastBatchTimestamp != 0) {
+                long measuredPeriod = (timestamp - mLastBatchTimestamp) / count;
+                if (Math.abs(measuredPeriod - period) < period / 8) {
+                    mBatchSamplePeriod += (measuredPeriod - mBatchSamplePeriod) / 8;
+                }
+            }
+            mLastBatchTimestamp = timestamp;
+
+            for (int i = 0; i < count; i++) {
+                fillSample(mFifoGyroscopeData, mFifoAccelerometerData, i);
+                publish(timestamp - (count - 1 - i) * mBatchSamplePeriod);
+            }
+            // A few samples acquired while the range changes can still be tagged with the previous one
+            mDevice.updateAutoRange(mFifoGyroscopeData, mFifoAccelerometerData, count);
+        }
+
+        /*
+         * Read the device and publish the new samples, returning the delay in nanoseconds before the next read.
+         * Only the first of consecutive failed reads is logged, e.g. while the sensor is disconnected.
+         */
+        long readSamples() {
+            long delay;
+            try {
+                delay = readSamplesOrThrow();
+            } catch (IOException e) {
+                if (mFailedReads == 0) {
+                    Log.w(TAG, "Unable to read sample, retrying until the sensor answers again", e);
+                }
+                long retryDelay = MIN_RETRY_DELAY_NANOS << Math.min(mFailedReads, MAX_RETRY_DELAY_SHIFT);
+                mFailedReads++;
+                return Math.min(retryDelay, MAX_RETRY_DELAY_NANOS);
+            }
+            if (mFailedReads > 0) {
+                Log.i(TAG, "Sample read again after " + mFailedReads + " failed reads");
+                mFailedReads = 0;
+            }
+            return delay;
+        }
+
+        private long readSamplesOrThrow() throws IOException {
+            long period = getSamplingPeriodNanos();
+            mAccelGyroEnabled = isAccelGyroEnabled();
+            updateBatchSize(period);
+            if (mBatchSize > 0) {
+                readBatch(period);
+                // With interrupts this is only a watchdog, fired before the FIFO overflows
+                return period * (mInterruptDriven ? Lsm9ds1.FIFO_SIZE : mBatchSize);
+            }
+            publish(sample());
+            if (mAccelGyroEnabled) {
+                mDevice.updateAutoRange(mRawGyroscopeData, mRawAccelerometerData, 1);
+            }
+            // With interrupts this is only a watchdog, to recover from a missed edge
+            return period * (mInterruptDriven && mAccelGyroEnabled ? WATCHDOG_PERIODS : 1);
+        }
+
+        @Override
+        public void onInterrupt(Lsm9ds1 device) {
+            // Reading the data clears the data ready/FIFO threshold signal, re-arming the interrupt
+            sampleAndReschedule();
+        }
+
+        private void sampleAndReschedule() {
+            mHandler.removeCallbacks(mSampleRunnable);
+            long delay = readSamples();
+            long now = SystemClock.uptimeMillis() * NANOS_PER_MILLI;
+            if (mInterruptDriven && mAccelGyroEnabled) {
+                mNextSampleTime = now + delay;
+            } else {
+                // Schedule on a fixed grid, so that the rounding to milliseconds does not accumulate
+                mNextSampleTime = Math.max(mNextSampleTime + delay, now);
+            }
+            mHandler.postAtTime(mSampleRunnable, (mNextSampleTime + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+        }
+    }
+}
@@ -17,7 +17,9 @@
 package com.leinardi.android.things.driver.lsm9ds1;
 
 import android.hardware.Sensor;
+import android.hardware.SensorManager;
 
+import androidx.annotation.Nullable;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
@@ -26,10 +28,14 @@ import com.google.android.things.userdriver.sensor.UserSensorReading;
 import java.io.IOException;
 import java.util.UUID;
 
-import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ;
-import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_POWER_DOWN;
-import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagnetometerSystemOperatingMode.MAG_CONTINUOUS_CONVERSION;
-import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagnetometerSystemOperatingMode.MAG_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagOutputDataRate.ODR_M_0_625HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_GYRO;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_ONLY;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_GYRO_SLEEP;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_CONTINUOUS;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_LOW_POWER;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_OFF;
 
 public class Lsm9ds1SensorDriver implements AutoCloseable {
     // DRIVER parameters
@@ -37,16 +43,39 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
     private static final String DRIVER_VENDOR = "STMicroelectronics";
     private static final String DRIVER_NAME = "LSM9DS1";
     private static final int DRIVER_XG_MIN_DELAY_US = Math.round(1000000.f / Lsm9ds1.MAX_FREQ_HZ_XG);
-    private static final int DRIVER_XG_MAX_DELAY_US = Math.round(1000000.f / Lsm9ds1.MIN_FREQ_HZ_XG);
+    // Rounded up, so that the slowest output data rate satisfies the maximum delay
+    private static final int DRIVER_XG_MAX_DELAY_US = (int) Math.ceil(1000000.0 / Lsm9ds1.MIN_FREQ_HZ_XG);
     private static final int DRIVER_MAG_MIN_DELAY_US = Math.round(1000000.f / Lsm9ds1.MAX_FREQ_HZ_M);
-    private static final int DRIVER_MAG_MAX_DELAY_US = Math.round(1000000.f / Lsm9ds1.MIN_FREQ_HZ_M);
+    private static final int DRIVER_MAG_MAX_DELAY_US = (int) Math.ceil(1000000.0 / Lsm9ds1.MIN_FREQ_HZ_M);
+    // Magnetometer rate used while collecting calibration samples
+    private static final int CALIBRATION_DELAY_US = 1000000 / 20;
+    // Accelerometer rate used by the step detector, well above the cadence of running
+    private static final int STEP_DELAY_US = 1000000 / 50;
 
     private Lsm9ds1 mDevice;
+    private Lsm9ds1Sampler mSampler;
+    private Lsm9ds1PowerStateMachine mPowerStateMachine;
+    private boolean mGyroscopeSleepEnabled;
 
     private TemperatureUserDriver mTemperatureUserDriver;
     private AccelerationUserDriver mAccelerationUserDriver;
     private AngularVelocityUserDriver mAngularVelocityUserDriver;
+    private AngularVelocityUserDriver mUncalibratedAngularVelocityUserDriver;
     private MagneticInductionUserDriver mMagneticInductionUserDriver;
+    private MagneticInductionUserDriver mUncalibratedMagneticInductionUserDriver;
+    private RotationVectorUserDriver mRotationVectorUserDriver;
+    private RotationVectorUserDriver mGameRotationVectorUserDriver;
+    private OrientationUserDriver mOrientationUserDriver;
+    private StepUserDriver mStepDetectorUserDriver;
+    private StepUserDriver mStepCounterUserDriver;
+    private FusionSampleListener mFusionSampleListener;
+    private final MagnetometerCalibration mMagnetometerCalibration = new MagnetometerCalibration();
+    private CalibrationSampleListener mCalibrationSampleListener;
+    private final GyroscopeBiasEstimator mGyroscopeBiasEstimator = new GyroscopeBiasEstimator();
+    private final TiltCompensatedCompass mTiltCompensatedCompass = new TiltCompensatedCompass();
+    private GyroscopeBiasSampleListener mGyroscopeBiasSampleListener;
+    private final StepDetector mStepDetector = new StepDetector();
+    private StepSampleListener mStepSampleListener;
 
     /**
      * Create a new framework sensor driver connected on the given bus.
@@ -71,10 +100,39 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
      * @throws IOException
      */
     public Lsm9ds1SensorDriver(String bus, int addressAccelGyro, int addressMag) throws IOException {
-        mDevice = new Lsm9ds1.Builder(bus)
+        this(bus, addressAccelGyro, addressMag, null);
+    }
+
+    /**
+     * Create a new framework sensor driver connected on the given bus and address, that reads the sensor
+     * only when it signals new data on the INT1_A/G pin.
+     * The driver emits {@link android.hardware.Sensor} with acceleration, angular velocity,
+     * magnetic induction and temperature data when registered.
+     *
+     * @param bus              I2C bus the sensor is connected to.
+     * @param addressAccelGyro I2C address of the Accelerometer/Gyroscope sensor.
+     * @param addressMag       I2C address of the Magnetometer sensor.
+     * @param interruptGpio    GPIO connected to the INT1_A/G pin, or null to poll the sensor.
+     * @throws IOException
+     */
+    public Lsm9ds1SensorDriver(String bus, int addressAccelGyro, int addressMag, @Nullable String interruptGpio)
+            throws IOException {
+        this(new Lsm9ds1.Builder(bus)
                 .setI2cAddressAccelGyro(addressAccelGyro)
                 .setI2cAddressMag(addressMag)
-                .build();
+                .setInterruptGpio(interruptGpio)
+                .build());
+    }
+
+    /**
+     * Create a new framework sensor driver for the given device.
+     *
+     * @param device the device, closed by {@link #close()}.
+     */
+    /*package*/ Lsm9ds1SensorDriver(Lsm9ds1 device) {
+        mDevice = device;
+        mSampler = new Lsm9ds1Sampler(mDevice);
+        mPowerStateMachine = new Lsm9ds1PowerStateMachine(mDevice);
     }
 
     /**
@@ -86,8 +144,22 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
     public void close() throws IOException {
         unregisterAccelerometerSensor();
         unregisterGyroscopeSensor();
+        unregisterUncalibratedGyroscopeSensor();
         unregisterMagneticFieldSensor();
+        unregisterUncalibratedMagneticFieldSensor();
         unregisterTemperatureSensor();
+        unregisterRotationVectorSensor();
+        unregisterGameRotationVectorSensor();
+        unregisterOrientationSensor();
+        unregisterStepDetectorSensor();
+        unregisterStepCounterSensor();
+        mCalibrationSampleListener = null;
+        mGyroscopeBiasSampleListener = null;
+        if (mSampler != null) {
+            mSampler.close();
+            mSampler = null;
+        }
+        mPowerStateMachine = null;
         if (mDevice != null) {
             try {
                 mDevice.close();
@@ -97,6 +169,128 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * Move the raw samples collected by the background sampler while at least one sensor is enabled,
+     * oldest first, into the given arrays, without allocating memory.
+     * See {@link Lsm9ds1Sampler} for the layout of the samples.
+     * Must always be called from the same thread.
+     *
+     * @param timestamps array receiving the timestamp of each sample.
+     * @param samples    array receiving {@link Lsm9ds1Sampler#SAMPLE_SIZE} raw values for each sample.
+     * @param maxSamples maximum number of samples to drain.
+     * @return the number of drained samples.
+     */
+    public int drain(long[] timestamps, short[] samples, int maxSamples) {
+        if (mSampler == null) {
+            throw new IllegalStateException("cannot drain closed driver");
+        }
+        return mSampler.drain(timestamps, samples, maxSamples);
+    }
+
+    /**
+     * Set the maximum delay between the acquisition of a sample and its delivery to {@link #drain}.
+     * A latency of several sample periods lets the sensor batch the samples into its FIFO, so that
+     * the host can sleep between batches. See {@link Lsm9ds1Sampler#setMaxReportLatency(long)}.
+     * <p>
+     * The registered {@link UserSensor}s keep reporting the latest sample, as the framework
+     * polls them one sample at a time.
+     *
+     * @param maxReportLatencyUs the maximum report latency in microseconds, 0 to disable batching.
+     */
+    public void setMaxReportLatency(long maxReportLatencyUs) {
+        if (mSampler == null) {
+            throw new IllegalStateException("cannot configure closed driver");
+        }
+        mSampler.setMaxReportLatency(maxReportLatencyUs);
+    }
+
+    /**
+     * Enable or disable the auto-range of the accelerometer and gyroscope full scales, to get the maximum
+     * resolution without clipping the peaks. See {@link Lsm9ds1#setAutoRange(boolean)}.
+     *
+     * @param autoRange Set to true to enable, false to disable
+     */
+    public void setAutoRange(boolean autoRange) {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot configure closed driver");
+        }
+        mDevice.setAutoRange(autoRange);
+    }
+
+    /**
+     * Choose what happens to the gyroscope when the gyroscope sensors are disabled while the accelerometer
+     * or the temperature sensors stay enabled: with the sleep mode enabled the gyroscope is put to sleep,
+     * drawing more current but resuming faster when a gyroscope sensor is enabled again. Otherwise, the
+     * default, it is powered down. See {@link Lsm9ds1PowerStateMachine.AccelGyroPowerState}.
+     *
+     * @param enabled Set to true to put the gyroscope to sleep, false to power it down.
+     * @throws IOException
+     */
+    public void setGyroscopeSleepEnabled(boolean enabled) throws IOException {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot configure closed driver");
+        }
+        mGyroscopeSleepEnabled = enabled;
+        updatePowerState();
+    }
+
+    /**
+     * @return the current {@link Lsm9ds1PowerStateMachine.AccelGyroPowerState} of the accelerometer/gyroscope.
+     */
+    @Lsm9ds1PowerStateMachine.AccelGyroPowerState
+    public int getAccelGyroPowerState() {
+        if (mPowerStateMachine == null) {
+            throw new IllegalStateException("cannot query closed driver");
+        }
+        return mPowerStateMachine.getAccelGyroState();
+    }
+
+    /**
+     * @return the current {@link Lsm9ds1PowerStateMachine.MagnetometerPowerState} of the magnetometer.
+     */
+    @Lsm9ds1PowerStateMachine.MagnetometerPowerState
+    public int getMagnetometerPowerState() {
+        if (mPowerStateMachine == null) {
+            throw new IllegalStateException("cannot query closed driver");
+        }
+        return mPowerStateMachine.getMagnetometerState();
+    }
+
+    /**
+     * Enable the wake-on-motion mode: after {@code duration} with all the accelerations and angular
+     * velocities below {@code threshold}, the device reduces the accelerometer output data rate to 10 Hz and
+     * puts the gyroscope to sleep, and the sampling thread polls it at the same reduced rate. The configured
+     * output data rates are restored as soon as a reading exceeds the threshold.
+     *
+     * @param threshold the inactivity threshold, see {@link Lsm9ds1#setInactivityThreshold(int)}.
+     * @param duration  the inactivity duration, see {@link Lsm9ds1#setInactivityDuration(int)}.
+     * @param listener  notified on the sampling thread when the device goes idle or wakes up, may be null.
+     * @throws IOException
+     */
+    public void enableWakeOnMotion(int threshold, int duration, @Nullable Lsm9ds1Sampler.ActivityListener listener)
+            throws IOException {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot configure closed driver");
+        }
+        mSampler.setActivityListener(listener);
+        mDevice.setGyroscopeSleepOnInactivityEnabled(true);
+        mDevice.setInactivityDuration(duration);
+        mDevice.setInactivityThreshold(threshold);
+    }
+
+    /**
+     * Disable the wake-on-motion mode enabled by {@link #enableWakeOnMotion}.
+     *
+     * @throws IOException
+     */
+    public void disableWakeOnMotion() throws IOException {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot configure closed driver");
+        }
+        mDevice.setInactivityThreshold(0);
+        mSampler.setActivityListener(null);
+    }
+
     /**
      * Register a {@link UserSensor} that pipes acceleration readings into the Android SensorManager.
      *
@@ -125,6 +319,8 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
 
     /**
      * Register a {@link UserSensor} that pipes angular velocity readings into the Android SensorManager.
+     * The bias estimated by the {@link #getGyroscopeBiasEstimator() gyroscope bias estimator} is subtracted
+     * from the readings.
      *
      * @see #unregisterGyroscopeSensor()
      */
@@ -134,7 +330,7 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         }
 
         if (mAngularVelocityUserDriver == null) {
-            mAngularVelocityUserDriver = new AngularVelocityUserDriver();
+            mAngularVelocityUserDriver = new AngularVelocityUserDriver(true);
             UserDriverManager.getInstance().registerSensor(mAngularVelocityUserDriver.getUserSensor());
         }
     }
@@ -149,8 +345,47 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * Register a {@link UserSensor} that pipes uncalibrated angular velocity readings into the Android
+     * SensorManager. Each reading contains the raw x, y and z values followed by the bias estimated by the
+     * {@link #getGyroscopeBiasEstimator() gyroscope bias estimator}.
+     *
+     * @see #unregisterUncalibratedGyroscopeSensor()
+     */
+    public void registerUncalibratedGyroscopeSensor() {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot register closed driver");
+        }
+
+        if (mUncalibratedAngularVelocityUserDriver == null) {
+            mUncalibratedAngularVelocityUserDriver = new AngularVelocityUserDriver(false);
+            UserDriverManager.getInstance().registerSensor(mUncalibratedAngularVelocityUserDriver.getUserSensor());
+        }
+    }
+
+    /**
+     * Unregister the uncalibrated angular velocity {@link UserSensor}.
+     */
+    public void unregisterUncalibratedGyroscopeSensor() {
+        if (mUncalibratedAngularVelocityUserDriver != null) {
+            UserDriverManager.getInstance().unregisterSensor(mUncalibratedAngularVelocityUserDriver.getUserSensor());
+            mUncalibratedAngularVelocityUserDriver = null;
+        }
+    }
+
+    /**
+     * The estimator of the gyroscope bias, updated by the background sampler while the gyroscope is on
+     * and subtracted from the gyroscope and rotation vector sensors.
+     *
+     * @return the gyroscope bias estimator used by this driver.
+     */
+    public GyroscopeBiasEstimator getGyroscopeBiasEstimator() {
+        return mGyroscopeBiasEstimator;
+    }
+
     /**
      * Register a {@link UserSensor} that pipes magnetic induction readings into the Android SensorManager.
+     * The readings are corrected with the {@link #getMagnetometerCalibration() magnetometer calibration}.
      *
      * @see #unregisterMagneticFieldSensor()
      */
@@ -160,7 +395,7 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         }
 
         if (mMagneticInductionUserDriver == null) {
-            mMagneticInductionUserDriver = new MagneticInductionUserDriver();
+            mMagneticInductionUserDriver = new MagneticInductionUserDriver(true);
             UserDriverManager.getInstance().registerSensor(mMagneticInductionUserDriver.getUserSensor());
         }
     }
@@ -175,6 +410,79 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * Register a {@link UserSensor} that pipes uncalibrated magnetic induction readings into the Android
+     * SensorManager. Each reading contains the raw x, y and z values followed by the hard-iron offset
+     * of the {@link #getMagnetometerCalibration() magnetometer calibration}.
+     *
+     * @see #unregisterUncalibratedMagneticFieldSensor()
+     */
+    public void registerUncalibratedMagneticFieldSensor() {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot register closed driver");
+        }
+
+        if (mUncalibratedMagneticInductionUserDriver == null) {
+            mUncalibratedMagneticInductionUserDriver = new MagneticInductionUserDriver(false);
+            UserDriverManager.getInstance().registerSensor(mUncalibratedMagneticInductionUserDriver.getUserSensor());
+        }
+    }
+
+    /**
+     * Unregister the uncalibrated magnetic induction {@link UserSensor}.
+     */
+    public void unregisterUncalibratedMagneticFieldSensor() {
+        if (mUncalibratedMagneticInductionUserDriver != null) {
+            UserDriverManager.getInstance().unregisterSensor(mUncalibratedMagneticInductionUserDriver.getUserSensor());
+            mUncalibratedMagneticInductionUserDriver = null;
+        }
+    }
+
+    /**
+     * The hard-iron and soft-iron calibration applied to the magnetic field and rotation vector sensors.
+     * Use {@link MagnetometerCalibration#save} and {@link MagnetometerCalibration#load} to persist it
+     * across restarts.
+     *
+     * @return the magnetometer calibration used by this driver.
+     */
+    public MagnetometerCalibration getMagnetometerCalibration() {
+        return mMagnetometerCalibration;
+    }
+
+    /**
+     * Start collecting magnetometer samples for the calibration, turning the magnetometer on if needed.
+     * Rotate the device in all directions, then call {@link #stopMagnetometerCalibration()}.
+     *
+     * @throws IOException
+     */
+    public void startMagnetometerCalibration() throws IOException {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot calibrate closed driver");
+        }
+        if (mCalibrationSampleListener == null) {
+            mMagnetometerCalibration.clearSamples();
+            mCalibrationSampleListener = new CalibrationSampleListener(mDevice, mMagnetometerCalibration);
+            mSampler.addSampleListener(mCalibrationSampleListener);
+            updatePowerState();
+        }
+    }
+
+    /**
+     * Stop collecting magnetometer samples and fit the calibration.
+     *
+     * @return {@code true} if the calibration has been updated, see {@link MagnetometerCalibration#fit()}.
+     * @throws IOException
+     */
+    public boolean stopMagnetometerCalibration() throws IOException {
+        if (mCalibrationSampleListener == null) {
+            return false;
+        }
+        mSampler.removeSampleListener(mCalibrationSampleListener);
+        mCalibrationSampleListener = null;
+        updatePowerState();
+        return mMagnetometerCalibration.fit();
+    }
+
     /**
      * Register a {@link UserSensor} that pipes temperature readings into the Android SensorManager.
      *
@@ -201,50 +509,362 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         }
     }
 
+    /**
+     * Register a {@link UserSensor} that pipes rotation vector readings into the Android SensorManager.
+     * The rotation vector is computed on a background thread fusing gyroscope, accelerometer and
+     * magnetometer data with the {@link MadgwickAhrs} filter.
+     *
+     * @see #unregisterRotationVectorSensor()
+     */
+    public void registerRotationVectorSensor() {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot register closed driver");
+        }
+
+        if (mRotationVectorUserDriver == null) {
+            mRotationVectorUserDriver = new RotationVectorUserDriver(true);
+            UserDriverManager.getInstance().registerSensor(mRotationVectorUserDriver.getUserSensor());
+        }
+    }
+
+    /**
+     * Unregister the rotation vector {@link UserSensor}.
+     */
+    public void unregisterRotationVectorSensor() {
+        if (mRotationVectorUserDriver != null) {
+            UserDriverManager.getInstance().unregisterSensor(mRotationVectorUserDriver.getUserSensor());
+            mRotationVectorUserDriver = null;
+            updateFusion();
+        }
+    }
+
+    /**
+     * Register a {@link UserSensor} that pipes game rotation vector readings into the Android SensorManager.
+     * Unlike the rotation vector, the game rotation vector does not use the magnetometer: it is not affected
+     * by magnetic disturbances but its heading will slowly drift.
+     *
+     * @see #unregisterGameRotationVectorSensor()
+     */
+    public void registerGameRotationVectorSensor() {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot register closed driver");
+        }
+
+        if (mGameRotationVectorUserDriver == null) {
+            mGameRotationVectorUserDriver = new RotationVectorUserDriver(false);
+            UserDriverManager.getInstance().registerSensor(mGameRotationVectorUserDriver.getUserSensor());
+        }
+    }
+
+    /**
+     * Unregister the game rotation vector {@link UserSensor}.
+     */
+    public void unregisterGameRotationVectorSensor() {
+        if (mGameRotationVectorUserDriver != null) {
+            UserDriverManager.getInstance().unregisterSensor(mGameRotationVectorUserDriver.getUserSensor());
+            mGameRotationVectorUserDriver = null;
+            updateFusion();
+        }
+    }
+
+    /**
+     * Register a {@link UserSensor} that pipes orientation readings into the Android SensorManager.
+     * The azimuth, pitch and roll are computed with the {@link TiltCompensatedCompass} from the
+     * accelerometer and calibrated magnetometer readings of the same sample, so that the heading is
+     * not affected by the skew between two separate sensors.
+     *
+     * @see #unregisterOrientationSensor()
+     */
+    public void registerOrientationSensor() {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot register closed driver");
+        }
+
+        if (mOrientationUserDriver == null) {
+            mOrientationUserDriver = new OrientationUserDriver();
+            UserDriverManager.getInstance().registerSensor(mOrientationUserDriver.getUserSensor());
+        }
+    }
+
+    /**
+     * Unregister the orientation {@link UserSensor}.
+     */
+    public void unregisterOrientationSensor() {
+        if (mOrientationUserDriver != null) {
+            UserDriverManager.getInstance().unregisterSensor(mOrientationUserDriver.getUserSensor());
+            mOrientationUserDriver = null;
+        }
+    }
+
+    /**
+     * @return the compass used by the orientation sensor, to set the magnetic declination.
+     * @see #registerOrientationSensor()
+     */
+    public TiltCompensatedCompass getTiltCompensatedCompass() {
+        return mTiltCompensatedCompass;
+    }
+
+    /**
+     * Register a {@link UserSensor} that reports an event for every step detected by the {@link StepDetector}
+     * running on the accelerometer samples of the background sampler. Only the step events are delivered
+     * to the Android SensorManager, not the accelerometer samples.
+     *
+     * @see #unregisterStepDetectorSensor()
+     */
+    public void registerStepDetectorSensor() {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot register closed driver");
+        }
+
+        if (mStepDetectorUserDriver == null) {
+            mStepDetectorUserDriver = new StepUserDriver(false);
+            UserDriverManager.getInstance().registerSensor(mStepDetectorUserDriver.getUserSensor());
+        }
+    }
+
+    /**
+     * Unregister the step detector {@link UserSensor}.
+     */
+    public void unregisterStepDetectorSensor() {
+        if (mStepDetectorUserDriver != null) {
+            UserDriverManager.getInstance().unregisterSensor(mStepDetectorUserDriver.getUserSensor());
+            mStepDetectorUserDriver = null;
+            updateStepDetection();
+        }
+    }
+
+    /**
+     * Register a {@link UserSensor} that reports the number of steps detected by the {@link StepDetector}
+     * since the driver was created, every time it changes.
+     *
+     * @see #unregisterStepCounterSensor()
+     */
+    public void registerStepCounterSensor() {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot register closed driver");
+        }
+
+        if (mStepCounterUserDriver == null) {
+            mStepCounterUserDriver = new StepUserDriver(true);
+            UserDriverManager.getInstance().registerSensor(mStepCounterUserDriver.getUserSensor());
+        }
+    }
+
+    /**
+     * Unregister the step counter {@link UserSensor}.
+     */
+    public void unregisterStepCounterSensor() {
+        if (mStepCounterUserDriver != null) {
+            UserDriverManager.getInstance().unregisterSensor(mStepCounterUserDriver.getUserSensor());
+            mStepCounterUserDriver = null;
+            updateStepDetection();
+        }
+    }
+
+    /**
+     * @return the pedometer used by the step detector and step counter sensors, to tune its threshold.
+     * @see #registerStepDetectorSensor()
+     */
+    public StepDetector getStepDetector() {
+        return mStepDetector;
+    }
+
+    private boolean isStepDetectionEnabled() {
+        return (mStepDetectorUserDriver != null && mStepDetectorUserDriver.isEnabled())
+                || (mStepCounterUserDriver != null && mStepCounterUserDriver.isEnabled());
+    }
+
+    private boolean isTemperatureEnabled() {
+        return mTemperatureUserDriver != null && mTemperatureUserDriver.isEnabled();
+    }
+
+    private boolean isOrientationEnabled() {
+        return mOrientationUserDriver != null && mOrientationUserDriver.isEnabled();
+    }
+
+    private boolean isAccelerometerEnabled() {
+        return (mAccelerationUserDriver != null && mAccelerationUserDriver.isEnabled()) || isOrientationEnabled()
+                || isStepDetectionEnabled();
+    }
+
+    private boolean isRotationVectorEnabled() {
+        return mRotationVectorUserDriver != null && mRotationVectorUserDriver.isEnabled();
+    }
+
+    private boolean isGameRotationVectorEnabled() {
+        return mGameRotationVectorUserDriver != null && mGameRotationVectorUserDriver.isEnabled();
+    }
+
+    private boolean isGyroscopeEnabled() {
+        return (mAngularVelocityUserDriver != null && mAngularVelocityUserDriver.isEnabled())
+                || (mUncalibratedAngularVelocityUserDriver != null
+                && mUncalibratedAngularVelocityUserDriver.isEnabled())
+                || isRotationVectorEnabled() || isGameRotationVectorEnabled();
+    }
+
+    private boolean isMagnetometerEnabled() {
+        return (mMagneticInductionUserDriver != null && mMagneticInductionUserDriver.isEnabled())
+                || (mUncalibratedMagneticInductionUserDriver != null
+                && mUncalibratedMagneticInductionUserDriver.isEnabled())
+                || isRotationVectorEnabled() || isOrientationEnabled() || mCalibrationSampleListener != null;
+    }
+
     /*
-     * You cannot have Gyro on and Accel off but you can have Accel on and Gyro off.
-     * Temp requires Accel on.
-     * Check 3.1 Operating modes in the datasheet (page 19).
+     * The lowest output data rates that satisfy the fastest rate requested by the enabled sensors.
+     * Without the gyroscope the accelerometer has its own set of output data rates.
      */
-    private void maybeSleep() throws IOException {
-        if (mAccelerationUserDriver == null || !mAccelerationUserDriver.isEnabled()) {              // Turn off Accel
-            if ((mAngularVelocityUserDriver == null || !mAngularVelocityUserDriver.isEnabled())     // if Gyro is off
-                    && (mTemperatureUserDriver == null || !mTemperatureUserDriver.isEnabled())) {   // and Temp is off
-                mDevice.setAccelerometerOdr(ODR_POWER_DOWN);
-            }
-        } else {                                                                                    // Turn on Accel
-            if ((mAngularVelocityUserDriver == null || !mAngularVelocityUserDriver.isEnabled())     // if Gyro is off
-                    && (mTemperatureUserDriver == null || !mTemperatureUserDriver.isEnabled())) {   // and Temp is off
-                mDevice.setAccelerometerOdr(ODR_952HZ);
-            }
+    @Lsm9ds1.AccelGyroOutputDataRate
+    private int getRequestedAccelGyroOdr(@Lsm9ds1PowerStateMachine.AccelGyroPowerState int accelGyroState) {
+        int delayUs = DRIVER_XG_MAX_DELAY_US;
+        if (mAccelerationUserDriver != null && mAccelerationUserDriver.isEnabled()) {
+            delayUs = Math.min(delayUs, mAccelerationUserDriver.getDelayUs());
+        }
+        if (mAngularVelocityUserDriver != null && mAngularVelocityUserDriver.isEnabled()) {
+            delayUs = Math.min(delayUs, mAngularVelocityUserDriver.getDelayUs());
+        }
+        if (mUncalibratedAngularVelocityUserDriver != null && mUncalibratedAngularVelocityUserDriver.isEnabled()) {
+            delayUs = Math.min(delayUs, mUncalibratedAngularVelocityUserDriver.getDelayUs());
+        }
+        if (mTemperatureUserDriver != null && mTemperatureUserDriver.isEnabled()) {
+            delayUs = Math.min(delayUs, mTemperatureUserDriver.getDelayUs());
+        }
+        if (isRotationVectorEnabled()) {
+            delayUs = Math.min(delayUs, mRotationVectorUserDriver.getDelayUs());
+        }
+        if (isGameRotationVectorEnabled()) {
+            delayUs = Math.min(delayUs, mGameRotationVectorUserDriver.getDelayUs());
+        }
+        if (isOrientationEnabled()) {
+            delayUs = Math.min(delayUs, mOrientationUserDriver.getDelayUs());
+        }
+        if (isStepDetectionEnabled()) {
+            delayUs = Math.min(delayUs, STEP_DELAY_US);
+        }
+        delayUs = Math.max(delayUs, DRIVER_XG_MIN_DELAY_US);
+        if (accelGyroState == XG_ACCEL_ONLY) {
+            return Lsm9ds1.getAccelerometerOnlyOdrForFrequency(1000000f / delayUs);
+        }
+        return Lsm9ds1.getAccelGyroOdrForFrequency(1000000f / delayUs);
+    }
+
+    @Lsm9ds1.MagOutputDataRate
+    private int getRequestedMagnetometerOdr() {
+        int delayUs = DRIVER_MAG_MAX_DELAY_US;
+        if (mMagneticInductionUserDriver != null && mMagneticInductionUserDriver.isEnabled()) {
+            delayUs = Math.min(delayUs, mMagneticInductionUserDriver.getDelayUs());
+        }
+        if (mUncalibratedMagneticInductionUserDriver != null && mUncalibratedMagneticInductionUserDriver.isEnabled()) {
+            delayUs = Math.min(delayUs, mUncalibratedMagneticInductionUserDriver.getDelayUs());
         }
+        if (mCalibrationSampleListener != null) {
+            delayUs = Math.min(delayUs, CALIBRATION_DELAY_US);
+        }
+        if (isRotationVectorEnabled()) {
+            delayUs = Math.min(delayUs, mRotationVectorUserDriver.getDelayUs());
+        }
+        if (isOrientationEnabled()) {
+            delayUs = Math.min(delayUs, mOrientationUserDriver.getDelayUs());
+        }
+        delayUs = Math.max(delayUs, DRIVER_MAG_MIN_DELAY_US);
+        return Lsm9ds1.getMagnetometerOdrForFrequency(1000000f / delayUs);
+    }
 
-        if (mAngularVelocityUserDriver == null || !mAngularVelocityUserDriver.isEnabled()) {        // Turn off Gyro
-            mDevice.setGyroscopeOdr(ODR_POWER_DOWN);
-            if ((mAccelerationUserDriver != null && mAccelerationUserDriver.isEnabled())            // if Accel is on
-                    || (mTemperatureUserDriver != null && mTemperatureUserDriver.isEnabled())) {    // or Temp is on
-                mDevice.setAccelerometerOdr(ODR_952HZ);
+    private boolean isAnySensorEnabled() {
+        return isAccelerometerEnabled() || isTemperatureEnabled() || isGyroscopeEnabled() || isMagnetometerEnabled();
+    }
+
+    /*
+     * Feed the AHRS filters with the sampler data while at least one rotation vector sensor is enabled.
+     */
+    private void updateFusion() {
+        boolean rotationVectorEnabled = isRotationVectorEnabled();
+        boolean gameRotationVectorEnabled = isGameRotationVectorEnabled();
+        if (rotationVectorEnabled || gameRotationVectorEnabled) {
+            if (mFusionSampleListener == null) {
+                mFusionSampleListener = new FusionSampleListener(mDevice, mMagnetometerCalibration,
+                        mGyroscopeBiasEstimator);
+                mSampler.addSampleListener(mFusionSampleListener);
             }
-        } else {                                                                                    // Turn on Gyro
-            mDevice.setGyroscopeOdr(ODR_952HZ);
+            mFusionSampleListener.setEnabled(rotationVectorEnabled, gameRotationVectorEnabled);
+        } else if (mFusionSampleListener != null) {
+            mSampler.removeSampleListener(mFusionSampleListener);
+            mFusionSampleListener = null;
         }
+    }
 
-        if (mTemperatureUserDriver == null || !mTemperatureUserDriver.isEnabled()) {                // Turn off Temp
-            if ((mAngularVelocityUserDriver == null || !mAngularVelocityUserDriver.isEnabled())     // if Gyro is off
-                    && (mAccelerationUserDriver == null || !mAccelerationUserDriver.isEnabled())) { // and Accel is off
-                mDevice.setAccelerometerOdr(ODR_POWER_DOWN);
+    /*
+     * Feed the gyroscope bias estimator with the sampler data while the gyroscope is on.
+     */
+    private void updateGyroscopeBias() {
+        if (isGyroscopeEnabled()) {
+            if (mGyroscopeBiasSampleListener == null) {
+                mGyroscopeBiasSampleListener = new GyroscopeBiasSampleListener(mDevice, mGyroscopeBiasEstimator);
+                mSampler.addSampleListener(mGyroscopeBiasSampleListener);
             }
-        } else {                                                                                    // Turn on Temp
-            if ((mAngularVelocityUserDriver == null || !mAngularVelocityUserDriver.isEnabled())     // if Gyro is off
-                    && (mTemperatureUserDriver == null || !mTemperatureUserDriver.isEnabled())) {   // and Accel is off
-                mDevice.setAccelerometerOdr(ODR_952HZ);
+        } else if (mGyroscopeBiasSampleListener != null) {
+            mSampler.removeSampleListener(mGyroscopeBiasSampleListener);
+            mGyroscopeBiasSampleListener = null;
+        }
+    }
+
+    /*
+     * Feed the step detector with the sampler data while a step sensor is enabled.
+     */
+    private void updateStepDetection() {
+        if (isStepDetectionEnabled()) {
+            if (mStepSampleListener == null) {
+                mStepSampleListener = new StepSampleListener(mDevice, mStepDetector);
+                mSampler.addSampleListener(mStepSampleListener);
             }
+        } else if (mStepSampleListener != null) {
+            mSampler.removeSampleListener(mStepSampleListener);
+            // Release the step sensors waiting for the next step
+            mStepSampleListener.close();
+            mStepSampleListener = null;
         }
+    }
+
+    /*
+     * The sensors read the latest sample of the background sampler, falling back to the device
+     * until the first sample is available.
+     */
+    private boolean readLatestSample(short[] sample) {
+        return mSampler.isRunning() && mSampler.readLatest(sample) != 0;
+    }
 
-        if (mMagneticInductionUserDriver == null || !mMagneticInductionUserDriver.isEnabled()) {
-            mDevice.setMagnetometerSystemOperatingMode(MAG_POWER_DOWN);
+    /*
+     * You cannot have Gyro on and Accel off but you can have Accel on and Gyro off.
+     * Temp requires Accel on.
+     * Check 3.1 Operating modes in the datasheet (page 19).
+     */
+    private void updatePowerState() throws IOException {
+        int accelGyroState;
+        if (isGyroscopeEnabled()) {
+            accelGyroState = XG_ACCEL_GYRO;
+        } else if (isAccelerometerEnabled() || isTemperatureEnabled()) {
+            int currentState = mPowerStateMachine.getAccelGyroState();
+            accelGyroState = mGyroscopeSleepEnabled && (currentState == XG_ACCEL_GYRO || currentState == XG_GYRO_SLEEP)
+                    ? XG_GYRO_SLEEP
+                    : XG_ACCEL_ONLY;
         } else {
-            mDevice.setMagnetometerSystemOperatingMode(MAG_CONTINUOUS_CONVERSION);
+            accelGyroState = XG_POWER_DOWN;
+        }
+        mPowerStateMachine.setAccelGyroState(accelGyroState, getRequestedAccelGyroOdr(accelGyroState));
+
+        if (!isMagnetometerEnabled()) {
+            mPowerStateMachine.setMagnetometerState(MAG_OFF, ODR_M_0_625HZ);
+        } else {
+            int magnetometerOdr = getRequestedMagnetometerOdr();
+            mPowerStateMachine.setMagnetometerState(magnetometerOdr == ODR_M_0_625HZ ? MAG_LOW_POWER : MAG_CONTINUOUS,
+                    magnetometerOdr);
+        }
+
+        updateGyroscopeBias();
+        updateStepDetection();
+        if (isAnySensorEnabled()) {
+            mSampler.start();
+        } else {
+            mSampler.stop();
         }
     }
 
@@ -255,7 +875,12 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         private static final float DRIVER_POWER = Lsm9ds1.MAX_POWER_CONSUMPTION_X_UA / 1000.f;
         private static final int DRIVER_VERSION = 1;
 
+        private final float[] mValues = new float[3];
+        // The framework consumes the reading before polling again, so the same instance can be reused
+        private final UserSensorReading mReading = new UserSensorReading(mValues);
+        private final short[] mSample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
         private boolean mEnabled;
+        private int mDelayUs = DRIVER_XG_MIN_DELAY_US;
         private UserSensor mUserSensor;
 
         private UserSensor getUserSensor() {
@@ -279,18 +904,36 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
 
         @Override
         public UserSensorReading read() throws IOException {
-            return new UserSensorReading(mDevice.readAcceleration());
+            if (readLatestSample(mSample)) {
+                float sensitivity = mDevice.getAccelerationSensitivity(Lsm9ds1Sampler.getAccelerometerRange(mSample));
+                for (int i = 0; i < 3; i++) {
+                    mValues[i] = mSample[Lsm9ds1Sampler.ACCEL_OFFSET + i] * sensitivity;
+                }
+            } else {
+                mDevice.readAcceleration(mValues);
+            }
+            return mReading;
         }
 
         @Override
         public void setEnabled(boolean enabled) throws IOException {
             mEnabled = enabled;
-            maybeSleep();
+            updatePowerState();
+        }
+
+        @Override
+        public void setDelay(int delayUs) throws IOException {
+            mDelayUs = delayUs;
+            updatePowerState();
         }
 
         private boolean isEnabled() {
             return mEnabled;
         }
+
+        private int getDelayUs() {
+            return mDelayUs;
+        }
     }
 
     private class AngularVelocityUserDriver implements UserSensorDriver {
@@ -300,13 +943,26 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         private static final float DRIVER_POWER = Lsm9ds1.MAX_POWER_CONSUMPTION_G_UA / 1000.f;
         private static final int DRIVER_VERSION = 1;
 
+        private final boolean mCalibrated;
+        private final float[] mValues;
+        private final UserSensorReading mReading;
+        private final short[] mSample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
+        private final float[] mBias = new float[3];
         private boolean mEnabled;
+        private int mDelayUs = DRIVER_XG_MIN_DELAY_US;
         private UserSensor mUserSensor;
 
+        AngularVelocityUserDriver(boolean calibrated) {
+            mCalibrated = calibrated;
+            // The uncalibrated readings are followed by the estimated bias
+            mValues = new float[calibrated ? 3 : 6];
+            mReading = new UserSensorReading(mValues);
+        }
+
         private UserSensor getUserSensor() {
             if (mUserSensor == null) {
                 mUserSensor = new UserSensor.Builder()
-                        .setType(Sensor.TYPE_GYROSCOPE)
+                        .setType(mCalibrated ? Sensor.TYPE_GYROSCOPE : Sensor.TYPE_GYROSCOPE_UNCALIBRATED)
                         .setName(DRIVER_NAME)
                         .setVendor(DRIVER_VENDOR)
                         .setVersion(DRIVER_VERSION)
@@ -324,18 +980,48 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
 
         @Override
         public UserSensorReading read() throws IOException {
-            return new UserSensorReading(mDevice.readAngularVelocity());
+            float temperature;
+            if (readLatestSample(mSample)) {
+                float sensitivity = mDevice.getAngularVelocitySensitivity(Lsm9ds1Sampler.getGyroscopeScale(mSample));
+                for (int i = 0; i < 3; i++) {
+                    mValues[i] = mSample[Lsm9ds1Sampler.GYRO_OFFSET + i] * sensitivity;
+                }
+                temperature = mSample[Lsm9ds1Sampler.TEMP_OFFSET] * mDevice.getTemperatureSensitivity()
+                        + Lsm9ds1.TEMP_BIAS;
+            } else {
+                mDevice.readAngularVelocity(mValues);
+                temperature = mDevice.readTemperature();
+            }
+            mGyroscopeBiasEstimator.getBias(temperature, mBias, 0);
+            if (mCalibrated) {
+                for (int i = 0; i < 3; i++) {
+                    mValues[i] -= mBias[i];
+                }
+            } else {
+                System.arraycopy(mBias, 0, mValues, 3, 3);
+            }
+            return mReading;
         }
 
         @Override
         public void setEnabled(boolean enabled) throws IOException {
             mEnabled = enabled;
-            maybeSleep();
+            updatePowerState();
+        }
+
+        @Override
+        public void setDelay(int delayUs) throws IOException {
+            mDelayUs = delayUs;
+            updatePowerState();
         }
 
         private boolean isEnabled() {
             return mEnabled;
         }
+
+        private int getDelayUs() {
+            return mDelayUs;
+        }
     }
 
     private class MagneticInductionUserDriver implements UserSensorDriver {
@@ -345,13 +1031,26 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         private static final float DRIVER_POWER = Lsm9ds1.MAX_POWER_CONSUMPTION_M_UA / 1000.f;
         private static final int DRIVER_VERSION = 1;
 
+        private final boolean mCalibrated;
+        private final float[] mValues;
+        private final UserSensorReading mReading;
+        private final short[] mSample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
+        private final float[] mBias = new float[3];
         private boolean mEnabled;
+        private int mDelayUs = DRIVER_MAG_MIN_DELAY_US;
         private UserSensor mUserSensor;
 
+        MagneticInductionUserDriver(boolean calibrated) {
+            mCalibrated = calibrated;
+            // The uncalibrated readings are followed by the estimated hard-iron offset
+            mValues = new float[calibrated ? 3 : 6];
+            mReading = new UserSensorReading(mValues);
+        }
+
         private UserSensor getUserSensor() {
             if (mUserSensor == null) {
                 mUserSensor = new UserSensor.Builder()
-                        .setType(Sensor.TYPE_MAGNETIC_FIELD)
+                        .setType(mCalibrated ? Sensor.TYPE_MAGNETIC_FIELD : Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED)
                         .setName(DRIVER_NAME)
                         .setVendor(DRIVER_VENDOR)
                         .setVersion(DRIVER_VERSION)
@@ -369,18 +1068,42 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
 
         @Override
         public UserSensorReading read() throws IOException {
-            return new UserSensorReading(mDevice.readMagneticInduction());
+            if (readLatestSample(mSample)) {
+                float sensitivity = mDevice.getMagneticInductionSensitivity();
+                for (int i = 0; i < 3; i++) {
+                    mValues[i] = mSample[Lsm9ds1Sampler.MAG_OFFSET + i] * sensitivity;
+                }
+            } else {
+                mDevice.readMagneticInduction(mValues);
+            }
+            if (mCalibrated) {
+                mMagnetometerCalibration.apply(mValues, 0);
+            } else {
+                mMagnetometerCalibration.getHardIronOffset(mBias);
+                System.arraycopy(mBias, 0, mValues, 3, 3);
+            }
+            return mReading;
         }
 
         @Override
         public void setEnabled(boolean enabled) throws IOException {
             mEnabled = enabled;
-            maybeSleep();
+            updatePowerState();
+        }
+
+        @Override
+        public void setDelay(int delayUs) throws IOException {
+            mDelayUs = delayUs;
+            updatePowerState();
         }
 
         private boolean isEnabled() {
             return mEnabled;
         }
+
+        private int getDelayUs() {
+            return mDelayUs;
+        }
     }
 
     private class TemperatureUserDriver implements UserSensorDriver {
@@ -391,7 +1114,11 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
         private static final float DRIVER_POWER = Lsm9ds1.MAX_POWER_CONSUMPTION_X_UA / 1000.f;
         private static final int DRIVER_VERSION = 1;
 
+        private final float[] mValues = new float[1];
+        private final UserSensorReading mReading = new UserSensorReading(mValues);
+        private final short[] mSample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
         private boolean mEnabled;
+        private int mDelayUs = DRIVER_XG_MIN_DELAY_US;
         private UserSensor mUserSensor;
 
         private UserSensor getUserSensor() {
@@ -415,17 +1142,442 @@ public class Lsm9ds1SensorDriver implements AutoCloseable {
 
         @Override
         public UserSensorReading read() throws IOException {
-            return new UserSensorReading(new float[]{mDevice.readTemperature()});
+            if (readLatestSample(mSample)) {
+                mValues[0] = mSample[Lsm9ds1Sampler.TEMP_OFFSET] * mDevice.getTemperatureSensitivity()
+                        + Lsm9ds1.TEMP_BIAS;
+            } else {
+                mValues[0] = mDevice.readTemperature();
+            }
+            return mReading;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) throws IOException {
+            mEnabled = enabled;
+            updatePowerState();
+        }
+
+        @Override
+        public void setDelay(int delayUs) throws IOException {
+            mDelayUs = delayUs;
+            updatePowerState();
+        }
+
+        private boolean isEnabled() {
+            return mEnabled;
+        }
+
+        private int getDelayUs() {
+            return mDelayUs;
+        }
+    }
+
+    private class RotationVectorUserDriver implements UserSensorDriver {
+        // DRIVER parameters
+        // documented at https://source.android.com/devices/sensors/hal-interface.html#sensor_t
+        private static final float DRIVER_MAX_RANGE = 1f;
+        private static final float DRIVER_RESOLUTION = 1f / (1 << 16);
+        private static final float DRIVER_POWER = (Lsm9ds1.MAX_POWER_CONSUMPTION_X_UA
+                + Lsm9ds1.MAX_POWER_CONSUMPTION_G_UA) / 1000.f;
+        private static final int DRIVER_VERSION = 1;
+
+        private final boolean mUseMagnetometer;
+        private final float[] mValues = new float[4];
+        private final UserSensorReading mReading = new UserSensorReading(mValues);
+        private boolean mEnabled;
+        private int mDelayUs = DRIVER_XG_MIN_DELAY_US;
+        private UserSensor mUserSensor;
+
+        RotationVectorUserDriver(boolean useMagnetometer) {
+            mUseMagnetometer = useMagnetometer;
+        }
+
+        private UserSensor getUserSensor() {
+            if (mUserSensor == null) {
+                mUserSensor = new UserSensor.Builder()
+                        .setType(mUseMagnetometer ? Sensor.TYPE_ROTATION_VECTOR : Sensor.TYPE_GAME_ROTATION_VECTOR)
+                        .setName(DRIVER_NAME)
+                        .setVendor(DRIVER_VENDOR)
+                        .setVersion(DRIVER_VERSION)
+                        .setMaxRange(DRIVER_MAX_RANGE)
+                        .setResolution(DRIVER_RESOLUTION)
+                        .setPower(mUseMagnetometer
+                                ? DRIVER_POWER + Lsm9ds1.MAX_POWER_CONSUMPTION_M_UA / 1000.f
+                                : DRIVER_POWER)
+                        .setMinDelay(DRIVER_XG_MIN_DELAY_US)
+                        .setMaxDelay(DRIVER_XG_MAX_DELAY_US)
+                        .setUuid(UUID.randomUUID())
+                        .setDriver(this)
+                        .build();
+            }
+            return mUserSensor;
+        }
+
+        @Override
+        public UserSensorReading read() throws IOException {
+            FusionSampleListener fusionSampleListener = mFusionSampleListener;
+            if (fusionSampleListener == null) {
+                throw new IOException("rotation vector sensor not enabled");
+            }
+            fusionSampleListener.getRotationVector(mUseMagnetometer, mValues);
+            return mReading;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) throws IOException {
+            mEnabled = enabled;
+            updatePowerState();
+            updateFusion();
+        }
+
+        @Override
+        public void setDelay(int delayUs) throws IOException {
+            mDelayUs = delayUs;
+            updatePowerState();
+        }
+
+        private boolean isEnabled() {
+            return mEnabled;
+        }
+
+        private int getDelayUs() {
+            return mDelayUs;
+        }
+    }
+
+    private class OrientationUserDriver implements UserSensorDriver {
+        // DRIVER parameters
+        // documented at https://source.android.com/devices/sensors/hal-interface.html#sensor_t
+        private static final float DRIVER_MAX_RANGE = 360f;
+        private static final float DRIVER_RESOLUTION = 0.01f;
+        private static final float DRIVER_POWER = (Lsm9ds1.MAX_POWER_CONSUMPTION_X_UA
+                + Lsm9ds1.MAX_POWER_CONSUMPTION_M_UA) / 1000.f;
+        private static final int DRIVER_VERSION = 1;
+
+        private final float[] mValues = new float[3];
+        private final UserSensorReading mReading = new UserSensorReading(mValues);
+        private final short[] mSample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
+        private final float[] mAccel = new float[3];
+        private final float[] mMag = new float[3];
+        private boolean mEnabled;
+        private int mDelayUs = DRIVER_MAG_MIN_DELAY_US;
+        private UserSensor mUserSensor;
+
+        private UserSensor getUserSensor() {
+            if (mUserSensor == null) {
+                mUserSensor = new UserSensor.Builder()
+                        .setType(Sensor.TYPE_ORIENTATION)
+                        .setName(DRIVER_NAME)
+                        .setVendor(DRIVER_VENDOR)
+                        .setVersion(DRIVER_VERSION)
+                        .setMaxRange(DRIVER_MAX_RANGE)
+                        .setResolution(DRIVER_RESOLUTION)
+                        .setPower(DRIVER_POWER)
+                        .setMinDelay(DRIVER_MAG_MIN_DELAY_US)
+                        .setMaxDelay(DRIVER_MAG_MAX_DELAY_US)
+                        .setUuid(UUID.randomUUID())
+                        .setDriver(this)
+                        .build();
+            }
+            return mUserSensor;
+        }
+
+        @Override
+        public UserSensorReading read() throws IOException {
+            if (readLatestSample(mSample)) {
+                // The compass normalizes the acceleration, so the raw values can be used
+                float magSensitivity = mDevice.getMagneticInductionSensitivity();
+                for (int i = 0; i < 3; i++) {
+                    mAccel[i] = mSample[Lsm9ds1Sampler.ACCEL_OFFSET + i];
+                    mMag[i] = mSample[Lsm9ds1Sampler.MAG_OFFSET + i] * magSensitivity;
+                }
+            } else {
+                mDevice.readAcceleration(mAccel);
+                mDevice.readMagneticInduction(mMag);
+            }
+            mMagnetometerCalibration.apply(mMag, 0);
+            // The X axis of the magnetometer points in the opposite direction of the accel/gyro one.
+            // When the heading is undefined the previous reading is repeated.
+            mTiltCompensatedCompass.getOrientation(mAccel[0], mAccel[1], mAccel[2], -mMag[0], mMag[1], mMag[2],
+                    mValues, 0);
+            return mReading;
         }
 
         @Override
         public void setEnabled(boolean enabled) throws IOException {
             mEnabled = enabled;
-            maybeSleep();
+            updatePowerState();
+        }
+
+        @Override
+        public void setDelay(int delayUs) throws IOException {
+            mDelayUs = delayUs;
+            updatePowerState();
         }
 
         private boolean isEnabled() {
             return mEnabled;
         }
+
+        private int getDelayUs() {
+            return mDelayUs;
+        }
+    }
+
+    private class StepUserDriver implements UserSensorDriver {
+        // DRIVER parameters
+        // documented at https://source.android.com/devices/sensors/hal-interface.html#sensor_t
+        private static final float DRIVER_POWER = Lsm9ds1.MAX_POWER_CONSUMPTION_X_UA / 1000.f;
+        private static final int DRIVER_VERSION = 1;
+        // setEnabled() wakes the reads waiting for a step, the timeout covers a read that is about to wait
+        private static final long STEP_WAIT_TIMEOUT_MS = 1000;
+
+        private final boolean mCounter;
+        private final float[] mValues = new float[1];
+        // The framework consumes the reading before polling again, so the same instance can be reused.
+        // It is timestamped when read() returns, right after the sampler signals the step.
+        private final UserSensorReading mReading = new UserSensorReading(mValues,
+                SensorManager.SENSOR_STATUS_ACCURACY_HIGH);
+        private volatile boolean mEnabled;
+        private long mReportedStepCount;
+        private UserSensor mUserSensor;
+
+        StepUserDriver(boolean counter) {
+            mCounter = counter;
+        }
+
+        private UserSensor getUserSensor() {
+            if (mUserSensor == null) {
+                mUserSensor = new UserSensor.Builder()
+                        .setType(mCounter ? Sensor.TYPE_STEP_COUNTER : Sensor.TYPE_STEP_DETECTOR)
+                        .setName(DRIVER_NAME)
+                        .setVendor(DRIVER_VENDOR)
+                        .setVersion(DRIVER_VERSION)
+                        .setMaxRange(mCounter ? Float.MAX_VALUE : 1f)
+                        .setResolution(1f)
+                        .setPower(DRIVER_POWER)
+                        .setUuid(UUID.randomUUID())
+                        .setDriver(this)
+                        .build();
+            }
+            return mUserSensor;
+        }
+
+        /*
+         * Blocks until the next step: the framework receives a reading only when there is something to report.
+         * Fails as soon as the sensor is disabled.
+         */
+        @Override
+        public UserSensorReading read() throws IOException {
+            long stepCount;
+            do {
+                StepSampleListener stepSampleListener = mStepSampleListener;
+                if (!mEnabled || stepSampleListener == null) {
+                    throw new IOException("step sensor not enabled");
+                }
+                try {
+                    stepCount = stepSampleListener.awaitStepCount(mReportedStepCount, STEP_WAIT_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for a step");
+                }
+                if (stepCount < 0) {
+                    throw new IOException("step sensor not enabled");
+                }
+            } while (stepCount <= mReportedStepCount);
+            if (mCounter) {
+                mReportedStepCount = stepCount;
+                mValues[0] = stepCount;
+            } else {
+                // One event per step, even if the framework is late
+                mReportedStepCount++;
+                mValues[0] = 1f;
+            }
+            return mReading;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) throws IOException {
+            // The counter reports the current count as soon as it is enabled, the detector only the new steps
+            mReportedStepCount = mCounter ? -1 : mStepDetector.getStepCount();
+            mEnabled = enabled;
+            updatePowerState();
+            // The listener stays open while the other step sensor is enabled: release the reads of this one
+            StepSampleListener stepSampleListener = mStepSampleListener;
+            if (stepSampleListener != null) {
+                stepSampleListener.wakeUp();
+            }
+        }
+
+        private boolean isEnabled() {
+            return mEnabled;
+        }
+    }
+
+    /*
+     * Runs on the sampler thread and feeds every sample to the AHRS filters, so that the orientation is
+     * updated at full rate regardless of how often the framework polls.
+     */
+    private static class FusionSampleListener implements Lsm9ds1Sampler.SampleListener {
+        private static final float DEG_TO_RAD = (float) (Math.PI / 180);
+        private static final float NANOS_PER_SECOND = 1e9f;
+
+        private final Lsm9ds1 mDevice;
+        private final MagnetometerCalibration mMagnetometerCalibration;
+        private final GyroscopeBiasEstimator mGyroscopeBiasEstimator;
+        private final MadgwickAhrs mAhrs = new MadgwickAhrs();
+        private final MadgwickAhrs mGameAhrs = new MadgwickAhrs();
+        private final float[] mMag = new float[3];
+        private final float[] mGyroBias = new float[3];
+        private volatile boolean mAhrsEnabled;
+        private volatile boolean mGameAhrsEnabled;
+        private long mLastTimestamp;
+
+        FusionSampleListener(Lsm9ds1 device, MagnetometerCalibration magnetometerCalibration,
+                             GyroscopeBiasEstimator gyroscopeBiasEstimator) {
+            mDevice = device;
+            mMagnetometerCalibration = magnetometerCalibration;
+            mGyroscopeBiasEstimator = gyroscopeBiasEstimator;
+        }
+
+        void setEnabled(boolean ahrsEnabled, boolean gameAhrsEnabled) {
+            mAhrsEnabled = ahrsEnabled;
+            mGameAhrsEnabled = gameAhrsEnabled;
+        }
+
+        synchronized void getRotationVector(boolean useMagnetometer, float[] result) {
+            if (useMagnetometer) {
+                mAhrs.getRotationVector(result);
+            } else {
+                mGameAhrs.getRotationVector(result);
+            }
+        }
+
+        @Override
+        public synchronized void onSample(long timestamp, short[] sample) {
+            if (mLastTimestamp != 0) {
+                float dt = (timestamp - mLastTimestamp) / NANOS_PER_SECOND;
+                float temperature = sample[Lsm9ds1Sampler.TEMP_OFFSET] * mDevice.getTemperatureSensitivity()
+                        + Lsm9ds1.TEMP_BIAS;
+                mGyroscopeBiasEstimator.getBias(temperature, mGyroBias, 0);
+                float gyroSensitivity = mDevice.getAngularVelocitySensitivity(Lsm9ds1Sampler.getGyroscopeScale(sample));
+                float gx = (sample[Lsm9ds1Sampler.GYRO_OFFSET] * gyroSensitivity - mGyroBias[0]) * DEG_TO_RAD;
+                float gy = (sample[Lsm9ds1Sampler.GYRO_OFFSET + 1] * gyroSensitivity - mGyroBias[1]) * DEG_TO_RAD;
+                float gz = (sample[Lsm9ds1Sampler.GYRO_OFFSET + 2] * gyroSensitivity - mGyroBias[2]) * DEG_TO_RAD;
+                // The filter normalizes accelerometer and magnetometer, so the raw values can be used
+                float ax = sample[Lsm9ds1Sampler.ACCEL_OFFSET];
+                float ay = sample[Lsm9ds1Sampler.ACCEL_OFFSET + 1];
+                float az = sample[Lsm9ds1Sampler.ACCEL_OFFSET + 2];
+                if (mAhrsEnabled) {
+                    float magSensitivity = mDevice.getMagneticInductionSensitivity();
+                    for (int i = 0; i < 3; i++) {
+                        mMag[i] = sample[Lsm9ds1Sampler.MAG_OFFSET + i] * magSensitivity;
+                    }
+                    mMagnetometerCalibration.apply(mMag, 0);
+                    // The X axis of the magnetometer points in the opposite direction of the accel/gyro one
+                    mAhrs.update(gx, gy, gz, ax, ay, az, -mMag[0], mMag[1], mMag[2], dt);
+                }
+                if (mGameAhrsEnabled) {
+                    mGameAhrs.updateImu(gx, gy, gz, ax, ay, az, dt);
+                }
+            }
+            mLastTimestamp = timestamp;
+        }
+    }
+
+    /*
+     * Runs on the sampler thread and feeds the magnetometer data to the calibration.
+     */
+    private static class CalibrationSampleListener implements Lsm9ds1Sampler.SampleListener {
+        private final Lsm9ds1 mDevice;
+        private final MagnetometerCalibration mMagnetometerCalibration;
+
+        CalibrationSampleListener(Lsm9ds1 device, MagnetometerCalibration magnetometerCalibration) {
+            mDevice = device;
+            mMagnetometerCalibration = magnetometerCalibration;
+        }
+
+        @Override
+        public void onSample(long timestamp, short[] sample) {
+            float sensitivity = mDevice.getMagneticInductionSensitivity();
+            mMagnetometerCalibration.addSample(sample[Lsm9ds1Sampler.MAG_OFFSET] * sensitivity,
+                    sample[Lsm9ds1Sampler.MAG_OFFSET + 1] * sensitivity,
+                    sample[Lsm9ds1Sampler.MAG_OFFSET + 2] * sensitivity);
+        }
+    }
+
+    /*
+     * Runs on the sampler thread and feeds the accelerometer data to the step detector, waking up the step
+     * sensors waiting in read() when a step is detected.
+     */
+    private static class StepSampleListener implements Lsm9ds1Sampler.SampleListener {
+        private final Lsm9ds1 mDevice;
+        private final StepDetector mStepDetector;
+        private boolean mClosed;
+
+        StepSampleListener(Lsm9ds1 device, StepDetector stepDetector) {
+            mDevice = device;
+            mStepDetector = stepDetector;
+        }
+
+        @Override
+        public void onSample(long timestamp, short[] sample) {
+            float sensitivity = mDevice.getAccelerationSensitivity(Lsm9ds1Sampler.getAccelerometerRange(sample));
+            if (mStepDetector.update(timestamp, sample[Lsm9ds1Sampler.ACCEL_OFFSET] * sensitivity,
+                    sample[Lsm9ds1Sampler.ACCEL_OFFSET + 1] * sensitivity,
+                    sample[Lsm9ds1Sampler.ACCEL_OFFSET + 2] * sensitivity)) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /*
+         * Wait until the step count is greater than the given one, the waiters are woken up or the timeout
+         * expires. Returns the step count, that can still be the given one, or -1 if the listener was closed.
+         */
+        synchronized long awaitStepCount(long stepCount, long timeoutMillis) throws InterruptedException {
+            if (!mClosed && mStepDetector.getStepCount() <= stepCount) {
+                wait(timeoutMillis);
+            }
+            return mClosed ? -1 : mStepDetector.getStepCount();
+        }
+
+        synchronized void wakeUp() {
+            notifyAll();
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    /*
+     * Runs on the sampler thread and feeds gyroscope, accelerometer and temperature data to the bias estimator.
+     */
+    private static class GyroscopeBiasSampleListener implements Lsm9ds1Sampler.SampleListener {
+        private final Lsm9ds1 mDevice;
+        private final GyroscopeBiasEstimator mGyroscopeBiasEstimator;
+        private final float[] mGyro = new float[3];
+        private final float[] mAccel = new float[3];
+
+        GyroscopeBiasSampleListener(Lsm9ds1 device, GyroscopeBiasEstimator gyroscopeBiasEstimator) {
+            mDevice = device;
+            mGyroscopeBiasEstimator = gyroscopeBiasEstimator;
+        }
+
+        @Override
+        public void onSample(long timestamp, short[] sample) {
+            float gyroSensitivity = mDevice.getAngularVelocitySensitivity(Lsm9ds1Sampler.getGyroscopeScale(sample));
+            float accelSensitivity = mDevice.getAccelerationSensitivity(Lsm9ds1Sampler.getAccelerometerRange(sample));
+            for (int i = 0; i < 3; i++) {
+                mGyro[i] = sample[Lsm9ds1Sampler.GYRO_OFFSET + i] * gyroSensitivity;
+                mAccel[i] = sample[Lsm9ds1Sampler.ACCEL_OFFSET + i] * accelSensitivity;
+            }
+            float temperature = sample[Lsm9ds1Sampler.TEMP_OFFSET] * mDevice.getTemperatureSensitivity()
+                    + Lsm9ds1.TEMP_BIAS;
+            mGyroscopeBiasEstimator.update(timestamp, mGyro, 0, mAccel, 0, temperature);
+        }
     }
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Madgwick's gradient descent orientation filter (AHRS), as described in
+ * "An efficient orientation filter for inertial and inertial/magnetic sensor arrays".
+ * <p>
+ * The estimated quaternion describes the orientation of the sensor frame relative to a North-West-Up earth
+ * frame. {@link #getRotationVector(float[])} converts it to the East-North-Up frame used by
+ * {@link android.hardware.Sensor#TYPE_ROTATION_VECTOR}.
+ * <p>
+ * This class is not thread safe and does not allocate memory after construction.
+ */
+public class MadgwickAhrs {
+    /**
+     * Default algorithm gain, a good trade-off between gyroscope drift correction and noise rejection.
+     */
+    public static final float DEFAULT_BETA = 0.1f;
+    private static final float HALF_SQRT_2 = (float) (Math.sqrt(2) / 2);
+
+    private float mBeta;
+    private float mQ0;
+    private float mQ1;
+    private float mQ2;
+    private float mQ3;
+
+    /**
+     * Create a new filter using {@link #DEFAULT_BETA} as gain.
+     */
+    public MadgwickAhrs() {
+        this(DEFAULT_BETA);
+    }
+
+    /**
+     * Create a new filter.
+     *
+     * @param beta the algorithm gain: higher values converge faster but are more sensitive to
+     *             accelerometer and magnetometer noise.
+     */
+    public MadgwickAhrs(float beta) {
+        mBeta = beta;
+        reset();
+    }
+
+    public float getBeta() {
+        return mBeta;
+    }
+
+    public void setBeta(float beta) {
+        mBeta = beta;
+    }
+
+    /**
+     * Reset the estimated orientation to the identity quaternion.
+     */
+    public void reset() {
+        mQ0 = 1f;
+        mQ1 = 0f;
+        mQ2 = 0f;
+        mQ3 = 0f;
+    }
+
+    /**
+     * Update the filter with a new gyroscope, accelerometer and magnetometer sample.
+     * The magnetometer axes must be aligned to the gyroscope and accelerometer ones.
+     * If the magnetometer sample is not valid (all zeros) only the gyroscope and accelerometer are used.
+     *
+     * @param gx angular velocity on the X axis in rad/s
+     * @param gy angular velocity on the Y axis in rad/s
+     * @param gz angular velocity on the Z axis in rad/s
+     * @param ax acceleration on the X axis, in any unit
+     * @param ay acceleration on the Y axis, in any unit
+     * @param az acceleration on the Z axis, in any unit
+     * @param mx magnetic induction on the X axis, in any unit
+     * @param my magnetic induction on the Y axis, in any unit
+     * @param mz magnetic induction on the Z axis, in any unit
+     * @param dt time elapsed since the previous update in seconds
+     */
+    public void update(float gx, float gy, float gz, float ax, float ay, float az,
+                       float mx, float my, float mz, float dt) {
+        if (mx == 0f && my == 0f && mz == 0f) {
+            updateImu(gx, gy, gz, ax, ay, az, dt);
+            return;
+        }
+
+        float q0 = mQ0;
+        float q1 = mQ1;
+        float q2 = mQ2;
+        float q3 = mQ3;
+
+        // Rate of change of quaternion from gyroscope
+        float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        // Compute feedback only if accelerometer measurement valid (avoids NaN in accelerometer normalisation)
+        if (!(ax == 0f && ay == 0f && az == 0f)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            recipNorm = invSqrt(mx * mx + my * my + mz * mz);
+            mx *= recipNorm;
+            my *= recipNorm;
+            mz *= recipNorm;
+
+            // Auxiliary variables to avoid repeated arithmetic
+            float q0mx2 = 2f * q0 * mx;
+            float q0my2 = 2f * q0 * my;
+            float q0mz2 = 2f * q0 * mz;
+            float q1mx2 = 2f * q1 * mx;
+            float q0x2 = 2f * q0;
+            float q1x2 = 2f * q1;
+            float q2x2 = 2f * q2;
+            float q3x2 = 2f * q3;
+            float q0q2x2 = 2f * q0 * q2;
+            float q2q3x2 = 2f * q2 * q3;
+            float q0q0 = q0 * q0;
+            float q0q1 = q0 * q1;
+            float q0q2 = q0 * q2;
+            float q0q3 = q0 * q3;
+            float q1q1 = q1 * q1;
+            float q1q2 = q1 * q2;
+            float q1q3 = q1 * q3;
+            float q2q2 = q2 * q2;
+            float q2q3 = q2 * q3;
+            float q3q3 = q3 * q3;
+
+            // Reference direction of Earth's magnetic field
+            float hx = mx * q0q0 - q0my2 * q3 + q0mz2 * q2 + mx * q1q1 + q1x2 * my * q2 + q1x2 * mz * q3
+                    - mx * q2q2 - mx * q3q3;
+            float hy = q0mx2 * q3 + my * q0q0 - q0mz2 * q1 + q1mx2 * q2 - my * q1q1 + my * q2q2
+                    + q2x2 * mz * q3 - my * q3q3;
+            float bx2 = (float) Math.sqrt(hx * hx + hy * hy);
+            float bz2 = -q0mx2 * q2 + q0my2 * q1 + mz * q0q0 + q1mx2 * q3 - mz * q1q1 + q2x2 * my * q3
+                    - mz * q2q2 + mz * q3q3;
+            float bx4 = 2f * bx2;
+            float bz4 = 2f * bz2;
+
+            // Gradient decent algorithm corrective step
+            float ex = 2f * q1q3 - q0q2x2 - ax;
+            float ey = 2f * q0q1 + q2q3x2 - ay;
+            float ez = 1f - 2f * q1q1 - 2f * q2q2 - az;
+            float fx = bx2 * (0.5f - q2q2 - q3q3) + bz2 * (q1q3 - q0q2) - mx;
+            float fy = bx2 * (q1q2 - q0q3) + bz2 * (q0q1 + q2q3) - my;
+            float fz = bx2 * (q0q2 + q1q3) + bz2 * (0.5f - q1q1 - q2q2) - mz;
+            float s0 = -q2x2 * ex + q1x2 * ey - bz2 * q2 * fx + (-bx2 * q3 + bz2 * q1) * fy + bx2 * q2 * fz;
+            float s1 = q3x2 * ex + q0x2 * ey - 4f * q1 * ez + bz2 * q3 * fx
+                    + (bx2 * q2 + bz2 * q0) * fy + (bx2 * q3 - bz4 * q1) * fz;
+            float s2 = -q0x2 * ex + q3x2 * ey - 4f * q2 * ez + (-bx4 * q2 - bz2 * q0) * fx
+                    + (bx2 * q1 + bz2 * q3) * fy + (bx2 * q0 - bz4 * q2) * fz;
+            float s3 = q1x2 * ex + q2x2 * ey + (-bx4 * q3 + bz2 * q1) * fx + (-bx2 * q0 + bz2 * q2) * fy
+                    + bx2 * q1 * fz;
+            float norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+
+            // Apply feedback step (the gradient is zero when the estimate already matches the measurements)
+            if (norm > 0f) {
+                recipNorm = invSqrt(norm);
+                qDot1 -= mBeta * s0 * recipNorm;
+                qDot2 -= mBeta * s1 * recipNorm;
+                qDot3 -= mBeta * s2 * recipNorm;
+                qDot4 -= mBeta * s3 * recipNorm;
+            }
+        }
+
+        integrate(qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    /**
+     * Update the filter with a new gyroscope and accelerometer sample, without magnetometer.
+     * The heading (rotation around the gravity vector) is only tracked by the gyroscope and will drift.
+     *
+     * @param gx angular velocity on the X axis in rad/s
+     * @param gy angular velocity on the Y axis in rad/s
+     * @param gz angular velocity on the Z axis in rad/s
+     * @param ax acceleration on the X axis, in any unit
+     * @param ay acceleration on the Y axis, in any unit
+     * @param az acceleration on the Z axis, in any unit
+     * @param dt time elapsed since the previous update in seconds
+     */
+    public void updateImu(float gx, float gy, float gz, float ax, float ay, float az, float dt) {
+        float q0 = mQ0;
+        float q1 = mQ1;
+        float q2 = mQ2;
+        float q3 = mQ3;
+
+        // Rate of change of quaternion from gyroscope
+        float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        // Compute feedback only if accelerometer measurement valid (avoids NaN in accelerometer normalisation)
+        if (!(ax == 0f && ay == 0f && az == 0f)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            // Auxiliary variables to avoid repeated arithmetic
+            float q0x2 = 2f * q0;
+            float q1x2 = 2f * q1;
+            float q2x2 = 2f * q2;
+            float q3x2 = 2f * q3;
+            float q0x4 = 4f * q0;
+            float q1x4 = 4f * q1;
+            float q2x4 = 4f * q2;
+            float q1x8 = 8f * q1;
+            float q2x8 = 8f * q2;
+            float q0q0 = q0 * q0;
+            float q1q1 = q1 * q1;
+            float q2q2 = q2 * q2;
+            float q3q3 = q3 * q3;
+
+            // Gradient decent algorithm corrective step
+            float s0 = q0x4 * q2q2 + q2x2 * ax + q0x4 * q1q1 - q1x2 * ay;
+            float s1 = q1x4 * q3q3 - q3x2 * ax + 4f * q0q0 * q1 - q0x2 * ay - q1x4 + q1x8 * q1q1 + q1x8 * q2q2
+                    + q1x4 * az;
+            float s2 = 4f * q0q0 * q2 + q0x2 * ax + q2x4 * q3q3 - q3x2 * ay - q2x4 + q2x8 * q1q1 + q2x8 * q2q2
+                    + q2x4 * az;
+            float s3 = 4f * q1q1 * q3 - q1x2 * ax + 4f * q2q2 * q3 - q2x2 * ay;
+            float norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+
+            // Apply feedback step (the gradient is zero when the estimate already matches the measurements)
+            if (norm > 0f) {
+                recipNorm = invSqrt(norm);
+                qDot1 -= mBeta * s0 * recipNorm;
+                qDot2 -= mBeta * s1 * recipNorm;
+                qDot3 -= mBeta * s2 * recipNorm;
+                qDot4 -= mBeta * s3 * recipNorm;
+            }
+        }
+
+        integrate(qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    /**
+     * Get the estimated orientation quaternion in the North-West-Up earth frame.
+     *
+     * @param result an array of at least 4 elements that will contain the w, x, y, z components.
+     */
+    public void getQuaternion(float[] result) {
+        result[0] = mQ0;
+        result[1] = mQ1;
+        result[2] = mQ2;
+        result[3] = mQ3;
+    }
+
+    /**
+     * Get the estimated orientation in the format of {@link android.hardware.Sensor#TYPE_ROTATION_VECTOR}:
+     * x*sin(θ/2), y*sin(θ/2), z*sin(θ/2), cos(θ/2), in the East-North-Up earth frame.
+     *
+     * @param result an array of at least 4 elements that will contain the rotation vector.
+     */
+    public void getRotationVector(float[] result) {
+        // Rotate the North-West-Up frame by 90 degrees around the Z axis: q_enu = (cos45, 0, 0, sin45) * q_nwu
+        float w = HALF_SQRT_2 * (mQ0 - mQ3);
+        float x = HALF_SQRT_2 * (mQ1 - mQ2);
+        float y = HALF_SQRT_2 * (mQ2 + mQ1);
+        float z = HALF_SQRT_2 * (mQ3 + mQ0);
+        // Android expects a positive scalar component
+        float sign = w < 0 ? -1f : 1f;
+        result[0] = sign * x;
+        result[1] = sign * y;
+        result[2] = sign * z;
+        result[3] = sign * w;
+    }
+
+    private void integrate(float qDot1, float qDot2, float qDot3, float qDot4, float dt) {
+        float q0 = mQ0 + qDot1 * dt;
+        float q1 = mQ1 + qDot2 * dt;
+        float q2 = mQ2 + qDot3 * dt;
+        float q3 = mQ3 + qDot4 * dt;
+
+        float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        mQ0 = q0 * recipNorm;
+        mQ1 = q1 * recipNorm;
+        mQ2 = q2 * recipNorm;
+        mQ3 = q3 * recipNorm;
+    }
+
+    private static float invSqrt(float x) {
+        return (float) (1.0 / Math.sqrt(x));
+    }
+}
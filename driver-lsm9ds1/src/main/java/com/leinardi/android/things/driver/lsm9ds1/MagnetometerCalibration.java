@@ -0,0 +1,406 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Hard-iron and soft-iron calibration of the magnetometer.
+ * <p>
+ * Ferromagnetic materials close to the sensor shift (hard-iron) and distort (soft-iron) the measured field,
+ * so that rotating the device draws an offset ellipsoid instead of a sphere centered on the origin.
+ * The samples passed to {@link #addSample} are accumulated into the normal equations of a least squares
+ * ellipsoid fit, without storing them; {@link #fit()} solves the fit and computes the offset and the matrix
+ * mapping the ellipsoid back to a sphere with the same volume. Rotate the device in all directions while
+ * collecting the samples.
+ * <p>
+ * {@link #apply} corrects a sample in place: {@code corrected = softIronMatrix * (raw - hardIronOffset)}.
+ * It does not allocate memory, so it can be called for every sample.
+ * The parameters can be persisted with {@link #save(OutputStream)} and {@link #load(InputStream)}.
+ * <p>
+ * All the methods are thread safe.
+ */
+public class MagnetometerCalibration {
+    /**
+     * Minimum number of samples needed by {@link #fit()}.
+     */
+    public static final int MIN_SAMPLES = 50;
+    private static final int FORMAT_VERSION = 1;
+    // Number of parameters of the general ellipsoid equation
+    private static final int PARAMS = 9;
+    private static final double EPSILON = 1e-12;
+    private static final int MAX_JACOBI_SWEEPS = 50;
+
+    // Upper triangle of D^T * D and D^T * 1, where each row of D is a sample expanded by expandSample()
+    private final double[][] mNormalMatrix = new double[PARAMS][PARAMS];
+    private final double[] mNormalVector = new double[PARAMS];
+    private final double[] mRow = new double[PARAMS];
+    private int mSampleCount;
+
+    private final float[] mHardIronOffset = new float[3];
+    private final float[] mSoftIronMatrix = new float[9];
+
+    /**
+     * Create a new calibration with no correction: zero offset and identity matrix.
+     */
+    public MagnetometerCalibration() {
+        reset();
+    }
+
+    /**
+     * Restore the default parameters, with no correction, and discard the collected samples.
+     */
+    public synchronized void reset() {
+        clearSamples();
+        for (int i = 0; i < 3; i++) {
+            mHardIronOffset[i] = 0;
+        }
+        for (int i = 0; i < 9; i++) {
+            mSoftIronMatrix[i] = i % 4 == 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Discard the samples collected so far, keeping the current parameters.
+     */
+    public synchronized void clearSamples() {
+        for (int i = 0; i < PARAMS; i++) {
+            mNormalVector[i] = 0;
+            for (int j = 0; j < PARAMS; j++) {
+                mNormalMatrix[i][j] = 0;
+            }
+        }
+        mSampleCount = 0;
+    }
+
+    /**
+     * @return the number of samples collected since the last call to {@link #clearSamples()}.
+     */
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Add a raw (uncalibrated) magnetometer sample to the fit. Does not allocate memory.
+     *
+     * @param x the magnetic induction along the X axis.
+     * @param y the magnetic induction along the Y axis.
+     * @param z the magnetic induction along the Z axis.
+     */
+    public synchronized void addSample(float x, float y, float z) {
+        double[] row = mRow;
+        row[0] = (double) x * x;
+        row[1] = (double) y * y;
+        row[2] = (double) z * z;
+        row[3] = 2.0 * x * y;
+        row[4] = 2.0 * x * z;
+        row[5] = 2.0 * y * z;
+        row[6] = 2.0 * x;
+        row[7] = 2.0 * y;
+        row[8] = 2.0 * z;
+        for (int i = 0; i < PARAMS; i++) {
+            for (int j = i; j < PARAMS; j++) {
+                mNormalMatrix[i][j] += row[i] * row[j];
+            }
+            mNormalVector[i] += row[i];
+        }
+        mSampleCount++;
+    }
+
+    /**
+     * Fit an ellipsoid to the collected samples and, if the fit succeeds, replace the current parameters.
+     *
+     * @return {@code true} if the parameters have been updated, {@code false} if there are not enough samples
+     * or they do not describe an ellipsoid (e.g. the device has been rotated around a single axis).
+     */
+    public synchronized boolean fit() {
+        if (mSampleCount < MIN_SAMPLES) {
+            return false;
+        }
+        // Solve the normal equations for the quadric
+        // a*x^2 + b*y^2 + c*z^2 + 2d*xy + 2e*xz + 2f*yz + 2g*x + 2h*y + 2i*z = 1
+        double[][] system = new double[PARAMS][PARAMS + 1];
+        for (int i = 0; i < PARAMS; i++) {
+            for (int j = 0; j < PARAMS; j++) {
+                system[i][j] = j >= i ? mNormalMatrix[i][j] : mNormalMatrix[j][i];
+            }
+            system[i][PARAMS] = mNormalVector[i];
+        }
+        double[] v = new double[PARAMS];
+        if (!solve(system, v)) {
+            return false;
+        }
+
+        double[][] a = {
+                {v[0], v[3], v[4]},
+                {v[3], v[1], v[5]},
+                {v[4], v[5], v[2]}
+        };
+        double[][] aInverse = new double[3][3];
+        if (!invert3x3(a, aInverse)) {
+            return false;
+        }
+        // Center of the ellipsoid: -A^-1 * [g h i]
+        double[] center = new double[3];
+        for (int i = 0; i < 3; i++) {
+            center[i] = -(aInverse[i][0] * v[6] + aInverse[i][1] * v[7] + aInverse[i][2] * v[8]);
+        }
+        // Translated to its center the quadric becomes y^T * A * y = 1 + c^T * A * c
+        double k = 1;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                k += center[i] * a[i][j] * center[j];
+            }
+        }
+        if (k <= EPSILON) {
+            return false;
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                a[i][j] /= k;
+            }
+        }
+
+        // A = V * diag(lambda) * V^T, the semi-axes of the ellipsoid are 1 / sqrt(lambda)
+        double[] eigenvalues = new double[3];
+        double[][] eigenvectors = new double[3][3];
+        eigenDecompose(a, eigenvalues, eigenvectors);
+        double volume = 1;
+        for (int i = 0; i < 3; i++) {
+            if (eigenvalues[i] <= EPSILON) {
+                return false;
+            }
+            volume /= Math.sqrt(eigenvalues[i]);
+        }
+        // Radius of the sphere with the same volume as the ellipsoid, i.e. the estimated field strength
+        double radius = Math.cbrt(volume);
+
+        // W = V * diag(sqrt(lambda) * radius) * V^T maps the ellipsoid on the sphere
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double sum = 0;
+                for (int n = 0; n < 3; n++) {
+                    sum += eigenvectors[i][n] * Math.sqrt(eigenvalues[n]) * eigenvectors[j][n];
+                }
+                mSoftIronMatrix[i * 3 + j] = (float) (sum * radius);
+            }
+            mHardIronOffset[i] = (float) center[i];
+        }
+        return true;
+    }
+
+    /**
+     * Correct a raw magnetometer sample in place. Does not allocate memory.
+     *
+     * @param values array containing the x, y and z magnetic induction.
+     * @param offset offset of the x value in {@code values}.
+     */
+    public synchronized void apply(float[] values, int offset) {
+        float x = values[offset] - mHardIronOffset[0];
+        float y = values[offset + 1] - mHardIronOffset[1];
+        float z = values[offset + 2] - mHardIronOffset[2];
+        float[] m = mSoftIronMatrix;
+        values[offset] = m[0] * x + m[1] * y + m[2] * z;
+        values[offset + 1] = m[3] * x + m[4] * y + m[5] * z;
+        values[offset + 2] = m[6] * x + m[7] * y + m[8] * z;
+    }
+
+    /**
+     * @param result array receiving the x, y and z hard-iron offset, in the unit of the samples.
+     */
+    public synchronized void getHardIronOffset(float[] result) {
+        System.arraycopy(mHardIronOffset, 0, result, 0, 3);
+    }
+
+    /**
+     * @param result array receiving the 3x3 soft-iron matrix, in row-major order.
+     */
+    public synchronized void getSoftIronMatrix(float[] result) {
+        System.arraycopy(mSoftIronMatrix, 0, result, 0, 9);
+    }
+
+    /**
+     * Set the calibration parameters, e.g. computed on another device with the same enclosure.
+     *
+     * @param hardIronOffset the x, y and z hard-iron offset.
+     * @param softIronMatrix the 3x3 soft-iron matrix, in row-major order.
+     */
+    public synchronized void setParameters(float[] hardIronOffset, float[] softIronMatrix) {
+        if (hardIronOffset.length != 3 || softIronMatrix.length != 9) {
+            throw new IllegalArgumentException("invalid calibration parameters size");
+        }
+        System.arraycopy(hardIronOffset, 0, mHardIronOffset, 0, 3);
+        System.arraycopy(softIronMatrix, 0, mSoftIronMatrix, 0, 9);
+    }
+
+    /**
+     * Write the calibration parameters to the given stream. The stream is not closed.
+     *
+     * @param out the stream receiving the parameters.
+     * @throws IOException
+     */
+    public synchronized void save(OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(FORMAT_VERSION);
+        for (int i = 0; i < 3; i++) {
+            dataOut.writeFloat(mHardIronOffset[i]);
+        }
+        for (int i = 0; i < 9; i++) {
+            dataOut.writeFloat(mSoftIronMatrix[i]);
+        }
+        dataOut.flush();
+    }
+
+    /**
+     * Read the calibration parameters written by {@link #save(OutputStream)}. The stream is not closed.
+     *
+     * @param in the stream containing the parameters.
+     * @throws IOException if the stream cannot be read or does not contain valid parameters.
+     */
+    public void load(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        int version = dataIn.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported calibration format version: " + version);
+        }
+        float[] hardIronOffset = new float[3];
+        float[] softIronMatrix = new float[9];
+        for (int i = 0; i < 3; i++) {
+            hardIronOffset[i] = dataIn.readFloat();
+        }
+        for (int i = 0; i < 9; i++) {
+            softIronMatrix[i] = dataIn.readFloat();
+        }
+        setParameters(hardIronOffset, softIronMatrix);
+    }
+
+    /*
+     * Gaussian elimination with partial pivoting of the augmented matrix [M | b].
+     */
+    private static boolean solve(double[][] system, double[] result) {
+        int n = result.length;
+        double scale = 0;
+        for (int i = 0; i < n; i++) {
+            scale = Math.max(scale, Math.abs(system[i][i]));
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(system[row][col]) > Math.abs(system[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(system[pivot][col]) <= scale * EPSILON) {
+                return false;
+            }
+            double[] tmp = system[col];
+            system[col] = system[pivot];
+            system[pivot] = tmp;
+            for (int row = col + 1; row < n; row++) {
+                double factor = system[row][col] / system[col][col];
+                for (int j = col; j <= n; j++) {
+                    system[row][j] -= factor * system[col][j];
+                }
+            }
+        }
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = system[row][n];
+            for (int j = row + 1; j < n; j++) {
+                sum -= system[row][j] * result[j];
+            }
+            result[row] = sum / system[row][row];
+        }
+        return true;
+    }
+
+    private static boolean invert3x3(double[][] m, double[][] result) {
+        double c00 = m[1][1] * m[2][2] - m[1][2] * m[2][1];
+        double c01 = m[1][2] * m[2][0] - m[1][0] * m[2][2];
+        double c02 = m[1][0] * m[2][1] - m[1][1] * m[2][0];
+        double det = m[0][0] * c00 + m[0][1] * c01 + m[0][2] * c02;
+        if (Math.abs(det) <= EPSILON) {
+            return false;
+        }
+        result[0][0] = c00 / det;
+        result[1][0] = c01 / det;
+        result[2][0] = c02 / det;
+        result[0][1] = (m[0][2] * m[2][1] - m[0][1] * m[2][2]) / det;
+        result[1][1] = (m[0][0] * m[2][2] - m[0][2] * m[2][0]) / det;
+        result[2][1] = (m[0][1] * m[2][0] - m[0][0] * m[2][1]) / det;
+        result[0][2] = (m[0][1] * m[1][2] - m[0][2] * m[1][1]) / det;
+        result[1][2] = (m[0][2] * m[1][0] - m[0][0] * m[1][2]) / det;
+        result[2][2] = (m[0][0] * m[1][1] - m[0][1] * m[1][0]) / det;
+        return true;
+    }
+
+    /*
+     * Cyclic Jacobi eigenvalue algorithm for a symmetric 3x3 matrix, the eigenvectors are the columns of
+     * the result. The input matrix is modified.
+     */
+    private static void eigenDecompose(double[][] m, double[] eigenvalues, double[][] eigenvectors) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                eigenvectors[i][j] = i == j ? 1 : 0;
+            }
+        }
+        for (int sweep = 0; sweep < MAX_JACOBI_SWEEPS; sweep++) {
+            double offDiagonal = Math.abs(m[0][1]) + Math.abs(m[0][2]) + Math.abs(m[1][2]);
+            if (offDiagonal <= EPSILON * (Math.abs(m[0][0]) + Math.abs(m[1][1]) + Math.abs(m[2][2]))) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    if (m[p][q] == 0) {
+                        continue;
+                    }
+                    double theta = (m[q][q] - m[p][p]) / (2 * m[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        double mkp = m[k][p];
+                        double mkq = m[k][q];
+                        m[k][p] = c * mkp - s * mkq;
+                        m[k][q] = s * mkp + c * mkq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double mpk = m[p][k];
+                        double mqk = m[q][k];
+                        m[p][k] = c * mpk - s * mqk;
+                        m[q][k] = s * mpk + c * mqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = eigenvectors[k][p];
+                        double vkq = eigenvectors[k][q];
+                        eigenvectors[k][p] = c * vkp - s * vkq;
+                        eigenvectors[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            eigenvalues[i] = m[i][i];
+        }
+    }
+}
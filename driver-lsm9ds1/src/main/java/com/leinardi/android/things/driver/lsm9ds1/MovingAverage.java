@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Moving average of the last {@code length} frames. Until {@code length} frames have been processed the
+ * output is the average of the frames processed so far.
+ * <p>
+ * The running sums are updated in constant time and recomputed from the window once per period, so that
+ * the rounding errors do not accumulate.
+ */
+public class MovingAverage implements FilterStage {
+    private final int mChannels;
+    private final int mLength;
+    private final float[] mWindow;
+    private final double[] mSums;
+    private int mIndex;
+    private int mFilled;
+
+    /**
+     * @param channels the number of values of each frame.
+     * @param length   the number of averaged frames.
+     */
+    public MovingAverage(int channels, int length) {
+        if (channels <= 0 || length <= 0) {
+            throw new IllegalArgumentException("channels and length must be positive");
+        }
+        mChannels = channels;
+        mLength = length;
+        mWindow = new float[channels * length];
+        mSums = new double[channels];
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    @Override
+    public int getDecimationFactor() {
+        return 1;
+    }
+
+    @Override
+    public int process(float[] frames, int count) {
+        for (int frame = 0; frame < count; frame++) {
+            int slot = mIndex * mChannels;
+            for (int c = 0; c < mChannels; c++) {
+                float value = frames[frame * mChannels + c];
+                mSums[c] += value - mWindow[slot + c];
+                mWindow[slot + c] = value;
+            }
+            if (mFilled < mLength) {
+                mFilled++;
+            }
+            if (++mIndex == mLength) {
+                mIndex = 0;
+                recomputeSums();
+            }
+            for (int c = 0; c < mChannels; c++) {
+                frames[frame * mChannels + c] = (float) (mSums[c] / mFilled);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mWindow.length; i++) {
+            mWindow[i] = 0;
+        }
+        for (int c = 0; c < mChannels; c++) {
+            mSums[c] = 0;
+        }
+        mIndex = 0;
+        mFilled = 0;
+    }
+
+    private void recomputeSums() {
+        for (int c = 0; c < mChannels; c++) {
+            double sum = 0;
+            for (int i = c; i < mWindow.length; i += mChannels) {
+                sum += mWindow[i];
+            }
+            mSums[c] = sum;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Records the raw samples of an {@link Lsm9ds1Sampler} into preallocated memory-mapped files, with a fixed
+ * little-endian binary format that can be read back with {@link SampleRecordingReader}.
+ * <p>
+ * Each file starts with a {@value #HEADER_SIZE} bytes header followed by the records. The first part of the
+ * header describes the file and the configuration of the device when the file was created: output data
+ * rates and sensitivities of every range, so that the tagged samples can be converted without the device.
+ * It is written once and protected by a CRC32. The second part holds the number of committed records,
+ * updated after each record is completely written: a crash of the application can lose at most the
+ * record being written. Use {@link #setSyncInterval} to also survive a power loss.
+ * <p>
+ * Each record holds the timestamp and the {@link Lsm9ds1Sampler#SAMPLE_SIZE} raw values of one sample,
+ * padded to {@value #RECORD_SIZE} bytes. When a file is full the recorder rolls over to the next one,
+ * named {@code <prefix>-<index>.l9d}, deleting the oldest files beyond the configured maximum. A recorder
+ * created on a directory that already holds files with the same prefix continues that recording after its
+ * last file, instead of overwriting it.
+ * <p>
+ * Add the recorder to a {@link Lsm9ds1Sampler} with {@link Lsm9ds1Sampler#addSampleListener}, or feed it
+ * the samples drained from {@link Lsm9ds1SensorDriver#drain} with {@link #write}. Recording does not
+ * allocate memory, except when rolling over to a new file. All the methods are thread safe.
+ */
+public class SampleRecorder implements Lsm9ds1Sampler.SampleListener, Closeable {
+    static final int MAGIC = 0x4C394431; // "L9D1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 128;
+    static final int RECORD_SIZE = 32;
+    static final String FILE_EXTENSION = ".l9d";
+    static final int FLAG_CLOSED = 1;
+    // Static part of the header, covered by the CRC
+    static final int POSITION_MAGIC = 0;
+    static final int POSITION_VERSION = 4;
+    static final int POSITION_SAMPLE_SIZE = 8;
+    static final int POSITION_CAPACITY = 12;
+    static final int POSITION_FILE_INDEX = 16;
+    static final int POSITION_ACCEL_ODR = 20;
+    static final int POSITION_GYRO_ODR = 24;
+    static final int POSITION_MAG_ODR = 28;
+    static final int POSITION_CREATION_TIME = 32;
+    // One float for each range and scale, indexed by the range or scale value shifted right by 3
+    static final int POSITION_ACCEL_SENSITIVITIES = 40;
+    static final int POSITION_GYRO_SENSITIVITIES = 56;
+    static final int POSITION_MAG_SENSITIVITY = 72;
+    static final int POSITION_TEMP_SENSITIVITY = 76;
+    static final int POSITION_TEMP_OFFSET = 80;
+    static final int POSITION_CRC = 84;
+    // Dynamic part of the header
+    static final int POSITION_FLAGS = 88;
+    static final int POSITION_RECORD_COUNT = 96;
+    static final int RANGE_COUNT = 4;
+    private static final String TAG = SampleRecorder.class.getSimpleName();
+    private static final int[] ACCEL_RANGES = {
+            Lsm9ds1.AccelerometerRange.ACCEL_RANGE_2G,
+            Lsm9ds1.AccelerometerRange.ACCEL_RANGE_16G,
+            Lsm9ds1.AccelerometerRange.ACCEL_RANGE_4G,
+            Lsm9ds1.AccelerometerRange.ACCEL_RANGE_8G
+    };
+    private static final int[] GYRO_SCALES = {
+            Lsm9ds1.GyroscopeScale.GYRO_SCALE_245DPS,
+            Lsm9ds1.GyroscopeScale.GYRO_SCALE_500DPS,
+            Lsm9ds1.GyroscopeScale.GYRO_SCALE_2000DPS
+    };
+
+    private final Lsm9ds1 mDevice;
+    private final File mDirectory;
+    private final String mPrefix;
+    private final int mSamplesPerFile;
+    private final int mMaxFiles;
+    private final byte[] mHeader = new byte[POSITION_CRC];
+    private final CRC32 mCrc = new CRC32();
+    private int mSyncInterval;
+    private int mFileIndex = -1;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private int mRecordCount;
+    private long mRecordedCount;
+    private long mDroppedCount;
+
+    /**
+     * Create a recorder and its first file, following the last file of a previous recording with the same
+     * prefix, if any.
+     *
+     * @param device         the sampled device, to store its configuration in the header of each file.
+     * @param directory      the directory of the files.
+     * @param prefix         the prefix of the file names.
+     * @param samplesPerFile the number of samples of each file.
+     * @param maxFiles       the maximum number of files to keep, the oldest ones are deleted.
+     * @throws IOException
+     */
+    public SampleRecorder(Lsm9ds1 device, File directory, String prefix, int samplesPerFile, int maxFiles)
+            throws IOException {
+        if (samplesPerFile <= 0 || (long) samplesPerFile * RECORD_SIZE > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IllegalArgumentException("samplesPerFile out of range: " + samplesPerFile);
+        }
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("maxFiles must be positive: " + maxFiles);
+        }
+        mDevice = device;
+        mDirectory = directory;
+        mPrefix = prefix;
+        mSamplesPerFile = samplesPerFile;
+        mMaxFiles = maxFiles;
+        mFileIndex = resumeRecording();
+        openNextFile();
+    }
+
+    /**
+     * @param directory the directory of the files.
+     * @param prefix    the prefix of the file names.
+     * @param index     the index of the file.
+     * @return the file with the given index of a recording.
+     */
+    public static File getFile(File directory, String prefix, int index) {
+        return new File(directory, String.format(Locale.US, "%s-%05d%s", prefix, index, FILE_EXTENSION));
+    }
+
+    /**
+     * Flush the records to the storage every {@code syncInterval} records, to survive a power loss.
+     * Flushing is slow and delays the sampler: keep it to a few times per second at most.
+     *
+     * @param syncInterval the number of records between flushes, 0 to flush only when a file is complete.
+     */
+    public synchronized void setSyncInterval(int syncInterval) {
+        if (syncInterval < 0) {
+            throw new IllegalArgumentException("syncInterval must not be negative: " + syncInterval);
+        }
+        mSyncInterval = syncInterval;
+    }
+
+    @Override
+    public void onSample(long timestamp, short[] sample) {
+        write(timestamp, sample, 0);
+    }
+
+    /**
+     * Append a sample to the recording. Does not allocate memory, except when rolling over to a new file.
+     * If the recorder is closed, or a previous error stopped it, the sample is dropped and counted.
+     *
+     * @param timestamp the timestamp of the sample.
+     * @param samples   the array containing the {@link Lsm9ds1Sampler#SAMPLE_SIZE} raw values of the sample.
+     * @param offset    the offset of the sample in {@code samples}.
+     */
+    public synchronized void write(long timestamp, short[] samples, int offset) {
+        if (mBuffer == null) {
+            mDroppedCount++;
+            return;
+        }
+        try {
+            if (mRecordCount == mSamplesPerFile) {
+                openNextFile();
+            }
+            int position = HEADER_SIZE + mRecordCount * RECORD_SIZE;
+            mBuffer.putLong(position, timestamp);
+            position += 8;
+            for (int i = 0; i < Lsm9ds1Sampler.SAMPLE_SIZE; i++) {
+                mBuffer.putShort(position + i * 2, samples[offset + i]);
+            }
+            mRecordCount++;
+            mRecordedCount++;
+            // Commit the record only once it is complete
+            mBuffer.putLong(POSITION_RECORD_COUNT, mRecordCount);
+            if (mSyncInterval > 0 && mRecordCount % mSyncInterval == 0) {
+                mBuffer.force();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to record, stopping", e);
+            closeFile(false);
+            mDroppedCount++;
+        }
+    }
+
+    /**
+     * @return the file being recorded, or null if the recorder is closed.
+     */
+    public synchronized File getCurrentFile() {
+        return mBuffer != null ? mFile : null;
+    }
+
+    /**
+     * @return the number of samples recorded since the creation, including those of the deleted files.
+     */
+    public synchronized long getRecordedSamplesCount() {
+        return mRecordedCount;
+    }
+
+    /**
+     * @return the number of samples dropped because the recorder was closed or stopped by an error.
+     */
+    public synchronized long getDroppedSamplesCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Flush the records to the storage.
+     */
+    public synchronized void sync() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Mark the current file as closed, flush it to the storage and stop recording.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mBuffer != null) {
+            closeFile(true);
+        }
+    }
+
+    /*
+     * Find the last file of a previous recording in the directory, deleting its files that would be beyond
+     * the maximum once the next one is created. Returns the index of the last file, or -1.
+     */
+    private int resumeRecording() {
+        File[] files = SampleRecordingReader.listFiles(mDirectory, mPrefix);
+        int lastIndex = -1;
+        for (File file : files) {
+            lastIndex = Math.max(lastIndex, getFileIndex(file));
+        }
+        // openNextFile() deletes the one at lastIndex + 1 - mMaxFiles
+        for (File file : files) {
+            int index = getFileIndex(file);
+            if (index >= 0 && index < lastIndex + 1 - mMaxFiles && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+        return lastIndex;
+    }
+
+    private int getFileIndex(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(mPrefix.length() + 1, name.length() - FILE_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            // Another recording whose prefix starts with this one
+            return -1;
+        }
+    }
+
+    private void openNextFile() throws IOException {
+        if (mBuffer != null) {
+            closeFile(true);
+        }
+        mFileIndex++;
+        if (mFileIndex >= mMaxFiles) {
+            File oldest = getFile(mDirectory, mPrefix, mFileIndex - mMaxFiles);
+            if (oldest.exists() && !oldest.delete()) {
+                Log.w(TAG, "Unable to delete " + oldest);
+            }
+        }
+        mFile = getFile(mDirectory, mPrefix, mFileIndex);
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            long size = HEADER_SIZE + (long) mSamplesPerFile * RECORD_SIZE;
+            mRandomAccessFile.setLength(size);
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader();
+        } catch (IOException e) {
+            mBuffer = null;
+            mRandomAccessFile.close();
+            throw e;
+        }
+        mRecordCount = 0;
+    }
+
+    private void writeHeader() throws IOException {
+        mBuffer.putLong(POSITION_RECORD_COUNT, 0);
+        mBuffer.putInt(POSITION_FLAGS, 0);
+        mBuffer.putInt(POSITION_MAGIC, MAGIC);
+        mBuffer.putInt(POSITION_VERSION, VERSION);
+        mBuffer.putInt(POSITION_SAMPLE_SIZE, Lsm9ds1Sampler.SAMPLE_SIZE);
+        mBuffer.putInt(POSITION_CAPACITY, mSamplesPerFile);
+        mBuffer.putInt(POSITION_FILE_INDEX, mFileIndex);
+        mBuffer.putInt(POSITION_ACCEL_ODR, mDevice.getAccelerometerOdr());
+        mBuffer.putInt(POSITION_GYRO_ODR, mDevice.getGyroscopeOdr());
+        mBuffer.putInt(POSITION_MAG_ODR, mDevice.getMagnetometerOdr());
+        mBuffer.putLong(POSITION_CREATION_TIME, System.currentTimeMillis());
+        for (int range : ACCEL_RANGES) {
+            mBuffer.putFloat(POSITION_ACCEL_SENSITIVITIES + (range >> 3) * 4,
+                    mDevice.getAccelerationSensitivity(range));
+        }
+        for (int scale : GYRO_SCALES) {
+            mBuffer.putFloat(POSITION_GYRO_SENSITIVITIES + (scale >> 3) * 4,
+                    mDevice.getAngularVelocitySensitivity(scale));
+        }
+        mBuffer.putFloat(POSITION_MAG_SENSITIVITY, mDevice.getMagneticInductionSensitivity());
+        mBuffer.putFloat(POSITION_TEMP_SENSITIVITY, mDevice.getTemperatureSensitivity());
+        mBuffer.putFloat(POSITION_TEMP_OFFSET, Lsm9ds1.TEMP_BIAS);
+        for (int i = 0; i < POSITION_CRC; i++) {
+            mHeader[i] = mBuffer.get(i);
+        }
+        mCrc.reset();
+        mCrc.update(mHeader, 0, POSITION_CRC);
+        mBuffer.putInt(POSITION_CRC, (int) mCrc.getValue());
+        // The header must be on the storage before the records that depend on it
+        mBuffer.force();
+    }
+
+    private void closeFile(boolean markClosed) {
+        if (markClosed) {
+            mBuffer.putInt(POSITION_FLAGS, FLAG_CLOSED);
+            mBuffer.force();
+        }
+        // The mapping stays valid until the buffer is garbage collected, the file can be closed now
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close " + mFile, e);
+        }
+        mRandomAccessFile = null;
+        mBuffer = null;
+    }
+}
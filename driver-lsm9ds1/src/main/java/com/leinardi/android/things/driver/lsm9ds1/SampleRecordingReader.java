@@ -0,0 +1,305 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.FILE_EXTENSION;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.FLAG_CLOSED;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.HEADER_SIZE;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.MAGIC;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_ACCEL_ODR;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_ACCEL_SENSITIVITIES;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_CAPACITY;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_CRC;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_CREATION_TIME;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_FILE_INDEX;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_FLAGS;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_GYRO_ODR;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_GYRO_SENSITIVITIES;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_MAGIC;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_MAG_ODR;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_MAG_SENSITIVITY;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_RECORD_COUNT;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_SAMPLE_SIZE;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_TEMP_OFFSET;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_TEMP_SENSITIVITY;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.POSITION_VERSION;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.RANGE_COUNT;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.RECORD_SIZE;
+import static com.leinardi.android.things.driver.lsm9ds1.SampleRecorder.VERSION;
+
+/**
+ * Streams back the samples of a file written by {@link SampleRecorder}.
+ * <p>
+ * The header is validated when the file is opened. Files left open by a crash of the recorder are
+ * readable up to the last committed record, see {@link #isComplete()}. The header also provides the
+ * sensitivities needed to convert the raw values of each sample, according to the ranges it is tagged with.
+ * <p>
+ * {@link #read} does not allocate memory. This class is not thread safe.
+ */
+public class SampleRecordingReader implements Closeable {
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mRecordCount;
+    private final boolean mComplete;
+    private int mPosition;
+
+    /**
+     * Open a recording file and validate its header.
+     *
+     * @param file the file to read.
+     * @throws IOException if the file cannot be read, or is not a valid recording.
+     */
+    public SampleRecordingReader(File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = mRandomAccessFile.length();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Not a recording, file too short: " + file);
+            }
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mBuffer.getInt(POSITION_MAGIC) != MAGIC) {
+                throw new IOException("Not a recording, wrong magic number: " + file);
+            }
+            if (mBuffer.getInt(POSITION_VERSION) != VERSION) {
+                throw new IOException("Unsupported recording version " + mBuffer.getInt(POSITION_VERSION) + ": "
+                        + file);
+            }
+            byte[] header = new byte[POSITION_CRC];
+            for (int i = 0; i < POSITION_CRC; i++) {
+                header[i] = mBuffer.get(i);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(header, 0, POSITION_CRC);
+            if (mBuffer.getInt(POSITION_CRC) != (int) crc.getValue()) {
+                throw new IOException("Corrupted recording header: " + file);
+            }
+            long capacity = mBuffer.getInt(POSITION_CAPACITY);
+            long recordCount = mBuffer.getLong(POSITION_RECORD_COUNT);
+            if (mBuffer.getInt(POSITION_SAMPLE_SIZE) != Lsm9ds1Sampler.SAMPLE_SIZE
+                    || HEADER_SIZE + capacity * RECORD_SIZE > length
+                    || recordCount < 0 || recordCount > capacity) {
+                throw new IOException("Corrupted recording header: " + file);
+            }
+            mRecordCount = (int) recordCount;
+            mComplete = (mBuffer.getInt(POSITION_FLAGS) & FLAG_CLOSED) != 0;
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * List the files of a recording, oldest first.
+     *
+     * @param directory the directory of the files.
+     * @param prefix    the prefix of the file names, as passed to {@link SampleRecorder}.
+     * @return the files of the recording, sorted by index.
+     */
+    public static File[] listFiles(File directory, final String prefix) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix + "-") && name.endsWith(FILE_EXTENSION);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // The indices are zero padded: as long as they have the same length, the names sort by index
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int lengthDifference = a.getName().length() - b.getName().length();
+                return lengthDifference != 0 ? lengthDifference : a.getName().compareTo(b.getName());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return the file being read.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the index of the file in the recording.
+     */
+    public int getFileIndex() {
+        return mBuffer.getInt(POSITION_FILE_INDEX);
+    }
+
+    /**
+     * @return the wall clock time of the creation of the file, in milliseconds since the epoch.
+     */
+    public long getCreationTime() {
+        return mBuffer.getLong(POSITION_CREATION_TIME);
+    }
+
+    /**
+     * @return {@code false} if the recorder did not close the file, for example because it crashed.
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * @return the number of records of the file.
+     */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return the number of records that can still be read.
+     */
+    public int getRemainingCount() {
+        return mRecordCount - mPosition;
+    }
+
+    /**
+     * @return the accelerometer output data rate when the file was created, one of the
+     * {@link Lsm9ds1.AccelGyroOutputDataRate} values.
+     */
+    @Lsm9ds1.AccelGyroOutputDataRate
+    public int getAccelerometerOdr() {
+        return mBuffer.getInt(POSITION_ACCEL_ODR);
+    }
+
+    /**
+     * @return the gyroscope output data rate when the file was created, one of the
+     * {@link Lsm9ds1.AccelGyroOutputDataRate} values.
+     */
+    @Lsm9ds1.AccelGyroOutputDataRate
+    public int getGyroscopeOdr() {
+        return mBuffer.getInt(POSITION_GYRO_ODR);
+    }
+
+    /**
+     * @return the magnetometer output data rate when the file was created, one of the
+     * {@link Lsm9ds1.MagOutputDataRate} values.
+     */
+    @Lsm9ds1.MagOutputDataRate
+    public int getMagnetometerOdr() {
+        return mBuffer.getInt(POSITION_MAG_ODR);
+    }
+
+    /**
+     * @param range one of the {@link Lsm9ds1.AccelerometerRange} values, see
+     *              {@link Lsm9ds1Sampler#getAccelerometerRange(short[])}.
+     * @return the acceleration in m/s^2 of one raw unit.
+     */
+    public float getAccelerationSensitivity(@Lsm9ds1.AccelerometerRange int range) {
+        return mBuffer.getFloat(POSITION_ACCEL_SENSITIVITIES + checkRangeIndex(range) * 4);
+    }
+
+    /**
+     * @param scale one of the {@link Lsm9ds1.GyroscopeScale} values, see
+     *              {@link Lsm9ds1Sampler#getGyroscopeScale(short[])}.
+     * @return the angular velocity in dps of one raw unit.
+     */
+    public float getAngularVelocitySensitivity(@Lsm9ds1.GyroscopeScale int scale) {
+        return mBuffer.getFloat(POSITION_GYRO_SENSITIVITIES + checkRangeIndex(scale) * 4);
+    }
+
+    /**
+     * @return the magnetic induction in gauss of one raw unit.
+     */
+    public float getMagneticInductionSensitivity() {
+        return mBuffer.getFloat(POSITION_MAG_SENSITIVITY);
+    }
+
+    /**
+     * Convert a raw temperature: {@code raw * getTemperatureSensitivity() + getTemperatureOffset()}.
+     *
+     * @return the temperature in degrees Celsius of one raw unit.
+     */
+    public float getTemperatureSensitivity() {
+        return mBuffer.getFloat(POSITION_TEMP_SENSITIVITY);
+    }
+
+    /**
+     * @return the temperature in degrees Celsius of a raw value of 0.
+     */
+    public float getTemperatureOffset() {
+        return mBuffer.getFloat(POSITION_TEMP_OFFSET);
+    }
+
+    /**
+     * Read the next records. Does not allocate memory.
+     *
+     * @param timestamps array receiving the timestamp of each sample.
+     * @param samples    array receiving {@link Lsm9ds1Sampler#SAMPLE_SIZE} raw values for each sample.
+     * @param maxSamples the maximum number of samples to read.
+     * @return the number of samples read, 0 at the end of the file.
+     */
+    public int read(long[] timestamps, short[] samples, int maxSamples) {
+        int count = Math.min(maxSamples, mRecordCount - mPosition);
+        for (int n = 0; n < count; n++) {
+            int position = HEADER_SIZE + (mPosition + n) * RECORD_SIZE;
+            timestamps[n] = mBuffer.getLong(position);
+            position += 8;
+            int offset = n * Lsm9ds1Sampler.SAMPLE_SIZE;
+            for (int i = 0; i < Lsm9ds1Sampler.SAMPLE_SIZE; i++) {
+                samples[offset + i] = mBuffer.getShort(position + i * 2);
+            }
+        }
+        mPosition += count;
+        return count;
+    }
+
+    /**
+     * Move to the given record.
+     *
+     * @param record the index of the next record to read.
+     */
+    public void seek(int record) {
+        if (record < 0 || record > mRecordCount) {
+            throw new IllegalArgumentException("record out of range: " + record);
+        }
+        mPosition = record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    private static int checkRangeIndex(int range) {
+        int index = range >> 3;
+        if (index < 0 || index >= RANGE_COUNT) {
+            throw new IllegalArgumentException("Unknown range: " + range);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of timestamped samples.
+ * <p>
+ * Every sample is a timestamp plus a fixed number of {@code short} values, stored in preallocated
+ * primitive arrays: neither {@link #offer} nor {@link #drain} allocate memory.
+ * When the buffer is full new samples are dropped and counted, see {@link #getDroppedCount()}.
+ * <p>
+ * {@link #offer} must only be called by the producer thread and {@link #drain} and {@link #clear()}
+ * only by the consumer thread.
+ */
+class SampleRingBuffer {
+    private final int mCapacity;
+    private final int mMask;
+    private final int mSampleSize;
+    private final long[] mTimestamps;
+    private final short[] mSamples;
+    // Sequence number of the next sample to write, only updated by the producer
+    private volatile long mHead;
+    // Sequence number of the next sample to read, only updated by the consumer
+    private volatile long mTail;
+    private volatile long mDroppedCount;
+
+    /**
+     * @param capacity   maximum number of samples, must be a power of two.
+     * @param sampleSize number of {@code short} values of each sample.
+     */
+    SampleRingBuffer(int capacity, int sampleSize) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("sampleSize must be positive: " + sampleSize);
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mSampleSize = sampleSize;
+        mTimestamps = new long[capacity];
+        mSamples = new short[capacity * sampleSize];
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * @return the number of samples waiting to be drained.
+     */
+    int size() {
+        return (int) (mHead - mTail);
+    }
+
+    /**
+     * @return the number of samples dropped because the buffer was full.
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Append a sample. Producer thread only.
+     *
+     * @param timestamp the timestamp of the sample.
+     * @param sample    array containing the sample values.
+     * @param offset    offset of the first value of the sample in {@code sample}.
+     * @return {@code false} if the buffer was full and the sample has been dropped.
+     */
+    boolean offer(long timestamp, short[] sample, int offset) {
+        long head = mHead;
+        if (head - mTail >= mCapacity) {
+            mDroppedCount++;
+            return false;
+        }
+        int slot = (int) head & mMask;
+        mTimestamps[slot] = timestamp;
+        System.arraycopy(sample, offset, mSamples, slot * mSampleSize, mSampleSize);
+        // Publish the sample: the volatile write makes the slot content visible to the consumer
+        mHead = head + 1;
+        return true;
+    }
+
+    /**
+     * Move up to {@code maxSamples} samples, oldest first, into the given arrays. Consumer thread only.
+     *
+     * @param timestamps array receiving one timestamp per sample.
+     * @param samples    array receiving {@link #getSampleSize()} values per sample.
+     * @param maxSamples maximum number of samples to drain.
+     * @return the number of drained samples.
+     */
+    int drain(long[] timestamps, short[] samples, int maxSamples) {
+        long tail = mTail;
+        int count = (int) Math.min(mHead - tail, maxSamples);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (tail + i) & mMask;
+            timestamps[i] = mTimestamps[slot];
+            System.arraycopy(mSamples, slot * mSampleSize, samples, i * mSampleSize, mSampleSize);
+        }
+        // Release the slots: the volatile write guarantees the copy happened before the producer reuses them
+        mTail = tail + count;
+        return count;
+    }
+
+    /**
+     * Discard all the samples waiting to be drained. Consumer thread only.
+     */
+    void clear() {
+        mTail = mHead;
+    }
+}
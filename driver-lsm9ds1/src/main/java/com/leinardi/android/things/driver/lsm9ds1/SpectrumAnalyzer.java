@@ -0,0 +1,413 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Streaming power spectral density estimation with Welch's method, e.g. to monitor the vibration spectrum
+ * of a machine from the 952 Hz accelerometer stream while shipping only a few numbers per estimate.
+ * <p>
+ * The input stream is split into segments of {@link Builder#setFftSize fftSize} samples, overlapping by
+ * {@link Builder#setOverlap overlap}. Each segment is multiplied by a Hann window and transformed with an
+ * in-place radix-2 FFT; the periodograms of {@link Builder#setAverageCount averageCount} consecutive segments
+ * are averaged into a one-sided power spectral density, from which the strongest peaks and the energy of the
+ * configured frequency bands are extracted. Then the {@link SpectrumListener} is notified.
+ * <p>
+ * All the buffers are preallocated: {@link #addSample} does not allocate memory. The analyzer is not thread
+ * safe: samples must be added from a single thread, usually the sampling thread when used as a
+ * {@link Lsm9ds1Sampler.SampleListener}, and the results read from {@link SpectrumListener#onSpectrum}.
+ * As a sample listener it analyzes raw counts, so the {@link Lsm9ds1#setAutoRange(boolean) auto-range}
+ * should be disabled.
+ */
+public class SpectrumAnalyzer implements Lsm9ds1Sampler.SampleListener {
+    private final int mFftSize;
+    private final int mHopSize;
+    private final int mAverageCount;
+    private final float mSampleRate;
+    private final int mSampleOffset;
+    private final float[] mBandEdges;
+    @Nullable
+    private final SpectrumListener mListener;
+
+    private final float[] mWindow;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mBitReversed;
+    private final float mPsdScale;
+
+    // Circular history of the last fftSize samples
+    private final float[] mHistory;
+    private int mHistoryIndex;
+    private int mSamplesUntilSegment;
+    private final float[] mReal;
+    private final float[] mImag;
+    private final float[] mPowerSum;
+    private int mSegmentCount;
+
+    private final float[] mPsd;
+    private final float[] mPeakFrequencies;
+    private final float[] mPeakPowers;
+    private int mPeakCount;
+    private final float[] mBandEnergies;
+
+    /**
+     * Callback invoked every time a new estimate is available.
+     */
+    public interface SpectrumListener {
+        /**
+         * @param analyzer the analyzer, whose results can be read during the call.
+         */
+        void onSpectrum(SpectrumAnalyzer analyzer);
+    }
+
+    private SpectrumAnalyzer(Builder builder) {
+        mFftSize = builder.mFftSize;
+        mHopSize = Math.max(1, Math.round(mFftSize * (1 - builder.mOverlap)));
+        mAverageCount = builder.mAverageCount;
+        mSampleRate = builder.mSampleRate;
+        mSampleOffset = builder.mSampleOffset;
+        mBandEdges = builder.mBandEdges.clone();
+        mListener = builder.mListener;
+
+        int bins = mFftSize / 2 + 1;
+        mWindow = new float[mFftSize];
+        double windowPower = 0;
+        for (int i = 0; i < mFftSize; i++) {
+            // Periodic Hann window
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / mFftSize));
+            windowPower += mWindow[i] * mWindow[i];
+        }
+        // One-sided density: the power of the negative frequencies is folded on the positive ones
+        mPsdScale = (float) (2 / (mSampleRate * windowPower * mAverageCount));
+        mCos = new float[mFftSize / 2];
+        mSin = new float[mFftSize / 2];
+        for (int i = 0; i < mFftSize / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / mFftSize);
+            mSin[i] = (float) -Math.sin(2 * Math.PI * i / mFftSize);
+        }
+        mBitReversed = new int[mFftSize];
+        int bits = Integer.numberOfTrailingZeros(mFftSize);
+        for (int i = 0; i < mFftSize; i++) {
+            mBitReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        mHistory = new float[mFftSize];
+        mSamplesUntilSegment = mFftSize;
+        mReal = new float[mFftSize];
+        mImag = new float[mFftSize];
+        mPowerSum = new float[bins];
+        mPsd = new float[bins];
+        mPeakFrequencies = new float[builder.mPeakCount];
+        mPeakPowers = new float[builder.mPeakCount];
+        mBandEnergies = new float[Math.max(0, mBandEdges.length - 1)];
+    }
+
+    public int getFftSize() {
+        return mFftSize;
+    }
+
+    public float getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return the frequency resolution of the spectrum, in Hz.
+     */
+    public float getBinWidth() {
+        return mSampleRate / mFftSize;
+    }
+
+    /**
+     * @return the number of bins of the spectrum, from 0 Hz to half the sample rate.
+     */
+    public int getBinCount() {
+        return mPsd.length;
+    }
+
+    @Override
+    public void onSample(long timestamp, short[] sample) {
+        addSample(sample[mSampleOffset]);
+    }
+
+    /**
+     * Add a sample to the stream. Does not allocate memory.
+     *
+     * @param value the sample value.
+     */
+    public void addSample(float value) {
+        mHistory[mHistoryIndex] = value;
+        mHistoryIndex = (mHistoryIndex + 1) & (mFftSize - 1);
+        if (--mSamplesUntilSegment == 0) {
+            mSamplesUntilSegment = mHopSize;
+            processSegment();
+            if (++mSegmentCount == mAverageCount) {
+                mSegmentCount = 0;
+                publishEstimate();
+            }
+        }
+    }
+
+    /**
+     * Discard the samples added so far and the partial estimate.
+     */
+    public void reset() {
+        for (int i = 0; i < mFftSize; i++) {
+            mHistory[i] = 0;
+        }
+        for (int i = 0; i < mPowerSum.length; i++) {
+            mPowerSum[i] = 0;
+        }
+        mHistoryIndex = 0;
+        mSamplesUntilSegment = mFftSize;
+        mSegmentCount = 0;
+    }
+
+    /**
+     * @param result array receiving the {@link #getBinCount()} values of the last power spectral density,
+     *               in squared input units per Hz. Bin {@code k} is centered on {@code k * getBinWidth()} Hz.
+     */
+    public void getPowerSpectralDensity(float[] result) {
+        System.arraycopy(mPsd, 0, result, 0, mPsd.length);
+    }
+
+    /**
+     * @return the number of peaks found in the last estimate, at most {@link Builder#setPeakCount peakCount}.
+     */
+    public int getPeakCount() {
+        return mPeakCount;
+    }
+
+    /**
+     * @param frequencies array receiving the frequencies of the peaks, strongest first, in Hz.
+     * @param powers      array receiving the density of the peaks, or {@code null}.
+     * @return the number of peaks.
+     */
+    public int getPeaks(float[] frequencies, @Nullable float[] powers) {
+        System.arraycopy(mPeakFrequencies, 0, frequencies, 0, mPeakCount);
+        if (powers != null) {
+            System.arraycopy(mPeakPowers, 0, powers, 0, mPeakCount);
+        }
+        return mPeakCount;
+    }
+
+    /**
+     * @param result array receiving the energy of each band configured with {@link Builder#setBandEdges},
+     *               i.e. the mean square of the signal in the band, in squared input units.
+     */
+    public void getBandEnergies(float[] result) {
+        System.arraycopy(mBandEnergies, 0, result, 0, mBandEnergies.length);
+    }
+
+    private void processSegment() {
+        // The oldest sample of the history is at the current write index
+        for (int i = 0; i < mFftSize; i++) {
+            int j = mBitReversed[i];
+            mReal[j] = mHistory[(mHistoryIndex + i) & (mFftSize - 1)] * mWindow[i];
+            mImag[j] = 0;
+        }
+        fft();
+        for (int k = 0; k < mPowerSum.length; k++) {
+            mPowerSum[k] += mReal[k] * mReal[k] + mImag[k] * mImag[k];
+        }
+    }
+
+    /*
+     * Iterative radix-2 decimation in time FFT of the bit-reversed input.
+     */
+    private void fft() {
+        for (int size = 2; size <= mFftSize; size <<= 1) {
+            int half = size >> 1;
+            int step = mFftSize / size;
+            for (int start = 0; start < mFftSize; start += size) {
+                for (int k = 0; k < half; k++) {
+                    float cos = mCos[k * step];
+                    float sin = mSin[k * step];
+                    int even = start + k;
+                    int odd = even + half;
+                    float re = mReal[odd] * cos - mImag[odd] * sin;
+                    float im = mReal[odd] * sin + mImag[odd] * cos;
+                    mReal[odd] = mReal[even] - re;
+                    mImag[odd] = mImag[even] - im;
+                    mReal[even] += re;
+                    mImag[even] += im;
+                }
+            }
+        }
+    }
+
+    private void publishEstimate() {
+        int last = mPsd.length - 1;
+        for (int k = 0; k <= last; k++) {
+            // DC and Nyquist have no negative frequency counterpart
+            float scale = k == 0 || k == last ? mPsdScale / 2 : mPsdScale;
+            mPsd[k] = mPowerSum[k] * scale;
+            mPowerSum[k] = 0;
+        }
+        findPeaks();
+        computeBandEnergies();
+        if (mListener != null) {
+            mListener.onSpectrum(this);
+        }
+    }
+
+    private void findPeaks() {
+        float binWidth = getBinWidth();
+        mPeakCount = 0;
+        for (int k = 1; k < mPsd.length - 1; k++) {
+            float power = mPsd[k];
+            if (power <= mPsd[k - 1] || power < mPsd[k + 1]) {
+                continue;
+            }
+            // Insert into the peaks sorted by decreasing power, dropping the weakest one if full
+            int position = mPeakCount;
+            while (position > 0 && mPeakPowers[position - 1] < power) {
+                position--;
+            }
+            if (position == mPeakPowers.length) {
+                continue;
+            }
+            int end = Math.min(mPeakCount, mPeakPowers.length - 1);
+            System.arraycopy(mPeakPowers, position, mPeakPowers, position + 1, end - position);
+            System.arraycopy(mPeakFrequencies, position, mPeakFrequencies, position + 1, end - position);
+            // Parabolic interpolation of the peak position between the neighbouring bins
+            float denominator = mPsd[k - 1] - 2 * power + mPsd[k + 1];
+            float delta = denominator == 0 ? 0 : 0.5f * (mPsd[k - 1] - mPsd[k + 1]) / denominator;
+            mPeakPowers[position] = power;
+            mPeakFrequencies[position] = (k + delta) * binWidth;
+            mPeakCount = Math.min(mPeakCount + 1, mPeakPowers.length);
+        }
+    }
+
+    private void computeBandEnergies() {
+        float binWidth = getBinWidth();
+        for (int band = 0; band < mBandEnergies.length; band++) {
+            int from = Math.max(0, (int) Math.ceil(mBandEdges[band] / binWidth));
+            int to = Math.min(mPsd.length, (int) Math.ceil(mBandEdges[band + 1] / binWidth));
+            float energy = 0;
+            for (int k = from; k < to; k++) {
+                energy += mPsd[k];
+            }
+            mBandEnergies[band] = energy * binWidth;
+        }
+    }
+
+    public static final class Builder {
+        private static final int DEFAULT_FFT_SIZE = 256;
+        private static final float DEFAULT_OVERLAP = 0.5f;
+        private static final int DEFAULT_AVERAGE_COUNT = 8;
+        private static final int DEFAULT_PEAK_COUNT = 5;
+
+        private final float mSampleRate;
+        private int mFftSize = DEFAULT_FFT_SIZE;
+        private float mOverlap = DEFAULT_OVERLAP;
+        private int mAverageCount = DEFAULT_AVERAGE_COUNT;
+        private int mPeakCount = DEFAULT_PEAK_COUNT;
+        private int mSampleOffset = Lsm9ds1Sampler.ACCEL_OFFSET + 2;
+        private float[] mBandEdges = new float[0];
+        private SpectrumListener mListener;
+
+        /**
+         * @param sampleRate the rate of the input stream, in Hz.
+         */
+        public Builder(float sampleRate) {
+            if (sampleRate <= 0) {
+                throw new IllegalArgumentException("sampleRate must be positive");
+            }
+            mSampleRate = sampleRate;
+        }
+
+        /**
+         * @param fftSize the number of samples of each segment, a power of two. Default is 256.
+         */
+        public Builder setFftSize(int fftSize) {
+            if (fftSize < 4 || (fftSize & (fftSize - 1)) != 0) {
+                throw new IllegalArgumentException("fftSize must be a power of two: " + fftSize);
+            }
+            mFftSize = fftSize;
+            return this;
+        }
+
+        /**
+         * @param overlap the fraction of each segment shared with the previous one, in [0, 1). Default is 0.5.
+         */
+        public Builder setOverlap(float overlap) {
+            if (overlap < 0 || overlap >= 1) {
+                throw new IllegalArgumentException("overlap must be in [0, 1): " + overlap);
+            }
+            mOverlap = overlap;
+            return this;
+        }
+
+        /**
+         * @param averageCount the number of segments averaged in each estimate. Default is 8.
+         */
+        public Builder setAverageCount(int averageCount) {
+            if (averageCount <= 0) {
+                throw new IllegalArgumentException("averageCount must be positive");
+            }
+            mAverageCount = averageCount;
+            return this;
+        }
+
+        /**
+         * @param peakCount the maximum number of peaks reported for each estimate. Default is 5.
+         */
+        public Builder setPeakCount(int peakCount) {
+            if (peakCount < 0) {
+                throw new IllegalArgumentException("peakCount must not be negative");
+            }
+            mPeakCount = peakCount;
+            return this;
+        }
+
+        /**
+         * @param sampleOffset the value of the {@link Lsm9ds1Sampler} samples to analyze when used as a
+         *                     {@link Lsm9ds1Sampler.SampleListener}. Default is the accelerometer Z axis.
+         */
+        public Builder setSampleOffset(int sampleOffset) {
+            if (sampleOffset < 0 || sampleOffset >= Lsm9ds1Sampler.SAMPLE_SIZE) {
+                throw new IllegalArgumentException("invalid sampleOffset: " + sampleOffset);
+            }
+            mSampleOffset = sampleOffset;
+            return this;
+        }
+
+        /**
+         * @param bandEdges increasing frequencies, in Hz, delimiting the bands whose energy is computed:
+         *                  {@code n} edges define {@code n - 1} bands.
+         */
+        public Builder setBandEdges(float... bandEdges) {
+            for (int i = 1; i < bandEdges.length; i++) {
+                if (bandEdges[i] <= bandEdges[i - 1]) {
+                    throw new IllegalArgumentException("bandEdges must be increasing");
+                }
+            }
+            mBandEdges = bandEdges.clone();
+            return this;
+        }
+
+        public Builder setSpectrumListener(@Nullable SpectrumListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        public SpectrumAnalyzer build() {
+            return new SpectrumAnalyzer(this);
+        }
+    }
+}
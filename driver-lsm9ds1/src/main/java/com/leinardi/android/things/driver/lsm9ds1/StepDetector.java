@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Incremental pedometer working on the accelerometer stream.
+ * <p>
+ * The magnitude of the acceleration is stripped of gravity with a slow low-pass estimate and smoothed
+ * with a fast low-pass filter, both defined by a time constant so that they do not depend on the output
+ * data rate. Every local maximum of the filtered signal is a step candidate: it is counted when it
+ * exceeds the adaptive threshold, half of the average height of the recent steps but never less than
+ * {@link #setMinThreshold the minimum threshold}, when the signal went below zero since the previous step
+ * and when at least {@link #MIN_STEP_INTERVAL_NANOS} elapsed. After {@link #STEP_TIMEOUT_NANOS} without
+ * steps the threshold goes back to the minimum.
+ * <p>
+ * {@link #update} does not allocate memory. All the methods are thread safe.
+ */
+public class StepDetector {
+    /**
+     * Default minimum height of a step, in m/s^2.
+     */
+    public static final float DEFAULT_MIN_THRESHOLD = 1f;
+    /**
+     * Minimum time between two steps, about the cadence of a sprint.
+     */
+    public static final long MIN_STEP_INTERVAL_NANOS = 250000000L;
+    /**
+     * Time without steps after which the walk is considered over.
+     */
+    public static final long STEP_TIMEOUT_NANOS = 2000000000L;
+    private static final float NANOS_PER_SECOND = 1e9f;
+    private static final float GRAVITY_TIME_CONSTANT = 1f;
+    // About 3 Hz cut-off, above the cadence of walking and running
+    private static final float SMOOTHING_TIME_CONSTANT = 0.05f;
+    private static final float PEAK_FRACTION = 0.5f;
+    private static final float PEAK_AVERAGE_WEIGHT = 0.25f;
+    // A single hard impact must not raise the threshold over the following steps
+    private static final float MAX_PEAK_RATIO = 2f;
+
+    private float mMinThreshold = DEFAULT_MIN_THRESHOLD;
+    private long mLastTimestamp;
+    private float mGravity;
+    private float mFiltered;
+    private long mPreviousTimestamp;
+    private boolean mRising;
+    private boolean mArmed;
+    private float mPeakAverage;
+    private long mLastStepTimestamp;
+    private long mStepCount;
+
+    /**
+     * @return the minimum height of a step, in m/s^2.
+     */
+    public synchronized float getMinThreshold() {
+        return mMinThreshold;
+    }
+
+    /**
+     * Set the minimum height of a step, after removing gravity and smoothing: a lower threshold detects
+     * softer steps but also more false steps.
+     *
+     * @param minThreshold the threshold in m/s^2.
+     */
+    public synchronized void setMinThreshold(float minThreshold) {
+        if (minThreshold <= 0) {
+            throw new IllegalArgumentException("minThreshold must be positive: " + minThreshold);
+        }
+        mMinThreshold = minThreshold;
+    }
+
+    /**
+     * Add an accelerometer sample. Does not allocate memory.
+     *
+     * @param timestamp the timestamp of the sample, in nanoseconds.
+     * @param ax        the x acceleration, in m/s^2.
+     * @param ay        the y acceleration, in m/s^2.
+     * @param az        the z acceleration, in m/s^2.
+     * @return true if a step was detected. The step is timestamped with the previous sample, see
+     * {@link #getLastStepTimestamp()}.
+     */
+    public synchronized boolean update(long timestamp, float ax, float ay, float az) {
+        float magnitude = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        if (mLastTimestamp == 0) {
+            mLastTimestamp = timestamp;
+            mGravity = magnitude;
+            return false;
+        }
+        float dt = (timestamp - mLastTimestamp) / NANOS_PER_SECOND;
+        if (dt <= 0) {
+            return false;
+        }
+        mLastTimestamp = timestamp;
+        mGravity += (magnitude - mGravity) * dt / (GRAVITY_TIME_CONSTANT + dt);
+        float previous = mFiltered;
+        mFiltered += (magnitude - mGravity - mFiltered) * dt / (SMOOTHING_TIME_CONSTANT + dt);
+        boolean step = false;
+        if (mRising && mFiltered < previous) {
+            step = onPeak(previous, mPreviousTimestamp);
+        }
+        if (mFiltered != previous) {
+            mRising = mFiltered > previous;
+        }
+        if (mFiltered < 0) {
+            mArmed = true;
+        }
+        mPreviousTimestamp = timestamp;
+        return step;
+    }
+
+    private boolean onPeak(float height, long timestamp) {
+        long sinceLastStep = timestamp - mLastStepTimestamp;
+        if (mLastStepTimestamp != 0 && sinceLastStep > STEP_TIMEOUT_NANOS) {
+            mPeakAverage = 0;
+        }
+        float threshold = Math.max(mMinThreshold, PEAK_FRACTION * mPeakAverage);
+        if (!mArmed || height < threshold || (mLastStepTimestamp != 0 && sinceLastStep < MIN_STEP_INTERVAL_NANOS)) {
+            return false;
+        }
+        if (mPeakAverage == 0) {
+            mPeakAverage = height;
+        } else {
+            mPeakAverage += (Math.min(height, MAX_PEAK_RATIO * mPeakAverage) - mPeakAverage) * PEAK_AVERAGE_WEIGHT;
+        }
+        mArmed = false;
+        mLastStepTimestamp = timestamp;
+        mStepCount++;
+        return true;
+    }
+
+    /**
+     * @return the number of steps detected since the creation or the last {@link #reset()}.
+     */
+    public synchronized long getStepCount() {
+        return mStepCount;
+    }
+
+    /**
+     * @return the timestamp of the last step, in nanoseconds, or 0 if no step was detected.
+     */
+    public synchronized long getLastStepTimestamp() {
+        return mLastStepTimestamp;
+    }
+
+    /**
+     * Reset the step count and the state of the filters.
+     */
+    public synchronized void reset() {
+        mLastTimestamp = 0;
+        mGravity = 0;
+        mFiltered = 0;
+        mPreviousTimestamp = 0;
+        mRising = false;
+        mArmed = false;
+        mPeakAverage = 0;
+        mLastStepTimestamp = 0;
+        mStepCount = 0;
+    }
+}
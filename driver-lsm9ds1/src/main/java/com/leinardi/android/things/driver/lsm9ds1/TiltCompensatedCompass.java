@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+/**
+ * Tilt-compensated compass: computes the azimuth, pitch and roll of the device from a gravity and a
+ * magnetic field reading taken at the same instant.
+ * <p>
+ * The angles follow the conventions of {@link android.hardware.SensorManager#getOrientation}, in degrees:
+ * the azimuth is the angle between the magnetic north (or the true north, see {@link #setDeclination})
+ * and the Y axis of the device, clockwise, in the range [0, 360); the pitch is the rotation around the
+ * X axis and the roll is the rotation around the Y axis.
+ * <p>
+ * This class is not thread safe and does not allocate memory.
+ */
+public class TiltCompensatedCompass {
+    private static final float RAD_TO_DEG = (float) (180 / Math.PI);
+    // Minimum sine of the angle between gravity and magnetic field: below it the heading is undefined
+    private static final float MIN_SIN_GRAVITY_FIELD = 0.01f;
+
+    private float mDeclination;
+
+    /**
+     * @return the magnetic declination added to the azimuth, in degrees.
+     */
+    public float getDeclination() {
+        return mDeclination;
+    }
+
+    /**
+     * Set the magnetic declination of the location, positive east, to get the azimuth relative to the
+     * true north. See {@link android.hardware.GeomagneticField#getDeclination()}.
+     *
+     * @param declination the declination in degrees.
+     */
+    public void setDeclination(float declination) {
+        mDeclination = declination;
+    }
+
+    /**
+     * Compute the orientation of the device. The two vectors must be expressed in the same frame, any unit
+     * can be used as they are normalized.
+     *
+     * @param ax     the x acceleration, including gravity.
+     * @param ay     the y acceleration, including gravity.
+     * @param az     the z acceleration, including gravity.
+     * @param mx     the x magnetic field.
+     * @param my     the y magnetic field.
+     * @param mz     the z magnetic field.
+     * @param result array receiving azimuth, pitch and roll, in degrees.
+     * @param offset offset of the azimuth in {@code result}.
+     * @return false, leaving {@code result} unchanged, if the device is in free fall or the magnetic field
+     * is parallel to gravity.
+     */
+    public boolean getOrientation(float ax, float ay, float az, float mx, float my, float mz,
+                                  float[] result, int offset) {
+        // East is the cross product of the magnetic field and gravity, north is the cross product of
+        // gravity and east: both are horizontal whatever the tilt of the device
+        float hx = my * az - mz * ay;
+        float hy = mz * ax - mx * az;
+        float hz = mx * ay - my * ax;
+        float normA = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        float normM = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+        float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+        if (normA == 0 || normH <= MIN_SIN_GRAVITY_FIELD * normA * normM) {
+            return false;
+        }
+        float invA = 1f / normA;
+        ax *= invA;
+        ay *= invA;
+        az *= invA;
+        float invH = 1f / normH;
+        hx *= invH;
+        hy *= invH;
+        hz *= invH;
+        float ny = az * hx - ax * hz;
+
+        float azimuth = (float) Math.atan2(hy, ny) * RAD_TO_DEG + mDeclination;
+        azimuth %= 360f;
+        if (azimuth < 0) {
+            azimuth += 360f;
+        }
+        result[offset] = azimuth;
+        result[offset + 1] = (float) Math.asin(Math.max(-1f, Math.min(1f, -ay))) * RAD_TO_DEG;
+        result[offset + 2] = (float) Math.atan2(-ax, az) * RAD_TO_DEG;
+        return true;
+    }
+}
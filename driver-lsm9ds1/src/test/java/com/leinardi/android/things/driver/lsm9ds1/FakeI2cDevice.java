@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * In-memory {@link I2cDevice} backed by a register map, that never allocates while reading or writing.
+ * The static factories build the fakes of a LSM9DS1 and a driver connected to them.
+ */
+class FakeI2cDevice implements I2cDevice {
+    private static final int REGISTER_WHO_AM_I = 0x0F;
+    private static final int XG_ID = 0b01101000;
+    private static final int MAG_ID = 0b00111101;
+    private static final int REGISTER_OUT_X_L_G = 0x18;
+    private static final int REGISTER_FIFO_SRC = 0x2F;
+    private static final int FIFO_SLOT_SIZE = 12;
+    private final byte[] mRegisters = new byte[256];
+    private final boolean[] mClearOnRead = new boolean[256];
+    private final byte[] mFifo = new byte[Lsm9ds1.FIFO_SIZE * FIFO_SLOT_SIZE];
+    private int mFifoSamples;
+    private int mTransactions;
+    private boolean mDisconnected;
+
+    /**
+     * Create the fake of a LSM9DS1 accelerometer/gyroscope, answering to WHO_AM_I with its identifier.
+     */
+    static FakeI2cDevice newAccelGyroDevice() {
+        FakeI2cDevice device = new FakeI2cDevice();
+        device.setRegister(REGISTER_WHO_AM_I, XG_ID);
+        return device;
+    }
+
+    /**
+     * Create the fake of a LSM9DS1 magnetometer, answering to WHO_AM_I with its identifier.
+     */
+    static FakeI2cDevice newMagDevice() {
+        FakeI2cDevice device = new FakeI2cDevice();
+        device.setRegister(REGISTER_WHO_AM_I, MAG_ID);
+        return device;
+    }
+
+    /**
+     * Create a driver with the default configuration, connected to the given fakes.
+     */
+    static Lsm9ds1 newLsm9ds1(FakeI2cDevice accelGyroDevice, FakeI2cDevice magDevice) throws IOException {
+        return new Lsm9ds1(accelGyroDevice, magDevice, new Lsm9ds1.Builder("I2C1"));
+    }
+
+    void setRegister(int reg, int value) {
+        mRegisters[reg] = (byte) value;
+    }
+
+    void setRegisterWord(int reg, int value) {
+        mRegisters[reg] = (byte) value;
+        mRegisters[reg + 1] = (byte) (value >> 8);
+    }
+
+    byte getRegister(int reg) {
+        return mRegisters[reg];
+    }
+
+    /**
+     * Make a register behave like the interrupt sources of the device, that are cleared when read through
+     * the bus. {@link #getRegister(int)} does not clear it.
+     */
+    void setClearOnRead(int reg) {
+        mClearOnRead[reg] = true;
+    }
+
+    /**
+     * Store a sample into the FIFO of a LSM9DS1 accelerometer/gyroscope, with the same value on the three axes.
+     * While the FIFO is not empty FIFO_SRC holds the number of unread samples, and a burst read from
+     * OUT_X_L_G returns the oldest ones, removing them from the FIFO.
+     */
+    void pushFifoSample(int angularRate, int acceleration) {
+        if (mFifoSamples == Lsm9ds1.FIFO_SIZE) {
+            throw new IllegalStateException("FIFO overrun");
+        }
+        int offset = mFifoSamples * FIFO_SLOT_SIZE;
+        for (int axis = 0; axis < 3; axis++) {
+            mFifo[offset + axis * 2] = (byte) angularRate;
+            mFifo[offset + axis * 2 + 1] = (byte) (angularRate >> 8);
+            mFifo[offset + 6 + axis * 2] = (byte) acceleration;
+            mFifo[offset + 6 + axis * 2 + 1] = (byte) (acceleration >> 8);
+        }
+        mFifoSamples++;
+        mRegisters[REGISTER_FIFO_SRC] = (byte) mFifoSamples;
+    }
+
+    int getTransactions() {
+        return mTransactions;
+    }
+
+    void resetTransactions() {
+        mTransactions = 0;
+    }
+
+    /**
+     * Simulate a device that does not answer: every transaction fails with an {@link IOException}.
+     */
+    void setDisconnected(boolean disconnected) {
+        mDisconnected = disconnected;
+    }
+
+    @Override
+    public String getName() {
+        return "fake";
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte readRegByte(int reg) throws IOException {
+        transaction();
+        byte value = mRegisters[reg];
+        clearOnRead(reg, 1);
+        return value;
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) throws IOException {
+        transaction();
+        mRegisters[reg] = data;
+    }
+
+    @Override
+    public short readRegWord(int reg) throws IOException {
+        transaction();
+        short value = (short) ((mRegisters[reg] & 0xFF) | (mRegisters[reg + 1] << 8));
+        clearOnRead(reg, 2);
+        return value;
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) throws IOException {
+        transaction();
+        mRegisters[reg] = (byte) data;
+        mRegisters[reg + 1] = (byte) (data >> 8);
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        transaction();
+        if (reg == REGISTER_OUT_X_L_G && mFifoSamples > 0) {
+            popFifo(buffer, length);
+            return;
+        }
+        System.arraycopy(mRegisters, reg, buffer, 0, length);
+        clearOnRead(reg, length);
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        transaction();
+        System.arraycopy(buffer, 0, mRegisters, reg, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    private void transaction() throws IOException {
+        if (mDisconnected) {
+            throw new IOException("Device disconnected");
+        }
+        mTransactions++;
+    }
+
+    private void popFifo(byte[] buffer, int length) {
+        int samples = length / FIFO_SLOT_SIZE;
+        if (samples > mFifoSamples) {
+            throw new IllegalStateException("Reading " + samples + " samples from FIFO, only " + mFifoSamples
+                    + " are stored");
+        }
+        System.arraycopy(mFifo, 0, buffer, 0, samples * FIFO_SLOT_SIZE);
+        System.arraycopy(mFifo, samples * FIFO_SLOT_SIZE, mFifo, 0, (mFifoSamples - samples) * FIFO_SLOT_SIZE);
+        mFifoSamples -= samples;
+        mRegisters[REGISTER_FIFO_SRC] = (byte) mFifoSamples;
+    }
+
+    private void clearOnRead(int reg, int length) {
+        for (int i = reg; i < reg + length; i++) {
+            if (mClearOnRead[i]) {
+                mRegisters[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilterPipelineTest {
+    private static final float SAMPLE_RATE = 952f;
+
+    @Test
+    public void cicDecimatorHasUnitDcGain() {
+        CicDecimator cic = new CicDecimator(2, 19, 3);
+        float[] frames = new float[19 * 10 * 2];
+        for (int i = 0; i < frames.length; i += 2) {
+            frames[i] = 1000;
+            frames[i + 1] = -250;
+        }
+        assertEquals(10, cic.process(frames, 19 * 10));
+        // The output settles after order output frames
+        assertArrayEquals(new float[]{1000, -250}, new float[]{frames[18], frames[19]}, 0f);
+    }
+
+    @Test
+    public void cicDecimatorKeepsPhaseAcrossCalls() {
+        CicDecimator cic = new CicDecimator(1, 4, 1);
+        float[] frames = {1, 2, 3};
+        assertEquals(0, cic.process(frames, 3));
+        frames = new float[]{6, 10, 10, 10, 10};
+        assertEquals(2, cic.process(frames, 5));
+        assertArrayEquals(new float[]{3, 10}, new float[]{frames[0], frames[1]}, 0f);
+    }
+
+    @Test
+    public void lowPassAttenuatesHighFrequencies() {
+        float[] frames = sine(SAMPLE_RATE, 200f, 952);
+        Biquad.lowPass(1, SAMPLE_RATE, 10, Biquad.BUTTERWORTH_Q).process(frames, frames.length);
+        // Second order: -40 dB/decade above the cutoff, about 1/400 at 200 Hz
+        assertTrue(peak(frames, 476) < 0.005f);
+
+        frames = sine(SAMPLE_RATE, 1f, 952);
+        Biquad.lowPass(1, SAMPLE_RATE, 10, Biquad.BUTTERWORTH_Q).process(frames, frames.length);
+        assertEquals(1f, peak(frames, 476), 0.01f);
+    }
+
+    @Test
+    public void highPassRemovesDc() {
+        float[] frames = new float[952];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = 9.81f;
+        }
+        Biquad.highPass(1, SAMPLE_RATE, 5, Biquad.BUTTERWORTH_Q).process(frames, frames.length);
+        assertEquals(0f, frames[frames.length - 1], 1e-3f);
+    }
+
+    @Test
+    public void movingAverageAveragesLastFrames() {
+        MovingAverage average = new MovingAverage(1, 4);
+        float[] frames = {4, 8, 0, 4, 12, 12};
+        average.process(frames, frames.length);
+        assertArrayEquals(new float[]{4, 6, 4, 4, 6, 7}, frames, 1e-6f);
+    }
+
+    @Test
+    public void pipelineTracksOutputRate() {
+        FilterPipeline pipeline = new FilterPipeline.Builder(3, SAMPLE_RATE)
+                .addCicDecimator(19, 3)
+                .addLowPass(10)
+                .addMovingAverage(2)
+                .build();
+        assertEquals(SAMPLE_RATE / 19, pipeline.getOutputRate(), 1e-3f);
+
+        float[] frames = new float[3 * 19 * 100];
+        for (int i = 0; i < frames.length; i += 3) {
+            frames[i] = 100;
+            frames[i + 1] = 200;
+            frames[i + 2] = 300;
+        }
+        int count = pipeline.process(frames, 19 * 100);
+        assertEquals(100, count);
+        assertArrayEquals(new float[]{100, 200, 300},
+                new float[]{frames[(count - 1) * 3], frames[(count - 1) * 3 + 1], frames[(count - 1) * 3 + 2]}, 0.01f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pipelineRejectsStagesWithDifferentChannels() {
+        new FilterPipeline.Builder(3, SAMPLE_RATE).addStage(new MovingAverage(1, 4));
+    }
+
+    private static float[] sine(float sampleRate, float frequency, int count) {
+        float[] frames = new float[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = (float) Math.sin(2 * Math.PI * frequency * i / sampleRate);
+        }
+        return frames;
+    }
+
+    private static float peak(float[] frames, int from) {
+        float peak = 0;
+        for (int i = from; i < frames.length; i++) {
+            peak = Math.max(peak, Math.abs(frames[i]));
+        }
+        return peak;
+    }
+}
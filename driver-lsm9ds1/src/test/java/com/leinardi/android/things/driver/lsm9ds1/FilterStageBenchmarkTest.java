@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the cost per frame of each {@link FilterStage} on the host JVM and prints it.
+ * The absolute numbers depend on the machine: they are meant to compare the stages, not to be asserted.
+ * <p>
+ * Skipped unless the {@code benchmark} system property is true:
+ * {@code ./gradlew :driver-lsm9ds1:testDebugUnitTest -Dbenchmark=true}
+ */
+public class FilterStageBenchmarkTest {
+    private static final int CHANNELS = 3;
+    private static final int FRAMES = 952;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+    private static final float SAMPLE_RATE = 952f;
+
+    @Before
+    public void assumeBenchmarkEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void costPerFrame() {
+        benchmark("CicDecimator(19, 3)", new CicDecimator(CHANNELS, 19, 3));
+        benchmark("Biquad low-pass", Biquad.lowPass(CHANNELS, SAMPLE_RATE, 10, Biquad.BUTTERWORTH_Q));
+        benchmark("Biquad high-pass", Biquad.highPass(CHANNELS, SAMPLE_RATE, 0.5, Biquad.BUTTERWORTH_Q));
+        benchmark("MovingAverage(16)", new MovingAverage(CHANNELS, 16));
+    }
+
+    private static void benchmark(String name, FilterStage stage) {
+        float[] input = new float[FRAMES * CHANNELS];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (float) (1000 * Math.sin(i * 0.01) + (i % 7));
+        }
+        float[] frames = new float[input.length];
+        float checksum = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            System.arraycopy(input, 0, frames, 0, input.length);
+            checksum += frames[stage.process(frames, FRAMES) / 2];
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            System.arraycopy(input, 0, frames, 0, input.length);
+            checksum += frames[stage.process(frames, FRAMES) / 2];
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(!Float.isNaN(checksum));
+        System.out.println(String.format(Locale.US, "%-20s %6.1f ns/frame (%d channels, copy included)",
+                name, (double) elapsed / ITERATIONS / FRAMES, CHANNELS));
+    }
+}
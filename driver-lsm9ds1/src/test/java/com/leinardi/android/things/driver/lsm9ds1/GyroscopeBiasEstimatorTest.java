@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GyroscopeBiasEstimatorTest {
+    private static final float GRAVITY = 9.81f;
+    private static final long PERIOD_NANOS = 1000000000L / 119;
+    private static final float GYRO_NOISE_DPS = 0.3f;
+    private static final float ACCEL_NOISE = 0.02f;
+    private static final float[] BIAS_AT_25C = {1.5f, -0.8f, 0.4f};
+    // Temperature coefficient of the bias, dps/C
+    private static final float[] BIAS_SLOPE = {0.05f, 0.02f, -0.03f};
+
+    @Test
+    public void stationaryReplayConverges() {
+        GyroscopeBiasEstimator estimator = new GyroscopeBiasEstimator();
+        Recording recording = new Recording(1);
+        recording.replay(estimator, 10, 25f, 25f, 0);
+
+        float[] bias = new float[3];
+        estimator.getBias(25f, bias, 0);
+        assertArrayEquals(BIAS_AT_25C, bias, 0.03f);
+    }
+
+    @Test
+    public void motionIsNotMistakenForBias() {
+        GyroscopeBiasEstimator estimator = new GyroscopeBiasEstimator();
+        Recording recording = new Recording(2);
+        recording.replay(estimator, 10, 25f, 25f, 0);
+        int observations = estimator.getObservationCount();
+        // Slow rotation around the vertical axis, which does not change the acceleration
+        recording.replay(estimator, 5, 25f, 25f, 20f);
+        assertFalse(estimator.isStationary());
+        assertEquals(observations, estimator.getObservationCount());
+
+        float[] bias = new float[3];
+        estimator.getBias(25f, bias, 0);
+        assertArrayEquals(BIAS_AT_25C, bias, 0.03f);
+    }
+
+    @Test
+    public void rotationAtStartupIsNotMistakenForBias() {
+        GyroscopeBiasEstimator estimator = new GyroscopeBiasEstimator();
+        Recording recording = new Recording(4);
+        // Shorter than the run of windows needed for the first estimate
+        recording.replay(estimator, 1, 25f, 25f, 20f);
+        assertEquals(0, estimator.getObservationCount());
+        recording.replay(estimator, 10, 25f, 25f, 0);
+
+        float[] bias = new float[3];
+        estimator.getBias(25f, bias, 0);
+        assertArrayEquals(BIAS_AT_25C, bias, 0.03f);
+    }
+
+    @Test
+    public void biasTakenWhileRotatingIsReplaced() {
+        GyroscopeBiasEstimator estimator = new GyroscopeBiasEstimator();
+        Recording recording = new Recording(5);
+        // Long enough to be taken for the bias
+        recording.replay(estimator, 5, 25f, 25f, 20f);
+        float[] bias = new float[3];
+        estimator.getBias(25f, bias, 0);
+        assertEquals(BIAS_AT_25C[2] + 20f, bias[2], 0.1f);
+
+        // The stationary windows disagree with that estimate until they replace it
+        recording.replay(estimator, 20, 25f, 25f, 0);
+        assertTrue(estimator.isStationary());
+        estimator.getBias(25f, bias, 0);
+        assertArrayEquals(BIAS_AT_25C, bias, 0.03f);
+    }
+
+    @Test
+    public void biasFollowsTemperature() {
+        GyroscopeBiasEstimator estimator = new GyroscopeBiasEstimator();
+        Recording recording = new Recording(3);
+        // The enclosure warms up from 25 to 40 C
+        recording.replay(estimator, 120, 25f, 40f, 0);
+
+        float[] bias = new float[3];
+        for (float temperature = 25f; temperature <= 40f; temperature += 5f) {
+            estimator.getBias(temperature, bias, 0);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expectedBias(i, temperature), bias[i], 0.05f);
+            }
+        }
+    }
+
+    private static float expectedBias(int axis, float temperature) {
+        return BIAS_AT_25C[axis] + BIAS_SLOPE[axis] * (temperature - 25f);
+    }
+
+    /*
+     * Replays a deterministic recording of a sensor lying flat, with white noise on every axis and a
+     * bias depending on the temperature.
+     */
+    private static class Recording {
+        private final Random mRandom;
+        private final float[] mGyro = new float[3];
+        private final float[] mAccel = new float[3];
+        private long mTimestamp;
+
+        Recording(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        void replay(GyroscopeBiasEstimator estimator, int seconds, float startTemperature, float endTemperature,
+                    float rotationRate) {
+            int samples = (int) (seconds * 1000000000L / PERIOD_NANOS);
+            for (int n = 0; n < samples; n++) {
+                float temperature = startTemperature + (endTemperature - startTemperature) * n / samples;
+                for (int i = 0; i < 3; i++) {
+                    mGyro[i] = expectedBias(i, temperature) + (float) mRandom.nextGaussian() * GYRO_NOISE_DPS;
+                    mAccel[i] = (float) mRandom.nextGaussian() * ACCEL_NOISE;
+                }
+                mGyro[2] += rotationRate;
+                mAccel[2] += GRAVITY;
+                mTimestamp += PERIOD_NANOS;
+                estimator.update(mTimestamp, mGyro, 0, mAccel, 0, temperature);
+            }
+        }
+    }
+}
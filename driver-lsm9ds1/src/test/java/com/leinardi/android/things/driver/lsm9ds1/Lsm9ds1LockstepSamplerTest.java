@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class Lsm9ds1LockstepSamplerTest {
+    private static final int REGISTER_OUT_X_L_G = 0x18;
+    private static final int REGISTER_OUT_X_L_XL = 0x28;
+    private static final int REGISTER_OUT_X_L_M = 0x28;
+    private static final int DEVICES = 2;
+
+    private final FakeI2cDevice[] mAccelGyroDevices = new FakeI2cDevice[DEVICES];
+    private final FakeI2cDevice[] mMagDevices = new FakeI2cDevice[DEVICES];
+    private final Lsm9ds1[] mLsm9ds1s = new Lsm9ds1[DEVICES];
+
+    @Before
+    public void setUp() throws IOException {
+        for (int d = 0; d < DEVICES; d++) {
+            mAccelGyroDevices[d] = FakeI2cDevice.newAccelGyroDevice();
+            mMagDevices[d] = FakeI2cDevice.newMagDevice();
+            mLsm9ds1s[d] = FakeI2cDevice.newLsm9ds1(mAccelGyroDevices[d], mMagDevices[d]);
+        }
+    }
+
+    @Test
+    public void rowsContainAllDevicesInOrder() throws IOException {
+        mLsm9ds1s[1].setAccelerometerRange(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_8G);
+        for (int d = 0; d < DEVICES; d++) {
+            mLsm9ds1s[d].setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+            mLsm9ds1s[d].setMagnetometerSystemOperatingMode(
+                    Lsm9ds1.MagnetometerSystemOperatingMode.MAG_CONTINUOUS_CONVERSION);
+            mAccelGyroDevices[d].setRegisterWord(REGISTER_OUT_X_L_G, 100 + d);
+            mAccelGyroDevices[d].setRegisterWord(REGISTER_OUT_X_L_XL, 200 + d);
+            mMagDevices[d].setRegisterWord(REGISTER_OUT_X_L_M, 300 + d);
+            mAccelGyroDevices[d].resetTransactions();
+        }
+        Lsm9ds1LockstepSampler sampler = new Lsm9ds1LockstepSampler(4, mLsm9ds1s);
+
+        sampler.publish(sampler.sampleAll());
+
+        long[] timestamps = new long[4];
+        short[] rows = new short[4 * sampler.getRowSize()];
+        assertEquals(1, sampler.drain(timestamps, rows, 4));
+        for (int d = 0; d < DEVICES; d++) {
+            int offset = d * Lsm9ds1Sampler.SAMPLE_SIZE;
+            // Two burst reads per device for gyroscope, accelerometer and temperature
+            assertEquals(2, mAccelGyroDevices[d].getTransactions());
+            assertEquals(100 + d, rows[offset + Lsm9ds1Sampler.GYRO_OFFSET]);
+            assertEquals(200 + d, rows[offset + Lsm9ds1Sampler.ACCEL_OFFSET]);
+            assertEquals(300 + d, rows[offset + Lsm9ds1Sampler.MAG_OFFSET]);
+        }
+        short[] sample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
+        System.arraycopy(rows, Lsm9ds1Sampler.SAMPLE_SIZE, sample, 0, Lsm9ds1Sampler.SAMPLE_SIZE);
+        assertEquals(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_8G, Lsm9ds1Sampler.getAccelerometerRange(sample));
+        assertEquals(sampler.getLastSkewNanos(), sampler.getMaxSkewNanos());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void atLeastOneDeviceIsRequired() {
+        new Lsm9ds1LockstepSampler();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_238HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagOutputDataRate.ODR_M_20HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_GYRO;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_ONLY;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_GYRO_SLEEP;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_CONTINUOUS;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_LOW_POWER;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_OFF;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Lsm9ds1PowerStateMachineTest {
+    private static final int REGISTER_CTRL_REG1_G = 0x10;
+    private static final int REGISTER_CTRL_REG6_XL = 0x20;
+    private static final int REGISTER_CTRL_REG9 = 0x23;
+    private static final int REGISTER_CTRL_REG1_M = 0x20;
+    private static final int REGISTER_CTRL_REG3_M = 0x22;
+    private static final int ODR_MASK = 0b11100000;
+    private static final int SLEEP_G = 0b01000000;
+    private static final int MAG_LP = 0b00100000;
+    private static final int MAG_ODR_MASK = 0b00011100;
+    private static final int MAG_MD_MASK = 0b00000011;
+
+    private FakeI2cDevice mAccelGyroDevice;
+    private FakeI2cDevice mMagDevice;
+    private Lsm9ds1PowerStateMachine mStateMachine;
+
+    @Before
+    public void setUp() throws IOException {
+        mAccelGyroDevice = FakeI2cDevice.newAccelGyroDevice();
+        mMagDevice = FakeI2cDevice.newMagDevice();
+        mStateMachine = new Lsm9ds1PowerStateMachine(FakeI2cDevice.newLsm9ds1(mAccelGyroDevice, mMagDevice));
+    }
+
+    @Test
+    public void accelGyroTransitionsWriteTheStateRegisters() throws IOException {
+        assertTrue(mStateMachine.setAccelGyroState(XG_ACCEL_GYRO, ODR_238HZ));
+        assertAccelGyroRegisters(ODR_238HZ, ODR_238HZ, false);
+
+        assertTrue(mStateMachine.setAccelGyroState(XG_GYRO_SLEEP, ODR_238HZ));
+        assertAccelGyroRegisters(ODR_238HZ, ODR_238HZ, true);
+
+        assertTrue(mStateMachine.setAccelGyroState(XG_ACCEL_ONLY, ODR_119HZ));
+        assertAccelGyroRegisters(0, ODR_119HZ, false);
+
+        assertTrue(mStateMachine.setAccelGyroState(XG_POWER_DOWN, ODR_119HZ));
+        assertAccelGyroRegisters(0, 0, false);
+        assertEquals(XG_POWER_DOWN, mStateMachine.getAccelGyroState());
+    }
+
+    @Test
+    public void transitionsWriteOnlyChangedRegisters() throws IOException {
+        mStateMachine.setAccelGyroState(XG_ACCEL_ONLY, ODR_119HZ);
+        mAccelGyroDevice.resetTransactions();
+        assertFalse(mStateMachine.setAccelGyroState(XG_ACCEL_ONLY, ODR_119HZ));
+        assertEquals(0, mAccelGyroDevice.getTransactions());
+
+        // The accelerometer already runs at the target rate: only the gyroscope is turned on
+        assertTrue(mStateMachine.setAccelGyroState(XG_ACCEL_GYRO, ODR_119HZ));
+        assertEquals(1, mAccelGyroDevice.getTransactions());
+
+        mAccelGyroDevice.resetTransactions();
+        assertTrue(mStateMachine.setAccelGyroState(XG_GYRO_SLEEP, ODR_119HZ));
+        assertEquals(1, mAccelGyroDevice.getTransactions());
+    }
+
+    @Test
+    public void magnetometerLowPowerForcesSlowestRate() throws IOException {
+        assertTrue(mStateMachine.setMagnetometerState(MAG_CONTINUOUS, ODR_M_20HZ));
+        assertEquals(0, mMagDevice.getRegister(REGISTER_CTRL_REG3_M) & (MAG_LP | MAG_MD_MASK));
+        assertEquals(ODR_M_20HZ, mMagDevice.getRegister(REGISTER_CTRL_REG1_M) & MAG_ODR_MASK);
+
+        assertTrue(mStateMachine.setMagnetometerState(MAG_LOW_POWER, ODR_M_20HZ));
+        assertEquals(MAG_LP, mMagDevice.getRegister(REGISTER_CTRL_REG3_M) & (MAG_LP | MAG_MD_MASK));
+        assertEquals(0, mMagDevice.getRegister(REGISTER_CTRL_REG1_M) & MAG_ODR_MASK);
+
+        assertTrue(mStateMachine.setMagnetometerState(MAG_OFF, ODR_M_20HZ));
+        assertEquals(Lsm9ds1.MagnetometerSystemOperatingMode.MAG_POWER_DOWN,
+                mMagDevice.getRegister(REGISTER_CTRL_REG3_M) & MAG_MD_MASK);
+        assertFalse(mStateMachine.setMagnetometerState(MAG_OFF, ODR_M_20HZ));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runningStateRequiresOutputDataRate() throws IOException {
+        mStateMachine.setAccelGyroState(XG_ACCEL_ONLY, Lsm9ds1.AccelGyroOutputDataRate.ODR_POWER_DOWN);
+    }
+
+    private void assertAccelGyroRegisters(int gyroOdr, int accelOdr, boolean gyroSleep) {
+        assertEquals(gyroOdr, mAccelGyroDevice.getRegister(REGISTER_CTRL_REG1_G) & ODR_MASK);
+        assertEquals(accelOdr, mAccelGyroDevice.getRegister(REGISTER_CTRL_REG6_XL) & ODR_MASK);
+        assertEquals(gyroSleep ? SLEEP_G : 0, mAccelGyroDevice.getRegister(REGISTER_CTRL_REG9) & SLEEP_G);
+    }
+}
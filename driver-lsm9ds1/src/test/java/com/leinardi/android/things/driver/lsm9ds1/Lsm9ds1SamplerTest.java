@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import android.os.Handler;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class Lsm9ds1SamplerTest {
+    private static final int REGISTER_INT1_CTRL = 0x0C;
+    private static final int REGISTER_OUT_X_L_M = 0x28;
+    private static final int REGISTER_FIFO_CTRL = 0x2E;
+    private static final int REGISTER_FIFO_SRC = 0x2F;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private FakeI2cDevice mAccelGyroDevice;
+    private FakeI2cDevice mMagDevice;
+    private Lsm9ds1 mLsm9ds1;
+    private TestSampler mSampler;
+
+    @Before
+    public void setUp() throws IOException {
+        mAccelGyroDevice = FakeI2cDevice.newAccelGyroDevice();
+        mMagDevice = FakeI2cDevice.newMagDevice();
+        mLsm9ds1 = FakeI2cDevice.newLsm9ds1(mAccelGyroDevice, mMagDevice);
+        mSampler = new TestSampler(mLsm9ds1);
+    }
+
+    @After
+    public void tearDown() {
+        mSampler.close();
+    }
+
+    @Test
+    public void magnetometerIsReadAtItsOutputDataRate() throws IOException {
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ);
+        mLsm9ds1.setMagnetometerOdr(Lsm9ds1.MagOutputDataRate.ODR_M_10HZ);
+        mLsm9ds1.setMagnetometerSystemOperatingMode(
+                Lsm9ds1.MagnetometerSystemOperatingMode.MAG_CONTINUOUS_CONVERSION);
+        mMagDevice.setRegisterWord(REGISTER_OUT_X_L_M, 300);
+        mMagDevice.resetTransactions();
+        mSampler.start();
+
+        short[] sample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
+        for (int i = 0; i < 1000; i++) {
+            mSampler.mNow = i * NANOS_PER_MILLI;
+            mSampler.readSamples();
+            mSampler.readLatest(sample);
+            // The samples between two magnetometer reads repeat the last values
+            assertEquals(i < 75 ? 300 : 301, sample[Lsm9ds1Sampler.MAG_OFFSET]);
+            mMagDevice.setRegisterWord(REGISTER_OUT_X_L_M, 301);
+        }
+        // At 0 ms, then every 100 ms a quarter of period early to absorb the scheduling jitter: 75, 175... 975 ms
+        assertEquals(11, mMagDevice.getTransactions());
+    }
+
+    @Test
+    public void failedReadsBackOff() throws IOException {
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ);
+        mSampler.start();
+        long period = Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1);
+        assertEquals(period, mSampler.readSamples());
+
+        mAccelGyroDevice.setDisconnected(true);
+        long minRetryDelay = 1000000000L / 952;
+        assertEquals(minRetryDelay, mSampler.readSamples());
+        assertEquals(2 * minRetryDelay, mSampler.readSamples());
+        assertEquals(4 * minRetryDelay, mSampler.readSamples());
+        for (int i = 0; i < 20; i++) {
+            mSampler.readSamples();
+        }
+        assertEquals(1000000000L, mSampler.readSamples());
+
+        mAccelGyroDevice.setDisconnected(false);
+        assertEquals(period, mSampler.readSamples());
+        mAccelGyroDevice.setDisconnected(true);
+        assertEquals(minRetryDelay, mSampler.readSamples());
+    }
+
+    @Test
+    public void interruptDrivenSamplingReadsOnDataReadyEdges() throws IOException {
+        Gpio gpio = Mockito.mock(Gpio.class);
+        mLsm9ds1 = new Lsm9ds1(mAccelGyroDevice, mMagDevice, gpio, new Lsm9ds1.Builder("I2C1")
+                .setInterrupt1Sources(Lsm9ds1.INT1_IG_XL));
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mSampler = new TestSampler(mLsm9ds1);
+        mSampler.start();
+
+        // The data ready signal is added to the sources configured by the application
+        assertEquals(Lsm9ds1.INT1_IG_XL | Lsm9ds1.INT1_DRDY_XL, mAccelGyroDevice.getRegister(REGISTER_INT1_CTRL));
+        ArgumentCaptor<GpioCallback> callback = ArgumentCaptor.forClass(GpioCallback.class);
+        Mockito.verify(gpio).registerGpioCallback(Mockito.any(Handler.class), callback.capture());
+        callback.getValue().onGpioEdge(gpio);
+        callback.getValue().onGpioEdge(gpio);
+        assertEquals(2, mSampler.getBufferedSamplesCount());
+        // Without edges the sampler only reads again after a few periods, to recover from a missed one
+        long period = Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1);
+        assertEquals(4 * period, mSampler.readSamples());
+
+        mSampler.stop();
+        assertEquals(Lsm9ds1.INT1_IG_XL, mAccelGyroDevice.getRegister(REGISTER_INT1_CTRL));
+        // The edges after stop() are ignored: still the 2 samples of the edges and the one of readSamples()
+        callback.getValue().onGpioEdge(gpio);
+        assertEquals(3, mSampler.getBufferedSamplesCount());
+    }
+
+    @Test
+    public void pollingWithoutInterruptGpio() throws IOException {
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mSampler.start();
+
+        assertEquals(0, mAccelGyroDevice.getRegister(REGISTER_INT1_CTRL));
+        assertEquals(Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1), mSampler.readSamples());
+        assertEquals(1, mSampler.getBufferedSamplesCount());
+    }
+
+    @Test
+    public void batchedSamplesAreBackFilledFromTheLastOne() throws IOException {
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        // 100 ms hold 11 samples at 119 Hz
+        mSampler.setMaxReportLatency(100000);
+        mSampler.start();
+        long period = Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1);
+        assertEquals(11 * period, mSampler.readSamples());
+        assertEquals(Lsm9ds1.FifoMode.FIFO_CONT | 11, mAccelGyroDevice.getRegister(REGISTER_FIFO_CTRL) & 0xFF);
+        assertEquals(0, mSampler.getBufferedSamplesCount());
+
+        long[] timestamps = new long[Lsm9ds1Sampler.MAX_BATCH_SIZE];
+        short[] samples = new short[Lsm9ds1Sampler.MAX_BATCH_SIZE * Lsm9ds1Sampler.SAMPLE_SIZE];
+        long now = 1000 * NANOS_PER_MILLI;
+        readBatch(11, now);
+        assertEquals(11, mSampler.drain(timestamps, samples, timestamps.length));
+        // The last sample is stamped with the time of the read, the previous ones one period earlier each
+        for (int i = 0; i < 11; i++) {
+            assertEquals(now - (10 - i) * period, timestamps[i]);
+            assertEquals(i, samples[i * Lsm9ds1Sampler.SAMPLE_SIZE + Lsm9ds1Sampler.GYRO_OFFSET]);
+            assertEquals(100 + i, samples[i * Lsm9ds1Sampler.SAMPLE_SIZE + Lsm9ds1Sampler.ACCEL_OFFSET]);
+        }
+
+        // The device runs a bit slower than its nominal rate: the period used to back-fill follows it
+        long measuredPeriod = period + period / 16;
+        now += 11 * measuredPeriod;
+        readBatch(11, now);
+        long batchSamplePeriod = period + (measuredPeriod - period) / 8;
+        assertEquals(11, mSampler.drain(timestamps, samples, timestamps.length));
+        for (int i = 0; i < 11; i++) {
+            assertEquals(now - (10 - i) * batchSamplePeriod, timestamps[i]);
+        }
+    }
+
+    @Test
+    public void batchSizeIsLimitedToMaxBatchSize() throws IOException {
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        // 1 s would be 119 samples, more than the FIFO holds: the latency is split into batches
+        mSampler.setMaxReportLatency(1000000);
+        mSampler.start();
+        long period = Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1);
+        assertEquals(Lsm9ds1Sampler.MAX_BATCH_SIZE * period, mSampler.readSamples());
+        assertEquals(Lsm9ds1.FifoMode.FIFO_CONT | Lsm9ds1Sampler.MAX_BATCH_SIZE,
+                mAccelGyroDevice.getRegister(REGISTER_FIFO_CTRL) & 0xFF);
+
+        // A late read drains the samples collected past the threshold too
+        readBatch(Lsm9ds1.FIFO_SIZE, 1000 * NANOS_PER_MILLI);
+        assertEquals(Lsm9ds1.FIFO_SIZE, mSampler.getBufferedSamplesCount());
+        assertEquals(0, mAccelGyroDevice.getRegister(REGISTER_FIFO_SRC) & 0x3F);
+    }
+
+    @Test
+    public void interruptDrivenBatchesReadOnFifoThreshold() throws IOException {
+        Gpio gpio = Mockito.mock(Gpio.class);
+        mLsm9ds1 = new Lsm9ds1(mAccelGyroDevice, mMagDevice, gpio, new Lsm9ds1.Builder("I2C1"));
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mSampler = new TestSampler(mLsm9ds1);
+        mSampler.setMaxReportLatency(100000);
+        mSampler.start();
+        ArgumentCaptor<GpioCallback> callback = ArgumentCaptor.forClass(GpioCallback.class);
+        Mockito.verify(gpio).registerGpioCallback(Mockito.any(Handler.class), callback.capture());
+
+        // Without edges the sampler only reads again before the FIFO overflows
+        long period = Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1);
+        assertEquals(Lsm9ds1.FIFO_SIZE * period, mSampler.readSamples());
+        assertEquals(Lsm9ds1.INT1_FTH, mAccelGyroDevice.getRegister(REGISTER_INT1_CTRL));
+
+        pushFifoSamples(11);
+        mSampler.mNow = 1000 * NANOS_PER_MILLI;
+        callback.getValue().onGpioEdge(gpio);
+        long[] timestamps = new long[Lsm9ds1Sampler.MAX_BATCH_SIZE];
+        short[] samples = new short[Lsm9ds1Sampler.MAX_BATCH_SIZE * Lsm9ds1Sampler.SAMPLE_SIZE];
+        assertEquals(11, mSampler.drain(timestamps, samples, timestamps.length));
+        assertEquals(mSampler.mNow - 10 * period, timestamps[0]);
+        assertEquals(mSampler.mNow, timestamps[10]);
+
+        // Stopping goes back to bypass mode and to the interrupt sources of the application
+        mSampler.stop();
+        assertEquals(0, mAccelGyroDevice.getRegister(REGISTER_INT1_CTRL));
+        assertEquals(Lsm9ds1.FifoMode.FIFO_OFF, mAccelGyroDevice.getRegister(REGISTER_FIFO_CTRL));
+    }
+
+    /*
+     * Fill the FIFO with the given number of samples, then read them at the given time.
+     */
+    private void readBatch(int count, long now) {
+        pushFifoSamples(count);
+        mSampler.mNow = now;
+        mSampler.readSamples();
+    }
+
+    /*
+     * Fill the FIFO with samples numbered from 0 for the gyroscope and from 100 for the accelerometer.
+     */
+    private void pushFifoSamples(int count) {
+        for (int i = 0; i < count; i++) {
+            mAccelGyroDevice.pushFifoSample(i, 100 + i);
+        }
+    }
+
+    /*
+     * Sampler driven by the test clock. Its thread never runs, the reads are performed by readSamples().
+     */
+    private static class TestSampler extends Lsm9ds1Sampler {
+        long mNow;
+
+        TestSampler(Lsm9ds1 device) {
+            super(device);
+        }
+
+        @Override
+        long elapsedRealtimeNanos() {
+            return mNow;
+        }
+    }
+}
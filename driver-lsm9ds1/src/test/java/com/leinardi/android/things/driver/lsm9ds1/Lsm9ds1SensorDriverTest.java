@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import com.google.android.things.userdriver.UserDriverManager;
+import com.google.android.things.userdriver.sensor.UserSensor;
+import com.google.android.things.userdriver.sensor.UserSensorDriver;
+import com.google.android.things.userdriver.sensor.UserSensorReading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_14_9HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_238HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_59_5HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.AccelGyroOutputDataRate.ODR_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagOutputDataRate.ODR_M_0_625HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagOutputDataRate.ODR_M_10HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1.MagOutputDataRate.ODR_M_40HZ;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_GYRO;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_ACCEL_ONLY;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.AccelGyroPowerState.XG_POWER_DOWN;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_CONTINUOUS;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_LOW_POWER;
+import static com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1PowerStateMachine.MagnetometerPowerState.MAG_OFF;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+import static org.powermock.api.mockito.PowerMockito.whenNew;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({UserDriverManager.class, Lsm9ds1SensorDriver.class})
+public class Lsm9ds1SensorDriverTest {
+    private static final int REGISTER_OUT_X_L_XL = 0x28;
+    private static final int REGISTER_OUT_X_L_M = 0x28;
+
+    private FakeI2cDevice mAccelGyroDevice;
+    private FakeI2cDevice mMagDevice;
+    private Lsm9ds1 mLsm9ds1;
+    private Lsm9ds1SensorDriver mDriver;
+    private UserSensor.Builder mUserSensorBuilder;
+    private float[] mLastReadingValues;
+
+    @Before
+    public void setUp() throws Exception {
+        mockStatic(UserDriverManager.class);
+        when(UserDriverManager.getInstance()).thenReturn(mock(UserDriverManager.class));
+        mUserSensorBuilder = mock(UserSensor.Builder.class, RETURNS_SELF);
+        when(mUserSensorBuilder.build()).thenReturn(mock(UserSensor.class));
+        whenNew(UserSensor.Builder.class).withNoArguments().thenReturn(mUserSensorBuilder);
+        // Keep the values of the last reading created, filled by the driver on every read
+        whenNew(UserSensorReading.class).withAnyArguments().thenAnswer(new Answer<UserSensorReading>() {
+            @Override
+            public UserSensorReading answer(InvocationOnMock invocation) {
+                mLastReadingValues = invocation.getArgument(0);
+                return mock(UserSensorReading.class);
+            }
+        });
+
+        mAccelGyroDevice = FakeI2cDevice.newAccelGyroDevice();
+        mMagDevice = FakeI2cDevice.newMagDevice();
+        mLsm9ds1 = FakeI2cDevice.newLsm9ds1(mAccelGyroDevice, mMagDevice);
+        mDriver = new Lsm9ds1SensorDriver(mLsm9ds1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mDriver.close();
+    }
+
+    @Test
+    public void accelerometerAloneUsesItsOwnOutputDataRates() throws IOException {
+        mDriver.registerAccelerometerSensor();
+        UserSensorDriver accelerometer = getLastUserSensorDriver();
+        // Without the gyroscope the code of 59.5 Hz runs the accelerometer at 50 Hz, too slow for 55 Hz
+        accelerometer.setDelay(1000000 / 55);
+        accelerometer.setEnabled(true);
+        assertEquals(XG_ACCEL_ONLY, mDriver.getAccelGyroPowerState());
+        assertEquals(ODR_119HZ, mLsm9ds1.getAccelerometerOdr());
+        assertEquals(ODR_POWER_DOWN, mLsm9ds1.getGyroscopeOdr());
+        accelerometer.setDelay(1000000 / 50);
+        assertEquals(ODR_59_5HZ, mLsm9ds1.getAccelerometerOdr());
+
+        // The 10 Hz of the code of 14.9 Hz are slower than the maximum delay of the sensor
+        accelerometer.setDelay(Integer.MAX_VALUE);
+        assertEquals(ODR_59_5HZ, mLsm9ds1.getAccelerometerOdr());
+
+        accelerometer.setEnabled(false);
+        assertEquals(XG_POWER_DOWN, mDriver.getAccelGyroPowerState());
+        assertEquals(ODR_POWER_DOWN, mLsm9ds1.getAccelerometerOdr());
+    }
+
+    @Test
+    public void accelGyroOutputDataRateFollowsTheFastestEnabledSensor() throws IOException {
+        mDriver.registerAccelerometerSensor();
+        UserSensorDriver accelerometer = getLastUserSensorDriver();
+        mDriver.registerGyroscopeSensor();
+        UserSensorDriver gyroscope = getLastUserSensorDriver();
+        accelerometer.setDelay(1000000 / 12);
+        accelerometer.setEnabled(true);
+        assertEquals(ODR_59_5HZ, mLsm9ds1.getAccelerometerOdr());
+
+        // With the gyroscope on, the same 12 Hz are satisfied by the slowest output data rate
+        gyroscope.setDelay(Integer.MAX_VALUE);
+        gyroscope.setEnabled(true);
+        assertEquals(XG_ACCEL_GYRO, mDriver.getAccelGyroPowerState());
+        assertEquals(ODR_14_9HZ, mLsm9ds1.getGyroscopeOdr());
+        assertEquals(ODR_14_9HZ, mLsm9ds1.getAccelerometerOdr());
+
+        gyroscope.setDelay(1000000 / 200);
+        assertEquals(ODR_238HZ, mLsm9ds1.getGyroscopeOdr());
+        assertEquals(ODR_238HZ, mLsm9ds1.getAccelerometerOdr());
+
+        // A disabled sensor does not count, whatever its delay
+        accelerometer.setDelay(1000);
+        accelerometer.setEnabled(false);
+        assertEquals(ODR_238HZ, mLsm9ds1.getGyroscopeOdr());
+
+        accelerometer.setDelay(1000000 / 12);
+        accelerometer.setEnabled(true);
+        gyroscope.setEnabled(false);
+        assertEquals(XG_ACCEL_ONLY, mDriver.getAccelGyroPowerState());
+        assertEquals(ODR_59_5HZ, mLsm9ds1.getAccelerometerOdr());
+        assertEquals(ODR_POWER_DOWN, mLsm9ds1.getGyroscopeOdr());
+    }
+
+    @Test
+    public void magnetometerOutputDataRateFollowsTheFastestEnabledSensor() throws IOException {
+        mDriver.registerMagneticFieldSensor();
+        UserSensorDriver magnetometer = getLastUserSensorDriver();
+        magnetometer.setDelay(1000000 / 10);
+        magnetometer.setEnabled(true);
+        assertEquals(MAG_CONTINUOUS, mDriver.getMagnetometerPowerState());
+        assertEquals(ODR_M_10HZ, mLsm9ds1.getMagnetometerOdr());
+
+        // The slowest rate is reached in low power mode
+        magnetometer.setDelay(Integer.MAX_VALUE);
+        assertEquals(MAG_LOW_POWER, mDriver.getMagnetometerPowerState());
+        assertEquals(ODR_M_0_625HZ, mLsm9ds1.getMagnetometerOdr());
+
+        magnetometer.setEnabled(false);
+        assertEquals(MAG_OFF, mDriver.getMagnetometerPowerState());
+    }
+
+    @Test
+    public void orientationSensorUsesAccelerometerAndMagnetometer() throws IOException {
+        mDriver.registerOrientationSensor();
+        UserSensorDriver orientation = getLastUserSensorDriver();
+        orientation.setDelay(1000000 / 40);
+        orientation.setEnabled(true);
+        // The gyroscope is not needed for the heading
+        assertEquals(XG_ACCEL_ONLY, mDriver.getAccelGyroPowerState());
+        assertEquals(ODR_59_5HZ, mLsm9ds1.getAccelerometerOdr());
+        assertEquals(MAG_CONTINUOUS, mDriver.getMagnetometerPowerState());
+        assertEquals(ODR_M_40HZ, mLsm9ds1.getMagnetometerOdr());
+
+        orientation.setEnabled(false);
+        assertEquals(XG_POWER_DOWN, mDriver.getAccelGyroPowerState());
+        assertEquals(MAG_OFF, mDriver.getMagnetometerPowerState());
+    }
+
+    @Test
+    public void orientationSensorReportsHeading() throws IOException {
+        mDriver.registerOrientationSensor();
+        UserSensorDriver orientation = getLastUserSensorDriver();
+        orientation.setEnabled(true);
+        // Level device, with the field pointing north and down
+        mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_XL + 4, 16000);
+
+        // North along the Y axis
+        setMagneticField(0, 2000, -3000);
+        orientation.read();
+        assertEquals(0f, mLastReadingValues[0], 1e-3f);
+        assertEquals(0f, mLastReadingValues[1], 1e-3f);
+        assertEquals(0f, mLastReadingValues[2], 1e-3f);
+
+        // North along the X axis of the accelerometer, that is the -X axis of the magnetometer
+        setMagneticField(-2000, 0, -3000);
+        orientation.read();
+        assertEquals(270f, mLastReadingValues[0], 1e-3f);
+    }
+
+    @Test
+    public void disablingAStepSensorReleasesItsRead() throws Exception {
+        mDriver.registerStepDetectorSensor();
+        final UserSensorDriver detector = getLastUserSensorDriver();
+        mDriver.registerStepCounterSensor();
+        UserSensorDriver counter = getLastUserSensorDriver();
+        detector.setEnabled(true);
+        counter.setEnabled(true);
+        final IOException[] failure = new IOException[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    detector.read();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+
+        // The counter keeps the step detection running, the read of the detector must not wait for a step
+        detector.setEnabled(false);
+        reader.join(500);
+        assertFalse(reader.isAlive());
+        assertNotNull(failure[0]);
+    }
+
+    private void setMagneticField(int x, int y, int z) {
+        mMagDevice.setRegisterWord(REGISTER_OUT_X_L_M, x);
+        mMagDevice.setRegisterWord(REGISTER_OUT_X_L_M + 2, y);
+        mMagDevice.setRegisterWord(REGISTER_OUT_X_L_M + 4, z);
+    }
+
+    /*
+     * The framework side of the last registered sensor.
+     */
+    private UserSensorDriver getLastUserSensorDriver() {
+        ArgumentCaptor<UserSensorDriver> driver = ArgumentCaptor.forClass(UserSensorDriver.class);
+        Mockito.verify(mUserSensorBuilder, Mockito.atLeastOnce()).setDriver(driver.capture());
+        List<UserSensorDriver> drivers = driver.getAllValues();
+        return drivers.get(drivers.size() - 1);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import android.hardware.SensorManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JUnit test: PowerMock instruments every class it loads, so it cannot be used to measure allocations.
+ * The Android framework calls are handled by {@code unitTests.returnDefaultValues}.
+ */
+public class Lsm9ds1Test {
+    private static final int REGISTER_ACT_THS = 0x04;
+    private static final int REGISTER_ACT_DUR = 0x05;
+    private static final int REGISTER_INT1_CTRL = 0x0C;
+    private static final int REGISTER_INT2_CTRL = 0x0D;
+    private static final int REGISTER_TEMP_OUT_L = 0x15;
+    private static final int REGISTER_STATUS_REG = 0x17;
+    private static final int REGISTER_OUT_X_L_G = 0x18;
+    private static final int REGISTER_CTRL_REG1_G = 0x10;
+    private static final int REGISTER_CTRL_REG6_XL = 0x20;
+    private static final int REGISTER_INT_GEN_SRC_XL = 0x26;
+    private static final int REGISTER_OUT_X_L_XL = 0x28;
+    private static final int REGISTER_OUT_X_L_M = 0x28;
+    private static final int SAMPLES = 10000;
+
+    private FakeI2cDevice mAccelGyroDevice;
+    private FakeI2cDevice mMagDevice;
+    private Lsm9ds1 mLsm9ds1;
+
+    @Before
+    public void setUp() throws IOException {
+        mAccelGyroDevice = FakeI2cDevice.newAccelGyroDevice();
+        mMagDevice = FakeI2cDevice.newMagDevice();
+        mLsm9ds1 = FakeI2cDevice.newLsm9ds1(mAccelGyroDevice, mMagDevice);
+    }
+
+    @Test
+    public void readAccelerationConvertsToSi() throws IOException {
+        mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_XL, 1000);
+        mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_XL + 2, -1000);
+        mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_XL + 4, 16393);
+
+        float[] acceleration = new float[3];
+        mLsm9ds1.readAcceleration(acceleration);
+
+        float lsb = 0.061f / 1000f * SensorManager.GRAVITY_EARTH;
+        assertArrayEquals(new float[]{1000 * lsb, -1000 * lsb, 16393 * lsb}, acceleration, 1e-4f);
+        assertArrayEquals(mLsm9ds1.readAcceleration(), acceleration, 0f);
+    }
+
+    @Test
+    public void readRawMotion6UsesTwoTransactions() throws IOException {
+        mAccelGyroDevice.setRegisterWord(REGISTER_TEMP_OUT_L, -16);
+        for (int i = 0; i < 3; i++) {
+            mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_G + i * 2, 100 + i);
+            mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_XL + i * 2, -200 - i);
+        }
+        int[] rawGyroscopeData = new int[3];
+        int[] rawAccelerometerData = new int[3];
+        int[] rawTemperature = new int[1];
+        mAccelGyroDevice.resetTransactions();
+
+        mLsm9ds1.readRawMotion6(rawGyroscopeData, rawAccelerometerData, rawTemperature);
+
+        assertEquals(2, mAccelGyroDevice.getTransactions());
+        assertArrayEquals(new int[]{100, 101, 102}, rawGyroscopeData);
+        assertArrayEquals(new int[]{-200, -201, -202}, rawAccelerometerData);
+        assertEquals(-16, rawTemperature[0]);
+        assertArrayEquals(rawGyroscopeData, mLsm9ds1.getRawGyroscopeData());
+        assertArrayEquals(rawAccelerometerData, mLsm9ds1.readRawAccelerometerData());
+    }
+
+    @Test
+    public void readRawMotion6KeepsLatchedAccelerometerInterrupts() throws IOException {
+        mAccelGyroDevice.setRegister(REGISTER_INT_GEN_SRC_XL, 0b01000010);
+        mAccelGyroDevice.setClearOnRead(REGISTER_INT_GEN_SRC_XL);
+
+        mLsm9ds1.readRawMotion6(new int[3], new int[3], new int[1]);
+        mLsm9ds1.readRawMotion6(new int[3], new int[3], null);
+
+        assertEquals(0b01000010, mAccelGyroDevice.getRegister(REGISTER_INT_GEN_SRC_XL));
+    }
+
+    @Test
+    public void settersUseShadowRegisters() throws IOException {
+        mAccelGyroDevice.resetTransactions();
+        mMagDevice.resetTransactions();
+
+        mLsm9ds1.setAccelerometerRange(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_8G);
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ);
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ); // unchanged: not written
+        mLsm9ds1.setMagnetometerGain(Lsm9ds1.MagnetometerGain.MAG_GAIN_16GAUSS);
+
+        assertEquals(2, mAccelGyroDevice.getTransactions());
+        assertEquals(1, mMagDevice.getTransactions());
+        assertEquals(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_8G, mLsm9ds1.getAccelerometerRange());
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ, mLsm9ds1.getAccelerometerOdr());
+        assertEquals(Lsm9ds1.MagnetometerGain.MAG_GAIN_16GAUSS, mLsm9ds1.getMagnetometerGain());
+        assertEquals(3, mAccelGyroDevice.getTransactions() + mMagDevice.getTransactions());
+        assertTrue(mLsm9ds1.verifyRegisters());
+    }
+
+    @Test
+    public void resyncRegistersReloadsShadow() throws IOException {
+        mAccelGyroDevice.setRegister(REGISTER_CTRL_REG6_XL, Lsm9ds1.AccelerometerRange.ACCEL_RANGE_16G);
+        assertFalse(mLsm9ds1.verifyRegisters());
+
+        mLsm9ds1.resyncRegisters();
+
+        assertTrue(mLsm9ds1.verifyRegisters());
+        assertEquals(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_16G, mLsm9ds1.getAccelerometerRange());
+        assertEquals(0.732f / 1000f * SensorManager.GRAVITY_EARTH, mLsm9ds1.getAccelerationSensitivity(), 1e-6f);
+    }
+
+    @Test
+    public void odrForFrequencyIsLowestSufficientRate() {
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_14_9HZ, Lsm9ds1.getAccelGyroOdrForFrequency(5f));
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ, Lsm9ds1.getAccelGyroOdrForFrequency(100f));
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ, Lsm9ds1.getAccelGyroOdrForFrequency(5000f));
+        assertEquals(Lsm9ds1.MagOutputDataRate.ODR_M_6HZ, Lsm9ds1.getMagnetometerOdrForFrequency(5f));
+        assertEquals(Lsm9ds1.MagOutputDataRate.ODR_M_10HZ, Lsm9ds1.getMagnetometerOdrForFrequency(10f));
+        assertEquals(Lsm9ds1.MagOutputDataRate.ODR_M_80HZ, Lsm9ds1.getMagnetometerOdrForFrequency(200f));
+    }
+
+    @Test
+    public void accelerometerOnlyOdrForFrequencyUsesAccelerometerRates() {
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_14_9HZ, Lsm9ds1.getAccelerometerOnlyOdrForFrequency(10f));
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_59_5HZ, Lsm9ds1.getAccelerometerOnlyOdrForFrequency(12f));
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_119HZ, Lsm9ds1.getAccelerometerOnlyOdrForFrequency(55f));
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ, Lsm9ds1.getAccelerometerOnlyOdrForFrequency(5000f));
+    }
+
+    @Test
+    public void samplingPeriodFollowsAccelerometerOnlyRates() throws IOException {
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_59_5HZ);
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_POWER_DOWN);
+        assertEquals(20000000L, Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1));
+
+        mLsm9ds1.setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_59_5HZ);
+        assertEquals((long) (1e9 / 59.5f), Lsm9ds1Sampler.getSamplingPeriodNanos(mLsm9ds1));
+    }
+
+    @Test
+    public void accelerometerDecimationKeepsOdr() throws IOException {
+        mLsm9ds1.setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ);
+        mLsm9ds1.setAccelerometerDecimation(Lsm9ds1.AccelerometerDecimation.ACCEL_DEC_2_SAMPLES);
+
+        assertEquals(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ, mLsm9ds1.getAccelerometerOdr());
+        assertEquals(Lsm9ds1.AccelerometerDecimation.ACCEL_DEC_2_SAMPLES, mLsm9ds1.getAccelerometerDecimation());
+    }
+
+    @Test
+    public void gyroscopeScaleIsWrittenToFsBits() throws IOException {
+        mLsm9ds1.setGyroscopeScale(Lsm9ds1.GyroscopeScale.GYRO_SCALE_500DPS);
+        assertEquals(0b01000, mAccelGyroDevice.readRegByte(REGISTER_CTRL_REG1_G) & 0b11000);
+        mLsm9ds1.setGyroscopeScale(Lsm9ds1.GyroscopeScale.GYRO_SCALE_2000DPS);
+        assertEquals(0b11000, mAccelGyroDevice.readRegByte(REGISTER_CTRL_REG1_G) & 0b11000);
+        assertEquals(Lsm9ds1.GyroscopeScale.GYRO_SCALE_2000DPS, mLsm9ds1.getGyroscopeScale());
+    }
+
+    @Test
+    public void inactivityIsWrittenToActivityRegisters() throws IOException {
+        mLsm9ds1.setInactivityDuration(200);
+        mLsm9ds1.setInactivityThreshold(20);
+        mLsm9ds1.setGyroscopeSleepOnInactivityEnabled(true);
+        assertEquals(200, mAccelGyroDevice.readRegByte(REGISTER_ACT_DUR) & 0xFF);
+        assertEquals(0b10010100, mAccelGyroDevice.readRegByte(REGISTER_ACT_THS) & 0xFF);
+        mLsm9ds1.setInactivityThreshold(0);
+        assertEquals(0b10000000, mAccelGyroDevice.readRegByte(REGISTER_ACT_THS) & 0xFF);
+        assertEquals(0, mLsm9ds1.getInactivityThreshold());
+        assertTrue(mLsm9ds1.isGyroscopeSleepOnInactivityEnabled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void inactivityThresholdOutOfRangeThrows() throws IOException {
+        mLsm9ds1.setInactivityThreshold(128);
+    }
+
+    @Test
+    public void inactivityIsReadWithMotion6() throws IOException {
+        int[] rawGyroscopeData = new int[3];
+        int[] rawAccelerometerData = new int[3];
+        int[] rawTemperature = new int[1];
+        mAccelGyroDevice.setRegister(REGISTER_STATUS_REG, 0b00010000);
+        mAccelGyroDevice.resetTransactions();
+
+        mLsm9ds1.readRawMotion6(rawGyroscopeData, rawAccelerometerData, rawTemperature);
+
+        assertEquals(2, mAccelGyroDevice.getTransactions());
+        assertTrue(mLsm9ds1.wasInactiveOnLastMotion6());
+        mAccelGyroDevice.setRegister(REGISTER_STATUS_REG, 0);
+        mLsm9ds1.readRawMotion6(rawGyroscopeData, rawAccelerometerData, rawTemperature);
+        assertFalse(mLsm9ds1.wasInactiveOnLastMotion6());
+    }
+
+    @Test
+    public void autoRangeSwitchesUpOnSaturationAndDownWithHysteresis() throws IOException {
+        mLsm9ds1.setAutoRange(true);
+        int[] gyro = new int[3];
+        int[] accel = {0, 0, 32000};
+        mLsm9ds1.updateAutoRange(gyro, accel, 1);
+        assertEquals(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_4G, mLsm9ds1.getAccelerometerRange());
+        assertEquals(mLsm9ds1.getAccelerationSensitivity(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_4G),
+                mLsm9ds1.getAccelerationSensitivity(), 0f);
+
+        // Half of the 4G full scale would fill 2G: not small enough to switch back
+        accel[2] = 16000;
+        for (int i = 0; i < 1000; i++) {
+            mLsm9ds1.updateAutoRange(gyro, accel, 1);
+        }
+        assertEquals(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_4G, mLsm9ds1.getAccelerometerRange());
+
+        accel[2] = 5000;
+        mLsm9ds1.updateAutoRange(gyro, accel, 1);
+        assertEquals(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_4G, mLsm9ds1.getAccelerometerRange());
+        for (int i = 0; i < 1000; i++) {
+            mLsm9ds1.updateAutoRange(gyro, accel, 1);
+        }
+        assertEquals(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_2G, mLsm9ds1.getAccelerometerRange());
+        assertEquals(Lsm9ds1.GyroscopeScale.GYRO_SCALE_245DPS, mLsm9ds1.getGyroscopeScale());
+    }
+
+    @Test
+    public void interruptSourcesAreConfigured() throws IOException {
+        Lsm9ds1 lsm9ds1 = new Lsm9ds1(mAccelGyroDevice, mMagDevice, new Lsm9ds1.Builder("I2C1")
+                .setInterrupt1Sources(Lsm9ds1.INT1_DRDY_XL | Lsm9ds1.INT1_FTH)
+                .setInterrupt2Sources(Lsm9ds1.INT2_DRDY_G));
+        assertEquals(Lsm9ds1.INT1_DRDY_XL | Lsm9ds1.INT1_FTH, mAccelGyroDevice.getRegister(REGISTER_INT1_CTRL));
+        assertEquals(Lsm9ds1.INT2_DRDY_G, mAccelGyroDevice.getRegister(REGISTER_INT2_CTRL));
+
+        lsm9ds1.setInterrupt1Sources(Lsm9ds1.INT1_DRDY_G);
+        assertEquals(Lsm9ds1.INT1_DRDY_G, mAccelGyroDevice.getRegister(REGISTER_INT1_CTRL));
+        assertEquals(Lsm9ds1.INT1_DRDY_G, lsm9ds1.getInterrupt1Sources());
+        assertFalse(lsm9ds1.hasInterruptGpio());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void registerInterruptCallbackRequiresGpio() throws IOException {
+        mLsm9ds1.registerInterruptCallback(new Lsm9ds1.InterruptCallback() {
+            @Override
+            public void onInterrupt(Lsm9ds1 device) {
+            }
+        }, null);
+    }
+
+    @Test
+    public void readDoesNotAllocate() throws IOException {
+        mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_G, 123);
+        mAccelGyroDevice.setRegisterWord(REGISTER_OUT_X_L_XL, 456);
+        mMagDevice.setRegisterWord(REGISTER_OUT_X_L_M, 789);
+        float[] acceleration = new float[3];
+        float[] angularVelocity = new float[3];
+        float[] magneticInduction = new float[3];
+        int[] raw = new int[3];
+
+        // Warm up, so that class loading and lazy initializations are not measured
+        for (int i = 0; i < SAMPLES; i++) {
+            readAll(acceleration, angularVelocity, magneticInduction, raw);
+        }
+        long allocatedBytes = getAllocatedBytes();
+        allocatedBytes = getAllocatedBytes() - allocatedBytes;
+        long before = getAllocatedBytes();
+        for (int i = 0; i < SAMPLES; i++) {
+            readAll(acceleration, angularVelocity, magneticInduction, raw);
+        }
+        long allocated = getAllocatedBytes() - before - allocatedBytes;
+
+        assertTrue("Allocated " + allocated + " bytes for " + SAMPLES + " samples", allocated < SAMPLES);
+    }
+
+    private void readAll(float[] acceleration, float[] angularVelocity, float[] magneticInduction, int[] raw)
+            throws IOException {
+        mLsm9ds1.readAcceleration(acceleration);
+        mLsm9ds1.readAngularVelocity(angularVelocity);
+        mLsm9ds1.readMagneticInduction(magneticInduction);
+        mLsm9ds1.readRawAccelerometerData(raw);
+        mLsm9ds1.getRawGyroscopeData(raw);
+        mLsm9ds1.readRawMagnetometerData(raw);
+        mLsm9ds1.readTemperature();
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class MadgwickAhrsTest {
+    private static final float DT = 0.01f;
+    private static final int ITERATIONS = 5000;
+    private static final float GRAVITY = 9.81f;
+    // Earth magnetic field with an inclination of 60 degrees (gauss)
+    private static final float MAG_HORIZONTAL = 0.25f;
+    private static final float MAG_VERTICAL = -0.43f;
+    private static final float SIN_45 = (float) Math.sin(Math.PI / 4);
+
+    @Test
+    public void levelDevicePointingNorthHasIdentityRotationVector() {
+        MadgwickAhrs ahrs = new MadgwickAhrs();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ahrs.update(0, 0, 0, 0, 0, GRAVITY, 0, MAG_HORIZONTAL, MAG_VERTICAL, DT);
+        }
+
+        float[] rotationVector = new float[4];
+        ahrs.getRotationVector(rotationVector);
+        assertArrayEquals(new float[]{0, 0, 0, 1}, rotationVector, 0.01f);
+    }
+
+    @Test
+    public void levelDevicePointingWestIsRotatedAroundZ() {
+        // Y axis pointing west: the device is rotated by +90 degrees around the vertical axis
+        MadgwickAhrs ahrs = new MadgwickAhrs();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ahrs.update(0, 0, 0, 0, 0, GRAVITY, MAG_HORIZONTAL, 0, MAG_VERTICAL, DT);
+        }
+
+        float[] rotationVector = new float[4];
+        ahrs.getRotationVector(rotationVector);
+        assertArrayEquals(new float[]{0, 0, SIN_45, SIN_45}, rotationVector, 0.01f);
+    }
+
+    @Test
+    public void gyroscopeIsIntegrated() {
+        // 90 degrees around X in one second, without accelerometer feedback
+        MadgwickAhrs ahrs = new MadgwickAhrs();
+        float rate = (float) (Math.PI / 2);
+        for (int i = 0; i < 100; i++) {
+            ahrs.updateImu(rate, 0, 0, 0, 0, 0, DT);
+        }
+
+        float[] quaternion = new float[4];
+        ahrs.getQuaternion(quaternion);
+        assertArrayEquals(new float[]{SIN_45, SIN_45, 0, 0}, quaternion, 0.01f);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MagnetometerCalibrationTest {
+    private static final float FIELD_STRENGTH = 0.5f;
+    private static final float[] HARD_IRON = {0.3f, -0.2f, 0.15f};
+    // Symmetric distortion with an eigenvector not aligned with the axes and a determinant of ~1
+    private static final float[] SOFT_IRON = {
+            1.2f, 0.1f, 0f,
+            0.1f, 0.9f, 0.05f,
+            0f, 0.05f, 0.93f
+    };
+
+    @Test
+    public void fitRemovesHardAndSoftIron() {
+        MagnetometerCalibration calibration = new MagnetometerCalibration();
+        float[] sample = new float[3];
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                distortedSample(i * Math.PI / 19, j * 2 * Math.PI / 20, sample);
+                calibration.addSample(sample[0], sample[1], sample[2]);
+            }
+        }
+        assertTrue(calibration.fit());
+
+        float[] offset = new float[3];
+        calibration.getHardIronOffset(offset);
+        assertArrayEquals(HARD_IRON, offset, 1e-3f);
+        for (int i = 0; i < 50; i++) {
+            distortedSample(i * 0.37, i * 1.13, sample);
+            calibration.apply(sample, 0);
+            float norm = (float) Math.sqrt(sample[0] * sample[0] + sample[1] * sample[1] + sample[2] * sample[2]);
+            assertEquals(FIELD_STRENGTH, norm, FIELD_STRENGTH * 0.02f);
+        }
+    }
+
+    @Test
+    public void fitRequiresSamplesInAllDirections() {
+        MagnetometerCalibration calibration = new MagnetometerCalibration();
+        assertFalse(calibration.fit());
+        // Rotation around the Z axis only: the samples lie on a circle
+        for (int i = 0; i < 100; i++) {
+            double angle = i * 2 * Math.PI / 100;
+            calibration.addSample((float) Math.cos(angle), (float) Math.sin(angle), 0.4f);
+        }
+        assertFalse(calibration.fit());
+
+        float[] sample = {0.1f, 0.2f, 0.3f};
+        calibration.apply(sample, 0);
+        assertArrayEquals(new float[]{0.1f, 0.2f, 0.3f}, sample, 0f);
+    }
+
+    @Test
+    public void parametersAreSavedAndLoaded() throws IOException {
+        MagnetometerCalibration calibration = new MagnetometerCalibration();
+        calibration.setParameters(HARD_IRON, SOFT_IRON);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        calibration.save(out);
+
+        MagnetometerCalibration loaded = new MagnetometerCalibration();
+        loaded.load(new ByteArrayInputStream(out.toByteArray()));
+        float[] offset = new float[3];
+        float[] matrix = new float[9];
+        loaded.getHardIronOffset(offset);
+        loaded.getSoftIronMatrix(matrix);
+        assertArrayEquals(HARD_IRON, offset, 0f);
+        assertArrayEquals(SOFT_IRON, matrix, 0f);
+    }
+
+    /*
+     * A field of constant strength pointing in the given direction, seen through the inverse of the
+     * soft-iron matrix and shifted by the hard-iron offset.
+     */
+    private static void distortedSample(double inclination, double azimuth, float[] result) {
+        double x = FIELD_STRENGTH * Math.sin(inclination) * Math.cos(azimuth);
+        double y = FIELD_STRENGTH * Math.sin(inclination) * Math.sin(azimuth);
+        double z = FIELD_STRENGTH * Math.cos(inclination);
+        // Solve SOFT_IRON * d = (x, y, z) with Cramer's rule
+        float[] m = SOFT_IRON;
+        double det = m[0] * (m[4] * m[8] - m[5] * m[7]) - m[1] * (m[3] * m[8] - m[5] * m[6])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+        double dx = (x * (m[4] * m[8] - m[5] * m[7]) - m[1] * (y * m[8] - m[5] * z) + m[2] * (y * m[7] - m[4] * z))
+                / det;
+        double dy = (m[0] * (y * m[8] - m[5] * z) - x * (m[3] * m[8] - m[5] * m[6]) + m[2] * (m[3] * z - y * m[6]))
+                / det;
+        double dz = (m[0] * (m[4] * z - y * m[7]) - m[1] * (m[3] * z - y * m[6]) + x * (m[3] * m[7] - m[4] * m[6]))
+                / det;
+        result[0] = (float) (dx + HARD_IRON[0]);
+        result[1] = (float) (dy + HARD_IRON[1]);
+        result[2] = (float) (dz + HARD_IRON[2]);
+    }
+}
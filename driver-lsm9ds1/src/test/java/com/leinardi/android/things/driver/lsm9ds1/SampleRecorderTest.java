@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SampleRecorderTest {
+    private static final String PREFIX = "imu";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private Lsm9ds1 mLsm9ds1;
+
+    @Before
+    public void setUp() throws IOException {
+        mLsm9ds1 = FakeI2cDevice.newLsm9ds1(FakeI2cDevice.newAccelGyroDevice(), FakeI2cDevice.newMagDevice());
+    }
+
+    @Test
+    public void samplesAreReadBackAcrossFiles() throws IOException {
+        SampleRecorder recorder = new SampleRecorder(mLsm9ds1, mFolder.getRoot(), PREFIX, 4, 3);
+        for (int n = 0; n < 10; n++) {
+            recorder.onSample(1000L * n, sample(n));
+        }
+        recorder.close();
+        assertEquals(10, recorder.getRecordedSamplesCount());
+
+        File[] files = SampleRecordingReader.listFiles(mFolder.getRoot(), PREFIX);
+        assertEquals(3, files.length);
+        long[] timestamps = new long[4];
+        short[] samples = new short[4 * Lsm9ds1Sampler.SAMPLE_SIZE];
+        short[] sample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
+        int n = 0;
+        for (int f = 0; f < files.length; f++) {
+            SampleRecordingReader reader = new SampleRecordingReader(files[f]);
+            assertEquals(f, reader.getFileIndex());
+            assertTrue(reader.isComplete());
+            int count;
+            while ((count = reader.read(timestamps, samples, 3)) > 0) {
+                for (int i = 0; i < count; i++, n++) {
+                    assertEquals(1000L * n, timestamps[i]);
+                    System.arraycopy(samples, i * Lsm9ds1Sampler.SAMPLE_SIZE, sample, 0, Lsm9ds1Sampler.SAMPLE_SIZE);
+                    assertArrayEquals(sample(n), sample);
+                }
+            }
+            reader.close();
+        }
+        assertEquals(10, n);
+    }
+
+    @Test
+    public void oldestFilesAreDeleted() throws IOException {
+        SampleRecorder recorder = new SampleRecorder(mLsm9ds1, mFolder.getRoot(), PREFIX, 2, 2);
+        for (int n = 0; n < 7; n++) {
+            recorder.onSample(n, sample(n));
+        }
+        recorder.close();
+
+        File[] files = SampleRecordingReader.listFiles(mFolder.getRoot(), PREFIX);
+        assertEquals(2, files.length);
+        assertEquals(SampleRecorder.getFile(mFolder.getRoot(), PREFIX, 2), files[0]);
+        assertEquals(SampleRecorder.getFile(mFolder.getRoot(), PREFIX, 3), files[1]);
+    }
+
+    @Test
+    public void reopenedRecordingContinuesAfterItsLastFile() throws IOException {
+        for (int session = 0; session < 3; session++) {
+            SampleRecorder recorder = new SampleRecorder(mLsm9ds1, mFolder.getRoot(), PREFIX, 4, 4);
+            for (int n = 0; n < 6; n++) {
+                recorder.onSample(session * 100 + n, sample(n));
+            }
+            recorder.close();
+        }
+
+        // Two files for each session, the ones of the first session exceed the maximum
+        File[] files = SampleRecordingReader.listFiles(mFolder.getRoot(), PREFIX);
+        assertEquals(4, files.length);
+        int[] recordCounts = {4, 2, 4, 2};
+        for (int f = 0; f < files.length; f++) {
+            SampleRecordingReader reader = new SampleRecordingReader(files[f]);
+            assertEquals(f + 2, reader.getFileIndex());
+            assertEquals(recordCounts[f], reader.getRecordCount());
+            reader.close();
+        }
+        assertFalse(SampleRecorder.getFile(mFolder.getRoot(), PREFIX, 0).exists());
+        assertFalse(SampleRecorder.getFile(mFolder.getRoot(), PREFIX, 1).exists());
+    }
+
+    @Test
+    public void unclosedFileIsReadUpToTheLastRecord() throws IOException {
+        SampleRecorder recorder = new SampleRecorder(mLsm9ds1, mFolder.getRoot(), PREFIX, 16, 1);
+        for (int n = 0; n < 5; n++) {
+            recorder.onSample(n, sample(n));
+        }
+        recorder.sync();
+
+        SampleRecordingReader reader = new SampleRecordingReader(recorder.getCurrentFile());
+        assertFalse(reader.isComplete());
+        assertEquals(5, reader.getRecordCount());
+        assertEquals(mLsm9ds1.getAccelerationSensitivity(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_8G),
+                reader.getAccelerationSensitivity(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_8G), 0f);
+        assertEquals(mLsm9ds1.getAngularVelocitySensitivity(Lsm9ds1.GyroscopeScale.GYRO_SCALE_2000DPS),
+                reader.getAngularVelocitySensitivity(Lsm9ds1.GyroscopeScale.GYRO_SCALE_2000DPS), 0f);
+        assertEquals(mLsm9ds1.getMagneticInductionSensitivity(), reader.getMagneticInductionSensitivity(), 0f);
+        reader.close();
+        recorder.close();
+    }
+
+    @Test
+    public void corruptedHeaderIsRejected() throws IOException {
+        SampleRecorder recorder = new SampleRecorder(mLsm9ds1, mFolder.getRoot(), PREFIX, 4, 1);
+        File file = recorder.getCurrentFile();
+        recorder.close();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(SampleRecorder.POSITION_CAPACITY);
+        randomAccessFile.write(0x7F);
+        randomAccessFile.close();
+
+        try {
+            new SampleRecordingReader(file);
+            fail("Corrupted header accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static short[] sample(int n) {
+        short[] sample = new short[Lsm9ds1Sampler.SAMPLE_SIZE];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = (short) (n * 100 - i * 7);
+        }
+        return sample;
+    }
+}
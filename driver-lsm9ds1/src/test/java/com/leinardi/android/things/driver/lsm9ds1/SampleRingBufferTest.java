@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleRingBufferTest {
+    private static final int CAPACITY = 8;
+    private static final int SAMPLE_SIZE = 2;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOfTwo() {
+        new SampleRingBuffer(12, SAMPLE_SIZE);
+    }
+
+    @Test
+    public void drainReturnsSamplesInOrderAcrossWrapAround() {
+        SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SAMPLE_SIZE);
+        long[] timestamps = new long[CAPACITY];
+        short[] samples = new short[CAPACITY * SAMPLE_SIZE];
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 5; i++, next++) {
+                assertTrue(buffer.offer(next, new short[]{(short) next, (short) -next}, 0));
+            }
+            int count = buffer.drain(timestamps, samples, CAPACITY);
+            assertEquals(5, count);
+            for (int i = 0; i < count; i++, expected++) {
+                assertEquals(expected, timestamps[i]);
+                assertEquals(expected, samples[i * SAMPLE_SIZE]);
+                assertEquals(-expected, samples[i * SAMPLE_SIZE + 1]);
+            }
+        }
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void fullBufferDropsNewSamples() {
+        SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SAMPLE_SIZE);
+        short[] sample = new short[SAMPLE_SIZE];
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(buffer.offer(i, sample, 0));
+        }
+        assertFalse(buffer.offer(CAPACITY, sample, 0));
+        assertEquals(1, buffer.getDroppedCount());
+
+        long[] timestamps = new long[CAPACITY];
+        assertEquals(3, buffer.drain(timestamps, new short[CAPACITY * SAMPLE_SIZE], 3));
+        assertEquals(2, timestamps[2]);
+        assertEquals(CAPACITY - 3, buffer.size());
+        buffer.clear();
+        assertEquals(0, buffer.size());
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentProducerAndConsumer() throws InterruptedException {
+        final int count = 100000;
+        final SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY, SAMPLE_SIZE);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] sample = new short[SAMPLE_SIZE];
+                for (int i = 0; i < count; ) {
+                    sample[0] = (short) i;
+                    sample[1] = (short) (i >> 16);
+                    if (buffer.offer(i, sample, 0)) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+
+        long[] timestamps = new long[CAPACITY];
+        short[] samples = new short[CAPACITY * SAMPLE_SIZE];
+        int expected = 0;
+        while (expected < count) {
+            int drained = buffer.drain(timestamps, samples, CAPACITY);
+            if (drained == 0) {
+                Thread.yield();
+            }
+            for (int i = 0; i < drained; i++, expected++) {
+                assertEquals(expected, timestamps[i]);
+                int value = (samples[i * SAMPLE_SIZE] & 0xFFFF) | (samples[i * SAMPLE_SIZE + 1] << 16);
+                assertEquals(expected, value);
+            }
+        }
+        producer.join();
+        assertEquals(0, buffer.size());
+    }
+}
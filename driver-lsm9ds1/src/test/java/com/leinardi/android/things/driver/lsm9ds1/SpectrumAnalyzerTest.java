@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpectrumAnalyzerTest {
+    private static final float SAMPLE_RATE = 952f;
+
+    @Test
+    public void peaksAreFoundAtTheSignalFrequencies() {
+        final float[] frequencies = new float[3];
+        final float[] powers = new float[3];
+        final int[] estimates = new int[1];
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer.Builder(SAMPLE_RATE)
+                .setPeakCount(3)
+                .setSpectrumListener(new SpectrumAnalyzer.SpectrumListener() {
+                    @Override
+                    public void onSpectrum(SpectrumAnalyzer analyzer) {
+                        // Besides the two tones there are only tiny local maxima due to the window leakage
+                        assertEquals(3, analyzer.getPeaks(frequencies, powers));
+                        assertTrue(powers[2] < powers[1] / 1000);
+                        estimates[0]++;
+                    }
+                })
+                .build();
+        for (int i = 0; i < 256 + 7 * 128 + 2 * 8 * 128; i++) {
+            double t = i / SAMPLE_RATE;
+            analyzer.addSample((float) (2 * Math.sin(2 * Math.PI * 120.3 * t) + 0.5 * Math.sin(2 * Math.PI * 50 * t)));
+        }
+
+        // The first estimate needs 8 segments of 256 samples with an overlap of 50%, the next ones 8 hops
+        assertEquals(3, estimates[0]);
+        assertEquals(120.3f, frequencies[0], analyzer.getBinWidth() / 4);
+        assertEquals(50f, frequencies[1], analyzer.getBinWidth() / 4);
+    }
+
+    @Test
+    public void bandEnergiesMatchSignalPower() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer.Builder(SAMPLE_RATE)
+                .setFftSize(512)
+                .setAverageCount(16)
+                .setBandEdges(0, 100, 200, SAMPLE_RATE / 2)
+                .build();
+        Random random = new Random(1);
+        float noise = 0.1f;
+        for (int i = 0; i < 512 * 9; i++) {
+            double t = i / SAMPLE_RATE;
+            analyzer.addSample((float) (3 * Math.sin(2 * Math.PI * 150 * t) + random.nextGaussian() * noise));
+        }
+
+        float[] energies = new float[3];
+        analyzer.getBandEnergies(energies);
+        // Mean square of a sine is amplitude^2 / 2, white noise spreads uniformly up to the Nyquist frequency
+        float noisePerHz = noise * noise / (SAMPLE_RATE / 2);
+        assertEquals(noisePerHz * 100, energies[0], noisePerHz * 100 * 0.3f);
+        assertEquals(4.5f + noisePerHz * 100, energies[1], 4.5f * 0.02f);
+        assertEquals(noisePerHz * (SAMPLE_RATE / 2 - 200), energies[2], noisePerHz * (SAMPLE_RATE / 2 - 200) * 0.3f);
+    }
+
+    @Test
+    public void powerSpectralDensityOfDcIsInFirstBin() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer.Builder(SAMPLE_RATE)
+                .setFftSize(64)
+                .setOverlap(0)
+                .setAverageCount(1)
+                .build();
+        for (int i = 0; i < 64; i++) {
+            analyzer.addSample(1f);
+        }
+        float[] psd = new float[analyzer.getBinCount()];
+        analyzer.getPowerSpectralDensity(psd);
+        // The Hann window spreads DC on the first two bins: the integral is still the mean square
+        assertEquals(1f, (psd[0] + psd[1]) * analyzer.getBinWidth(), 0.01f);
+        assertEquals(0f, psd[5], 1e-6f);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StepDetectorTest {
+    private static final float GRAVITY = 9.81f;
+    private static final long PERIOD_NANOS = 1000000000L / 119;
+
+    @Test
+    public void walkingIsCounted() {
+        StepDetector detector = new StepDetector();
+        Walk walk = new Walk(1);
+        // 20 s at 1.8 steps per second, then 10 s of running at 2.8 steps per second
+        walk.walk(detector, 20, 1.8f, 3f, 0f);
+        assertEquals(36, detector.getStepCount(), 1);
+        walk.walk(detector, 10, 2.8f, 6f, 0f);
+        assertEquals(64, detector.getStepCount(), 2);
+    }
+
+    @Test
+    public void stationaryNoiseIsIgnored() {
+        StepDetector detector = new StepDetector();
+        new Walk(2).walk(detector, 30, 0f, 0f, 0f);
+        assertEquals(0, detector.getStepCount());
+    }
+
+    @Test
+    public void thresholdAdaptsToSecondaryPeaks() {
+        // Every step has a secondary bump at the toe-off, 70% as high as the heel strike:
+        // it crosses the minimum threshold, but not half of the average step
+        StepDetector detector = new StepDetector();
+        new Walk(3).walk(detector, 20, 1.5f, 6f, 0.7f);
+        assertEquals(30, detector.getStepCount(), 1);
+        assertTrue(detector.getLastStepTimestamp() > 0);
+    }
+
+    /*
+     * Deterministic replay of the acceleration magnitude of a walk: a pulse for every step, an optional
+     * secondary pulse 300 ms later and white noise.
+     */
+    private static class Walk {
+        private static final float NOISE = 0.15f;
+        private static final float PULSE_WIDTH = 0.06f;
+        private static final float SECONDARY_DELAY = 0.3f;
+
+        private final Random mRandom;
+        private long mTimestamp = 1;
+
+        Walk(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        void walk(StepDetector detector, int seconds, float cadence, float height, float secondaryRatio) {
+            int samples = (int) (seconds * 1000000000L / PERIOD_NANOS);
+            for (int n = 0; n < samples; n++) {
+                float t = n * PERIOD_NANOS / 1e9f;
+                float magnitude = GRAVITY + (float) mRandom.nextGaussian() * NOISE;
+                if (cadence > 0) {
+                    float phase = t % (1f / cadence);
+                    magnitude += height * pulse(phase - 0.5f / cadence);
+                    magnitude += height * secondaryRatio * pulse(phase - 0.5f / cadence - SECONDARY_DELAY);
+                }
+                mTimestamp += PERIOD_NANOS;
+                // Split the magnitude on the three axes, like a tilted device
+                detector.update(mTimestamp, magnitude * 0.6f, magnitude * 0.48f, magnitude * 0.64f);
+            }
+        }
+
+        private static float pulse(float time) {
+            return (float) Math.exp(-time * time / (2 * PULSE_WIDTH * PULSE_WIDTH));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.lsm9ds1;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TiltCompensatedCompassTest {
+    private static final float GRAVITY = 9.81f;
+    // Geomagnetic field with a dip of about 60 degrees, in gauss: x east, y north, z up
+    private static final float[] FIELD = {0f, 0.23f, -0.4f};
+
+    private final float[] mAccel = new float[3];
+    private final float[] mMag = new float[3];
+    private final float[] mOrientation = new float[3];
+
+    @Test
+    public void levelDeviceReportsHeading() {
+        TiltCompensatedCompass compass = new TiltCompensatedCompass();
+        for (int heading = 0; heading < 360; heading += 30) {
+            readings(heading, 0, 0);
+            assertTrue(getOrientation(compass));
+            assertEquals(heading, mOrientation[0], 1e-3f);
+            assertEquals(0f, mOrientation[1], 1e-3f);
+            assertEquals(0f, mOrientation[2], 1e-3f);
+        }
+    }
+
+    @Test
+    public void headingIsCompensatedForTilt() {
+        TiltCompensatedCompass compass = new TiltCompensatedCompass();
+        for (int heading = 0; heading < 360; heading += 45) {
+            for (int pitch = -60; pitch <= 60; pitch += 20) {
+                for (int roll = -60; roll <= 60; roll += 20) {
+                    readings(heading, pitch, roll);
+                    assertTrue(getOrientation(compass));
+                    float error = Math.abs(mOrientation[0] - heading);
+                    assertEquals(0f, Math.min(error, 360f - error), 0.01f);
+                }
+            }
+        }
+        // Raising the top edge of the device gives a negative pitch, like SensorManager.getOrientation()
+        readings(0, 30, 0);
+        getOrientation(compass);
+        assertEquals(-30f, mOrientation[1], 1e-3f);
+    }
+
+    @Test
+    public void declinationIsAddedToAzimuth() {
+        TiltCompensatedCompass compass = new TiltCompensatedCompass();
+        compass.setDeclination(-10f);
+        readings(5, 0, 0);
+        assertTrue(getOrientation(compass));
+        assertEquals(355f, mOrientation[0], 1e-3f);
+    }
+
+    @Test
+    public void fieldParallelToGravityIsRejected() {
+        TiltCompensatedCompass compass = new TiltCompensatedCompass();
+        mOrientation[0] = 42f;
+        assertFalse(compass.getOrientation(0, 0, GRAVITY, 0, 0, -0.5f, mOrientation, 0));
+        assertFalse(compass.getOrientation(0, 0, 0, 0, 0.2f, -0.4f, mOrientation, 0));
+        assertEquals(42f, mOrientation[0], 0f);
+    }
+
+    private boolean getOrientation(TiltCompensatedCompass compass) {
+        return compass.getOrientation(mAccel[0], mAccel[1], mAccel[2], mMag[0], mMag[1], mMag[2], mOrientation, 0);
+    }
+
+    /*
+     * Readings of a device with the Y axis pointing at the given heading, then rotated around its X axis
+     * by the pitch and around its Y axis by the roll, all in degrees.
+     */
+    private void readings(float heading, float pitch, float roll) {
+        toDevice(new float[]{0f, 0f, GRAVITY}, heading, pitch, roll, mAccel);
+        toDevice(FIELD, heading, pitch, roll, mMag);
+    }
+
+    private static void toDevice(float[] world, float heading, float pitch, float roll, float[] result) {
+        double h = Math.toRadians(heading);
+        double p = Math.toRadians(pitch);
+        double r = Math.toRadians(roll);
+        // Level device
+        double x = world[0] * Math.cos(h) - world[1] * Math.sin(h);
+        double y = world[0] * Math.sin(h) + world[1] * Math.cos(h);
+        double z = world[2];
+        // Rotation of the device around its X axis: the readings rotate the opposite way
+        double y1 = y * Math.cos(p) + z * Math.sin(p);
+        double z1 = -y * Math.sin(p) + z * Math.cos(p);
+        // Rotation of the device around its Y axis
+        double x2 = x * Math.cos(r) - z1 * Math.sin(r);
+        double z2 = x * Math.sin(r) + z1 * Math.cos(r);
+        result[0] = (float) x2;
+        result[1] = (float) y1;
+        result[2] = (float) z2;
+    }
+}
@@ -19,14 +19,14 @@ package com.leinardi.android.things.driver.sh1106;
 import android.graphics.Bitmap;
 
 public class BitmapHelper {
-    private static final int GRADIENT_CUTOFF = 170; // Tune for gradient picker on grayscale images.
+    static final int GRADIENT_CUTOFF = 170; // Tune for gradient picker on grayscale images.
 
     private BitmapHelper() {
     }
 
     /**
      * Converts a bitmap image to LCD screen data and sets it on the given screen at the specified
-     * offset.
+     * offset. The parts of the image outside of the screen are ignored, see {@link Sh1106#setBitmap}.
      *
      * @param mScreen   The OLED screen to write the bitmap data to.
      * @param xOffset   The horizontal offset to draw the image at.
@@ -37,34 +37,22 @@ public class BitmapHelper {
      */
     public static void setBmpData(Sh1106 mScreen, int xOffset, int yOffset, Bitmap bmp,
                                   boolean drawWhite) {
-        int width = bmp.getWidth();
-        int height = bmp.getHeight();
-        int bmpByteSize = (int) Math.ceil((double) (width * ((height / 8) > 1 ? (height / 8) : 1)));
-
-        // Each byte stored in memory represents 8 vertical pixels.  As such, you must fill the
-        // memory with pixel data moving vertically top-down through the image and scrolling
-        // across, while appending the vertical pixel data by series of 8.
-
-        for (int y = 0; y < height; y += 8) {
-            for (int x = 0; x < width; x++) {
-                int bytePos = x + ((y / 8) * width);
+        mScreen.setBitmap(xOffset, yOffset, bmp, drawWhite);
+    }
 
-                for (int k = 0; k < 8; k++) {
-                    if ((k + y < height) && (bytePos < bmpByteSize)) {
-                        int pixel = bmp.getPixel(x, y + k);
-                        if (!drawWhite) { // Look at Alpha channel instead
-                            if ((pixel & 0xFF) > GRADIENT_CUTOFF) {
-                                mScreen.setPixel(x + xOffset, y + yOffset + k, true);
-                            }
-                        } else {
-                            if (pixel == -1) { // Only draw white pixels
-                                mScreen.setPixel(x + xOffset, y + yOffset + k, true);
-                            }
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * Converts a grayscale or color bitmap image to LCD screen data with the given dithering, and sets it on
+     * the given screen at the specified offset, see {@link Sh1106#setBitmap(int, int, Bitmap, int)}.
+     *
+     * @param mScreen The OLED screen to write the bitmap data to.
+     * @param xOffset The horizontal offset to draw the image at.
+     * @param yOffset The vertical offset to draw the image at.
+     * @param bmp     The bitmap image that you want to convert to screen data.
+     * @param mode    One of the {@link Sh1106.DitherMode} values.
+     */
+    public static void setBmpData(Sh1106 mScreen, int xOffset, int yOffset, Bitmap bmp,
+                                  @Sh1106.DitherMode int mode) {
+        mScreen.setBitmap(xOffset, yOffset, bmp, mode);
     }
 
     /**
@@ -77,30 +65,34 @@ public class BitmapHelper {
      */
     public static void bmpToBytes(byte[][] buffer, int offset, Bitmap bmp, boolean drawWhite) {
         int width = bmp.getWidth();
-        int height = bmp.getHeight();
+        int height = Math.min(bmp.getHeight(), buffer.length * 8);
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int[] pixels = new int[width * height];
+        bmp.getPixels(pixels, 0, width, 0, 0, width, height);
 
         // Each byte stored in memory represents 8 vertical pixels.  As such, you must fill the
         // memory with pixel data moving vertically top-down through the image and scrolling
         // across, while appending the vertical pixel data by series of 8.
         for (int y = 0; y < height; y += 8) {
-            for (int x = 0; x < width; x++) {
-                int bytePos = offset + x;
-                int page = (y / 8);
-
-                for (int k = 0; k < 8; k++) {
-                    if ((k + y < height) && (bytePos < buffer.length)) {
-                        int pixel = bmp.getPixel(x, y + k);
-                        if (!drawWhite) { // Look at Alpha channel instead
-                            if ((pixel & 0xFF) > GRADIENT_CUTOFF) {
-                                buffer[page][bytePos] |= 1 << k;
-                            }
-                        } else {
-                            if (pixel == -1) { // Only draw white pixels
-                                buffer[page][bytePos] |= 1 << k;
-                            }
+            byte[] row = buffer[y / 8];
+            int columns = Math.min(width, row.length - offset);
+            for (int x = 0; x < columns; x++) {
+                int bits = 0;
+                for (int k = 0; k < 8 && k + y < height; k++) {
+                    int pixel = pixels[(y + k) * width + x];
+                    if (!drawWhite) { // Look at Alpha channel instead
+                        if ((pixel & 0xFF) > GRADIENT_CUTOFF) {
+                            bits |= 1 << k;
+                        }
+                    } else {
+                        if (pixel == -1) { // Only draw white pixels
+                            bits |= 1 << k;
                         }
                     }
                 }
+                row[offset + x] |= bits;
             }
         }
     }
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.sh1106;
+
+import java.util.Arrays;
+
+/**
+ * Converts ARGB pixels to the 1 bit per pixel pages of the SH1106 display, with a threshold, error diffusion
+ * (Floyd-Steinberg or Atkinson) or ordered (Bayer) dithering.
+ * <p>
+ * The luminance of each pixel comes from lookup tables built once, that linearize the sRGB channels: the
+ * density of the lit pixels then follows the light emitted by the image, which is what the eye averages on
+ * the display. The error diffusion only uses integers and row buffers reused by the next calls: converting
+ * a frame does not allocate memory once the buffers are large enough. This class is not thread safe.
+ */
+final class Ditherer {
+    // Luminance of a white pixel
+    private static final int WHITE = 255;
+    private static final int THRESHOLD = 128;
+    // The tables hold the luminance of each channel value in 1/256 units
+    private static final int LUMINANCE_SHIFT = 8;
+    private static final int[] LUMINANCE_RED = new int[256];
+    private static final int[] LUMINANCE_GREEN = new int[256];
+    private static final int[] LUMINANCE_BLUE = new int[256];
+    private static final int BAYER_SIZE = 8;
+    private static final int[] BAYER_MATRIX = {
+            0, 32, 8, 40, 2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44, 4, 36, 14, 46, 6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+            3, 35, 11, 43, 1, 33, 9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47, 7, 39, 13, 45, 5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21
+    };
+    private static final int[] BAYER_THRESHOLDS = new int[BAYER_MATRIX.length];
+    // Margin of the error rows, for the neighbours of the first and last columns
+    private static final int ERROR_MARGIN = 2;
+    // The error is diffused in fixed point, so that the small fractions of the dark and bright areas add up
+    private static final int ERROR_SHIFT = 4;
+    private static final int ERROR_WHITE = WHITE << ERROR_SHIFT;
+    private static final int ERROR_THRESHOLD = THRESHOLD << ERROR_SHIFT;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            // sRGB transfer function and Rec. 709 luminance weights of the linear channels
+            double value = i / 255.0;
+            double linear = value <= 0.04045 ? value / 12.92 : Math.pow((value + 0.055) / 1.055, 2.4);
+            double scale = WHITE << LUMINANCE_SHIFT;
+            LUMINANCE_RED[i] = (int) Math.round(linear * 0.2126 * scale);
+            LUMINANCE_GREEN[i] = (int) Math.round(linear * 0.7152 * scale);
+            LUMINANCE_BLUE[i] = (int) Math.round(linear * 0.0722 * scale);
+        }
+        for (int i = 0; i < BAYER_MATRIX.length; i++) {
+            BAYER_THRESHOLDS[i] = (BAYER_MATRIX[i] * 2 + 1) * WHITE / (BAYER_MATRIX.length * 2);
+        }
+    }
+
+    private int[] mLuminance = new int[0];
+    private int[] mErrors0 = new int[0];
+    private int[] mErrors1 = new int[0];
+    private int[] mErrors2 = new int[0];
+
+    /**
+     * Converts the pixels and writes them, lit or not, into the pages of the display buffer.
+     *
+     * @param pixels     the ARGB pixels, row by row.
+     * @param width      the number of pixels of each row.
+     * @param height     the number of rows.
+     * @param mode       one of the {@link Sh1106.DitherMode} values.
+     * @param pages      the pages of the display buffer.
+     * @param dataOffset the offset of the first column in each page.
+     * @param left       the column of the display receiving the first pixel of each row.
+     * @param top        the row of the display receiving the first row.
+     */
+    void dither(int[] pixels, int width, int height, @Sh1106.DitherMode int mode,
+                byte[][] pages, int dataOffset, int left, int top) {
+        if (mLuminance.length < width) {
+            mLuminance = new int[width];
+            mErrors0 = new int[width + 2 * ERROR_MARGIN];
+            mErrors1 = new int[width + 2 * ERROR_MARGIN];
+            mErrors2 = new int[width + 2 * ERROR_MARGIN];
+        }
+        Arrays.fill(mErrors0, 0);
+        Arrays.fill(mErrors1, 0);
+        Arrays.fill(mErrors2, 0);
+        for (int y = 0; y < height; y++) {
+            computeLuminance(pixels, y * width, width);
+            byte[] page = pages[(top + y) >> 3];
+            int bit = 1 << ((top + y) & 7);
+            int column = dataOffset + left;
+            switch (mode) {
+                case Sh1106.DitherMode.DITHER_FLOYD_STEINBERG:
+                    ditherFloydSteinbergRow(width, (y & 1) == 0, page, bit, column);
+                    break;
+                case Sh1106.DitherMode.DITHER_ATKINSON:
+                    ditherAtkinsonRow(width, page, bit, column);
+                    break;
+                case Sh1106.DitherMode.DITHER_BAYER:
+                    ditherBayerRow(width, top + y, page, bit, column, left);
+                    break;
+                case Sh1106.DitherMode.DITHER_NONE:
+                default:
+                    for (int x = 0; x < width; x++) {
+                        page[column + x] = setBit(page[column + x], bit, mLuminance[x] >= THRESHOLD);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void computeLuminance(int[] pixels, int offset, int width) {
+        int[] luminance = mLuminance;
+        for (int x = 0; x < width; x++) {
+            int pixel = pixels[offset + x];
+            int value = (LUMINANCE_RED[(pixel >> 16) & 0xFF] + LUMINANCE_GREEN[(pixel >> 8) & 0xFF]
+                    + LUMINANCE_BLUE[pixel & 0xFF]) >> LUMINANCE_SHIFT;
+            // Transparent pixels are black
+            luminance[x] = (value * ((pixel >>> 24) + 1)) >> 8;
+        }
+    }
+
+    /*
+     * Floyd-Steinberg on a serpentine path: 7/16 of the error to the next pixel, 3/16, 5/16 and 1/16 to the
+     * three pixels below.
+     */
+    private void ditherFloydSteinbergRow(int width, boolean leftToRight, byte[] page, int bit, int column) {
+        int[] current = mErrors0;
+        int[] next = mErrors1;
+        int direction = leftToRight ? 1 : -1;
+        int x = leftToRight ? 0 : width - 1;
+        for (int n = 0; n < width; n++, x += direction) {
+            int index = x + ERROR_MARGIN;
+            int value = (mLuminance[x] << ERROR_SHIFT) + current[index];
+            boolean on = value >= ERROR_THRESHOLD;
+            page[column + x] = setBit(page[column + x], bit, on);
+            int error = on ? value - ERROR_WHITE : value;
+            current[index + direction] += (error * 7) >> 4;
+            next[index - direction] += (error * 3) >> 4;
+            next[index] += (error * 5) >> 4;
+            next[index + direction] += error >> 4;
+        }
+        Arrays.fill(current, 0);
+        mErrors0 = next;
+        mErrors1 = current;
+    }
+
+    /*
+     * Atkinson: 1/8 of the error to the two next pixels, to the three pixels below and to the pixel two rows
+     * below. Only 3/4 of the error is diffused, keeping more contrast.
+     */
+    private void ditherAtkinsonRow(int width, byte[] page, int bit, int column) {
+        int[] current = mErrors0;
+        int[] next = mErrors1;
+        int[] afterNext = mErrors2;
+        for (int x = 0; x < width; x++) {
+            int index = x + ERROR_MARGIN;
+            int value = (mLuminance[x] << ERROR_SHIFT) + current[index];
+            boolean on = value >= ERROR_THRESHOLD;
+            page[column + x] = setBit(page[column + x], bit, on);
+            int error = (on ? value - ERROR_WHITE : value) >> 3;
+            current[index + 1] += error;
+            current[index + 2] += error;
+            next[index - 1] += error;
+            next[index] += error;
+            next[index + 1] += error;
+            afterNext[index] += error;
+        }
+        Arrays.fill(current, 0);
+        mErrors0 = next;
+        mErrors1 = afterNext;
+        mErrors2 = current;
+    }
+
+    /*
+     * Ordered dithering with an 8x8 Bayer matrix anchored to the display, so that moving images do not
+     * crawl.
+     */
+    private void ditherBayerRow(int width, int row, byte[] page, int bit, int column, int left) {
+        int thresholds = (row & (BAYER_SIZE - 1)) * BAYER_SIZE;
+        for (int x = 0; x < width; x++) {
+            boolean on = mLuminance[x] > BAYER_THRESHOLDS[thresholds + ((left + x) & (BAYER_SIZE - 1))];
+            page[column + x] = setBit(page[column + x], bit, on);
+        }
+    }
+
+    private static byte setBit(byte value, int bit, boolean on) {
+        return (byte) (on ? value | bit : value & ~bit);
+    }
+}
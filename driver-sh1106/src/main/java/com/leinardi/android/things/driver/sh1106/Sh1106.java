@@ -17,16 +17,32 @@
 package com.leinardi.android.things.driver.sh1106;
 
 import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
 
+import androidx.annotation.IntDef;
 import com.google.android.things.pio.I2cDevice;
 import com.google.android.things.pio.PeripheralManager;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.Arrays;
 
+import static com.leinardi.android.things.driver.sh1106.Sh1106.DitherMode.DITHER_ATKINSON;
+import static com.leinardi.android.things.driver.sh1106.Sh1106.DitherMode.DITHER_BAYER;
+import static com.leinardi.android.things.driver.sh1106.Sh1106.DitherMode.DITHER_FLOYD_STEINBERG;
+import static com.leinardi.android.things.driver.sh1106.Sh1106.DitherMode.DITHER_NONE;
+
 /**
  * Driver for controlling the SH1106 OLED display.
+ * <p>
+ * The pixels are drawn into a display buffer and rendered either synchronously with {@link #show()}, or
+ * asynchronously with {@link #swapAndShowAsync()}: the frame is copied into a pending buffer and
+ * transmitted by a background thread, while the caller keeps drawing the next one. If a newer frame is
+ * handed over before the transfer of the pending one starts, the pending frame is dropped.
  */
 @SuppressWarnings("WeakerAccess")
 public class Sh1106 implements Closeable {
@@ -47,7 +63,14 @@ public class Sh1106 implements Closeable {
     private static final int VERTICAL_PIXEL_PER_PAGE = 8;
 
     // Protocol constants
-    private static final int DATA_OFFSET = 1;
+    // Control bytes: a command followed by another control byte, and the data until the end of the transaction
+    private static final int CONTROL_COMMAND_CONTINUATION = 0x80;
+    private static final int CONTROL_DATA = 0x40;
+    // Each page payload starts with the page and column address commands, followed by the data
+    private static final int POSITION_PAGE = 1;
+    private static final int POSITION_HIGH_COLUMN = 3;
+    private static final int POSITION_LOW_COLUMN = 5;
+    private static final int DATA_OFFSET = 7;
     private static final int COMMAND_DISPLAY_ON = 0xAF;
     private static final int COMMAND_DISPLAY_OFF = 0xAE;
     private static final int COMMAND_MEMORY_ADDRESSING_MODE = 0x20;
@@ -55,6 +78,9 @@ public class Sh1106 implements Closeable {
     private static final int COMMAND_PAGE = 0xB0;
     private static final int COMMAND_COMMON_OUTPUT_SCAN_DIRECTION = 0xC8;
     private static final int COMMAND_LOW_COLUMN = 0x02;
+    private static final int COMMAND_LOW_COLUMN_BASE = 0x00;
+    // The SH1106 RAM is 132 columns wide, the 128 pixels of the panel start at column 2
+    private static final int COLUMN_OFFSET = 2;
     private static final int COMMAND_DISPLAY_START_LINE = 0x40;
     private static final int COMMAND_SEGMENT_REMAP = 0xA1;
     private static final int COMMAND_NORMAL_DISPLAY = 0xA6;
@@ -103,6 +129,31 @@ public class Sh1106 implements Closeable {
 
     // Holds the i2c payloads.
     private byte[][] mBuffer;
+    // Range of columns of each page modified since the last show(), empty when start >= end
+    private int[] mDirtyStart;
+    private int[] mDirtyEnd;
+    // Holds the payload of a partial page
+    private byte[] mTransferBuffer;
+    // Holds the pixels of the bitmaps drawn by setBitmap(), grown when needed
+    private int[] mPixels;
+    private Ditherer mDitherer;
+
+    // Asynchronous rendering: frames handed over by swapAndShowAsync() wait in the pending buffer, that the
+    // flush thread swaps with the flush buffer before transmitting it. Both are allocated on first use.
+    private final Object mFrameLock = new Object();
+    // Held while transmitting a frame, serializes show() and the flush thread
+    private final Object mTransferLock = new Object();
+    private byte[][] mPendingBuffer;
+    private int[] mPendingDirtyStart;
+    private int[] mPendingDirtyEnd;
+    private boolean mFramePending;
+    private byte[][] mFlushBuffer;
+    private int[] mFlushDirtyStart;
+    private int[] mFlushDirtyEnd;
+    private long mDroppedFrameCount;
+    private FrameFlusher mFrameFlusher;
+    // Set by close(): a swapAndShowAsync() racing with it must not start a new flusher
+    private boolean mClosed;
 
     /**
      * Create a new Sh1106 driver connected to the named I2C bus
@@ -171,6 +222,19 @@ public class Sh1106 implements Closeable {
         init(device, DEFAULT_WIDTH, DEFAULT_HEIGHT);
     }
 
+    /**
+     * Create a new Sh1106 driver connected to the given device, rendering the frames handed over to
+     * {@link #swapAndShowAsync()} through the given flusher instead of a dedicated thread
+     *
+     * @param device       I2C device of the display
+     * @param frameFlusher flusher that will call {@link #flushPendingFrame()}
+     * @throws IOException
+     */
+    /*package*/ Sh1106(I2cDevice device, FrameFlusher frameFlusher) throws IOException {
+        mFrameFlusher = frameFlusher;
+        init(device, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+    }
+
     /**
      * Recommended start sequence for initializing the communications with the OLED display.
      * WARNING: If you change this code, power cycle your display before testing.
@@ -181,25 +245,65 @@ public class Sh1106 implements Closeable {
         mI2cDevice = device;
         mWidth = width;
         mHeight = height;
-        mBuffer = new byte[PAGES][(((mWidth * mHeight) / VERTICAL_PIXEL_PER_PAGE) / PAGES) + DATA_OFFSET];
+        mBuffer = createPageBuffers();
         BitmapHelper.bmpToBytes(
                 mBuffer,
                 DATA_OFFSET,
                 Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888),
                 false);
-        for (byte[] page : mBuffer) {
-            page[0] = (byte) COMMAND_DISPLAY_START_LINE;
-        }
+        mDirtyStart = new int[PAGES];
+        mDirtyEnd = new int[PAGES];
+        mTransferBuffer = new byte[mBuffer[0].length];
+        // The content of the display RAM is unknown
+        invalidate();
         mI2cDevice.write(INIT_PAYLOAD, INIT_PAYLOAD.length);
     }
 
+    private byte[][] createPageBuffers() {
+        byte[][] buffer = new byte[PAGES][(((mWidth * mHeight) / VERTICAL_PIXEL_PER_PAGE) / PAGES) + DATA_OFFSET];
+        for (int page = 0; page < PAGES; page++) {
+            initPagePayload(buffer[page], page, 0);
+        }
+        return buffer;
+    }
+
+    /*
+     * Fill the header of a page payload, selecting the page and the first column of the data.
+     */
+    private static void initPagePayload(byte[] payload, int page, int start) {
+        int column = start + COLUMN_OFFSET;
+        payload[POSITION_PAGE - 1] = (byte) CONTROL_COMMAND_CONTINUATION;
+        payload[POSITION_PAGE] = (byte) (COMMAND_PAGE + page);
+        payload[POSITION_HIGH_COLUMN - 1] = (byte) CONTROL_COMMAND_CONTINUATION;
+        payload[POSITION_HIGH_COLUMN] = (byte) (COMMAND_HIGH_COLUMN | (column >> 4));
+        payload[POSITION_LOW_COLUMN - 1] = (byte) CONTROL_COMMAND_CONTINUATION;
+        payload[POSITION_LOW_COLUMN] = (byte) (COMMAND_LOW_COLUMN_BASE | (column & 0x0F));
+        payload[DATA_OFFSET - 1] = (byte) CONTROL_DATA;
+    }
+
+    /**
+     * Close the display. A frame already handed over to {@link #swapAndShowAsync()} is rendered first.
+     *
+     * @throws IOException
+     */
     @Override
     public void close() throws IOException {
-        if (mI2cDevice != null) {
-            try {
-                mI2cDevice.close();
-            } finally {
-                mI2cDevice = null;
+        FrameFlusher frameFlusher;
+        synchronized (mFrameLock) {
+            mClosed = true;
+            frameFlusher = mFrameFlusher;
+            mFrameFlusher = null;
+        }
+        if (frameFlusher != null) {
+            frameFlusher.shutdown();
+        }
+        synchronized (mTransferLock) {
+            if (mI2cDevice != null) {
+                try {
+                    mI2cDevice.close();
+                } finally {
+                    mI2cDevice = null;
+                }
             }
         }
     }
@@ -227,8 +331,31 @@ public class Sh1106 implements Closeable {
      * {@link #show()} is called.
      */
     public void clearPixels() {
-        for (byte[] row : mBuffer) {
-            Arrays.fill(row, DATA_OFFSET, row.length, (byte) 0);
+        for (int page = 0; page < PAGES; page++) {
+            byte[] row = mBuffer[page];
+            int start = DATA_OFFSET;
+            while (start < row.length && row[start] == 0) {
+                start++;
+            }
+            int end = row.length;
+            while (end > start && row[end - 1] == 0) {
+                end--;
+            }
+            if (start < end) {
+                Arrays.fill(row, start, end, (byte) 0);
+                markDirty(mDirtyStart, mDirtyEnd, page, start - DATA_OFFSET, end - DATA_OFFSET);
+            }
+        }
+    }
+
+    /**
+     * Marks the whole display buffer as modified, so that the next call to {@link #show()} renders all the
+     * pixels. Use it after writing directly into the display RAM, or if the display was reset.
+     */
+    public void invalidate() {
+        for (int page = 0; page < PAGES; page++) {
+            mDirtyStart[page] = 0;
+            mDirtyEnd[page] = mBuffer[page].length - DATA_OFFSET;
         }
     }
 
@@ -244,10 +371,136 @@ public class Sh1106 implements Closeable {
         if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) {
             throw new IllegalArgumentException("Pixel out of bound:" + x + "," + y);
         }
+        int page = y / PAGES;
+        byte value = mBuffer[page][DATA_OFFSET + x];
         if (on) {
-            mBuffer[(y / PAGES)][DATA_OFFSET + x] |= (1 << y % VERTICAL_PIXEL_PER_PAGE);
+            mBuffer[page][DATA_OFFSET + x] |= (1 << y % VERTICAL_PIXEL_PER_PAGE);
+        } else {
+            mBuffer[page][DATA_OFFSET + x] &= ~(1 << y % VERTICAL_PIXEL_PER_PAGE);
+        }
+        if (mBuffer[page][DATA_OFFSET + x] != value) {
+            markDirty(mDirtyStart, mDirtyEnd, page, x, x + 1);
+        }
+    }
+
+    /**
+     * Draws a bitmap in the display buffer at the given offset, turning on the pixels of the display that
+     * match the lit pixels of the bitmap. The parts of the bitmap outside of the display are ignored.
+     * This will be rendered the next time {@link #show()} is called.
+     * <p>
+     * The pixels are read with a single {@link Bitmap#getPixels} into an array reused by the next calls,
+     * and packed directly into the pages of the display buffer.
+     *
+     * @param xOffset   The horizontal offset to draw the image at.
+     * @param yOffset   The vertical offset to draw the image at.
+     * @param bmp       The bitmap image to draw.
+     * @param drawWhite true for drawing only white pixels, false for drawing the pixels whose blue channel
+     *                  is above the threshold of {@link BitmapHelper}.
+     */
+    public void setBitmap(int xOffset, int yOffset, Bitmap bmp, boolean drawWhite) {
+        // Visible part of the bitmap, in display coordinates
+        int left = Math.max(xOffset, 0);
+        int right = Math.min(xOffset + bmp.getWidth(), mWidth);
+        int top = Math.max(yOffset, 0);
+        int bottom = Math.min(Math.min(yOffset + bmp.getHeight(), mHeight), PAGES * VERTICAL_PIXEL_PER_PAGE);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        int width = right - left;
+        int height = bottom - top;
+        int[] pixels = readPixels(bmp, left - xOffset, top - yOffset, width, height);
+
+        for (int page = top / VERTICAL_PIXEL_PER_PAGE; page <= (bottom - 1) / VERTICAL_PIXEL_PER_PAGE; page++) {
+            byte[] row = mBuffer[page];
+            int pageTop = page * VERTICAL_PIXEL_PER_PAGE;
+            int firstBit = Math.max(top - pageTop, 0);
+            int lastBit = Math.min(bottom - pageTop, VERTICAL_PIXEL_PER_PAGE);
+            int firstIndex = (pageTop + firstBit - top) * width;
+            int changedStart = right;
+            int changedEnd = left;
+            for (int x = left; x < right; x++) {
+                int bits = 0;
+                int index = firstIndex + x - left;
+                for (int bit = firstBit; bit < lastBit; bit++, index += width) {
+                    int pixel = pixels[index];
+                    if (drawWhite ? pixel == -1 : (pixel & 0xFF) > BitmapHelper.GRADIENT_CUTOFF) {
+                        bits |= 1 << bit;
+                    }
+                }
+                byte value = (byte) (row[DATA_OFFSET + x] | bits);
+                if (value != row[DATA_OFFSET + x]) {
+                    row[DATA_OFFSET + x] = value;
+                    changedStart = Math.min(changedStart, x);
+                    changedEnd = x + 1;
+                }
+            }
+            markDirty(mDirtyStart, mDirtyEnd, page, changedStart, changedEnd);
+        }
+    }
+
+    /**
+     * Draws a grayscale or color bitmap in the display buffer at the given offset, converting it to lit and
+     * unlit pixels with the given dithering. Unlike {@link #setBitmap(int, int, Bitmap, boolean)} the pixels
+     * of the display covered by the bitmap are replaced. The parts of the bitmap outside of the display are
+     * ignored. This will be rendered the next time {@link #show()} is called.
+     * <p>
+     * The conversion only uses integers and buffers reused by the next calls, fast enough to show a camera
+     * preview.
+     *
+     * @param xOffset The horizontal offset to draw the image at.
+     * @param yOffset The vertical offset to draw the image at.
+     * @param bmp     The bitmap image to draw.
+     * @param mode    One of the {@link DitherMode} values.
+     */
+    public void setBitmap(int xOffset, int yOffset, Bitmap bmp, @DitherMode int mode) {
+        int left = Math.max(xOffset, 0);
+        int right = Math.min(xOffset + bmp.getWidth(), mWidth);
+        int top = Math.max(yOffset, 0);
+        int bottom = Math.min(Math.min(yOffset + bmp.getHeight(), mHeight), PAGES * VERTICAL_PIXEL_PER_PAGE);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        int width = right - left;
+        int height = bottom - top;
+        int[] pixels = readPixels(bmp, left - xOffset, top - yOffset, width, height);
+        if (mDitherer == null) {
+            mDitherer = new Ditherer();
+        }
+        mDitherer.dither(pixels, width, height, mode, mBuffer, DATA_OFFSET, left, top);
+        for (int page = top / VERTICAL_PIXEL_PER_PAGE; page <= (bottom - 1) / VERTICAL_PIXEL_PER_PAGE; page++) {
+            markDirty(mDirtyStart, mDirtyEnd, page, left, right);
+        }
+    }
+
+    private int[] readPixels(Bitmap bmp, int x, int y, int width, int height) {
+        if (mPixels == null || mPixels.length < width * height) {
+            mPixels = new int[width * height];
+        }
+        bmp.getPixels(mPixels, 0, width, x, y, width, height);
+        return mPixels;
+    }
+
+    private static void markDirty(int[] dirtyStart, int[] dirtyEnd, int page, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        if (dirtyStart[page] >= dirtyEnd[page]) {
+            dirtyStart[page] = start;
+            dirtyEnd[page] = end;
         } else {
-            mBuffer[(y / PAGES)][DATA_OFFSET + x] &= ~(1 << y % VERTICAL_PIXEL_PER_PAGE);
+            dirtyStart[page] = Math.min(dirtyStart[page], start);
+            dirtyEnd[page] = Math.max(dirtyEnd[page], end);
+        }
+    }
+
+    /*
+     * Move the dirty ranges of a buffer into those of another one, holding the same or newer pixels.
+     */
+    private static void moveDirty(int[] fromStart, int[] fromEnd, int[] toStart, int[] toEnd) {
+        for (int page = 0; page < PAGES; page++) {
+            markDirty(toStart, toEnd, page, fromStart[page], fromEnd[page]);
+            fromStart[page] = 0;
+            fromEnd[page] = 0;
         }
     }
 
@@ -307,7 +560,9 @@ public class Sh1106 implements Closeable {
     }
 
     /**
-     * Renders the current pixel data to the screen.
+     * Renders the current pixel data to the screen. Only the columns of each page modified since the
+     * previous call are transmitted, with a single I2C transaction per page addressing the page and the
+     * first column and carrying the data.
      *
      * @throws IOException
      * @throws IllegalStateException
@@ -316,11 +571,202 @@ public class Sh1106 implements Closeable {
         if (mI2cDevice == null) {
             throw new IllegalStateException("I2C Device not open");
         }
+        synchronized (mTransferLock) {
+            synchronized (mFrameLock) {
+                // The display buffer is newer than a frame still waiting to be flushed: send it instead
+                if (mPendingBuffer != null) {
+                    moveDirty(mPendingDirtyStart, mPendingDirtyEnd, mDirtyStart, mDirtyEnd);
+                    mFramePending = false;
+                }
+            }
+            writePages(mBuffer, mDirtyStart, mDirtyEnd);
+        }
+    }
+
+    /**
+     * Hands the current pixel data over to a background thread that renders it to the screen, and returns
+     * immediately. The display buffer keeps its content, so the next frame can be drawn incrementally.
+     * If the previous frame is still waiting for the transfer to start, it is dropped in favor of this one.
+     * Errors of the transfer are logged, the frame is then sent again with the next one.
+     *
+     * @throws IllegalStateException
+     */
+    public void swapAndShowAsync() throws IllegalStateException {
+        if (mI2cDevice == null) {
+            throw new IllegalStateException("I2C Device not open");
+        }
+        boolean post;
+        synchronized (mFrameLock) {
+            if (mClosed) {
+                throw new IllegalStateException("I2C Device not open");
+            }
+            if (mPendingBuffer == null) {
+                mPendingBuffer = createPageBuffers();
+                mPendingDirtyStart = new int[PAGES];
+                mPendingDirtyEnd = new int[PAGES];
+                mFlushBuffer = createPageBuffers();
+                mFlushDirtyStart = new int[PAGES];
+                mFlushDirtyEnd = new int[PAGES];
+            }
+            if (mFramePending) {
+                mDroppedFrameCount++;
+            }
+            for (int page = 0; page < PAGES; page++) {
+                System.arraycopy(mBuffer[page], DATA_OFFSET, mPendingBuffer[page], DATA_OFFSET,
+                        mBuffer[page].length - DATA_OFFSET);
+            }
+            // The columns of a dropped frame must still be sent, with the pixels of this one
+            moveDirty(mDirtyStart, mDirtyEnd, mPendingDirtyStart, mPendingDirtyEnd);
+            post = !mFramePending;
+            mFramePending = true;
+            if (mFrameFlusher == null) {
+                mFrameFlusher = new FlushHandlerThread();
+            }
+            if (post) {
+                mFrameFlusher.requestFlush();
+            }
+        }
+    }
+
+    /**
+     * Return the number of frames handed over to {@link #swapAndShowAsync()} and replaced by a newer one
+     * before being rendered.
+     *
+     * @return the number of dropped frames
+     */
+    public long getDroppedFrameCount() {
+        synchronized (mFrameLock) {
+            return mDroppedFrameCount;
+        }
+    }
+
+    /*
+     * Transmit the frame waiting in the pending buffer, if any. Called by the flush thread.
+     */
+    /*package*/ void flushPendingFrame() {
+        synchronized (mTransferLock) {
+            synchronized (mFrameLock) {
+                if (!mFramePending) {
+                    return;
+                }
+                swapPendingAndFlushBuffers();
+                mFramePending = false;
+            }
+            if (mI2cDevice == null) {
+                return;
+            }
+            try {
+                writePages(mFlushBuffer, mFlushDirtyStart, mFlushDirtyEnd);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to show frame", e);
+                synchronized (mFrameLock) {
+                    if (mFramePending) {
+                        // A newer frame is already waiting: it covers the columns that were not sent
+                        moveDirty(mFlushDirtyStart, mFlushDirtyEnd, mPendingDirtyStart, mPendingDirtyEnd);
+                    } else {
+                        // Keep the frame, it is sent again with the next one
+                        swapPendingAndFlushBuffers();
+                    }
+                }
+            }
+        }
+    }
+
+    private void swapPendingAndFlushBuffers() {
+        byte[][] buffer = mPendingBuffer;
+        mPendingBuffer = mFlushBuffer;
+        mFlushBuffer = buffer;
+        int[] dirty = mPendingDirtyStart;
+        mPendingDirtyStart = mFlushDirtyStart;
+        mFlushDirtyStart = dirty;
+        dirty = mPendingDirtyEnd;
+        mPendingDirtyEnd = mFlushDirtyEnd;
+        mFlushDirtyEnd = dirty;
+    }
+
+    private void writePages(byte[][] buffer, int[] dirtyStart, int[] dirtyEnd) throws IOException {
         for (int page = 0; page < PAGES; page++) {
-            mI2cDevice.writeRegByte(0, (byte) (COMMAND_PAGE + page));
-            mI2cDevice.writeRegByte(0, (byte) COMMAND_HIGH_COLUMN);
-            mI2cDevice.writeRegByte(0, (byte) COMMAND_LOW_COLUMN);
-            mI2cDevice.write(mBuffer[page], mBuffer[page].length);
+            int start = dirtyStart[page];
+            int end = dirtyEnd[page];
+            if (start >= end) {
+                continue;
+            }
+            if (end - start == buffer[page].length - DATA_OFFSET) {
+                // The header of the full page payload is built once with the buffer
+                mI2cDevice.write(buffer[page], buffer[page].length);
+            } else {
+                initPagePayload(mTransferBuffer, page, start);
+                System.arraycopy(buffer[page], DATA_OFFSET + start, mTransferBuffer, DATA_OFFSET, end - start);
+                mI2cDevice.write(mTransferBuffer, DATA_OFFSET + end - start);
+            }
+            // Cleared only once written, so that a failed transfer is retried by the next call
+            dirtyStart[page] = 0;
+            dirtyEnd[page] = 0;
+        }
+    }
+
+    /**
+     * Conversion of grayscale and color images to lit and unlit pixels
+     * <ul>
+     * <li>{@link #DITHER_NONE}: pixels brighter than mid-gray are lit, no dithering
+     * <li>{@link #DITHER_FLOYD_STEINBERG}: Floyd-Steinberg error diffusion, the most accurate gradients
+     * <li>{@link #DITHER_ATKINSON}: Atkinson error diffusion, diffusing only 3/4 of the error: more contrast
+     * and cleaner flat areas, but the darkest and brightest tones are clipped
+     * <li>{@link #DITHER_BAYER}: ordered dithering with an 8x8 Bayer matrix, the fastest and the most stable
+     * for animations
+     * </ul><p>
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({DITHER_NONE,
+            DITHER_FLOYD_STEINBERG,
+            DITHER_ATKINSON,
+            DITHER_BAYER
+    })
+    public @interface DitherMode {
+        int DITHER_NONE = 0;
+        int DITHER_FLOYD_STEINBERG = 1;
+        int DITHER_ATKINSON = 2;
+        int DITHER_BAYER = 3;
+    }
+
+    /*
+     * Runs flushPendingFrame() away from the caller of swapAndShowAsync().
+     */
+    /*package*/ interface FrameFlusher {
+        void requestFlush();
+
+        void shutdown();
+    }
+
+    private class FlushHandlerThread extends HandlerThread implements FrameFlusher {
+        private final Runnable mFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                flushPendingFrame();
+            }
+        };
+        private final Handler mHandler;
+
+        FlushHandlerThread() {
+            super("sh1106-flush-thread");
+            start();
+            mHandler = new Handler(getLooper());
+        }
+
+        @Override
+        public void requestFlush() {
+            mHandler.post(mFlushRunnable);
+        }
+
+        @Override
+        public void shutdown() {
+            // Let the posted flush run, the display is closed right after
+            quitSafely();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "join was interrupted");
+            }
         }
     }
 }
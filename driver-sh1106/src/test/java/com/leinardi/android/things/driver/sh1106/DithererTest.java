@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.android.things.driver.sh1106;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class DithererTest {
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 64;
+    private static final int DATA_OFFSET = 7;
+    private static final int[] MODES = {
+            Sh1106.DitherMode.DITHER_FLOYD_STEINBERG,
+            Sh1106.DitherMode.DITHER_ATKINSON,
+            Sh1106.DitherMode.DITHER_BAYER
+    };
+
+    @Test
+    public void litDensityFollowsLinearLuminance() {
+        Ditherer ditherer = new Ditherer();
+        // sRGB 188 is about 50% of the white luminance, sRGB 99 about 12.5%
+        int[] grays = {188, 99};
+        double[] densities = {0.5, 0.125};
+        for (int mode : MODES) {
+            for (int i = 0; i < grays.length; i++) {
+                if (mode == Sh1106.DitherMode.DITHER_ATKINSON && i > 0) {
+                    // Atkinson does not diffuse the whole error and clips the dark tones
+                    continue;
+                }
+                byte[][] pages = dither(ditherer, gray(grays[i]), mode);
+                assertEquals("mode " + mode, densities[i], countLit(pages) / (double) (WIDTH * HEIGHT), 0.02);
+            }
+            assertEquals(0, countLit(dither(ditherer, gray(0), mode)));
+            assertEquals(WIDTH * HEIGHT, countLit(dither(ditherer, gray(255), mode)));
+        }
+    }
+
+    @Test
+    public void pixelsAreWrittenAtTheOffset() {
+        Ditherer ditherer = new Ditherer();
+        byte[][] pages = new byte[8][DATA_OFFSET + WIDTH];
+        pages[0][DATA_OFFSET + 5] = (byte) 0xFF;
+        // 2x2 white square at column 5, rows 6 and 7 of page 0 and rows 8 and 9 of page 1
+        int[] pixels = {-1, -1, -1, -1, -1, -1};
+        ditherer.dither(pixels, 2, 3, Sh1106.DitherMode.DITHER_NONE, pages, DATA_OFFSET, 5, 6);
+        assertEquals((byte) 0xFF, pages[0][DATA_OFFSET + 5]);
+        assertEquals((byte) 0xC0, pages[0][DATA_OFFSET + 6]);
+        assertEquals((byte) 0x01, pages[1][DATA_OFFSET + 5]);
+        // Black pixels clear the display
+        Arrays.fill(pixels, 0xFF000000);
+        ditherer.dither(pixels, 2, 3, Sh1106.DitherMode.DITHER_NONE, pages, DATA_OFFSET, 5, 6);
+        assertEquals((byte) 0x3F, pages[0][DATA_OFFSET + 5]);
+        assertEquals(0, pages[0][DATA_OFFSET + 6]);
+        assertEquals(0, pages[1][DATA_OFFSET + 5]);
+    }
+
+    private static int[] gray(int value) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 0xFF000000 | value << 16 | value << 8 | value);
+        return pixels;
+    }
+
+    private static byte[][] dither(Ditherer ditherer, int[] pixels, int mode) {
+        byte[][] pages = new byte[HEIGHT / 8][DATA_OFFSET + WIDTH];
+        ditherer.dither(pixels, WIDTH, HEIGHT, mode, pages, DATA_OFFSET, 0, 0);
+        return pages;
+    }
+
+    private static int countLit(byte[][] pages) {
+        int count = 0;
+        for (byte[] page : pages) {
+            for (int i = DATA_OFFSET; i < page.length; i++) {
+                count += Integer.bitCount(page[i] & 0xFF);
+            }
+        }
+        return count;
+    }
+}
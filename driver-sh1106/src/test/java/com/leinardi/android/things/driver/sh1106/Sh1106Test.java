@@ -23,15 +23,23 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.withSettings;
 import static org.powermock.api.mockito.PowerMockito.mock;
@@ -44,6 +52,9 @@ public class Sh1106Test {
     @Mock
     I2cDevice mI2c;
 
+    @Mock
+    Sh1106.FrameFlusher mFrameFlusher;
+
     @Rule
     public MockitoRule mMokitoRule = MockitoJUnit.rule();
 
@@ -84,6 +95,156 @@ public class Sh1106Test {
         }
     }
 
+    @Test
+    public void showWritesOnlyModifiedColumns() throws IOException {
+        mockStatic(BitmapHelper.class);
+        mockStatic(Bitmap.class);
+        Sh1106 sh1106 = new Sh1106(mI2c);
+        sh1106.show();
+        // One transaction per page: 3 commands with their control bytes, the data control byte and 128 columns
+        Mockito.verify(mI2c, Mockito.times(8)).write(Mockito.any(byte[].class), Mockito.eq(135));
+        Mockito.verify(mI2c, Mockito.never()).writeRegByte(Mockito.anyInt(), Mockito.anyByte());
+        Mockito.reset(mI2c);
+
+        sh1106.setPixel(30, 20, true);
+        sh1106.setPixel(33, 21, true);
+        sh1106.show();
+        ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        Mockito.verify(mI2c).write(payload.capture(), Mockito.eq(11));
+        Mockito.verifyNoMoreInteractions(mI2c);
+        // Page 2, column 30 + 2, then columns 30 to 33
+        byte[] expected = {(byte) 0x80, (byte) 0xB2, (byte) 0x80, 0x12, (byte) 0x80, 0x00, 0x40, 0x10, 0, 0, 0x20};
+        assertArrayEquals(expected, Arrays.copyOf(payload.getValue(), 11));
+        Mockito.reset(mI2c);
+
+        // Setting a pixel that is already on does not modify the buffer
+        sh1106.setPixel(30, 20, true);
+        sh1106.show();
+        Mockito.verifyZeroInteractions(mI2c);
+    }
+
+    @Test
+    public void swapAndShowAsyncDropsOlderFrames() throws IOException {
+        mockStatic(BitmapHelper.class);
+        mockStatic(Bitmap.class);
+        Sh1106 sh1106 = new Sh1106(mI2c, mFrameFlusher);
+        sh1106.show();
+        Mockito.reset(mI2c);
+
+        sh1106.setPixel(10, 0, true);
+        sh1106.swapAndShowAsync();
+        sh1106.setPixel(10, 0, false);
+        sh1106.setPixel(12, 0, true);
+        sh1106.swapAndShowAsync();
+        Mockito.verifyZeroInteractions(mI2c);
+        assertEquals(1, sh1106.getDroppedFrameCount());
+        // The flush of the first frame is still pending, the second one is not requested again
+        Mockito.verify(mFrameFlusher).requestFlush();
+
+        sh1106.flushPendingFrame();
+        // Only the latest frame is sent, including the column modified by the dropped one
+        ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        Mockito.verify(mI2c).write(payload.capture(), Mockito.eq(10));
+        byte[] expected = {(byte) 0x80, (byte) 0xB0, (byte) 0x80, 0x10, (byte) 0x80, 0x0C, 0x40, 0, 0, 0x01};
+        assertArrayEquals(expected, Arrays.copyOf(payload.getValue(), 10));
+        Mockito.reset(mI2c);
+
+        sh1106.flushPendingFrame();
+        Mockito.verifyZeroInteractions(mI2c);
+    }
+
+    @Test
+    public void showSupersedesPendingFrame() throws IOException {
+        mockStatic(BitmapHelper.class);
+        mockStatic(Bitmap.class);
+        Sh1106 sh1106 = new Sh1106(mI2c, mFrameFlusher);
+        sh1106.swapAndShowAsync();
+        sh1106.setPixel(0, 63, true);
+
+        sh1106.show();
+        Mockito.verify(mI2c, Mockito.times(8)).write(Mockito.any(byte[].class), Mockito.eq(135));
+        Mockito.reset(mI2c);
+        sh1106.flushPendingFrame();
+        Mockito.verifyZeroInteractions(mI2c);
+
+        sh1106.close();
+        Mockito.verify(mFrameFlusher).shutdown();
+    }
+
+    @Test
+    public void swapAndShowAsyncRacingWithCloseDoesNotStartAFlusher() throws IOException {
+        mockStatic(BitmapHelper.class);
+        mockStatic(Bitmap.class);
+        final Sh1106 sh1106 = new Sh1106(mI2c, mFrameFlusher);
+        sh1106.swapAndShowAsync();
+        // The I2C device is still open while the flusher shuts down, as seen by a concurrent caller
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sh1106.swapAndShowAsync();
+                return null;
+            }
+        }).when(mFrameFlusher).shutdown();
+
+        mExpectedException.expect(IllegalStateException.class);
+        mExpectedException.expectMessage("I2C Device not open");
+        sh1106.close();
+    }
+
+    @Test
+    public void setBitmapPacksVisiblePixelsIntoPages() throws IOException {
+        mockStatic(BitmapHelper.class);
+        mockStatic(Bitmap.class);
+        Sh1106 sh1106 = new Sh1106(mI2c);
+        sh1106.show();
+        Mockito.reset(mI2c);
+
+        // 2x4 bitmap with a white first column and a dark second one, drawn across pages 0 and 1
+        final int[] pixels = {-1, 0, -1, 0, -1, 0, -1, 0};
+        Bitmap bmp = mock(Bitmap.class);
+        Mockito.when(bmp.getWidth()).thenReturn(2);
+        Mockito.when(bmp.getHeight()).thenReturn(4);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                int[] result = invocation.getArgument(0);
+                int offset = invocation.getArgument(1);
+                int stride = invocation.getArgument(2);
+                int x = invocation.getArgument(3);
+                int y = invocation.getArgument(4);
+                int width = invocation.getArgument(5);
+                int height = invocation.getArgument(6);
+                for (int row = 0; row < height; row++) {
+                    System.arraycopy(pixels, (y + row) * 2 + x, result, offset + row * stride, width);
+                }
+                return null;
+            }
+        }).when(bmp).getPixels(Mockito.any(int[].class), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(),
+                Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt());
+        // The payload buffer is reused for each page: keep a copy
+        final List<byte[]> payloads = new ArrayList<>();
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                byte[] payload = invocation.getArgument(0);
+                int length = invocation.getArgument(1);
+                payloads.add(Arrays.copyOf(payload, length));
+                return null;
+            }
+        }).when(mI2c).write(Mockito.any(byte[].class), Mockito.anyInt());
+        sh1106.setBitmap(127, 6, bmp, true);
+        sh1106.show();
+
+        // Only the first column is visible: rows 6 and 7 of page 0, rows 8 and 9 of page 1
+        assertEquals(2, payloads.size());
+        assertArrayEquals(new byte[]{(byte) 0x80, (byte) 0xB0, (byte) 0x80, 0x18, (byte) 0x80, 0x01, 0x40, (byte) 0xC0},
+                payloads.get(0));
+        assertArrayEquals(new byte[]{(byte) 0x80, (byte) 0xB1, (byte) 0x80, 0x18, (byte) 0x80, 0x01, 0x40, 0x03},
+                payloads.get(1));
+        Mockito.verify(bmp).getPixels(Mockito.any(int[].class), Mockito.eq(0), Mockito.eq(1), Mockito.eq(0),
+                Mockito.eq(0), Mockito.eq(1), Mockito.eq(4));
+    }
+
     @Test
     public void nullmI2cDevice() throws IOException {
         Sh1106 sh1106 = mock(Sh1106.class, withSettings().defaultAnswer(CALLS_REAL_METHODS));
@@ -160,23 +160,20 @@ public class OledScreenActivity extends Activity {
                 return;
             }
             mTick++;
-            try {
-                switch (mMode) {
-                    case DOTS:
-                        drawExpandingDots();
-                        break;
-                    case BITMAP:
-                        drawMovingBitmap();
-                        break;
-                    default:
-                        drawCrosshairs();
-                        break;
-                }
-                mScreen.show();
-                mHandler.postDelayed(this, 1000 / FPS);
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during screen update", e);
+            switch (mMode) {
+                case DOTS:
+                    drawExpandingDots();
+                    break;
+                case BITMAP:
+                    drawMovingBitmap();
+                    break;
+                default:
+                    drawCrosshairs();
+                    break;
             }
+            // Rendered on the flush thread of the driver, without blocking the main thread
+            mScreen.swapAndShowAsync();
+            mHandler.postDelayed(this, 1000 / FPS);
         }
     };
 }